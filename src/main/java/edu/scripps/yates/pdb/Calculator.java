@@ -7,6 +7,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -21,6 +22,9 @@ import edu.scripps.yates.pdb.model.Chain;
 import edu.scripps.yates.pdb.model.DBRef;
 import edu.scripps.yates.pdb.model.Peptide;
 import edu.scripps.yates.pdb.model.Protein;
+import edu.scripps.yates.pdb.read.AtomSelection;
+import edu.scripps.yates.pdb.read.DBRefIndex;
+import edu.scripps.yates.pdb.read.PDBParsePipeline;
 import edu.scripps.yates.pdb.read.PDBParser;
 import edu.scripps.yates.pdb.read.PDBParserManager;
 import edu.scripps.yates.pdb.read.PDBUtil;
@@ -71,7 +75,7 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 		this.removeOtherMolecules = removeOtherMolecules;
 		this.oneModelPerProtein = oneModelPerProtein;
 		pdbParserManager = new PDBParserManager(parentPDBFolderContainer);
-
+		pdbParserManager.setAtomSelection(getAtomSelection(this.atomTypeMap));
 	}
 
 	public Calculator(UniprotProteinLocalRetriever uplr, Character aa, AtomType atomType, boolean removeOtherChains,
@@ -86,7 +90,26 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 		this.removeOtherMolecules = removeOtherMolecules;
 		this.oneModelPerProtein = oneModelPerProtein;
 		pdbParserManager = new PDBParserManager(parentPDBFolderContainer);
+		pdbParserManager.setAtomSelection(getAtomSelection(this.atomTypeMap));
+	}
 
+	/**
+	 * Gets the {@link AtomSelection} that keeps only the atoms of the
+	 * {@link AtomType}s that are used in the calculations, so that the rest of
+	 * atoms are not stored when reading the structures
+	 *
+	 * @param atomTypeMap    the atom types of the sites
+	 * @param otherAtomTypes other atom types used by the calculation
+	 * @return
+	 */
+	protected static AtomSelection getAtomSelection(Map<Character, List<AtomType>> atomTypeMap,
+			AtomType... otherAtomTypes) {
+		final Set<AtomType> atomTypes = new HashSet<AtomType>();
+		for (final List<AtomType> list : atomTypeMap.values()) {
+			atomTypes.addAll(list);
+		}
+		Collections.addAll(atomTypes, otherAtomTypes);
+		return new AtomSelection.Builder().atomTypes(atomTypes).build();
 	}
 
 	public String getUniprotVersion() {
@@ -139,8 +162,6 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 
 	public R getReportFromPDBModel(String pdbID, String chainID) {
 
-		pdbParserManager.clearParsers();
-
 		final R proteinReport = createProteinReportObject(pdbID, null);
 		InputParameters inputParameters = null;
 		final PDBParser parser = pdbParserManager.getPDBParserByPDBID(pdbID, isParseCoordinates());
@@ -203,14 +224,16 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 
 			final JMolScript selectAndAddLabels = JMolCommandsUtil.getSelectAndAddLabels(proteinReport, pdbID);
 			final PDBParser pdbParser = pdbParserManager.getPDBParserByPDBID(pdbID, isParseCoordinates());
-			pdbParser.executeCommands(selectAndAddLabels);
 
 			final File file = new File(pdbParser.getFileFolder().getAbsolutePath() + File.separator
 					+ proteinReport.getUniprotACC() + "_" + pdbID + ".png");
-			final JMolScript saveImageCommand = new JMolScript(
+			// the image is written in the same script as the labels, as the
+			// labels script deletes atoms and the structure is loaded again
+			// before the next script
+			selectAndAddLabels.addCommand(
 					"write image 600 600 PNG 2 \"" + file.getAbsolutePath().replace(File.separator, "/") + "\"");
 			// String saveImageCommand = "x = write(\"PNGJ\");";
-			pdbParser.executeCommands(saveImageCommand);
+			pdbParser.executeCommands(selectAndAddLabels);
 
 			files.add(file);
 		}
@@ -238,11 +261,15 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 	protected List<Chain> getPDBChainListSortedByResolution(Entry entry, String pdbID, int positionInUniprot) {
 		final List<Chain> ret = new ArrayList<Chain>();
 		double numPDBStructures = 0;
+		// pdbID_chainID of the chains listed in the UniProtKB entry
+		final Set<String> chainKeys = new THashSet<String>();
+		final Set<String> pdbIDs = new THashSet<String>();
 		final List<DbReferenceType> dbReferences = entry.getDbReference();
 		if (dbReferences != null) {
 			for (final DbReferenceType dbReferenceType : dbReferences) {
 				if (dbReferenceType.getType().equals("PDB")) {
 					numPDBStructures++;
+					pdbIDs.add(dbReferenceType.getId());
 					// see if this crystal structure include the position we are
 					// interested in
 					String resolutionString = PDBUtil.getPropertyValueFromDbReferenceType(dbReferenceType,
@@ -268,6 +295,7 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 					final String chainsString = PDBUtil.getPropertyValueFromDbReferenceType(dbReferenceType, "chains");
 					final Set<Chain> chains = getChainsFromChainString(chainsString, dbReferenceType, resolution);
 					for (final Chain chain : chains) {
+						chainKeys.add(chain.getPdbID() + "_" + chain.getIdentifier());
 						// if pdbID is provided, only take that model
 						if (pdbID != null && !chain.getPdbID().equals(pdbID)) {
 							continue;
@@ -280,6 +308,28 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 				}
 			}
 		}
+		// the structures of the local repository that reference the protein
+		// and are not listed in its UniProtKB entry
+		if (entry.getAccession() != null && !entry.getAccession().isEmpty()) {
+			final List<DBRef> dbRefs = pdbParserManager.getDBRefIndex().getDBRefs(entry.getAccession().get(0));
+			for (final DBRef dbRef : dbRefs) {
+				if (dbRef.getDbSeqBegin() < 0 || dbRef.getDbSeqEnd() < 0
+						|| !chainKeys.add(dbRef.getPdbID() + "_" + dbRef.getChainID())) {
+					continue;
+				}
+				if (pdbIDs.add(dbRef.getPdbID())) {
+					numPDBStructures++;
+				}
+				if (pdbID != null && !dbRef.getPdbID().equals(pdbID)) {
+					continue;
+				}
+				final Chain chain = new Chain(dbRef.getPdbID(),
+						dbRef.getChainID() + "=" + dbRef.getDbSeqBegin() + "-" + dbRef.getDbSeqEnd(), null);
+				if (chain.includesPosition(positionInUniprot)) {
+					ret.add(chain);
+				}
+			}
+		}
 		numPDBStructuresList.add(numPDBStructures);
 		if (!ret.isEmpty()) {
 			// sort by resolution
@@ -383,6 +433,13 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 
 	}
 
+	/**
+	 * @return the manager of the reports stored in the local file
+	 */
+	public JMolReportManager<R, T> getReportManager() {
+		return reportManager;
+	}
+
 	public Map<String, T> getSiteReportFromParameters(PDBParser parser, InputParameters inputParameters) {
 		if (inputParameters.getUniprotACC() != null) {
 			final Map<String, T> ret = new THashMap<String, T>();
@@ -550,11 +607,11 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 		if (uniprotProteinSeq == null) {
 			return null;
 		}
-		pdbParserManager.clearParsers();
-
 		final R proteinReport = createProteinReportObject(proteinAcc, uniprotProteinSeq);
+		final DBRefIndex dbRefIndex = pdbParserManager.getDBRefIndex();
 		final TIntHashSet positionsInUniprotProteinProcessed = new TIntHashSet();
-		final Map<String, List<InputParameters>> parametersByPDBID = new THashMap<String, List<InputParameters>>();
+		// in the order of the chains, so that the best ones are read first
+		final Map<String, List<InputParameters>> parametersByPDBID = new LinkedHashMap<String, List<InputParameters>>();
 		int numCalculationsToDo = 0;
 		for (final String uniprotPeptideSequence : peptides) {
 
@@ -588,40 +645,41 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 											+ proteinAcc);
 								}
 								for (final Chain chain : chains) {
-									final PDBParser parser = pdbParserManager.getPDBParserByPDBID(chain.getPdbID(),
-											isParseCoordinates());
-									if (parser != null) {
-										if (!parser.containsUniprotReference(proteinAcc)) {
-											continue;
-										}
+									// the index tells it without reading the
+									// structure. The ones not indexed yet are
+									// checked when the pipeline reads them
+									final boolean indexed = dbRefIndex.isIndexed(chain.getPdbID(),
+											pdbParserManager.getLocalFile(chain.getPdbID()));
+									if (indexed && !dbRefIndex.containsUniprotReference(chain.getPdbID(), proteinAcc)) {
+										continue;
+									}
 
-										final InputParameters inputParameters = new InputParameters(atomTypeMap,
-												positionInUniprotProtein, chain, uniprotPeptideSequence,
-												positionInPeptide, proteinAcc, removeOtherChains, removeOtherMolecules);
-										final String reportKey = inputParameters.getReportKey();
-										final R proteinReportByProtein = reportManager.getReportByKey(reportKey);
-										if (proteinReportByProtein != null) {
-											for (final T report : proteinReportByProtein.getReports()) {
-												proteinReport.addReport(report);
-											}
+									final InputParameters inputParameters = new InputParameters(atomTypeMap,
+											positionInUniprotProtein, chain, uniprotPeptideSequence, positionInPeptide,
+											proteinAcc, removeOtherChains, removeOtherMolecules);
+									final String reportKey = inputParameters.getReportKey();
+									final R proteinReportByProtein = reportManager.getReportByKey(reportKey);
+									if (proteinReportByProtein != null) {
+										for (final T report : proteinReportByProtein.getReports()) {
+											proteinReport.addReport(report);
+										}
 
+									} else {
+										numCalculationsToDo++;
+										log.info(inputParameters);
+										if (parametersByPDBID.containsKey(inputParameters.getPdbID())) {
+											parametersByPDBID.get(inputParameters.getPdbID()).add(inputParameters);
 										} else {
-											numCalculationsToDo++;
-											log.info(inputParameters);
-											if (parametersByPDBID.containsKey(inputParameters.getPdbID())) {
-												parametersByPDBID.get(inputParameters.getPdbID()).add(inputParameters);
-											} else {
-												final List<InputParameters> list = new ArrayList<InputParameters>();
-												list.add(inputParameters);
-												parametersByPDBID.put(inputParameters.getPdbID(), list);
-											}
-										}
-										if (oneModelPerProtein) {
-											break;
+											final List<InputParameters> list = new ArrayList<InputParameters>();
+											list.add(inputParameters);
+											parametersByPDBID.put(inputParameters.getPdbID(), list);
 										}
 									}
-									// if not exception, exit loop here
-									// break;
+									// the next chains are kept as alternatives
+									// until one is known to reference the protein
+									if (oneModelPerProtein && (indexed || proteinReportByProtein != null)) {
+										break;
+									}
 								}
 
 							}
@@ -634,30 +692,46 @@ public abstract class Calculator<R extends ProteinReport<T>, T extends JMolAtomR
 		if (numCalculationsToDo > 0) {
 			log.info(numCalculationsToDo + " calculations to do for " + proteinAcc);
 		}
-		for (final String pdbID2 : parametersByPDBID.keySet()) {
-			final PDBParser parser = pdbParserManager.getPDBParserByPDBID(pdbID2, isParseCoordinates());
-			log.info("Using PDB model " + pdbID2 + " for protein " + proteinAcc);
-			if (parser != null) {
-				if (!parser.containsUniprotReference(proteinAcc)) {
-					continue;
+		// the next structures are read while the sites of one are calculated
+		final List<String> pdbIDs = new ArrayList<String>(parametersByPDBID.keySet());
+		final PDBParsePipeline pipeline = new PDBParsePipeline(pdbParserManager, pdbIDs, isParseCoordinates());
+		try {
+			for (final String pdbID2 : pdbIDs) {
+				final PDBParser parser = pipeline.next();
+				if (parser == null && Thread.currentThread().isInterrupted()) {
+					log.warn("Calculation of " + proteinAcc + " interrupted");
+					break;
 				}
-				final List<InputParameters> list = parametersByPDBID.get(pdbID2);
-				sortByUniprotPosition(list);
-				for (final InputParameters inputParameters : list) {
-					log.debug("Using PDB model " + pdbID2 + " for protein " + proteinAcc + " position "
-							+ inputParameters.getPositionInUniprotProtein());
-					final Map<String, T> siteReports = getSiteReportFromParameters(parser, inputParameters);
-					if (siteReports != null) {
-						for (final String key : siteReports.keySet()) {
-							final T report = siteReports.get(key);
-							proteinReport.addReport(report);
-
+				log.info("Using PDB model " + pdbID2 + " for protein " + proteinAcc);
+				if (parser != null) {
+					if (!dbRefIndex.containsUniprotReference(parser, proteinAcc)) {
+						continue;
+					}
+					final List<InputParameters> list = parametersByPDBID.get(pdbID2);
+					sortByUniprotPosition(list);
+					for (final InputParameters inputParameters : list) {
+						// already calculated in other structure
+						if (oneModelPerProtein && proteinReport
+								.containsReportsForPosition(inputParameters.getPositionInUniprotProtein())) {
+							continue;
 						}
+						log.debug("Using PDB model " + pdbID2 + " for protein " + proteinAcc + " position "
+								+ inputParameters.getPositionInUniprotProtein());
+						final Map<String, T> siteReports = getSiteReportFromParameters(parser, inputParameters);
+						if (siteReports != null) {
+							for (final String key : siteReports.keySet()) {
+								final T report = siteReports.get(key);
+								proteinReport.addReport(report);
 
+							}
+
+						}
 					}
-				}
 
+				}
 			}
+		} finally {
+			pipeline.close();
 		}
 
 		if (!proteinReport.getReports().isEmpty() || numCalculationsToDo > 0) {
@@ -13,11 +13,14 @@ public abstract class JMolAtomReport {
 	private final Atom3D atom;
 	private final Float resolution;
 	public final static String sep = "\t";
+	public final static String FINGERPRINT_HEADER = "Structure_fingerprint";
 	private final boolean otherChainsRemoved;
 	private final boolean otherMoleculesRemoved;
 	private final boolean mutation;
 	private final String method;
 	private boolean stored = false;
+	// fingerprint of the structure file the report was calculated from
+	private String fingerprint;
 
 	public JMolAtomReport(String pdbID, Atom3D atom, String uniprotACC, int positionInUniprot, Float resolution,
 			boolean otherChainsRemoved, boolean otherMoleculesRemoved, boolean mutation, String method) {
@@ -116,6 +119,41 @@ public abstract class JMolAtomReport {
 		return string;
 	}
 
+	/**
+	 * @return the fingerprint of the structure file the report was calculated
+	 *         from, or null if it was stored without it
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public void setFingerprint(String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * @return the fingerprint as it is written, as the last column of the
+	 *         reports
+	 */
+	protected String getFingerprintString() {
+		return fingerprint != null ? fingerprint : "-";
+	}
+
+	/**
+	 * Reads the fingerprint, that is not present in the reports written by
+	 * previous versions
+	 *
+	 * @param split
+	 * @param index
+	 * @return the fingerprint or null
+	 */
+	protected static String parseFingerprint(String[] split, int index) {
+		if (index < split.length && !"".equals(split[index].trim()) && !"-".equals(split[index].trim())) {
+			return split[index].trim();
+		}
+		return null;
+	}
+
 	public boolean isStored() {
 		return stored;
 	}
@@ -5,15 +5,20 @@ import java.io.BufferedWriter;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -24,6 +29,7 @@ import org.apache.log4j.Logger;
 
 import edu.scripps.yates.annotations.uniprot.UniprotProteinLocalRetriever;
 import edu.scripps.yates.pdb.model.Protein;
+import edu.scripps.yates.pdb.read.PDBFileContentCache;
 import edu.scripps.yates.pdb.surface.SurfaceCalculator;
 import edu.scripps.yates.utilities.annotations.uniprot.xml.Entry;
 import edu.scripps.yates.utilities.progresscounter.ProgressCounter;
@@ -209,6 +215,141 @@ public abstract class JMolReportManager<R extends ProteinReport<T>, T extends JM
 		}
 	}
 
+	/**
+	 * Checks the reports stored in the file against the structure files in the
+	 * local repository, and removes the ones calculated from an entry that has
+	 * been revised since then, as its fingerprint is different, or that is not
+	 * in the repository anymore (or whose file is listed in the manifest but
+	 * missing), as it has been obsoleted. The removed sites are calculated
+	 * again the next time they are requested.<br>
+	 * Reports stored without fingerprint, by previous versions, get the
+	 * fingerprint of the current file, so that later revisions are detected.
+	 * <br>
+	 * Only the local repository is checked: a revision or an obsoletion at the
+	 * RCSB is only seen once the file of the entry has been replaced or
+	 * deleted locally, for example by mirroring the archive again. Entries
+	 * that are downloaded on demand are not downloaded again to check them.
+	 *
+	 * @return the number of reports removed
+	 */
+	public int refresh() {
+		loadReportsFromFile();
+		if (!loaded) {
+			return 0;
+		}
+		log.info("Checking the structures of the reports of " + reportsByKey.size() + " sites");
+		final Map<String, String> fingerprints = new THashMap<String, String>();
+		final Set<String> unreadable = new HashSet<String>();
+		boolean changed = false;
+		int removed = 0;
+		final Iterator<Map.Entry<String, R>> iterator = reportsByKey.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final R proteinReport = iterator.next().getValue();
+			final List<T> reports = new ArrayList<T>();
+			for (final Set<T> reportsInPosition : proteinReport.getReportsByPositionInUniprotSeq().valueCollection()) {
+				reports.addAll(reportsInPosition);
+			}
+			if (reports.isEmpty()) {
+				continue;
+			}
+			final String pdbID = reports.get(0).getPdbID();
+			if (unreadable.contains(pdbID)) {
+				continue;
+			}
+			if (!fingerprints.containsKey(pdbID)) {
+				final File pdbFile = calculator.getPdbParserManager().getLocalFile(pdbID);
+				String fingerprint = null;
+				if (pdbFile != null) {
+					try {
+						fingerprint = PDBFileContentCache.getFingerprint(pdbFile);
+					} catch (final FileNotFoundException e) {
+						log.info("The file of PDB entry " + pdbID + " is not in the local repository anymore: "
+								+ e.getMessage());
+					} catch (final NoSuchFileException e) {
+						log.info("The file of PDB entry " + pdbID + " is not in the local repository anymore: "
+								+ e.getMessage());
+					} catch (final IOException e) {
+						e.printStackTrace();
+						log.warn("Error reading the fingerprint of PDB entry " + pdbID
+								+ ". Its reports are kept: " + e.getMessage());
+						unreadable.add(pdbID);
+						continue;
+					}
+				} else {
+					log.info("PDB entry " + pdbID + " is not in the local repository anymore");
+				}
+				fingerprints.put(pdbID, fingerprint);
+			}
+			final String fingerprint = fingerprints.get(pdbID);
+			boolean stale = fingerprint == null;
+			for (final T report : reports) {
+				if (report.getFingerprint() == null) {
+					report.setFingerprint(fingerprint);
+					changed = true;
+				} else if (!report.getFingerprint().equals(fingerprint)) {
+					stale = true;
+				}
+			}
+			if (stale) {
+				iterator.remove();
+				removed += reports.size();
+				changed = true;
+			}
+		}
+		if (changed) {
+			rewriteFile();
+		}
+		log.info(removed + " reports removed, as their structures have been revised or obsoleted");
+		return removed;
+	}
+
+	/**
+	 * Writes all the reports in memory to a new file that replaces the current
+	 * one
+	 */
+	private void rewriteFile() {
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(new BufferedWriter(new FileWriter(tmpFile)));
+			final List<String> keys = new ArrayList<String>();
+			keys.addAll(reportsByKey.keySet());
+			Collections.sort(keys);
+			boolean firstOne = true;
+			for (final String key : keys) {
+				final TIntObjectHashMap<Set<T>> positions = reportsByKey.get(key).getReportsByPositionInUniprotSeq();
+				final List<Integer> sortedPositions = new ArrayList<Integer>();
+				for (final int position : positions.keys()) {
+					sortedPositions.add(position);
+				}
+				Collections.sort(sortedPositions);
+				for (final Integer position : sortedPositions) {
+					for (final T report : positions.get(position)) {
+						if (firstOne) {
+							out.println(report.getToStringHeaders());
+							firstOne = false;
+						}
+						out.println(report.toString());
+						report.setStored(true);
+					}
+				}
+			}
+			out.close();
+			out = null;
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			log.info("Reports rewritten at: " + file.getAbsolutePath());
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.error("Error rewriting reports file " + file.getAbsolutePath() + ": " + e.getMessage());
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+			tmpFile.delete();
+		}
+	}
+
 	private void loadReportsFromFile() {
 		if (!loaded) {
 
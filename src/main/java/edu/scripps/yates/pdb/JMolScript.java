@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class JMolScript {
+	// commands that change the atoms of the loaded structure
+	private static final String[] MODIFYING_COMMANDS = { "delete", "zap", "load" };
 	private final List<String> commandList = new ArrayList<String>();
 
 	public JMolScript() {
@@ -43,6 +45,25 @@ public class JMolScript {
 		return sb.toString();
 	}
 
+	/**
+	 * @return true if any of the commands deletes atoms or loads other
+	 *         structure, so that the structure loaded before is not the same
+	 *         after the script
+	 */
+	public boolean isModifyingModel() {
+		for (String command : commandList) {
+			for (String statement : command.split(";")) {
+				statement = statement.trim().toLowerCase();
+				for (String modifyingCommand : MODIFYING_COMMANDS) {
+					if (statement.startsWith(modifyingCommand)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
 	public void appendToLastCommand(String commandToAppend) {
 		final int lastIndex = commandList.size() - 1;
 		final String previousCommand = commandList.get(lastIndex);
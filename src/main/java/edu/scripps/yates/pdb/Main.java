@@ -14,6 +14,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
@@ -29,10 +30,21 @@ import edu.scripps.yates.pdb.distance.DistanceProteinReport;
 import edu.scripps.yates.pdb.model.AtomType;
 import edu.scripps.yates.pdb.model.Peptide;
 import edu.scripps.yates.pdb.model.Protein;
+import edu.scripps.yates.pdb.read.DBRefIndex;
 import edu.scripps.yates.pdb.read.InputFileReader;
+import edu.scripps.yates.pdb.read.ModelSelection;
+import edu.scripps.yates.pdb.read.PDBFileManager;
+import edu.scripps.yates.pdb.read.PDBFileRetriever;
+import edu.scripps.yates.pdb.read.PDBParsePipeline;
+import edu.scripps.yates.pdb.read.PDBParserManager;
+import edu.scripps.yates.pdb.read.PDBPrefetcher;
+import edu.scripps.yates.pdb.read.UnavailablePDBCache;
+import edu.scripps.yates.pdb.surface.ShrakeRupleySASA;
+import edu.scripps.yates.pdb.surface.SurfaceBackend;
 import edu.scripps.yates.pdb.surface.SurfaceCalculator;
 import edu.scripps.yates.pdb.surface.SurfaceProteinReport;
 import edu.scripps.yates.pdb.util.PropertiesReader;
+import edu.scripps.yates.utilities.annotations.uniprot.xml.Entry;
 import edu.scripps.yates.utilities.appversion.AppVersion;
 import edu.scripps.yates.utilities.progresscounter.ProgressCounter;
 import edu.scripps.yates.utilities.progresscounter.ProgressPrintingType;
@@ -103,6 +115,153 @@ public class Main {
 			final String pdbFolderString = PropertiesReader.getPropertyValue(PropertiesReader.PDB_FOLDER).trim();
 			final File parentPDBFolder = new File(pdbFolderString);
 
+			// model read from structures with several models (FIRST or a model
+			// number). ALL is not valid, as the calculations are done in only
+			// one model of each structure
+			ModelSelection modelSelection = ModelSelection.FIRST;
+			final String modelSelectionString = PropertiesReader.getPropertyValue(PropertiesReader.MODEL_SELECTION);
+			if (modelSelectionString != null && !"".equals(modelSelectionString.trim())) {
+				try {
+					modelSelection = ModelSelection.fromValue(modelSelectionString);
+				} catch (final IllegalArgumentException e) {
+					log.error("Invalid " + PropertiesReader.MODEL_SELECTION + " value. " + e.getMessage());
+					System.exit(-1);
+				}
+				if (modelSelection.getPolicy() == ModelSelection.Policy.ALL) {
+					log.error("Invalid " + PropertiesReader.MODEL_SELECTION
+							+ " value. The calculations are done in one model, so it has to be FIRST or a model number");
+					System.exit(-1);
+				}
+			}
+
+			// number of concurrent downloads of the missing PDB entries before
+			// the calculations (0 for downloading them when needed)
+			int prefetchThreads = PDBFileRetriever.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+			final String prefetchThreadsString = PropertiesReader.getPropertyValue(PropertiesReader.PREFETCH_THREADS);
+			if (prefetchThreadsString != null && !"".equals(prefetchThreadsString.trim())) {
+				try {
+					prefetchThreads = Integer.valueOf(prefetchThreadsString.trim());
+				} catch (final NumberFormatException e) {
+					log.error(PropertiesReader.PREFETCH_THREADS + " property has to be a number");
+					System.exit(-1);
+				}
+			}
+			if (prefetchThreads > 0) {
+				PDBFileRetriever.setMaxInFlightRequests(prefetchThreads);
+			}
+			// servers from which the PDB entries are downloaded, separated by
+			// ',' in order of preference
+			final String pdbBaseURL = PropertiesReader.getPropertyValue(PropertiesReader.PDB_BASE_URL);
+			if (pdbBaseURL != null && !"".equals(pdbBaseURL.trim())) {
+				final List<String> pdbBaseURLs = new ArrayList<String>();
+				for (final String url : pdbBaseURL.split(",")) {
+					if (!"".equals(url.trim())) {
+						pdbBaseURLs.add(url.trim());
+					}
+				}
+				PDBFileRetriever.setBaseURLs(pdbBaseURLs);
+			}
+			// maximum memory of the parsed structures kept in memory, in MB
+			final String parserCacheString = PropertiesReader.getPropertyValue(PropertiesReader.PARSER_CACHE_MB);
+			if (parserCacheString != null && !"".equals(parserCacheString.trim())) {
+				try {
+					PDBParserManager.getParserCache()
+							.setMaxSize(Long.valueOf(parserCacheString.trim()) * 1024 * 1024);
+				} catch (final NumberFormatException e) {
+					log.error(PropertiesReader.PARSER_CACHE_MB + " property has to be a number");
+					System.exit(-1);
+				}
+			}
+			// days until the entries that could not be retrieved or read are tried
+			// again
+			final String unavailableTTLString = PropertiesReader
+					.getPropertyValue(PropertiesReader.UNAVAILABLE_PDB_TTL_DAYS);
+			if (unavailableTTLString != null && !"".equals(unavailableTTLString.trim())) {
+				try {
+					UnavailablePDBCache.setTimeToLive(
+							TimeUnit.DAYS.toMillis(Integer.valueOf(unavailableTTLString.trim())));
+				} catch (final NumberFormatException e) {
+					log.error(PropertiesReader.UNAVAILABLE_PDB_TTL_DAYS + " property has to be a number");
+					System.exit(-1);
+				}
+			}
+			// number of structures read in advance while the calculations are
+			// done on other structure (0 for reading them when needed)
+			final String parseLookAheadString = PropertiesReader.getPropertyValue(PropertiesReader.PARSE_LOOK_AHEAD);
+			if (parseLookAheadString != null && !"".equals(parseLookAheadString.trim())) {
+				try {
+					PDBParsePipeline.setLookAhead(Integer.valueOf(parseLookAheadString.trim()));
+				} catch (final NumberFormatException e) {
+					log.error(PropertiesReader.PARSE_LOOK_AHEAD + " property has to be a number");
+					System.exit(-1);
+				}
+			}
+			// index the references to UniProtKB of the structures of the
+			// repository that were not indexed yet
+			final String updateDBRefIndexString = PropertiesReader
+					.getPropertyValue(PropertiesReader.UPDATE_DBREF_INDEX);
+			if (updateDBRefIndexString != null && Boolean.valueOf(updateDBRefIndexString.trim())) {
+				DBRefIndex.getInstance(parentPDBFolder).update(PDBFileManager.getInstance(parentPDBFolder));
+			}
+			// remove the stored reports of the structures revised or obsoleted
+			// since they were calculated, so that they are calculated again
+			final String refreshReportsString = PropertiesReader.getPropertyValue(PropertiesReader.REFRESH_REPORTS);
+			final boolean refreshReports = refreshReportsString != null
+					&& Boolean.valueOf(refreshReportsString.trim());
+			// how the surface accessibilities are calculated (JMOL or NATIVE)
+			SurfaceBackend surfaceBackend = SurfaceBackend.JMOL;
+			final String surfaceBackendString = PropertiesReader.getPropertyValue(PropertiesReader.SURFACE_BACKEND);
+			if (surfaceBackendString != null && !"".equals(surfaceBackendString.trim())) {
+				try {
+					surfaceBackend = SurfaceBackend.fromValue(surfaceBackendString.trim());
+				} catch (final IllegalArgumentException e) {
+					log.error("Invalid " + PropertiesReader.SURFACE_BACKEND + " value. " + e.getMessage());
+					System.exit(-1);
+				}
+			}
+			// probe radius, points per sphere and van der Waals radii by
+			// element (as C:1.7,N:1.55) of the NATIVE surface backend
+			double sasaProbeRadius = ShrakeRupleySASA.DEFAULT_PROBE_RADIUS;
+			final String sasaProbeRadiusString = PropertiesReader
+					.getPropertyValue(PropertiesReader.SASA_PROBE_RADIUS);
+			if (sasaProbeRadiusString != null && !"".equals(sasaProbeRadiusString.trim())) {
+				try {
+					sasaProbeRadius = Double.valueOf(sasaProbeRadiusString.trim());
+				} catch (final NumberFormatException e) {
+					log.error(PropertiesReader.SASA_PROBE_RADIUS + " property has to be a number");
+					System.exit(-1);
+				}
+			}
+			int sasaPoints = ShrakeRupleySASA.DEFAULT_NUM_POINTS;
+			final String sasaPointsString = PropertiesReader.getPropertyValue(PropertiesReader.SASA_POINTS);
+			if (sasaPointsString != null && !"".equals(sasaPointsString.trim())) {
+				try {
+					sasaPoints = Integer.valueOf(sasaPointsString.trim());
+				} catch (final NumberFormatException e) {
+					log.error(PropertiesReader.SASA_POINTS + " property has to be a number");
+					System.exit(-1);
+				}
+			}
+			// whether the accessibilities of all the sites of a chain are
+			// calculated together (true by default)
+			final String surfaceBatchModeString = PropertiesReader
+					.getPropertyValue(PropertiesReader.SURFACE_BATCH_MODE);
+			final boolean surfaceBatchMode = surfaceBatchModeString == null
+					|| "".equals(surfaceBatchModeString.trim()) || Boolean.valueOf(surfaceBatchModeString.trim());
+			ShrakeRupleySASA sasa = null;
+			try {
+				final String sasaRadiiString = PropertiesReader.getPropertyValue(PropertiesReader.SASA_RADII);
+				Map<String, Double> sasaRadii = null;
+				if (sasaRadiiString != null && !"".equals(sasaRadiiString.trim())) {
+					sasaRadii = ShrakeRupleySASA.parseRadii(sasaRadiiString);
+				}
+				sasa = new ShrakeRupleySASA(sasaRadii, sasaProbeRadius, sasaPoints);
+			} catch (final IllegalArgumentException e) {
+				log.error("Invalid configuration of the " + SurfaceBackend.NATIVE + " surface backend. "
+						+ e.getMessage());
+				System.exit(-1);
+			}
+
 			if (calculationType == CalculationType.PDB_SURFACE) {
 				final List<String> pdbIDList = new ArrayList<String>();
 				final String pdbIDsString = PropertiesReader.getPropertyValue(PropertiesReader.PDB_IDS);
@@ -127,6 +286,13 @@ public class Main {
 				writer.write(JMolAtomReport.getStaticHeaders() + "\n");
 				final SurfaceCalculator surfaceCalculator = new SurfaceCalculator(atomTypeMap, true, true,
 						parentPDBFolder);
+				surfaceCalculator.setSurfaceBackend(surfaceBackend);
+				surfaceCalculator.setSASA(sasa);
+				surfaceCalculator.setBatchMode(surfaceBatchMode);
+				surfaceCalculator.getPdbParserManager().setModelSelection(modelSelection);
+				if (prefetchThreads > 0) {
+					new PDBPrefetcher(surfaceCalculator.getPdbParserManager()).prefetch(pdbIDList);
+				}
 				for (final String pdbID : pdbIDList) {
 					final SurfaceProteinReport surfaceAccesibilityReport = surfaceCalculator
 							.getReportFromPDBModel(pdbID);
@@ -269,6 +435,10 @@ public class Main {
 						oneModelPerPRotein, parentPDBFolder, 2.0);
 				distanceCalculator.setUniprotVersion(uniprotVersion);
 				distanceCalculator.setDigestionConfiguration(fastaDigestion);
+				distanceCalculator.getPdbParserManager().setModelSelection(modelSelection);
+				if (refreshReports) {
+					distanceCalculator.getReportManager().refresh();
+				}
 				// read input file
 				proteins = InputFileReader.readInputFile(inputFile, separatorString, skipHeader, fastaDigestion,
 						peptideSequenceColumnIndex, peptideRatioColumnIndex, proteinAccessionColumnIndex);
@@ -279,7 +449,12 @@ public class Main {
 						StandardOpenOption.WRITE);
 				writer.write(ProteinReportWriter.getPeptideReportHeader(JMolAtomReport.getStaticHeaders()) + "\n");
 				counter = new ProgressCounter(proteins.size(), ProgressPrintingType.PERCENTAGE_STEPS, 0);
-				distanceCalculator.getUplr().getAnnotatedProteins(uniprotVersion, proteins.keySet());
+				final Map<String, Entry> distanceEntries = distanceCalculator.getUplr()
+						.getAnnotatedProteins(uniprotVersion, proteins.keySet());
+				if (prefetchThreads > 0 && distanceEntries != null) {
+					new PDBPrefetcher(distanceCalculator.getPdbParserManager())
+							.prefetchFromEntries(distanceEntries.values());
+				}
 
 				for (final Protein protein : proteins.values()) {
 					counter.increment();
@@ -306,8 +481,15 @@ public class Main {
 			case SURFACE:
 				final SurfaceCalculator surfaceCalculator = new SurfaceCalculator(uplr, atomTypeMap, true, true,
 						oneModelPerPRotein, parentPDBFolder);
+				surfaceCalculator.setSurfaceBackend(surfaceBackend);
+				surfaceCalculator.setSASA(sasa);
+				surfaceCalculator.setBatchMode(surfaceBatchMode);
 				surfaceCalculator.setUniprotVersion(uniprotVersion);
 				surfaceCalculator.setDigestionConfiguration(fastaDigestion);
+				surfaceCalculator.getPdbParserManager().setModelSelection(modelSelection);
+				if (refreshReports) {
+					surfaceCalculator.getReportManager().refresh();
+				}
 				// read input file
 				proteins = InputFileReader.readInputFile(inputFile, separatorString, skipHeader, fastaDigestion,
 						peptideSequenceColumnIndex, peptideRatioColumnIndex, proteinAccessionColumnIndex);
@@ -318,7 +500,12 @@ public class Main {
 						StandardOpenOption.WRITE);
 				writer.write(ProteinReportWriter.getPeptideReportHeader(JMolAtomReport.getStaticHeaders()) + "\n");
 				counter = new ProgressCounter(proteins.size(), ProgressPrintingType.PERCENTAGE_STEPS, 0);
-				surfaceCalculator.getUplr().getAnnotatedProteins(null, proteins.keySet());
+				final Map<String, Entry> surfaceEntries = surfaceCalculator.getUplr().getAnnotatedProteins(null,
+						proteins.keySet());
+				if (prefetchThreads > 0 && surfaceEntries != null) {
+					new PDBPrefetcher(surfaceCalculator.getPdbParserManager())
+							.prefetchFromEntries(surfaceEntries.values());
+				}
 
 				for (final Protein protein : proteins.values()) {
 					counter.increment();
@@ -350,7 +537,7 @@ public class Main {
 			log.error(e.getMessage());
 			System.exit(-1);
 		} finally {
-
+			log.info(PDBParserManager.getParserCache());
 			if (writer != null) {
 				try {
 					writer.close();
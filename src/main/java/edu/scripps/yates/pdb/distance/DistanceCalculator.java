@@ -21,6 +21,8 @@ import edu.scripps.yates.pdb.util.InputParameters;
 public class DistanceCalculator extends Calculator<DistanceProteinReport, DistanceReport> {
 	protected final static Logger log = Logger.getLogger(DistanceCalculator.class);
 	private final double distanceThreshold;
+	// atoms to which the distances are calculated
+	private static final AtomType[] CARBOXYL_OXYGENS = { AtomType.OD1, AtomType.OD2, AtomType.OE1, AtomType.OE2 };
 
 	public DistanceCalculator(UniprotProteinLocalRetriever uplr, Map<Character, List<AtomType>> atomTypeMap,
 			boolean removeOtherChains, boolean removeOtherMolecules, boolean oneModelPerProtein,
@@ -28,6 +30,7 @@ public class DistanceCalculator extends Calculator<DistanceProteinReport, Distan
 		super(uplr, atomTypeMap, removeOtherChains, removeOtherMolecules, oneModelPerProtein, parentPDBFolderContainer);
 		this.distanceThreshold = distanceThreshold;
 		setManager(new DistanceReportManager(this));
+		pdbParserManager.setAtomSelection(getAtomSelection(atomTypeMap, CARBOXYL_OXYGENS));
 
 	}
 
@@ -38,6 +41,7 @@ public class DistanceCalculator extends Calculator<DistanceProteinReport, Distan
 				parentPDBFolderContainer);
 		this.distanceThreshold = distanceThreshold;
 		setManager(new DistanceReportManager(this));
+		pdbParserManager.setAtomSelection(getAtomSelection(atomTypeMap, CARBOXYL_OXYGENS));
 
 	}
 
@@ -58,6 +62,7 @@ public class DistanceCalculator extends Calculator<DistanceProteinReport, Distan
 					inputParameters.getUniprotACC(), inputParameters.getPositionInUniprotProtein(), resolution,
 					inputParameters.isRemoveOtherChains(), inputParameters.isRemoveOtherMolecules(),
 					parser.getMutation(), parser.getExperimentalMethod());
+			report.setFingerprint(parser.getFingerprint());
 			this.reportManager.addReport(report);
 			return report;
 
@@ -90,9 +90,12 @@ public class DistanceReport extends JMolAtomReport {
 					String distanceString = line.substring(report.toString().length());
 					Distance distance = Distance.fromString(distanceString);
 					distances.add(distance);
+					// after the distance and its two atoms
+					report.setFingerprint(parseFingerprint(split, index + 1 + 2 * Atom3D.numElementsInPrint()));
 				}
 			}
 			DistanceReport ret = new DistanceReport(distances, report);
+			ret.setFingerprint(report.getFingerprint());
 			return ret;
 		} catch (
 
@@ -105,7 +108,8 @@ public class DistanceReport extends JMolAtomReport {
 	@Override
 	public String getToStringHeaders() {
 		StringBuilder sb = new StringBuilder();
-		sb.append(JMolAtomReport.getStaticHeaders()).append(sep).append(Distance.getStaticHeaders());
+		sb.append(JMolAtomReport.getStaticHeaders()).append(sep).append(Distance.getStaticHeaders()).append(sep)
+				.append(FINGERPRINT_HEADER);
 		return sb.toString();
 	}
 
@@ -113,7 +117,8 @@ public class DistanceReport extends JMolAtomReport {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		for (Distance distance : distances) {
-			sb.append(super.toString()).append(sep).append(distance).append("\n");
+			sb.append(super.toString()).append(sep).append(distance).append(sep).append(getFingerprintString())
+					.append("\n");
 		}
 		return sb.toString();
 	}
@@ -25,6 +25,9 @@ import edu.scripps.yates.pdb.read.PDBUtil;
  * 61 - 66 Real(6.2) tempFactor Temperature factor.<br>
  * 77 - 78 LString(2) element Element symbol, right-justified.<br>
  * 79 - 80 LString(2) charge Charge on the atom.<br>
+ * <br>
+ * An {@link Atom3D} can be either a standalone atom or a view over a row of an
+ * {@link AtomTable}, in which case its properties are read from the table.
  * 
  * @author Salva
  *
@@ -38,6 +41,8 @@ public class Atom3D {
 	protected final String chainID;
 	private final static String sep = "\t";
 	private final Point3d coordinates;
+	private final AtomTable table;
+	private final int row;
 
 	public Atom3D(int atomNumber, AtomType atomType, String aa, int position, String chainID, double x, double y,
 			double z) {
@@ -52,6 +57,25 @@ public class Atom3D {
 		positionInPDB = position;
 		this.chainID = chainID;
 		this.coordinates = coordinates;
+		table = null;
+		row = -1;
+	}
+
+	/**
+	 * Constructor of a view over the atom at a row of an {@link AtomTable}
+	 *
+	 * @param table
+	 * @param row
+	 */
+	Atom3D(AtomTable table, int row) {
+		this.table = table;
+		this.row = row;
+		atomNumber = 0;
+		atomType = null;
+		aa = null;
+		chainID = null;
+		coordinates = null;
+		positionInPDB = table.getPositionInPDB(row);
 	}
 
 	/**
@@ -61,11 +85,13 @@ public class Atom3D {
 	 * @throws IllegalArgumentException
 	 */
 	public Atom3D(String atomLine, boolean parseCoordinates) throws IllegalArgumentException {
+		table = null;
+		row = -1;
 
 		boolean useNewParsing = true;
 		if (useNewParsing) {
 			atomNumber = Integer.valueOf(atomLine.substring(6, 11).trim());
-			atomType = AtomType.getByName(atomLine.substring(12, 16).trim());
+			atomType = AtomType.lookup(atomLine.substring(12, 16).trim());
 			String aaString = atomLine.substring(17, 20).trim();
 			if (aaString.length() != 3) {
 				throw new IllegalArgumentException(
@@ -121,10 +147,19 @@ public class Atom3D {
 	}
 
 	public double distance(Atom3D atom) {
+		if (table != null && table == atom.table) {
+			return table.distance(row, atom.row);
+		}
 		return getCoordinates().distance(atom.getCoordinates());
 	}
 
 	public Point3d getCoordinates() {
+		if (table != null) {
+			if (table.hasCoordinates()) {
+				return new Point3d(table.getX(row), table.getY(row), table.getZ(row));
+			}
+			return null;
+		}
 		return coordinates;
 	}
 
@@ -132,6 +167,9 @@ public class Atom3D {
 	 * @return the atomNumber
 	 */
 	public int getAtomNumber() {
+		if (table != null) {
+			return table.getSerialNumber(row);
+		}
 		return atomNumber;
 	}
 
@@ -139,13 +177,31 @@ public class Atom3D {
 	 * @return the atomType
 	 */
 	public AtomType getAtomType() {
+		if (table != null) {
+			return table.getAtomType(row);
+		}
 		return atomType;
 	}
 
+	/**
+	 * @return the name of the atom, that is the name of its {@link AtomType}
+	 *         unless it is {@link AtomType#UNKNOWN}, in which case it is the name
+	 *         read from the file, if any
+	 */
+	public String getAtomName() {
+		if (table != null) {
+			return table.getAtomName(row);
+		}
+		return atomType != null ? atomType.name() : null;
+	}
+
 	/**
 	 * @return the aa
 	 */
 	public String getAa() {
+		if (table != null) {
+			return table.getAa(row);
+		}
 		return aa;
 	}
 
@@ -160,9 +216,28 @@ public class Atom3D {
 	 * @return the chainID
 	 */
 	public String getChainID() {
+		if (table != null) {
+			return table.getChainID(row);
+		}
 		return chainID;
 	}
 
+	/**
+	 * @return the {@link AtomTable} this atom is a view of, or null if it is a
+	 *         standalone atom
+	 */
+	public AtomTable getTable() {
+		return table;
+	}
+
+	/**
+	 * @return the row of this atom in its {@link AtomTable}, or -1 if it is a
+	 *         standalone atom
+	 */
+	public int getRow() {
+		return row;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -175,15 +250,17 @@ public class Atom3D {
 
 	public String toString(String separator) {
 		StringBuilder sb = new StringBuilder();
-		sb.append(atomNumber).append(separator).append(atomType).append(separator).append(chainID).append(separator)
-				.append(positionInPDB).append(separator).append(aa).append(separator)
+		sb.append(getAtomNumber()).append(separator).append(getAtomName()).append(separator).append(getChainID())
+				.append(separator).append(positionInPDB).append(separator).append(getAa()).append(separator)
 				.append(getCoordinatesString(separator));
 		return sb.toString();
 	}
 
 	private String getCoordinatesString(String separator) {
 		StringBuilder sb = new StringBuilder();
-		if (coordinates != null) {
+		if (table != null && table.hasCoordinates()) {
+			sb.append(table.getX(row) + separator + table.getY(row) + separator + table.getZ(row));
+		} else if (coordinates != null) {
 			sb.append(coordinates.x + separator + coordinates.y + separator + coordinates.z);
 
 		} else {
@@ -215,7 +292,7 @@ public class Atom3D {
 		try {
 			final String[] split = string.split(sep);
 			int atomNumber = Integer.valueOf(split[0]);
-			AtomType atomType = AtomType.getByName(split[1]);
+			AtomType atomType = AtomType.lookup(split[1]);
 			String chainID = split[2];
 			int positionInPDB = Integer.valueOf(split[3]);
 			String aa = split[4];
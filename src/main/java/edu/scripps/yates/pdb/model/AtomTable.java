@@ -0,0 +1,441 @@
+package edu.scripps.yates.pdb.model;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.scripps.yates.pdb.util.BinaryUtil;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/**
+ * Columnar store of the atoms of a structure.<br>
+ * Instead of having one {@link Atom3D} object per atom, each property of the
+ * atoms is kept in a primitive array, and the atom at a certain row is
+ * accessed with {@link #getAtom(int)}, that returns a lightweight
+ * {@link Atom3D} view over that row.
+ *
+ * @author Salva
+ *
+ */
+public class AtomTable {
+	private static final int DEFAULT_CAPACITY = 1024;
+	// number of the model of files without MODEL records
+	public static final int DEFAULT_MODEL_NUMBER = 1;
+	private static final AtomType[] atomTypes = AtomType.values();
+	private static final String[] aaStrings = new String[128];
+	static {
+		for (int i = 0; i < aaStrings.length; i++) {
+			aaStrings[i] = String.valueOf((char) i);
+		}
+	}
+	private final boolean withCoordinates;
+	private int size = 0;
+	private float[] x;
+	private float[] y;
+	private float[] z;
+	private byte[] atomType;
+	private byte[] residue;
+	private short[] chain;
+	private int[] residueNumber;
+	private byte[] insertionCode;
+	private int[] serialNumber;
+	// the atoms of each model are contiguous, from its start row to the start
+	// row of the next model
+	private final TIntArrayList modelNumbers = new TIntArrayList();
+	private final TIntArrayList modelStarts = new TIntArrayList();
+	// names of the atoms of type UNKNOWN, by row
+	private final TIntObjectHashMap<String> unknownAtomNames = new TIntObjectHashMap<String>();
+	private final List<String> chainIDs = new ArrayList<String>();
+	private final TObjectIntHashMap<String> chainIndexes = new TObjectIntHashMap<String>(10, 0.5f, -1);
+
+	/**
+	 *
+	 * @param initialCapacity expected number of atoms
+	 * @param withCoordinates whether the coordinates of the atoms are going to be
+	 *                        stored or not
+	 */
+	public AtomTable(int initialCapacity, boolean withCoordinates) {
+		this.withCoordinates = withCoordinates;
+		final int capacity = Math.max(initialCapacity, 1);
+		if (withCoordinates) {
+			x = new float[capacity];
+			y = new float[capacity];
+			z = new float[capacity];
+		}
+		atomType = new byte[capacity];
+		residue = new byte[capacity];
+		chain = new short[capacity];
+		residueNumber = new int[capacity];
+		insertionCode = new byte[capacity];
+		serialNumber = new int[capacity];
+	}
+
+	public AtomTable(boolean withCoordinates) {
+		this(DEFAULT_CAPACITY, withCoordinates);
+	}
+
+	/**
+	 * Writes the table in binary format, to be read with
+	 * {@link #read(ByteBuffer)}
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		out.writeBoolean(withCoordinates);
+		out.writeInt(modelNumbers.size());
+		BinaryUtil.writeInts(out, modelNumbers.toArray(), modelNumbers.size());
+		BinaryUtil.writeInts(out, modelStarts.toArray(), modelStarts.size());
+		out.writeInt(chainIDs.size());
+		for (final String chainID : chainIDs) {
+			BinaryUtil.writeString(out, chainID);
+		}
+		BinaryUtil.writeInts(out, serialNumber, size);
+		out.write(atomType, 0, size);
+		out.write(residue, 0, size);
+		BinaryUtil.writeShorts(out, chain, size);
+		BinaryUtil.writeInts(out, residueNumber, size);
+		out.write(insertionCode, 0, size);
+		final int[] unknownRows = unknownAtomNames.keys();
+		Arrays.sort(unknownRows);
+		out.writeInt(unknownRows.length);
+		for (final int row : unknownRows) {
+			out.writeInt(row);
+			BinaryUtil.writeString(out, unknownAtomNames.get(row));
+		}
+		if (withCoordinates) {
+			BinaryUtil.writeFloats(out, x, size);
+			BinaryUtil.writeFloats(out, y, size);
+			BinaryUtil.writeFloats(out, z, size);
+		}
+	}
+
+	/**
+	 * Reads a table written with {@link #write(DataOutputStream)}, loading each
+	 * column with a bulk copy from the buffer, so that the table doesn't keep
+	 * any reference to it
+	 *
+	 * @param in
+	 * @return
+	 */
+	public static AtomTable read(ByteBuffer in) {
+		final int size = in.getInt();
+		final boolean withCoordinates = in.get() != 0;
+		final AtomTable ret = new AtomTable(0, withCoordinates);
+		final int numModels = in.getInt();
+		ret.modelNumbers.add(BinaryUtil.readInts(in, numModels));
+		ret.modelStarts.add(BinaryUtil.readInts(in, numModels));
+		final int numChains = in.getInt();
+		for (int i = 0; i < numChains; i++) {
+			ret.getOrAddChainIndex(BinaryUtil.readString(in));
+		}
+		ret.size = size;
+		ret.serialNumber = BinaryUtil.readInts(in, size);
+		ret.atomType = BinaryUtil.readBytes(in, size);
+		ret.residue = BinaryUtil.readBytes(in, size);
+		ret.chain = BinaryUtil.readShorts(in, size);
+		ret.residueNumber = BinaryUtil.readInts(in, size);
+		ret.insertionCode = BinaryUtil.readBytes(in, size);
+		final int numUnknownAtomNames = in.getInt();
+		for (int i = 0; i < numUnknownAtomNames; i++) {
+			ret.unknownAtomNames.put(in.getInt(), BinaryUtil.readString(in));
+		}
+		if (withCoordinates) {
+			ret.x = BinaryUtil.readFloats(in, size);
+			ret.y = BinaryUtil.readFloats(in, size);
+			ret.z = BinaryUtil.readFloats(in, size);
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds an atom to the table
+	 *
+	 * @param serial        atom serial number
+	 * @param type
+	 * @param aa            one letter code of the aminoacid
+	 * @param positionInPDB residue sequence number
+	 * @param iCode         code for insertion of residues
+	 * @param chainID
+	 * @param x             ignored if the table doesn't have coordinates
+	 * @param y             ignored if the table doesn't have coordinates
+	 * @param z             ignored if the table doesn't have coordinates
+	 * @return the row of the new atom
+	 */
+	public int addAtom(int serial, AtomType type, char aa, int positionInPDB, char iCode, String chainID, double x,
+			double y, double z) {
+		return addAtom(serial, type, null, aa, positionInPDB, iCode, chainID, x, y, z);
+	}
+
+	/**
+	 * Adds an atom to the table, keeping its name if its type is
+	 * {@link AtomType#UNKNOWN}
+	 *
+	 * @param serial        atom serial number
+	 * @param type
+	 * @param atomName      name of the atom as in the file. Only kept if the
+	 *                      type is {@link AtomType#UNKNOWN}
+	 * @param aa            one letter code of the aminoacid
+	 * @param positionInPDB residue sequence number
+	 * @param iCode         code for insertion of residues
+	 * @param chainID
+	 * @param x             ignored if the table doesn't have coordinates
+	 * @param y             ignored if the table doesn't have coordinates
+	 * @param z             ignored if the table doesn't have coordinates
+	 * @return the row of the new atom
+	 */
+	public int addAtom(int serial, AtomType type, String atomName, char aa, int positionInPDB, char iCode,
+			String chainID, double x, double y, double z) {
+		if (size == serialNumber.length) {
+			grow();
+		}
+		if (modelNumbers.isEmpty()) {
+			addModel(DEFAULT_MODEL_NUMBER);
+		}
+		final int row = size++;
+		serialNumber[row] = serial;
+		atomType[row] = (byte) type.ordinal();
+		if (type == AtomType.UNKNOWN && atomName != null) {
+			unknownAtomNames.put(row, atomName);
+		}
+		residue[row] = (byte) aa;
+		residueNumber[row] = positionInPDB;
+		insertionCode[row] = (byte) iCode;
+		chain[row] = (short) getOrAddChainIndex(chainID);
+		if (withCoordinates) {
+			this.x[row] = (float) x;
+			this.y[row] = (float) y;
+			this.z[row] = (float) z;
+		}
+		return row;
+	}
+
+	/**
+	 * Starts a new model. The atoms added after this call belong to it
+	 *
+	 * @param modelNumber the number of the model, as in the MODEL record
+	 */
+	public void addModel(int modelNumber) {
+		if (!modelStarts.isEmpty() && modelStarts.get(modelStarts.size() - 1) == size) {
+			// the previous model is empty
+			modelNumbers.set(modelNumbers.size() - 1, modelNumber);
+			return;
+		}
+		modelNumbers.add(modelNumber);
+		modelStarts.add(size);
+	}
+
+	/**
+	 * @return the number of models in the table
+	 */
+	public int getNumModels() {
+		return modelNumbers.size();
+	}
+
+	/**
+	 * @param modelIndex index of the model in the table, from 0 to
+	 *                   {@link #getNumModels()} - 1
+	 * @return the number of the model, as in the MODEL record
+	 */
+	public int getModelNumber(int modelIndex) {
+		return modelNumbers.get(modelIndex);
+	}
+
+	/**
+	 * @param modelIndex
+	 * @return the first row of the model
+	 */
+	public int getModelStart(int modelIndex) {
+		return modelStarts.get(modelIndex);
+	}
+
+	/**
+	 * @param modelIndex
+	 * @return the row after the last row of the model
+	 */
+	public int getModelEnd(int modelIndex) {
+		return modelIndex + 1 < modelStarts.size() ? modelStarts.get(modelIndex + 1) : size;
+	}
+
+	/**
+	 * @param row
+	 * @return the index of the model of the atom at that row
+	 */
+	public int getModelIndex(int row) {
+		// there are no empty models, so the start rows are unique
+		int index = modelStarts.binarySearch(row);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		return index;
+	}
+
+	private int getOrAddChainIndex(String chainID) {
+		int index = chainIndexes.get(chainID);
+		if (index == -1) {
+			index = chainIDs.size();
+			chainIDs.add(chainID);
+			chainIndexes.put(chainID, index);
+		}
+		return index;
+	}
+
+	private void grow() {
+		resize(serialNumber.length + (serialNumber.length >> 1) + 1);
+	}
+
+	private void resize(int capacity) {
+		if (withCoordinates) {
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			z = Arrays.copyOf(z, capacity);
+		}
+		atomType = Arrays.copyOf(atomType, capacity);
+		residue = Arrays.copyOf(residue, capacity);
+		chain = Arrays.copyOf(chain, capacity);
+		residueNumber = Arrays.copyOf(residueNumber, capacity);
+		insertionCode = Arrays.copyOf(insertionCode, capacity);
+		serialNumber = Arrays.copyOf(serialNumber, capacity);
+	}
+
+	/**
+	 * Releases the capacity of the arrays that is not used
+	 */
+	public void trimToSize() {
+		if (serialNumber.length > size) {
+			resize(size);
+		}
+	}
+
+	/**
+	 * @return an estimation of the memory used by the table, in bytes
+	 */
+	public long getEstimatedSize() {
+		// bytes of each row of the arrays
+		final long rowSize = (withCoordinates ? 3 * 4 : 0) + 1 + 1 + 2 + 4 + 1 + 4;
+		// each unknown name is a map entry and a string
+		final long unknownNamesSize = unknownAtomNames.size() * 64L;
+		return rowSize * serialNumber.length + unknownNamesSize + (modelNumbers.size() + modelStarts.size()) * 4L;
+	}
+
+	/**
+	 * @return the number of atoms in the table
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean hasCoordinates() {
+		return withCoordinates;
+	}
+
+	/**
+	 * Gets a view of the atom at a certain row
+	 *
+	 * @param row
+	 * @return
+	 */
+	public Atom3D getAtom(int row) {
+		return new Atom3D(this, row);
+	}
+
+	public int getSerialNumber(int row) {
+		return serialNumber[row];
+	}
+
+	public AtomType getAtomType(int row) {
+		return atomTypes[atomType[row] & 0xFF];
+	}
+
+	/**
+	 * @param row
+	 * @return the name of the {@link AtomType} of the atom or, if it is
+	 *         {@link AtomType#UNKNOWN}, the name of the atom in the file
+	 */
+	public String getAtomName(int row) {
+		final AtomType type = getAtomType(row);
+		if (type == AtomType.UNKNOWN) {
+			final String name = unknownAtomNames.get(row);
+			if (name != null) {
+				return name;
+			}
+		}
+		return type.name();
+	}
+
+	public char getAaChar(int row) {
+		return (char) residue[row];
+	}
+
+	public String getAa(int row) {
+		return aaStrings[residue[row] & 0x7F];
+	}
+
+	public int getPositionInPDB(int row) {
+		return residueNumber[row];
+	}
+
+	public char getInsertionCode(int row) {
+		return (char) insertionCode[row];
+	}
+
+	public int getChainIndex(int row) {
+		return chain[row];
+	}
+
+	public String getChainID(int row) {
+		return chainIDs.get(chain[row]);
+	}
+
+	/**
+	 * @return the chain identifiers in the order in which they appear in the table
+	 */
+	public List<String> getChainIDs() {
+		return chainIDs;
+	}
+
+	/**
+	 * @param chainID
+	 * @return the index of the chain in {@link #getChainIDs()} or -1 if the chain
+	 *         is not in the table
+	 */
+	public int getChainIndex(String chainID) {
+		return chainIndexes.get(chainID);
+	}
+
+	public float getX(int row) {
+		return x[row];
+	}
+
+	public float getY(int row) {
+		return y[row];
+	}
+
+	public float getZ(int row) {
+		return z[row];
+	}
+
+	/**
+	 * Euclidean distance between the atoms of two rows
+	 *
+	 * @param row1
+	 * @param row2
+	 * @return
+	 */
+	public double distance(int row1, int row2) {
+		final double dx = x[row1] - x[row2];
+		final double dy = y[row1] - y[row2];
+		final double dz = z[row1] - z[row2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+}
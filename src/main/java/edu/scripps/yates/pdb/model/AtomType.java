@@ -1,5 +1,9 @@
 package edu.scripps.yates.pdb.model;
 
+import java.util.Map;
+
+import gnu.trove.map.hash.THashMap;
+
 public enum AtomType {
 	N, CA, C, O, CB, CG, CG1, CG2, CD, CE, CE1, CE2, CE3, //
 	CD1, CD2, CZ, CZ2, CZ3, NE, NE1, NE2, NZ, ND1, ND2, CH2, //
@@ -11,8 +15,30 @@ public enum AtomType {
 	NH2A, HB2A, OE1A, NE2A, HB3A, HG2A, HG3A, HE21A, HE22A, OE1B, //
 	NE2B, HB2B, HB3B, OE2B, OE2A, HZ3B, HZ2B, HZ1B, HE2B, HE3B, //
 	HD2B, HD3B, HG2B, HG3B, HD2A, HD3A, HE2A, HZ1A, HZ2A, HZ3A, C4, //
-	C3, C2, N1, C6, C5, C8, C1, O2, O3, O4, OP2, OP1, P, N2, N3, N4, N5, N6, N7, N8, N9, N10, N11, O5, O6, OP3;
+	C3, C2, N1, C6, C5, C8, C1, O2, O3, O4, OP2, OP1, P, N2, N3, N4, N5, N6, N7, N8, N9, N10, N11, O5, O6, OP3, //
+	/**
+	 * Any atom name that is not one of the others
+	 */
+	UNKNOWN;
+
+	private static final Map<String, AtomType> atomTypesByName = new THashMap<String, AtomType>();
+	static {
+		for (final AtomType atomType : values()) {
+			if (atomType != UNKNOWN) {
+				atomTypesByName.put(atomType.name(), atomType);
+			}
+		}
+	}
 
+	/**
+	 * Gets the {@link AtomType} of an atom name, ignoring a final '
+	 *
+	 * @param string
+	 * @return
+	 * @throws IllegalArgumentException if the atom name is not valid, so that
+	 *                                  it can be used to validate the
+	 *                                  configuration
+	 */
 	public static AtomType getByName(String string) {
 		if (string.endsWith("'")) {
 			return AtomType.valueOf(string.substring(0, string.length() - 1));
@@ -20,4 +46,20 @@ public enum AtomType {
 			return AtomType.valueOf(string);
 		}
 	}
+
+	/**
+	 * Same as {@link #getByName(String)} but without throwing an exception if
+	 * the atom name is not valid
+	 *
+	 * @param string
+	 * @return the {@link AtomType} or {@link #UNKNOWN}
+	 */
+	public static AtomType lookup(String string) {
+		final String name = string.endsWith("'") ? string.substring(0, string.length() - 1) : string;
+		final AtomType atomType = atomTypesByName.get(name);
+		if (atomType == null) {
+			return UNKNOWN;
+		}
+		return atomType;
+	}
 }
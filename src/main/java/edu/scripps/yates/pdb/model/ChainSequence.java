@@ -0,0 +1,157 @@
+package edu.scripps.yates.pdb.model;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import edu.scripps.yates.pdb.util.BinaryUtil;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Immutable aminoacid sequence of a chain of a PDB structure, as it is
+ * observed in the ATOM records.<br>
+ * The residues missing between two observed residue numbers are represented
+ * as gaps with a '?' in the sequence. It also keeps the residue number of each
+ * position of the sequence and the other way around.
+ *
+ * @author Salva
+ *
+ */
+public class ChainSequence {
+	public static final char GAP = '?';
+	public static final int NO_RESIDUE = Integer.MIN_VALUE;
+	private final String chainID;
+	private final String sequence;
+	// residue number of each position in the sequence or NO_RESIDUE if it is a
+	// gap
+	private final int[] residueNumbers;
+	// index in the sequence of each residue number
+	private final TIntIntHashMap indexesByResidueNumber;
+
+	private ChainSequence(String chainID, String sequence, int[] residueNumbers) {
+		this.chainID = chainID;
+		this.sequence = sequence;
+		this.residueNumbers = residueNumbers;
+		indexesByResidueNumber = new TIntIntHashMap(residueNumbers.length + 1, 0.5f, NO_RESIDUE, -1);
+		for (int index = 0; index < residueNumbers.length; index++) {
+			if (residueNumbers[index] != NO_RESIDUE && !indexesByResidueNumber.containsKey(residueNumbers[index])) {
+				indexesByResidueNumber.put(residueNumbers[index], index);
+			}
+		}
+	}
+
+	public String getChainID() {
+		return chainID;
+	}
+
+	/**
+	 * @return the sequence of the chain, with a '?' in the gaps
+	 */
+	public String getSequence() {
+		return sequence;
+	}
+
+	public int length() {
+		return sequence.length();
+	}
+
+	public boolean isEmpty() {
+		return sequence.isEmpty();
+	}
+
+	/**
+	 * @param index 0-based position in the sequence
+	 * @return true if the position is a gap, that is, a residue not observed in
+	 *         the structure
+	 */
+	public boolean isGap(int index) {
+		return residueNumbers[index] == NO_RESIDUE;
+	}
+
+	/**
+	 * @param index 0-based position in the sequence
+	 * @return the residue number in the PDB of that position or
+	 *         {@link #NO_RESIDUE} if it is a gap
+	 */
+	public int getResidueNumber(int index) {
+		return residueNumbers[index];
+	}
+
+	/**
+	 * @param residueNumber residue number in the PDB
+	 * @return the 0-based position in the sequence of that residue or -1 if it is
+	 *         not in the chain
+	 */
+	public int getIndex(int residueNumber) {
+		return indexesByResidueNumber.get(residueNumber);
+	}
+
+	/**
+	 * Writes the sequence in binary format, to be read with
+	 * {@link #read(ByteBuffer)}
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		BinaryUtil.writeString(out, chainID);
+		BinaryUtil.writeString(out, sequence);
+		out.writeInt(residueNumbers.length);
+		BinaryUtil.writeInts(out, residueNumbers, residueNumbers.length);
+	}
+
+	public static ChainSequence read(ByteBuffer in) {
+		final String chainID = BinaryUtil.readString(in);
+		final String sequence = BinaryUtil.readString(in);
+		final int[] residueNumbers = BinaryUtil.readInts(in, in.getInt());
+		return new ChainSequence(chainID, sequence, residueNumbers);
+	}
+
+	@Override
+	public String toString() {
+		return chainID + ": " + sequence;
+	}
+
+	/**
+	 * Builds a {@link ChainSequence} from the atoms of the chain, in the order in
+	 * which they appear in the structure
+	 *
+	 * @author Salva
+	 *
+	 */
+	public static class Builder {
+		private final String chainID;
+		private final StringBuilder sb = new StringBuilder();
+		private final TIntArrayList residueNumbers = new TIntArrayList();
+		private int position = -1;
+
+		public Builder(String chainID) {
+			this.chainID = chainID;
+		}
+
+		/**
+		 * Adds an atom of the chain. Consecutive atoms of the same residue add
+		 * only one aminoacid to the sequence, and if there are residue numbers
+		 * missing before this one, they are filled with gaps.
+		 *
+		 * @param aa            one letter code of the aminoacid
+		 * @param positionInPDB residue number
+		 */
+		public void addAtom(char aa, int positionInPDB) {
+			if (position != positionInPDB) {
+				while (sb.length() + 1 < positionInPDB) {
+					sb.append(GAP);
+					residueNumbers.add(NO_RESIDUE);
+				}
+				sb.append(aa);
+				residueNumbers.add(positionInPDB);
+				position = positionInPDB;
+			}
+		}
+
+		public ChainSequence build() {
+			return new ChainSequence(chainID, sb.toString(), residueNumbers.toArray());
+		}
+	}
+}
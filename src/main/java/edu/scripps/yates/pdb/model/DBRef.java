@@ -4,6 +4,9 @@ public class DBRef {
 	private final String pdbID;
 	private final String chainID;
 	private final String uniprotID;
+	// residues of the database sequence covered by the chain, -1 if unknown
+	private final int dbSeqBegin;
+	private final int dbSeqEnd;
 
 	public DBRef(String dbRefLine) {
 		final String[] split = dbRefLine.split("\\s+");
@@ -17,6 +20,66 @@ public class DBRef {
 		} else {
 			uniprotID = null;
 		}
+		// DBREF 1ABC A 1 100 UNP P12345 ABC_HUMAN 1 100
+		if ("DBREF".equals(split[0]) && split.length >= 10) {
+			dbSeqBegin = parsePosition(split[8]);
+			dbSeqEnd = parsePosition(split[9]);
+		} else {
+			dbSeqBegin = -1;
+			dbSeqEnd = -1;
+		}
+	}
+
+	/**
+	 * Reference split in two lines because the accession or the positions
+	 * don't fit in a DBREF line, like:<br>
+	 * DBREF1 4KZX A 1 174 UNP A0A0B4J2F0_HUMAN<br>
+	 * DBREF2 4KZX A A0A0B4J2F0 1 174
+	 *
+	 * @param dbRef1Line the DBREF1 line, with the database and the id code
+	 * @param dbRef2Line the DBREF2 line, with the accession and the positions
+	 */
+	public DBRef(String dbRef1Line, String dbRef2Line) {
+		final String[] split1 = dbRef1Line.split("\\s+");
+		final String[] split2 = dbRef2Line.split("\\s+");
+		pdbID = split1[1];
+		chainID = split1[2];
+		uniprotID = split2.length >= 4 ? split2[3] : null;
+		if (split2.length >= 6) {
+			dbSeqBegin = parsePosition(split2[4]);
+			dbSeqEnd = parsePosition(split2[5]);
+		} else {
+			dbSeqBegin = -1;
+			dbSeqEnd = -1;
+		}
+	}
+
+	public DBRef(String pdbID, String chainID, String uniprotID) {
+		this(pdbID, chainID, uniprotID, -1, -1);
+	}
+
+	public DBRef(String pdbID, String chainID, String uniprotID, int dbSeqBegin, int dbSeqEnd) {
+		this.pdbID = pdbID;
+		this.chainID = chainID;
+		this.uniprotID = uniprotID;
+		this.dbSeqBegin = dbSeqBegin;
+		this.dbSeqEnd = dbSeqEnd;
+	}
+
+	/**
+	 * @return the position, ignoring an insertion code, or -1 if it is not a
+	 *         number
+	 */
+	private static int parsePosition(String string) {
+		int end = 0;
+		while (end < string.length() && (Character.isDigit(string.charAt(end)) || end == 0 && string.charAt(0) == '-')) {
+			end++;
+		}
+		try {
+			return Integer.valueOf(string.substring(0, end));
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
 	}
 
 	/**
@@ -40,12 +103,29 @@ public class DBRef {
 		return uniprotID;
 	}
 
+	/**
+	 * @return the first residue of the database sequence covered by the chain,
+	 *         or -1 if unknown
+	 */
+	public int getDbSeqBegin() {
+		return dbSeqBegin;
+	}
+
+	/**
+	 * @return the last residue of the database sequence covered by the chain, or
+	 *         -1 if unknown
+	 */
+	public int getDbSeqEnd() {
+		return dbSeqEnd;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	@Override
 	public String toString() {
-		return "DBRef [pdbID=" + pdbID + ", chainID=" + chainID + ", uniprotID=" + uniprotID + "]";
+		return "DBRef [pdbID=" + pdbID + ", chainID=" + chainID + ", uniprotID=" + uniprotID + ", dbSeqBegin="
+				+ dbSeqBegin + ", dbSeqEnd=" + dbSeqEnd + "]";
 	}
 }
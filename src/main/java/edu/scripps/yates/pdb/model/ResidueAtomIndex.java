@@ -0,0 +1,212 @@
+package edu.scripps.yates.pdb.model;
+
+import edu.scripps.yates.pdb.read.PackedNameTable;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+/**
+ * Index over the atoms of an {@link AtomTable} by chain, residue number,
+ * insertion code and atom type.<br>
+ * It is built once per table, and then the row of an atom or the rows of all
+ * the atoms of a residue are obtained with a single hash lookup and without
+ * creating any object. In tables with several models, the atoms of each model
+ * are indexed separately, with one index per model.<br>
+ * The atoms of type {@link AtomType#UNKNOWN} are indexed by their name, packed
+ * as in {@link PackedNameTable}, so that the unknown atoms of a residue don't
+ * hide each other.
+ *
+ * @author Salva
+ *
+ */
+public class ResidueAtomIndex {
+	private static final int NOT_FOUND = -1;
+	private final AtomTable table;
+	// residue key -> residue index
+	private final TLongIntHashMap residues;
+	// atom key -> row in the table
+	private final TLongIntHashMap atoms;
+	// residue index and packed name -> row in the table, for the atoms of type
+	// UNKNOWN
+	private final TLongIntHashMap unknownAtoms;
+	// residue key without insertion code -> insertion codes of that residue
+	// number other than ' ', in the order they are in the table
+	private final TLongObjectHashMap<String> insertionCodes;
+	// rows of the atoms of each residue. The ones of residue i are in
+	// residueRows from residueStart[i] to residueStart[i+1] (exclusive)
+	private final int[] residueStart;
+	private final int[] residueRows;
+
+	public ResidueAtomIndex(AtomTable table) {
+		this(table, 0);
+	}
+
+	/**
+	 * @param table
+	 * @param model the index of the model of the table whose atoms are indexed
+	 */
+	public ResidueAtomIndex(AtomTable table, int model) {
+		this.table = table;
+		final int first = table.getNumModels() == 0 ? 0 : table.getModelStart(model);
+		final int size = (table.getNumModels() == 0 ? 0 : table.getModelEnd(model)) - first;
+		residues = new TLongIntHashMap(size / 8 + 1, 0.5f, Long.MIN_VALUE, NOT_FOUND);
+		atoms = new TLongIntHashMap(size + 1, 0.5f, Long.MIN_VALUE, NOT_FOUND);
+		unknownAtoms = new TLongIntHashMap(16, 0.5f, Long.MIN_VALUE, NOT_FOUND);
+		insertionCodes = new TLongObjectHashMap<String>();
+		final int[] residueOfRow = new int[size];
+		int numResidues = 0;
+		for (int i = 0; i < size; i++) {
+			final int row = first + i;
+			final long residueKey = getResidueKey(table.getChainIndex(row), table.getPositionInPDB(row),
+					table.getInsertionCode(row));
+			int residue = residues.get(residueKey);
+			if (residue == NOT_FOUND) {
+				residue = numResidues++;
+				residues.put(residueKey, residue);
+				final char iCode = table.getInsertionCode(row);
+				if (iCode != ' ') {
+					final long key = getResidueKey(table.getChainIndex(row), table.getPositionInPDB(row), ' ');
+					final String codes = insertionCodes.get(key);
+					insertionCodes.put(key, codes == null ? String.valueOf(iCode) : codes + iCode);
+				}
+			}
+			residueOfRow[i] = residue;
+			final AtomType atomType = table.getAtomType(row);
+			final TLongIntHashMap map = atomType == AtomType.UNKNOWN ? unknownAtoms : atoms;
+			final long atomKey = atomType == AtomType.UNKNOWN
+					? getUnknownAtomKey(residue, table.getAtomName(row))
+					: getAtomKey(residueKey, atomType);
+			// in case of alternate locations, keep the first one
+			if (!map.containsKey(atomKey)) {
+				map.put(atomKey, row);
+			}
+		}
+		residueStart = new int[numResidues + 1];
+		for (int i = 0; i < size; i++) {
+			residueStart[residueOfRow[i] + 1]++;
+		}
+		for (int i = 0; i < numResidues; i++) {
+			residueStart[i + 1] += residueStart[i];
+		}
+		residueRows = new int[size];
+		final int[] filled = new int[numResidues];
+		for (int i = 0; i < size; i++) {
+			final int residue = residueOfRow[i];
+			residueRows[residueStart[residue] + filled[residue]++] = first + i;
+		}
+	}
+
+	private static long getResidueKey(int chainIndex, int positionInPDB, char iCode) {
+		return (long) chainIndex << 40 | (positionInPDB & 0xFFFFFFFFL) << 8 | iCode & 0xFF;
+	}
+
+	private static long getAtomKey(long residueKey, AtomType atomType) {
+		return residueKey << 8 | atomType.ordinal();
+	}
+
+	private static long getUnknownAtomKey(int residue, String atomName) {
+		return (long) residue << 32 | PackedNameTable.pack(atomName) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Gets the row in the {@link AtomTable} of an atom
+	 *
+	 * @param chainID
+	 * @param positionInPDB
+	 * @param iCode         code for insertion of residues, ' ' if none
+	 * @param atomType      not {@link AtomType#UNKNOWN}, as they are found by
+	 *                      their name with
+	 *                      {@link #getRow(String, int, char, String)}
+	 * @return the row or -1 if not found
+	 */
+	public int getRow(String chainID, int positionInPDB, char iCode, AtomType atomType) {
+		final int chainIndex = table.getChainIndex(chainID);
+		if (chainIndex == NOT_FOUND) {
+			return NOT_FOUND;
+		}
+		return atoms.get(getAtomKey(getResidueKey(chainIndex, positionInPDB, iCode), atomType));
+	}
+
+	/**
+	 * Gets the row in the {@link AtomTable} of an atom of type
+	 * {@link AtomType#UNKNOWN}
+	 *
+	 * @param chainID
+	 * @param positionInPDB
+	 * @param iCode         code for insertion of residues, ' ' if none
+	 * @param atomName      name of the atom as in the file
+	 * @return the row or -1 if not found
+	 */
+	public int getRow(String chainID, int positionInPDB, char iCode, String atomName) {
+		final int residue = getResidue(chainID, positionInPDB, iCode);
+		if (residue == NOT_FOUND) {
+			return NOT_FOUND;
+		}
+		return unknownAtoms.get(getUnknownAtomKey(residue, atomName));
+	}
+
+	/**
+	 * Gets the index of a residue, to be used in {@link #getNumAtoms(int)} and
+	 * {@link #getAtomRow(int, int)}
+	 *
+	 * @param chainID
+	 * @param positionInPDB
+	 * @param iCode         code for insertion of residues, ' ' if none
+	 * @return the index of the residue or -1 if not found
+	 */
+	public int getResidue(String chainID, int positionInPDB, char iCode) {
+		final int chainIndex = table.getChainIndex(chainID);
+		if (chainIndex == NOT_FOUND) {
+			return NOT_FOUND;
+		}
+		return residues.get(getResidueKey(chainIndex, positionInPDB, iCode));
+	}
+
+	/**
+	 * @param chainID
+	 * @param positionInPDB
+	 * @return the insertion codes other than ' ' of the residues with that
+	 *         number, in the order they are in the structure, or an empty
+	 *         string if there are no inserted residues with that number
+	 */
+	public String getInsertionCodes(String chainID, int positionInPDB) {
+		final int chainIndex = table.getChainIndex(chainID);
+		if (chainIndex == NOT_FOUND) {
+			return "";
+		}
+		final String codes = insertionCodes.get(getResidueKey(chainIndex, positionInPDB, ' '));
+		return codes != null ? codes : "";
+	}
+
+	/**
+	 * @param residue index of the residue, from
+	 *                {@link #getResidue(String, int, char)}
+	 * @return the number of atoms of the residue
+	 */
+	public int getNumAtoms(int residue) {
+		return residueStart[residue + 1] - residueStart[residue];
+	}
+
+	/**
+	 * @param residue index of the residue, from
+	 *                {@link #getResidue(String, int, char)}
+	 * @param i       index of the atom in the residue
+	 * @return the row in the {@link AtomTable} of the i-th atom of the residue
+	 */
+	public int getAtomRow(int residue, int i) {
+		return residueRows[residueStart[residue] + i];
+	}
+
+	/**
+	 * @return the number of atoms in the index
+	 */
+	public int size() {
+		return residueRows.length;
+	}
+
+	/**
+	 * @return the number of residues in the index
+	 */
+	public int getNumResidues() {
+		return residueStart.length - 1;
+	}
+}
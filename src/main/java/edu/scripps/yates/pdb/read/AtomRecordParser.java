@@ -0,0 +1,267 @@
+package edu.scripps.yates.pdb.read;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import edu.scripps.yates.pdb.model.Atom3D;
+import edu.scripps.yates.pdb.model.AtomType;
+
+/**
+ * Parser of the fixed columns of the ATOM records of a PDB file that reads the
+ * bytes directly from the buffer of the file (see {@link PDBRecordIndex}) into
+ * primitive fields, without creating intermediate String objects.<br>
+ * An instance is reused for all the lines of a file, so it is not thread safe.
+ * The columns are the ones described in {@link Atom3D}.
+ *
+ * @author Salva
+ *
+ */
+public class AtomRecordParser {
+	private static final double[] POW10 = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000 };
+	private static final AtomType[] atomTypes = AtomType.values();
+	// packed atom name -> ordinal of the AtomType
+	private static final PackedNameTable atomTypesByPackedName;
+	static {
+		final int[] packedNames = new int[atomTypes.length];
+		final int[] ordinals = new int[atomTypes.length];
+		int numNames = 0;
+		for (final AtomType atomType : atomTypes) {
+			final String name = atomType.name();
+			// atom names in PDB files are at most 4 characters
+			if (atomType != AtomType.UNKNOWN && name.length() <= 4) {
+				packedNames[numNames] = PackedNameTable.pack(name);
+				ordinals[numNames++] = atomType.ordinal();
+			}
+		}
+		atomTypesByPackedName = new PackedNameTable(Arrays.copyOf(packedNames, numNames),
+				Arrays.copyOf(ordinals, numNames), AtomType.UNKNOWN.ordinal());
+	}
+	private int serial;
+	private int packedAtomName;
+	private int packedResidueName;
+	private char altLoc;
+	private char chainID;
+	private int resSeq;
+	private char iCode;
+	private double x;
+	private double y;
+	private double z;
+
+	/**
+	 * Parses the ATOM line located at the offset of the buffer
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param parseCoordinates
+	 * @return false if the line doesn't have the mandatory columns or they are
+	 *         not valid numbers
+	 */
+	public boolean parse(ByteBuffer data, int offset, int length, boolean parseCoordinates) {
+		if (length < 26 || parseCoordinates && length < 54) {
+			return false;
+		}
+		serial = parseInt(data, offset + 6, offset + 11);
+		packedAtomName = pack(data, offset + 12, offset + 16, true);
+		packedResidueName = pack(data, offset + 17, offset + 20, false);
+		altLoc = (char) data.get(offset + 16);
+		chainID = (char) data.get(offset + 21);
+		resSeq = parseInt(data, offset + 22, offset + 26);
+		iCode = length > 26 ? (char) data.get(offset + 26) : ' ';
+		if (serial == Integer.MIN_VALUE || resSeq == Integer.MIN_VALUE) {
+			return false;
+		}
+		if (parseCoordinates) {
+			return parseCoordinates(data, offset, length);
+		}
+		x = y = z = Double.NaN;
+		return true;
+	}
+
+	/**
+	 * Parses the coordinates of the ATOM line located at the offset of the
+	 * buffer, so that they are only parsed for the lines that are going to be
+	 * used after having been parsed by
+	 * {@link #parse(ByteBuffer, int, int, boolean)} without coordinates
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return false if the coordinates are not valid numbers
+	 */
+	public boolean parseCoordinates(ByteBuffer data, int offset, int length) {
+		if (length < 54) {
+			return false;
+		}
+		x = parseDouble(data, offset + 30, offset + 38);
+		y = parseDouble(data, offset + 38, offset + 46);
+		z = parseDouble(data, offset + 46, offset + 54);
+		return !Double.isNaN(x) && !Double.isNaN(y) && !Double.isNaN(z);
+	}
+
+	/**
+	 * Packs the non blank characters between start (inclusive) and end
+	 * (exclusive) into an int, one byte per character
+	 *
+	 * @param data
+	 * @param start
+	 * @param end
+	 * @param removePrime if true, a final ' is ignored, as in
+	 *                    {@link AtomType#getByName(String)}
+	 * @return
+	 */
+	static int pack(ByteBuffer data, int start, int end, boolean removePrime) {
+		int packed = 0;
+		int last = end - 1;
+		while (last >= start && data.get(last) == ' ') {
+			last--;
+		}
+		if (removePrime && last >= start && data.get(last) == '\'') {
+			last--;
+		}
+		for (int i = start; i <= last; i++) {
+			final byte b = data.get(i);
+			if (b != ' ') {
+				packed = packed << 8 | b & 0xFF;
+			}
+		}
+		return packed;
+	}
+
+	/**
+	 * Parses an integer right justified between start (inclusive) and end
+	 * (exclusive)
+	 *
+	 * @return the number or {@link Integer#MIN_VALUE} if it is not a valid
+	 *         number
+	 */
+	static int parseInt(ByteBuffer data, int start, int end) {
+		int value = 0;
+		boolean negative = false;
+		boolean digits = false;
+		for (int i = start; i < end; i++) {
+			final byte b = data.get(i);
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+				digits = true;
+			} else if (b == '-' && !digits) {
+				negative = true;
+			} else if (b != ' ' || digits) {
+				return Integer.MIN_VALUE;
+			}
+		}
+		if (!digits) {
+			return Integer.MIN_VALUE;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a real number with a fixed number of decimals between start
+	 * (inclusive) and end (exclusive)
+	 *
+	 * @return the number or {@link Double#NaN} if it is not a valid number
+	 */
+	static double parseDouble(ByteBuffer data, int start, int end) {
+		long value = 0;
+		int decimals = 0;
+		boolean negative = false;
+		boolean digits = false;
+		boolean point = false;
+		for (int i = start; i < end; i++) {
+			final byte b = data.get(i);
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+				digits = true;
+				if (point) {
+					decimals++;
+				}
+			} else if (b == '.' && !point) {
+				point = true;
+			} else if (b == '-' && !digits && !point) {
+				negative = true;
+			} else if (b != ' ' || digits || point) {
+				return Double.NaN;
+			}
+		}
+		if (!digits) {
+			return Double.NaN;
+		}
+		// a single division of two exact values is correctly rounded, as
+		// Double.valueOf
+		final double ret = decimals < POW10.length ? value / POW10[decimals] : value / Math.pow(10, decimals);
+		return negative ? -ret : ret;
+	}
+
+	/**
+	 * @return the {@link AtomType} of the last parsed line or
+	 *         {@link AtomType#UNKNOWN} if the atom name is not one of the
+	 *         {@link AtomType}s
+	 */
+	public AtomType getAtomType() {
+		return getAtomType(packedAtomName);
+	}
+
+	/**
+	 * @return the atom name of the last parsed line, without the final ' if any
+	 */
+	public String getAtomName() {
+		return PackedNameTable.unpack(packedAtomName);
+	}
+
+	/**
+	 * @param packedAtomName atom name packed in an int, one byte per character
+	 * @return the {@link AtomType} or {@link AtomType#UNKNOWN} if the atom name
+	 *         is not one of the {@link AtomType}s
+	 */
+	static AtomType getAtomType(int packedAtomName) {
+		return atomTypes[atomTypesByPackedName.get(packedAtomName)];
+	}
+
+	/**
+	 * @return the residue name of the last parsed line packed in an int, one byte
+	 *         per character. See {@link PDBUtil#parseAA(int)}
+	 */
+	public int getPackedResidueName() {
+		return packedResidueName;
+	}
+
+	/**
+	 * @return true if the residue name of the last parsed line has 3 characters
+	 */
+	public boolean hasThreeLetterResidueName() {
+		return packedResidueName > 0xFFFF;
+	}
+
+	public int getSerial() {
+		return serial;
+	}
+
+	public char getAltLoc() {
+		return altLoc;
+	}
+
+	public char getChainID() {
+		return chainID;
+	}
+
+	public int getResSeq() {
+		return resSeq;
+	}
+
+	public char getICode() {
+		return iCode;
+	}
+
+	public double getX() {
+		return x;
+	}
+
+	public double getY() {
+		return y;
+	}
+
+	public double getZ() {
+		return z;
+	}
+}
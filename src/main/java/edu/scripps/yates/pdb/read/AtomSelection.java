@@ -0,0 +1,293 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.scripps.yates.pdb.model.AtomTable;
+import edu.scripps.yates.pdb.model.AtomType;
+import edu.scripps.yates.pdb.util.BinaryUtil;
+import gnu.trove.set.hash.THashSet;
+
+/**
+ * Which atoms of a structure are kept in its {@link AtomTable}: the atoms of
+ * some chains, only heavy atoms (no hydrogens), the atoms of a window of
+ * residue numbers or the atoms of some {@link AtomType}s.<br>
+ * It is applied while reading the file, so that the atoms that are not
+ * selected are never stored. The sequences of the chains are built before
+ * applying it, so they are always complete.
+ *
+ * @author Salva
+ *
+ */
+public class AtomSelection {
+	public static final AtomSelection ALL = new Builder().build();
+	// null for all the chains
+	private final Set<String> chainIDs;
+	private final boolean heavyAtomsOnly;
+	private final int firstResidue;
+	private final int lastResidue;
+	// null for all the atom types
+	private final EnumSet<AtomType> atomTypes;
+
+	private AtomSelection(Set<String> chainIDs, boolean heavyAtomsOnly, int firstResidue, int lastResidue,
+			EnumSet<AtomType> atomTypes) {
+		this.chainIDs = chainIDs;
+		this.heavyAtomsOnly = heavyAtomsOnly;
+		this.firstResidue = firstResidue;
+		this.lastResidue = lastResidue;
+		this.atomTypes = atomTypes;
+	}
+
+	/**
+	 * Builder of {@link AtomSelection}s. By default, all the atoms are
+	 * selected.
+	 *
+	 * @author Salva
+	 *
+	 */
+	public static class Builder {
+		private Set<String> chainIDs;
+		private boolean heavyAtomsOnly = false;
+		private int firstResidue = Integer.MIN_VALUE;
+		private int lastResidue = Integer.MAX_VALUE;
+		private EnumSet<AtomType> atomTypes;
+
+		/**
+		 * Selects only the atoms of some chains
+		 *
+		 * @param chainIDs
+		 * @return
+		 */
+		public Builder chains(Collection<String> chainIDs) {
+			this.chainIDs = new THashSet<String>(chainIDs);
+			return this;
+		}
+
+		/**
+		 * Skips the hydrogen (and deuterium) atoms
+		 *
+		 * @return
+		 */
+		public Builder heavyAtomsOnly() {
+			heavyAtomsOnly = true;
+			return this;
+		}
+
+		/**
+		 * Selects only the atoms of the residues with numbers between first and
+		 * last, both inclusive
+		 *
+		 * @param firstResidue
+		 * @param lastResidue
+		 * @return
+		 */
+		public Builder residues(int firstResidue, int lastResidue) {
+			this.firstResidue = firstResidue;
+			this.lastResidue = lastResidue;
+			return this;
+		}
+
+		/**
+		 * Selects only the atoms of some {@link AtomType}s
+		 *
+		 * @param atomTypes
+		 * @return
+		 */
+		public Builder atomTypes(Collection<AtomType> atomTypes) {
+			this.atomTypes = atomTypes.isEmpty() ? EnumSet.noneOf(AtomType.class) : EnumSet.copyOf(atomTypes);
+			return this;
+		}
+
+		public AtomSelection build() {
+			return new AtomSelection(chainIDs, heavyAtomsOnly, firstResidue, lastResidue, atomTypes);
+		}
+	}
+
+	/**
+	 * @param chainID
+	 * @param resSeq    residue sequence number
+	 * @param atomType
+	 * @param atomName  name of the atom in the file, only needed if the type is
+	 *                  {@link AtomType#UNKNOWN}
+	 * @return true if the atom is selected
+	 */
+	public boolean accepts(String chainID, int resSeq, AtomType atomType, String atomName) {
+		if (resSeq < firstResidue || resSeq > lastResidue) {
+			return false;
+		}
+		if (atomTypes != null && !atomTypes.contains(atomType)) {
+			return false;
+		}
+		if (heavyAtomsOnly && isHydrogen(atomType, atomName)) {
+			return false;
+		}
+		return chainIDs == null || chainIDs.contains(chainID);
+	}
+
+	/**
+	 * @return true if all the atoms are selected
+	 */
+	public boolean isAll() {
+		return equals(ALL);
+	}
+
+	/**
+	 * @return a short identifier of the selection to be used in file names,
+	 *         that is the same for equal selections
+	 */
+	public String getFileID() {
+		if (isAll()) {
+			return "all";
+		}
+		return String.format("%08x", toString().hashCode());
+	}
+
+	/**
+	 * Checks whether an atom is an hydrogen from its name, as the names of
+	 * hydrogens start by H (or D for deuterium), optionally preceded by a
+	 * digit, as in 1HB
+	 *
+	 * @param atomType
+	 * @param atomName
+	 * @return
+	 */
+	private static boolean isHydrogen(AtomType atomType, String atomName) {
+		final String name = atomType == AtomType.UNKNOWN ? atomName : atomType.name();
+		if (name == null || name.isEmpty()) {
+			return false;
+		}
+		char first = name.charAt(0);
+		if (Character.isDigit(first) && name.length() > 1) {
+			first = name.charAt(1);
+		}
+		if (atomType == AtomType.UNKNOWN) {
+			return first == 'H' || first == 'D';
+		}
+		return first == 'H';
+	}
+
+	public Set<String> getChainIDs() {
+		return chainIDs != null ? Collections.unmodifiableSet(chainIDs) : null;
+	}
+
+	public boolean isHeavyAtomsOnly() {
+		return heavyAtomsOnly;
+	}
+
+	public int getFirstResidue() {
+		return firstResidue;
+	}
+
+	public int getLastResidue() {
+		return lastResidue;
+	}
+
+	public Set<AtomType> getAtomTypes() {
+		return atomTypes != null ? Collections.unmodifiableSet(atomTypes) : null;
+	}
+
+	/**
+	 * Writes the selection in binary format, to be read with
+	 * {@link #read(ByteBuffer)}
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		if (chainIDs == null) {
+			out.writeInt(-1);
+		} else {
+			final List<String> sortedChainIDs = new ArrayList<String>(chainIDs);
+			Collections.sort(sortedChainIDs);
+			out.writeInt(sortedChainIDs.size());
+			for (final String chainID : sortedChainIDs) {
+				BinaryUtil.writeString(out, chainID);
+			}
+		}
+		out.writeBoolean(heavyAtomsOnly);
+		out.writeInt(firstResidue);
+		out.writeInt(lastResidue);
+		if (atomTypes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(atomTypes.size());
+			for (final AtomType atomType : atomTypes) {
+				BinaryUtil.writeString(out, atomType.name());
+			}
+		}
+	}
+
+	public static AtomSelection read(ByteBuffer in) {
+		final int numChains = in.getInt();
+		Set<String> chainIDs = null;
+		if (numChains >= 0) {
+			chainIDs = new THashSet<String>();
+			for (int i = 0; i < numChains; i++) {
+				chainIDs.add(BinaryUtil.readString(in));
+			}
+		}
+		final boolean heavyAtomsOnly = in.get() != 0;
+		final int firstResidue = in.getInt();
+		final int lastResidue = in.getInt();
+		final int numAtomTypes = in.getInt();
+		EnumSet<AtomType> atomTypes = null;
+		if (numAtomTypes >= 0) {
+			atomTypes = EnumSet.noneOf(AtomType.class);
+			for (int i = 0; i < numAtomTypes; i++) {
+				atomTypes.add(AtomType.lookup(BinaryUtil.readString(in)));
+			}
+		}
+		return new AtomSelection(chainIDs, heavyAtomsOnly, firstResidue, lastResidue, atomTypes);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = chainIDs != null ? chainIDs.hashCode() : 0;
+		hash = hash * 31 + (heavyAtomsOnly ? 1 : 0);
+		hash = hash * 31 + firstResidue;
+		hash = hash * 31 + lastResidue;
+		return hash * 31 + (atomTypes != null ? atomTypes.hashCode() : 0);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof AtomSelection) {
+			final AtomSelection other = (AtomSelection) obj;
+			return (chainIDs == null ? other.chainIDs == null : chainIDs.equals(other.chainIDs))
+					&& heavyAtomsOnly == other.heavyAtomsOnly && firstResidue == other.firstResidue
+					&& lastResidue == other.lastResidue
+					&& (atomTypes == null ? other.atomTypes == null : atomTypes.equals(other.atomTypes));
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		if (isAll()) {
+			return "ALL";
+		}
+		final StringBuilder sb = new StringBuilder();
+		if (chainIDs != null) {
+			final List<String> sortedChainIDs = new ArrayList<String>(chainIDs);
+			Collections.sort(sortedChainIDs);
+			sb.append("chains=").append(sortedChainIDs).append(";");
+		}
+		if (heavyAtomsOnly) {
+			sb.append("heavy;");
+		}
+		if (firstResidue != Integer.MIN_VALUE || lastResidue != Integer.MAX_VALUE) {
+			sb.append("residues=").append(firstResidue).append("-").append(lastResidue).append(";");
+		}
+		if (atomTypes != null) {
+			sb.append("types=").append(atomTypes).append(";");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,435 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.pdb.model.DBRef;
+import edu.scripps.yates.pdb.util.BloomFilter;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Reverse index of the references to UniProtKB of the structures of a local
+ * repository (the DBREF records, or the _struct_ref_seq category of mmCIF
+ * files), from the UniProtKB accessions to the chains of the structures and
+ * the residues of the UniProtKB sequence they cover.<br>
+ * It is built incrementally, as the headers of the structures are read (see
+ * {@link #add(String, List, File)} and {@link #update(PDBFileManager)}), and stored
+ * in a file next to the repository to which the new structures are appended.
+ * The size and the modification date of the file of each structure are stored
+ * with its references, so that a structure whose file was replaced by a new
+ * version is indexed again (see {@link #isIndexed(String, File)}).<br>
+ * The accessions are also kept in a {@link BloomFilter}, so that the
+ * accessions without structures, that are most of them, are discarded
+ * without looking them up.
+ *
+ * @author Salva
+ *
+ */
+public class DBRefIndex {
+	private static final Logger log = Logger.getLogger(DBRefIndex.class);
+	private static final Map<File, DBRefIndex> instances = new THashMap<File, DBRefIndex>();
+	private static final String FILE_NAME = "pdb_dbref_index.txt";
+	private static final String SEPARATOR = "\t";
+	private static final String FIELD_SEPARATOR = ":";
+	// prefix of the field with the size and date of the file of a structure
+	private static final String STAMP_PREFIX = "@";
+	// part of the stamps, so that the structures indexed by a version that read
+	// the references differently are indexed again
+	private static final int VERSION = 2;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+	private static final int MIN_EXPECTED_ACCESSIONS = 1024;
+	private final File file;
+	// upper case pdbID -> references to UniProtKB of the structure
+	private final Map<String, List<DBRef>> dbRefsByPDBID = new THashMap<String, List<DBRef>>();
+	// UniProtKB accession -> references to it
+	private final Map<String, List<DBRef>> dbRefsByAccession = new THashMap<String, List<DBRef>>();
+	// upper case pdbID -> size and date of the file from which the references
+	// were read
+	private final Map<String, String> stampsByPDBID = new THashMap<String, String>();
+	private BloomFilter accessionFilter;
+
+	private DBRefIndex(File parentPath) {
+		file = new File(parentPath, FILE_NAME);
+		load();
+	}
+
+	public static synchronized DBRefIndex getInstance(File parentPath) {
+		if (!instances.containsKey(parentPath)) {
+			instances.put(parentPath, new DBRefIndex(parentPath));
+		}
+		return instances.get(parentPath);
+	}
+
+	/**
+	 * @param pdbID
+	 * @return true if the references of the structure are in the index, even if
+	 *         they were read from a previous version of its file
+	 */
+	public synchronized boolean isIndexed(String pdbID) {
+		return dbRefsByPDBID.containsKey(pdbID.toUpperCase());
+	}
+
+	/**
+	 * @param pdbID
+	 * @param file  the file of the structure in the repository
+	 * @return true if the references of the structure are in the index and they
+	 *         were read from that file as it is now. False if the file is null
+	 */
+	public synchronized boolean isIndexed(String pdbID, File file) {
+		if (file == null) {
+			return false;
+		}
+		final String stamp = stampsByPDBID.get(pdbID.toUpperCase());
+		return stamp != null && stamp.equals(getStamp(file));
+	}
+
+	/**
+	 * @param file
+	 * @return the version of the index and the size and date of a structure
+	 *         file, or of its archive if it is a member of an archive
+	 */
+	private static String getStamp(File file) {
+		final File stampFile = PDBBinaryCache.getStampFile(file);
+		return VERSION + FIELD_SEPARATOR + stampFile.length() + FIELD_SEPARATOR + stampFile.lastModified();
+	}
+
+	/**
+	 * @return the number of structures in the index
+	 */
+	public synchronized int getNumStructures() {
+		return dbRefsByPDBID.size();
+	}
+
+	/**
+	 * @param uniprotAcc
+	 * @return false if no structure of the index references the accession, and
+	 *         true if some structure probably references it
+	 */
+	public synchronized boolean mightContain(String uniprotAcc) {
+		return accessionFilter.mightContain(uniprotAcc);
+	}
+
+	/**
+	 * @param uniprotAcc
+	 * @return the chains of the structures in the index that reference the
+	 *         accession
+	 */
+	public synchronized List<DBRef> getDBRefs(String uniprotAcc) {
+		if (!accessionFilter.mightContain(uniprotAcc)) {
+			return Collections.emptyList();
+		}
+		final List<DBRef> dbRefs = dbRefsByAccession.get(uniprotAcc);
+		if (dbRefs == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<DBRef>(dbRefs);
+	}
+
+	/**
+	 * @param pdbID      a structure in the index (see
+	 *                   {@link #isIndexed(String)})
+	 * @param uniprotAcc
+	 * @return true if the structure references the accession
+	 */
+	public synchronized boolean containsUniprotReference(String pdbID, String uniprotAcc) {
+		if (!accessionFilter.mightContain(uniprotAcc)) {
+			return false;
+		}
+		final List<DBRef> dbRefs = dbRefsByPDBID.get(pdbID.toUpperCase());
+		if (dbRefs != null) {
+			for (final DBRef dbRef : dbRefs) {
+				if (dbRef.getUniprotID().equals(uniprotAcc)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a structure references an accession, adding it to the
+	 * index from its header if it was not in it
+	 *
+	 * @param parser
+	 * @param uniprotAcc
+	 * @return true if the structure references the accession
+	 */
+	public boolean containsUniprotReference(PDBParser parser, String uniprotAcc) {
+		final File file = new File(parser.getFilePath());
+		if (!isIndexed(parser.getPdbID(), file)) {
+			final List<DBRef> dbRefs = parser.getDBRefs();
+			if (parser.isUnreadable()) {
+				return false;
+			}
+			add(parser.getPdbID(), dbRefs, file);
+		}
+		return containsUniprotReference(parser.getPdbID(), uniprotAcc);
+	}
+
+	/**
+	 * Adds the references of a structure to the index and to its file,
+	 * replacing the ones it had
+	 *
+	 * @param pdbID
+	 * @param dbRefs the references read from the structure
+	 * @param file   the file from which they were read, so that they are read
+	 *               again if it changes, or null if unknown
+	 */
+	public synchronized void add(String pdbID, List<DBRef> dbRefs, File file) {
+		final String stamp = file != null ? getStamp(file) : null;
+		final List<DBRef> indexed = put(pdbID.toUpperCase(), dbRefs, stamp);
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(this.file, true), StandardCharsets.UTF_8));
+			writer.write(toLine(pdbID.toUpperCase(), stamp, indexed));
+			writer.newLine();
+		} catch (final IOException e) {
+			log.warn("Error adding " + pdbID + " to " + this.file + ": " + e.getMessage());
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds to the index the structures of a repository that are not in it yet,
+	 * or whose files changed since they were indexed, reading only their
+	 * headers
+	 *
+	 * @param pdbFileManager
+	 * @return the number of structures added
+	 */
+	public int update(PDBFileManager pdbFileManager) {
+		final long t1 = System.currentTimeMillis();
+		int numAdded = 0;
+		for (final String pdbID : pdbFileManager.getPDBIDs()) {
+			try {
+				File pdbFile = pdbFileManager.getPDBFile(pdbID);
+				if (pdbFile == null) {
+					pdbFile = pdbFileManager.getMmCIFFile(pdbID);
+				}
+				if (pdbFile == null || isIndexed(pdbID, pdbFile)) {
+					continue;
+				}
+				final PDBParser parser = new PDBParser(pdbFile.getAbsolutePath(), pdbID.toUpperCase(), false);
+				final List<DBRef> dbRefs = parser.getDBRefs();
+				if (!parser.isUnreadable()) {
+					add(pdbID, dbRefs, pdbFile);
+					numAdded++;
+				}
+			} catch (final IOException e) {
+				e.printStackTrace();
+				log.warn("Error indexing PDB entry " + pdbID + ": " + e.getMessage());
+			}
+		}
+		log.info(numAdded + " structures added to the index of " + file + " in " + (System.currentTimeMillis() - t1)
+				+ "ms");
+		return numAdded;
+	}
+
+	/**
+	 * Removes all the structures from the index, so that they are indexed again
+	 */
+	public synchronized void clear() {
+		dbRefsByPDBID.clear();
+		dbRefsByAccession.clear();
+		stampsByPDBID.clear();
+		accessionFilter = new BloomFilter(MIN_EXPECTED_ACCESSIONS, FALSE_POSITIVE_PROBABILITY);
+		write();
+	}
+
+	/**
+	 * Adds the references to UniProtKB of a structure to the maps and the
+	 * filter, replacing the previous ones
+	 *
+	 * @param pdbID  upper case pdbID
+	 * @param dbRefs
+	 * @param stamp  size and date of the file from which they were read, or
+	 *               null if unknown
+	 * @return the references in the index
+	 */
+	private List<DBRef> put(String pdbID, List<DBRef> dbRefs, String stamp) {
+		final List<DBRef> previous = dbRefsByPDBID.get(pdbID);
+		if (previous != null) {
+			for (final DBRef dbRef : previous) {
+				final List<DBRef> list = dbRefsByAccession.get(dbRef.getUniprotID());
+				list.remove(dbRef);
+				if (list.isEmpty()) {
+					dbRefsByAccession.remove(dbRef.getUniprotID());
+				}
+			}
+		}
+		final List<DBRef> indexed = new ArrayList<DBRef>();
+		for (final DBRef dbRef : dbRefs) {
+			if (dbRef.getUniprotID() != null && dbRef.getChainID() != null) {
+				indexed.add(new DBRef(pdbID, dbRef.getChainID(), dbRef.getUniprotID(), dbRef.getDbSeqBegin(),
+						dbRef.getDbSeqEnd()));
+			}
+		}
+		dbRefsByPDBID.put(pdbID, indexed);
+		if (stamp != null) {
+			stampsByPDBID.put(pdbID, stamp);
+		} else {
+			stampsByPDBID.remove(pdbID);
+		}
+		for (final DBRef dbRef : indexed) {
+			List<DBRef> list = dbRefsByAccession.get(dbRef.getUniprotID());
+			if (list == null) {
+				list = new ArrayList<DBRef>(1);
+				dbRefsByAccession.put(dbRef.getUniprotID(), list);
+				if (accessionFilter.isFull()) {
+					rebuildFilter();
+				}
+				accessionFilter.add(dbRef.getUniprotID());
+			}
+			list.add(dbRef);
+		}
+		return indexed;
+	}
+
+	/**
+	 * Creates a larger filter when the number of accessions exceeds the one it
+	 * was created for
+	 */
+	private void rebuildFilter() {
+		accessionFilter = new BloomFilter(
+				Math.max(MIN_EXPECTED_ACCESSIONS, Math.max(accessionFilter.getExpectedInsertions(),
+						dbRefsByAccession.size()) * 2),
+				FALSE_POSITIVE_PROBABILITY);
+		for (final String accession : dbRefsByAccession.keySet()) {
+			accessionFilter.add(accession);
+		}
+	}
+
+	/**
+	 * @return a line with the pdbID, the size and date of its file if known,
+	 *         and the chain, the accession and the first and last residues of
+	 *         each reference
+	 */
+	private static String toLine(String pdbID, String stamp, List<DBRef> dbRefs) {
+		final StringBuilder sb = new StringBuilder(pdbID);
+		if (stamp != null) {
+			sb.append(SEPARATOR).append(STAMP_PREFIX).append(stamp);
+		}
+		for (final DBRef dbRef : dbRefs) {
+			sb.append(SEPARATOR).append(dbRef.getChainID()).append(FIELD_SEPARATOR).append(dbRef.getUniprotID())
+					.append(FIELD_SEPARATOR).append(dbRef.getDbSeqBegin()).append(FIELD_SEPARATOR)
+					.append(dbRef.getDbSeqEnd());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads the file. If a structure was indexed several times, the last line
+	 * is used and the file is written again without the previous ones
+	 */
+	private void load() {
+		accessionFilter = new BloomFilter(MIN_EXPECTED_ACCESSIONS, FALSE_POSITIVE_PROBABILITY);
+		if (!file.exists()) {
+			return;
+		}
+		final long t1 = System.currentTimeMillis();
+		int numLines = 0;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8),
+					BUFFER_SIZE);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if ("".equals(line.trim())) {
+					continue;
+				}
+				numLines++;
+				final String[] split = line.trim().split(SEPARATOR);
+				final List<DBRef> dbRefs = new ArrayList<DBRef>(split.length - 1);
+				// lines written by previous versions don't have the stamp
+				String stamp = null;
+				int first = 1;
+				if (split.length > 1 && split[1].startsWith(STAMP_PREFIX)) {
+					stamp = split[1].substring(STAMP_PREFIX.length());
+					first = 2;
+				}
+				try {
+					for (int i = first; i < split.length; i++) {
+						final String[] fields = split[i].split(FIELD_SEPARATOR);
+						dbRefs.add(new DBRef(split[0], fields[0], fields[1], Integer.valueOf(fields[2]),
+								Integer.valueOf(fields[3])));
+					}
+				} catch (final RuntimeException e) {
+					log.warn("Skipping invalid line '" + line + "' of " + file);
+					continue;
+				}
+				put(split[0].toUpperCase(), dbRefs, stamp);
+			}
+			log.info(dbRefsByPDBID.size() + " structures referencing " + dbRefsByAccession.size()
+					+ " UniProtKB accessions read from " + file + " in " + (System.currentTimeMillis() - t1) + "ms");
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error reading " + file + ": " + e.getMessage());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		if (numLines > dbRefsByPDBID.size()) {
+			write();
+		}
+	}
+
+	private void write() {
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8),
+					BUFFER_SIZE);
+			for (final Map.Entry<String, List<DBRef>> entry : dbRefsByPDBID.entrySet()) {
+				writer.write(toLine(entry.getKey(), stampsByPDBID.get(entry.getKey()), entry.getValue()));
+				writer.newLine();
+			}
+			writer.close();
+			writer = null;
+			if (file.exists()) {
+				file.delete();
+			}
+			if (!tmpFile.renameTo(file)) {
+				log.warn("Error saving " + file);
+			}
+		} catch (final IOException e) {
+			// the repository may be a read only mirror
+			log.warn("Error writing " + file + ": " + e.getMessage());
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+			tmpFile.delete();
+		}
+	}
+}
@@ -0,0 +1,677 @@
+package edu.scripps.yates.pdb.read;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.pdb.model.AtomTable;
+import edu.scripps.yates.pdb.model.AtomType;
+import edu.scripps.yates.pdb.model.DBRef;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.set.hash.THashSet;
+
+/**
+ * Reader of structures in the PDBx/mmCIF text format, the only format
+ * available for the largest entries of the PDB, which may have more than
+ * 99,999 atoms or multi-character chain identifiers.<br>
+ * The file is tokenized once when the reader is created, keeping only the few
+ * items that are equivalent to the records read from PDB files (experimental
+ * method, mutations and database references), and the position of the
+ * _atom_site loop. The atoms are then streamed from that loop with
+ * {@link #nextAtom(boolean)}, reading the values directly from the bytes of
+ * the file, as {@link AtomRecordParser} does for PDB files.<br>
+ * As {@link AtomRecordParser}, it is not thread safe.
+ *
+ * @author Salva
+ *
+ */
+public class MmCIFReader {
+	private final static Logger log = Logger.getLogger(MmCIFReader.class);
+	private final static String ATOM_SITE = "_atom_site.";
+	private final static String EXPTL_METHOD = "_exptl.method";
+	private final static String ENTITY_MUTATION = "_entity.pdbx_mutation";
+	private final static String STRUCT_REF_SEQ_PDB_ID = "_struct_ref_seq.pdbx_pdb_id_code";
+	private final static String STRUCT_REF_SEQ_CHAIN = "_struct_ref_seq.pdbx_strand_id";
+	private final static String STRUCT_REF_SEQ_ACCESSION = "_struct_ref_seq.pdbx_db_accession";
+	private final static String STRUCT_REF_SEQ_DB_BEGIN = "_struct_ref_seq.db_align_beg";
+	private final static String STRUCT_REF_SEQ_DB_END = "_struct_ref_seq.db_align_end";
+	private final static Set<String> storedItems = new THashSet<String>();
+	static {
+		storedItems.add(EXPTL_METHOD);
+		storedItems.add(ENTITY_MUTATION);
+		storedItems.add(STRUCT_REF_SEQ_PDB_ID);
+		storedItems.add(STRUCT_REF_SEQ_CHAIN);
+		storedItems.add(STRUCT_REF_SEQ_ACCESSION);
+		storedItems.add(STRUCT_REF_SEQ_DB_BEGIN);
+		storedItems.add(STRUCT_REF_SEQ_DB_END);
+	}
+	// average length of a row of the _atom_site loop, to estimate the number of
+	// atoms
+	private final static int ATOM_SITE_ROW_LENGTH = 90;
+	private final ByteBuffer data;
+	private final int limit;
+	private final Map<String, List<String>> items = new THashMap<String, List<String>>();
+	// tokenizer state
+	private int pos;
+	private int tokenStart;
+	private int tokenEnd;
+	private boolean tokenQuoted;
+	// _atom_site loop
+	private int atomSiteStart = -1;
+	private int atomSiteEnd = -1;
+	private int atomSitePos = -1;
+	private int[] valueStarts;
+	private int[] valueEnds;
+	private int groupColumn = -1;
+	private int idColumn = -1;
+	private int atomColumn = -1;
+	private int residueColumn = -1;
+	private int chainColumn = -1;
+	private int resSeqColumn = -1;
+	private int iCodeColumn = -1;
+	private int xColumn = -1;
+	private int yColumn = -1;
+	private int zColumn = -1;
+	private int modelColumn = -1;
+	// current atom
+	private int serial;
+	private int packedAtomName;
+	private int packedResidueName;
+	private String chainID;
+	private int resSeq;
+	private char iCode;
+	private int modelNumber;
+	private double x;
+	private double y;
+	private double z;
+
+	public MmCIFReader(ByteBuffer data) {
+		this.data = data;
+		limit = data.limit();
+		final long t1 = System.currentTimeMillis();
+		scan();
+		log.debug("mmCIF data scanned in " + (System.currentTimeMillis() - t1) + "ms");
+	}
+
+	/**
+	 * @return an estimation of the heap memory used by the reader, including the
+	 *         content of the file unless it is memory mapped, in bytes
+	 */
+	public long getEstimatedSize() {
+		// a mapped file is out of the heap, in the page cache
+		long size = data.isDirect() ? 0 : data.capacity();
+		for (final List<String> values : items.values()) {
+			// each value is a string of a few characters
+			size += values.size() * 48L;
+		}
+		return size;
+	}
+
+	/**
+	 * Checks whether the data is in mmCIF format, that is, whether the first
+	 * thing that is not a comment is a data block header
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static boolean isMmCIF(ByteBuffer data) {
+		int i = 0;
+		final int limit = data.limit();
+		while (i < limit) {
+			final byte b = data.get(i);
+			if (b == '#') {
+				while (i < limit && data.get(i) != '\n') {
+					i++;
+				}
+			} else if (!isWhitespace(b)) {
+				return startsWith(data, i, "data_");
+			} else {
+				i++;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	private static boolean startsWith(ByteBuffer data, int offset, String prefix) {
+		if (offset + prefix.length() > data.limit()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (Character.toLowerCase((char) data.get(offset + i)) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the next token, that can be a tag, a keyword or a value, which may
+	 * be quoted or a multi-line text field
+	 *
+	 * @return false if there are no more tokens
+	 */
+	private boolean nextToken() {
+		while (pos < limit) {
+			final byte b = data.get(pos);
+			if (b == '#') {
+				while (pos < limit && data.get(pos) != '\n') {
+					pos++;
+				}
+			} else if (isWhitespace(b)) {
+				pos++;
+			} else {
+				break;
+			}
+		}
+		if (pos >= limit) {
+			return false;
+		}
+		final byte first = data.get(pos);
+		if (first == ';' && (pos == 0 || data.get(pos - 1) == '\n')) {
+			// text field, until a line starting with ;
+			int i = pos + 1;
+			while (i < limit && !(data.get(i) == ';' && data.get(i - 1) == '\n')) {
+				i++;
+			}
+			tokenStart = pos + 1;
+			tokenEnd = i;
+			while (tokenEnd > tokenStart && isWhitespace(data.get(tokenEnd - 1))) {
+				tokenEnd--;
+			}
+			tokenQuoted = true;
+			pos = Math.min(i + 1, limit);
+			return true;
+		}
+		if (first == '\'' || first == '"') {
+			// the quote only closes the value if it is followed by a whitespace
+			int i = pos + 1;
+			while (i < limit && !(data.get(i) == first && (i + 1 == limit || isWhitespace(data.get(i + 1))))) {
+				i++;
+			}
+			tokenStart = pos + 1;
+			tokenEnd = i;
+			tokenQuoted = true;
+			pos = Math.min(i + 1, limit);
+			return true;
+		}
+		int i = pos;
+		while (i < limit && !isWhitespace(data.get(i))) {
+			i++;
+		}
+		tokenStart = pos;
+		tokenEnd = i;
+		tokenQuoted = false;
+		pos = i;
+		return true;
+	}
+
+	private String getToken() {
+		final byte[] bytes = new byte[tokenEnd - tokenStart];
+		final ByteBuffer duplicate = data.duplicate();
+		duplicate.position(tokenStart);
+		duplicate.get(bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	private boolean isTag() {
+		return !tokenQuoted && data.get(tokenStart) == '_';
+	}
+
+	/**
+	 * @return true if the current token is a tag or a keyword, that is, the end
+	 *         of the values of a loop
+	 */
+	private boolean isEndOfValues() {
+		return !tokenQuoted && (data.get(tokenStart) == '_' || startsWith(data, tokenStart, "loop_")
+				|| startsWith(data, tokenStart, "data_") || startsWith(data, tokenStart, "save_"));
+	}
+
+	private void scan() {
+		pos = 0;
+		while (nextToken()) {
+			if (tokenQuoted) {
+				continue;
+			}
+			if (startsWith(data, tokenStart, "loop_")) {
+				readLoop();
+			} else if (isTag()) {
+				final String tag = getToken().toLowerCase();
+				if (!nextToken()) {
+					break;
+				}
+				if (storedItems.contains(tag)) {
+					addItemValue(tag, getToken());
+				}
+			}
+		}
+	}
+
+	private void addItemValue(String tag, String value) {
+		if (!items.containsKey(tag)) {
+			items.put(tag, new ArrayList<String>());
+		}
+		items.get(tag).add(value);
+	}
+
+	private void readLoop() {
+		final List<String> tags = new ArrayList<String>();
+		int mark = pos;
+		while (nextToken() && isTag()) {
+			tags.add(getToken().toLowerCase());
+			mark = pos;
+		}
+		if (tags.isEmpty()) {
+			pos = mark;
+			return;
+		}
+		if (tags.get(0).startsWith(ATOM_SITE)) {
+			atomSiteStart = mark;
+			setAtomSiteColumns(tags);
+			pos = mark;
+			skipAtomSiteValues();
+			atomSiteEnd = pos;
+			return;
+		}
+		pos = mark;
+		int column = 0;
+		while (true) {
+			mark = pos;
+			if (!nextToken()) {
+				return;
+			}
+			if (isEndOfValues()) {
+				pos = mark;
+				return;
+			}
+			final String tag = tags.get(column);
+			if (storedItems.contains(tag)) {
+				addItemValue(tag, getToken());
+			}
+			column = (column + 1) % tags.size();
+		}
+	}
+
+	/**
+	 * Skips the values of the _atom_site loop line by line, without tokenizing
+	 * them, since each row is in one line. The atoms are read later with
+	 * {@link #nextAtom(boolean)}
+	 */
+	private void skipAtomSiteValues() {
+		int i = pos;
+		while (true) {
+			while (i < limit && data.get(i) != '\n') {
+				i++;
+			}
+			i++;
+			if (i >= limit) {
+				pos = limit;
+				return;
+			}
+			final byte b = data.get(i);
+			if (b == '#' || b == '_' || startsWith(data, i, "loop_") || startsWith(data, i, "data_")) {
+				pos = i;
+				return;
+			}
+		}
+	}
+
+	private void setAtomSiteColumns(List<String> tags) {
+		int authAtomColumn = -1;
+		int labelAtomColumn = -1;
+		int authResidueColumn = -1;
+		int labelResidueColumn = -1;
+		int authChainColumn = -1;
+		int labelChainColumn = -1;
+		int authResSeqColumn = -1;
+		int labelResSeqColumn = -1;
+		for (int column = 0; column < tags.size(); column++) {
+			final String item = tags.get(column).substring(ATOM_SITE.length());
+			switch (item) {
+			case "group_pdb":
+				groupColumn = column;
+				break;
+			case "id":
+				idColumn = column;
+				break;
+			case "auth_atom_id":
+				authAtomColumn = column;
+				break;
+			case "label_atom_id":
+				labelAtomColumn = column;
+				break;
+			case "auth_comp_id":
+				authResidueColumn = column;
+				break;
+			case "label_comp_id":
+				labelResidueColumn = column;
+				break;
+			case "auth_asym_id":
+				authChainColumn = column;
+				break;
+			case "label_asym_id":
+				labelChainColumn = column;
+				break;
+			case "auth_seq_id":
+				authResSeqColumn = column;
+				break;
+			case "label_seq_id":
+				labelResSeqColumn = column;
+				break;
+			case "pdbx_pdb_ins_code":
+				iCodeColumn = column;
+				break;
+			case "cartn_x":
+				xColumn = column;
+				break;
+			case "cartn_y":
+				yColumn = column;
+				break;
+			case "cartn_z":
+				zColumn = column;
+				break;
+			case "pdbx_pdb_model_num":
+				modelColumn = column;
+				break;
+			default:
+				break;
+			}
+		}
+		// author provided values are the ones used in PDB files
+		atomColumn = authAtomColumn != -1 ? authAtomColumn : labelAtomColumn;
+		residueColumn = authResidueColumn != -1 ? authResidueColumn : labelResidueColumn;
+		chainColumn = authChainColumn != -1 ? authChainColumn : labelChainColumn;
+		resSeqColumn = authResSeqColumn != -1 ? authResSeqColumn : labelResSeqColumn;
+		valueStarts = new int[tags.size()];
+		valueEnds = new int[tags.size()];
+		if (idColumn == -1 || atomColumn == -1 || residueColumn == -1 || chainColumn == -1 || resSeqColumn == -1
+				|| xColumn == -1 || yColumn == -1 || zColumn == -1) {
+			log.warn("Some mandatory items of _atom_site are missing. Atoms will not be read");
+			atomSitePos = -1;
+		} else {
+			atomSitePos = atomSiteStart;
+		}
+	}
+
+	/**
+	 * @return the approximate number of atoms, from the size of the _atom_site
+	 *         loop
+	 */
+	public int getEstimatedNumAtoms() {
+		if (atomSiteStart == -1) {
+			return 0;
+		}
+		return (atomSiteEnd - atomSiteStart) / ATOM_SITE_ROW_LENGTH + 1;
+	}
+
+	/**
+	 * Reads the next ATOM row of the _atom_site loop. HETATM rows and rows with
+	 * not valid values are skipped.
+	 *
+	 * @param parseCoordinates
+	 * @return false if there are no more atoms
+	 */
+	public boolean nextAtom(boolean parseCoordinates) {
+		while (atomSitePos != -1) {
+			pos = atomSitePos;
+			for (int column = 0; column < valueStarts.length; column++) {
+				if (!nextToken() || isEndOfValues()) {
+					atomSitePos = -1;
+					return false;
+				}
+				valueStarts[column] = tokenStart;
+				valueEnds[column] = tokenEnd;
+			}
+			atomSitePos = pos;
+			if (groupColumn != -1 && !isValue(groupColumn, "ATOM")) {
+				continue;
+			}
+			if (parseRow(parseCoordinates)) {
+				return true;
+			}
+			log.debug("Error reading atom_site row at " + valueStarts[0]);
+		}
+		return false;
+	}
+
+	private boolean isValue(int column, String value) {
+		if (valueEnds[column] - valueStarts[column] != value.length()) {
+			return false;
+		}
+		return startsWith(data, valueStarts[column], value.toLowerCase());
+	}
+
+	private boolean parseRow(boolean parseCoordinates) {
+		serial = AtomRecordParser.parseInt(data, valueStarts[idColumn], valueEnds[idColumn]);
+		resSeq = AtomRecordParser.parseInt(data, valueStarts[resSeqColumn], valueEnds[resSeqColumn]);
+		modelNumber = modelColumn != -1
+				? AtomRecordParser.parseInt(data, valueStarts[modelColumn], valueEnds[modelColumn])
+				: AtomTable.DEFAULT_MODEL_NUMBER;
+		if (serial == Integer.MIN_VALUE || resSeq == Integer.MIN_VALUE || modelNumber == Integer.MIN_VALUE) {
+			return false;
+		}
+		int atomNameLength = valueEnds[atomColumn] - valueStarts[atomColumn];
+		if (atomNameLength > 0 && data.get(valueEnds[atomColumn] - 1) == '\'') {
+			atomNameLength--;
+		}
+		// longer names don't fit in an int and they are not AtomTypes anyway
+		packedAtomName = atomNameLength <= 4
+				? AtomRecordParser.pack(data, valueStarts[atomColumn], valueEnds[atomColumn], true)
+				: 0;
+		packedResidueName = valueEnds[residueColumn] - valueStarts[residueColumn] <= 3
+				? AtomRecordParser.pack(data, valueStarts[residueColumn], valueEnds[residueColumn], false)
+				: 0;
+		chainID = readChainID();
+		iCode = ' ';
+		if (iCodeColumn != -1 && valueEnds[iCodeColumn] - valueStarts[iCodeColumn] == 1) {
+			final char c = (char) data.get(valueStarts[iCodeColumn]);
+			if (c != '?' && c != '.') {
+				iCode = c;
+			}
+		}
+		if (parseCoordinates) {
+			x = AtomRecordParser.parseDouble(data, valueStarts[xColumn], valueEnds[xColumn]);
+			y = AtomRecordParser.parseDouble(data, valueStarts[yColumn], valueEnds[yColumn]);
+			z = AtomRecordParser.parseDouble(data, valueStarts[zColumn], valueEnds[zColumn]);
+			if (Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z)) {
+				return false;
+			}
+		} else {
+			x = y = z = Double.NaN;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the chain of the current row, reusing the String of the previous row
+	 * when it is the same chain, which is the usual case
+	 *
+	 * @return
+	 */
+	private String readChainID() {
+		final int start = valueStarts[chainColumn];
+		final int length = valueEnds[chainColumn] - start;
+		if (length == 1) {
+			return PDBUtil.getChainID((char) data.get(start));
+		}
+		if (chainID != null && chainID.length() == length) {
+			boolean same = true;
+			for (int i = 0; i < length; i++) {
+				if (chainID.charAt(i) != (char) data.get(start + i)) {
+					same = false;
+					break;
+				}
+			}
+			if (same) {
+				return chainID;
+			}
+		}
+		final char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) data.get(start + i);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @return the {@link AtomType} of the current atom or
+	 *         {@link AtomType#UNKNOWN} if the atom name is not one of the
+	 *         {@link AtomType}s
+	 */
+	public AtomType getAtomType() {
+		return AtomRecordParser.getAtomType(packedAtomName);
+	}
+
+	/**
+	 * @return the atom name of the current atom, without the final ' if any
+	 */
+	public String getAtomName() {
+		final int start = valueStarts[atomColumn];
+		int end = valueEnds[atomColumn];
+		if (end > start && data.get(end - 1) == '\'') {
+			end--;
+		}
+		final char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			chars[i - start] = (char) data.get(i);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @return the residue name of the current atom packed in an int, one byte
+	 *         per character. See {@link PDBUtil#parseAA(int)}
+	 */
+	public int getPackedResidueName() {
+		return packedResidueName;
+	}
+
+	/**
+	 * @return true if the residue name of the current atom has 3 characters
+	 */
+	public boolean hasThreeLetterResidueName() {
+		return packedResidueName > 0xFFFF;
+	}
+
+	public int getSerial() {
+		return serial;
+	}
+
+	public String getChainID() {
+		return chainID;
+	}
+
+	public int getResSeq() {
+		return resSeq;
+	}
+
+	public char getICode() {
+		return iCode;
+	}
+
+	/**
+	 * @return the number of the model of the current atom
+	 */
+	public int getModelNumber() {
+		return modelNumber;
+	}
+
+	public double getX() {
+		return x;
+	}
+
+	public double getY() {
+		return y;
+	}
+
+	public double getZ() {
+		return z;
+	}
+
+	private List<String> getItemValues(String tag) {
+		if (items.containsKey(tag)) {
+			return items.get(tag);
+		}
+		return Collections.emptyList();
+	}
+
+	private static boolean isNull(String value) {
+		return value == null || "?".equals(value) || ".".equals(value);
+	}
+
+	/**
+	 * Gets the references to sequence databases of the chains, from the
+	 * _struct_ref_seq category, equivalent to the DBREF records of PDB files
+	 *
+	 * @param pdbID used if the entry doesn't state its own identifier
+	 * @return
+	 */
+	public List<DBRef> getDBRefs(String pdbID) {
+		final List<DBRef> ret = new ArrayList<DBRef>();
+		final List<String> chainIDs = getItemValues(STRUCT_REF_SEQ_CHAIN);
+		final List<String> accessions = getItemValues(STRUCT_REF_SEQ_ACCESSION);
+		final List<String> pdbIDs = getItemValues(STRUCT_REF_SEQ_PDB_ID);
+		final List<String> dbBegins = getItemValues(STRUCT_REF_SEQ_DB_BEGIN);
+		final List<String> dbEnds = getItemValues(STRUCT_REF_SEQ_DB_END);
+		for (int i = 0; i < chainIDs.size(); i++) {
+			final String accession = i < accessions.size() && !isNull(accessions.get(i)) ? accessions.get(i) : null;
+			final String entryID = i < pdbIDs.size() && !isNull(pdbIDs.get(i)) ? pdbIDs.get(i) : pdbID;
+			ret.add(new DBRef(entryID, chainIDs.get(i), accession, getPosition(dbBegins, i), getPosition(dbEnds, i)));
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the integer value of an item or -1 if it is not present
+	 */
+	private static int getPosition(List<String> values, int i) {
+		if (i >= values.size() || isNull(values.get(i))) {
+			return -1;
+		}
+		try {
+			return Integer.valueOf(values.get(i));
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the experimental methods of the entry, separated by "; ", or null
+	 *         if not present
+	 */
+	public String getExperimentalMethod() {
+		final List<String> methods = getItemValues(EXPTL_METHOD);
+		if (methods.isEmpty()) {
+			return null;
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (final String method : methods) {
+			if (sb.length() > 0) {
+				sb.append("; ");
+			}
+			sb.append(method);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return true if any of the entities has a mutation
+	 */
+	public boolean getMutation() {
+		for (final String mutation : getItemValues(ENTITY_MUTATION)) {
+			if (!isNull(mutation)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,117 @@
+package edu.scripps.yates.pdb.read;
+
+/**
+ * Which models of a structure with several models (as NMR structures) are
+ * read. The atoms of the models that are not selected are skipped while
+ * reading the file.
+ *
+ * @author Salva
+ *
+ */
+public class ModelSelection {
+	public enum Policy {
+		/**
+		 * Only the first model of the file
+		 */
+		FIRST,
+		/**
+		 * Only the model with a certain number
+		 */
+		SPECIFIC,
+		/**
+		 * All the models, each one as a separate ensemble
+		 */
+		ALL
+	}
+
+	public static final ModelSelection FIRST = new ModelSelection(Policy.FIRST, -1);
+	public static final ModelSelection ALL = new ModelSelection(Policy.ALL, -1);
+	private final Policy policy;
+	private final int modelNumber;
+
+	private ModelSelection(Policy policy, int modelNumber) {
+		this.policy = policy;
+		this.modelNumber = modelNumber;
+	}
+
+	/**
+	 * @param modelNumber the number of the model, as in the MODEL record
+	 * @return a selection of only that model
+	 */
+	public static ModelSelection model(int modelNumber) {
+		return new ModelSelection(Policy.SPECIFIC, modelNumber);
+	}
+
+	/**
+	 * Parses a selection from its text: "first", "all" or a model number
+	 *
+	 * @param text
+	 * @return
+	 * @throws IllegalArgumentException if the text is not valid
+	 */
+	public static ModelSelection fromValue(String text) {
+		final String trimmed = text.trim();
+		if (Policy.FIRST.name().equalsIgnoreCase(trimmed)) {
+			return FIRST;
+		}
+		if (Policy.ALL.name().equalsIgnoreCase(trimmed)) {
+			return ALL;
+		}
+		try {
+			return model(Integer.valueOf(trimmed));
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException(
+					"'" + text + "' is not a valid model selection. Valid values are FIRST, ALL or a model number");
+		}
+	}
+
+	/**
+	 * @param modelNumber      the number of a model
+	 * @param firstModelNumber the number of the first model of the file
+	 * @return true if the model is selected
+	 */
+	public boolean includes(int modelNumber, int firstModelNumber) {
+		switch (policy) {
+		case FIRST:
+			return modelNumber == firstModelNumber;
+		case SPECIFIC:
+			return modelNumber == this.modelNumber;
+		default:
+			return true;
+		}
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the number of the selected model if the policy is
+	 *         {@link Policy#SPECIFIC}, or -1 otherwise
+	 */
+	public int getModelNumber() {
+		return modelNumber;
+	}
+
+	@Override
+	public int hashCode() {
+		return policy.hashCode() * 31 + modelNumber;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof ModelSelection) {
+			final ModelSelection other = (ModelSelection) obj;
+			return policy == other.policy && modelNumber == other.modelNumber;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		if (policy == Policy.SPECIFIC) {
+			return String.valueOf(modelNumber);
+		}
+		return policy.name();
+	}
+}
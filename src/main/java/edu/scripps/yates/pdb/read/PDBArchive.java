@@ -0,0 +1,714 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * A bulk archive of structure files (a zip file or an uncompressed tar file, as
+ * the ones of the wwPDB), whose members are read without extracting them.<br>
+ * The archive is scanned once to find the offset and size of each member, and
+ * that index is saved in a sidecar file (&lt;archive&gt;.idx) that is used
+ * while the archive doesn't change. A member is then read by seeking to its
+ * offset, and the zip members that are deflated are inflated on the fly. Zip
+ * files larger than 4GB or with more than 65535 members (ZIP64), and the tar
+ * members whose names or sizes are in pax extended headers, are supported.<br>
+ * The members are referred to with virtual files whose path is the path of the
+ * archive and the name of the member separated by
+ * {@link #MEMBER_SEPARATOR}, that {@link PDBFileContentCache} knows how to
+ * read.
+ *
+ * @author Salva
+ *
+ */
+public class PDBArchive {
+	private static final Logger log = Logger.getLogger(PDBArchive.class);
+	private static final Map<File, PDBArchive> instances = new THashMap<File, PDBArchive>();
+	public static final String MEMBER_SEPARATOR = "|";
+	private static final String ZIP_EXTENSION = ".zip";
+	private static final String TAR_EXTENSION = ".tar";
+	private static final String INDEX_EXTENSION = ".idx";
+	// folder of the binary caches of the members
+	private static final String BINARY_CACHE_FOLDER_EXTENSION = ".bin";
+	private static final String SEPARATOR = "\t";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int TAR_BLOCK_SIZE = 512;
+	private static final int ZIP_LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int ZIP_CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int ZIP_END_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final short ZIP64_EXTRA_FIELD_ID = 0x0001;
+	private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+	private static final int ZIP_CENTRAL_HEADER_SIZE = 46;
+	private static final int ZIP_END_SIZE = 22;
+	private static final int ZIP64_END_SIZE = 56;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	// value of the fields of the zip records that are in the ZIP64 records
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int ZIP64_MAGIC_ENTRIES = 0xFFFF;
+	private static final int ZIP_DEFLATED = 8;
+	private final File file;
+	// member name -> member
+	private final Map<String, Member> members = new THashMap<String, Member>();
+	private final List<String> memberNames = new ArrayList<String>();
+
+	/**
+	 * Location of a member in the archive
+	 */
+	private static class Member {
+		private final long offset;
+		private final long size;
+		private final boolean deflated;
+
+		private Member(long offset, long size, boolean deflated) {
+			this.offset = offset;
+			this.size = size;
+			this.deflated = deflated;
+		}
+	}
+
+	private PDBArchive(File file) {
+		this.file = file;
+		if (!loadIndex()) {
+			scan();
+			writeIndex();
+		}
+	}
+
+	/**
+	 * Gets an archive, scanning it or reading its index the first time
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static synchronized PDBArchive getInstance(File file) {
+		final File absoluteFile = file.getAbsoluteFile();
+		if (!instances.containsKey(absoluteFile)) {
+			instances.put(absoluteFile, new PDBArchive(absoluteFile));
+		}
+		return instances.get(absoluteFile);
+	}
+
+	/**
+	 * @param fileName
+	 * @return true if the file is a zip or tar archive by its extension
+	 */
+	public static boolean isArchive(String fileName) {
+		final String name = fileName.toLowerCase();
+		return name.endsWith(ZIP_EXTENSION) || name.endsWith(TAR_EXTENSION);
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file is a virtual file of a member of an archive
+	 */
+	public static boolean isMember(File file) {
+		return file.getPath().contains(MEMBER_SEPARATOR);
+	}
+
+	/**
+	 * @param memberFile virtual file of a member
+	 * @return the archive file
+	 */
+	public static File getArchiveFile(File memberFile) {
+		final String path = memberFile.getPath();
+		return new File(path.substring(0, path.indexOf(MEMBER_SEPARATOR)));
+	}
+
+	private static String getMemberName(File memberFile) {
+		final String path = memberFile.getPath();
+		return path.substring(path.indexOf(MEMBER_SEPARATOR) + MEMBER_SEPARATOR.length());
+	}
+
+	/**
+	 * Opens a stream over the content of a member, as it is stored in the
+	 * archive (a member compressed with gzip is not decompressed). The caller
+	 * has to close it.
+	 *
+	 * @param memberFile virtual file of the member
+	 * @return
+	 * @throws IOException if the member is not in the archive or cannot be read
+	 */
+	public static InputStream openMember(File memberFile) throws IOException {
+		return getInstance(getArchiveFile(memberFile)).getInputStream(getMemberName(memberFile));
+	}
+
+	/**
+	 * Copies a member to a temporary file, for the tools that can only read
+	 * files, as JMol. The caller has to delete it when it is not needed (see
+	 * {@link PDBParser#close()}), and otherwise it is deleted on exit
+	 *
+	 * @param memberFile virtual file of the member
+	 * @return the temporary file, with the same extension as the member
+	 * @throws IOException
+	 */
+	public static File extractToTempFile(File memberFile) throws IOException {
+		final String memberName = getMemberName(memberFile);
+		final String name = memberName.substring(memberName.lastIndexOf('/') + 1);
+		final File tmpFile = File.createTempFile("pdb", "_" + name);
+		tmpFile.deleteOnExit();
+		final InputStream is = openMember(memberFile);
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(tmpFile);
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int read = 0;
+			while ((read = is.read(buffer)) != -1) {
+				os.write(buffer, 0, read);
+			}
+		} finally {
+			is.close();
+			if (os != null) {
+				os.close();
+			}
+		}
+		return tmpFile;
+	}
+
+	/**
+	 * Gets the file of the binary cache of a member, in a folder next to the
+	 * archive, that is emptied when the archive changes
+	 *
+	 * @param memberFile virtual file of the member
+	 * @param suffix     added to the name of the member
+	 * @return
+	 */
+	public static File getBinaryCacheFile(File memberFile, String suffix) {
+		final File folder = getBinaryCacheFolder(getArchiveFile(memberFile));
+		if (!folder.exists()) {
+			folder.mkdirs();
+		}
+		return new File(folder, getMemberName(memberFile).replace('/', '_') + suffix);
+	}
+
+	private static File getBinaryCacheFolder(File archiveFile) {
+		return new File(archiveFile.getAbsolutePath() + BINARY_CACHE_FOLDER_EXTENSION);
+	}
+
+	/**
+	 * @return the names of the members of the archive, in the order they are
+	 *         stored
+	 */
+	public List<String> getMemberNames() {
+		return Collections.unmodifiableList(memberNames);
+	}
+
+	/**
+	 * @param memberName
+	 * @return the virtual file of a member
+	 */
+	public File getMemberFile(String memberName) {
+		return new File(file.getPath() + MEMBER_SEPARATOR + memberName);
+	}
+
+	/**
+	 * Opens a stream over the content of a member, as it is stored in the
+	 * archive. The caller has to close it.
+	 *
+	 * @param memberName
+	 * @return
+	 * @throws FileNotFoundException if the member is not in the archive
+	 * @throws IOException           if it cannot be read
+	 */
+	public InputStream getInputStream(String memberName) throws IOException {
+		final Member member = members.get(memberName);
+		if (member == null) {
+			throw new FileNotFoundException(memberName + " not found in " + file);
+		}
+		final InputStream is = new MemberInputStream(file, member.offset, member.size);
+		if (!member.deflated) {
+			return is;
+		}
+		final Inflater inflater = new Inflater(true);
+		return new InflaterInputStream(is, inflater, BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				inflater.end();
+			}
+		};
+	}
+
+	private File getIndexFile() {
+		return new File(file.getAbsolutePath() + INDEX_EXTENSION);
+	}
+
+	/**
+	 * Reads the index of the archive if it is up to date
+	 *
+	 * @return true if read
+	 */
+	private boolean loadIndex() {
+		final File indexFile = getIndexFile();
+		if (!indexFile.exists()) {
+			return false;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8),
+					BUFFER_SIZE);
+			// the first line is the size and date of the archive
+			final String header = reader.readLine();
+			if (header == null || !header.equals(getIndexHeader())) {
+				return false;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] split = line.split(SEPARATOR);
+				if (split.length == 4) {
+					addMember(split[0], Long.valueOf(split[1]), Long.valueOf(split[2]), "1".equals(split[3]));
+				}
+			}
+			log.info(members.size() + " members in the index of " + file);
+			return true;
+		} catch (final IOException e) {
+			log.warn("Error reading index " + indexFile + ": " + e.getMessage());
+		} catch (final NumberFormatException e) {
+			log.warn("Invalid index " + indexFile + ": " + e.getMessage());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		members.clear();
+		memberNames.clear();
+		return false;
+	}
+
+	private String getIndexHeader() {
+		return file.length() + SEPARATOR + file.lastModified();
+	}
+
+	private void writeIndex() {
+		final File indexFile = getIndexFile();
+		final File tmpFile = new File(indexFile.getAbsolutePath() + ".tmp");
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8),
+					BUFFER_SIZE);
+			writer.write(getIndexHeader());
+			writer.newLine();
+			for (final String memberName : memberNames) {
+				final Member member = members.get(memberName);
+				writer.write(memberName + SEPARATOR + member.offset + SEPARATOR + member.size + SEPARATOR
+						+ (member.deflated ? "1" : "0"));
+				writer.newLine();
+			}
+			writer.close();
+			writer = null;
+			if (indexFile.exists()) {
+				indexFile.delete();
+			}
+			if (!tmpFile.renameTo(indexFile)) {
+				log.warn("Error saving index " + indexFile);
+			}
+		} catch (final IOException e) {
+			// the archive may be in a read only folder
+			log.warn("Error writing index " + indexFile + ": " + e.getMessage());
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Scans the archive to find its members. The binary caches of the members
+	 * of a previous version of the archive are removed
+	 */
+	private void scan() {
+		final long t1 = System.currentTimeMillis();
+		final File[] binaryCaches = getBinaryCacheFolder(file).listFiles();
+		if (binaryCaches != null) {
+			for (final File binaryCache : binaryCaches) {
+				binaryCache.delete();
+			}
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			if (file.getName().toLowerCase().endsWith(ZIP_EXTENSION)) {
+				scanZip(raf.getChannel());
+			} else {
+				scanTar(raf.getChannel());
+			}
+			log.info(members.size() + " members found in " + file + " in " + (System.currentTimeMillis() - t1) + "ms");
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error scanning archive " + file + ": " + e.getMessage());
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the headers of a tar file, that precede each member, skipping the
+	 * content of the members
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	private void scanTar(FileChannel channel) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(TAR_BLOCK_SIZE);
+		long position = 0;
+		// name of the next member, from a GNU long name entry
+		String longName = null;
+		// attributes of the next member, from a pax extended header
+		Map<String, String> paxAttributes = Collections.emptyMap();
+		while (position + TAR_BLOCK_SIZE <= channel.size()) {
+			header.clear();
+			readFully(channel, header, position);
+			if (header.get(0) == 0) {
+				// end of archive
+				break;
+			}
+			long size = parseOctal(header, 124, 12);
+			final char type = (char) header.get(156);
+			final long dataOffset = position + TAR_BLOCK_SIZE;
+			if (type == 'L') {
+				final ByteBuffer name = ByteBuffer.allocate((int) size);
+				readFully(channel, name, dataOffset);
+				longName = getString(name, 0, (int) size);
+			} else if (type == 'x') {
+				final ByteBuffer attributes = ByteBuffer.allocate((int) size);
+				readFully(channel, attributes, dataOffset);
+				paxAttributes = parsePaxHeader(attributes);
+			} else if (type == 'g') {
+				// global pax header, whose attributes (as the owner or the
+				// dates) don't change the names nor the sizes of the members
+			} else {
+				if (paxAttributes.containsKey("size")) {
+					size = parsePaxSize(paxAttributes.get("size"));
+				}
+				if (type == '0' || type == 0) {
+					String name = paxAttributes.get("path");
+					if (name == null) {
+						name = longName;
+					}
+					if (name == null) {
+						name = getString(header, 0, 100);
+						// ustar prefix of long names
+						final String prefix = getString(header, 345, 155);
+						if ("ustar".equals(getString(header, 257, 5)) && !prefix.isEmpty()) {
+							name = prefix + "/" + name;
+						}
+					}
+					addMember(name, dataOffset, size, false);
+				}
+				longName = null;
+				paxAttributes = Collections.emptyMap();
+			}
+			position = dataOffset + (size + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE * TAR_BLOCK_SIZE;
+		}
+	}
+
+	/**
+	 * Parses the records of a pax extended header, each one as "&lt;length&gt;
+	 * &lt;key&gt;=&lt;value&gt;\n", where the length is the one of the whole
+	 * record
+	 *
+	 * @param data
+	 * @return the values by key
+	 * @throws IOException if a record is not valid
+	 */
+	private static Map<String, String> parsePaxHeader(ByteBuffer data) throws IOException {
+		final byte[] bytes = data.array();
+		final Map<String, String> ret = new THashMap<String, String>();
+		int position = 0;
+		while (position < bytes.length && bytes[position] != 0) {
+			int length = 0;
+			int i = position;
+			while (i < bytes.length && bytes[i] >= '0' && bytes[i] <= '9') {
+				length = length * 10 + bytes[i++] - '0';
+			}
+			final int end = position + length;
+			if (length == 0 || end > bytes.length || i >= end || bytes[i] != ' ' || bytes[end - 1] != '\n') {
+				throw new IOException("Invalid pax extended header");
+			}
+			final String record = new String(bytes, i + 1, end - i - 2, StandardCharsets.UTF_8);
+			final int equals = record.indexOf('=');
+			if (equals == -1) {
+				throw new IOException("Invalid pax extended header record " + record);
+			}
+			ret.put(record.substring(0, equals), record.substring(equals + 1));
+			position = end;
+		}
+		return ret;
+	}
+
+	private static long parsePaxSize(String size) throws IOException {
+		try {
+			return Long.valueOf(size);
+		} catch (final NumberFormatException e) {
+			throw new IOException("Invalid size in pax extended header: " + size);
+		}
+	}
+
+	/**
+	 * Reads the central directory of a zip file, at its end, and the local
+	 * header of each member to find where its data starts
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	private void scanZip(FileChannel channel) throws IOException {
+		// the end record is followed by a comment of up to 64KB
+		final int tailSize = (int) Math.min(channel.size(), ZIP_END_SIZE + 0xFFFF);
+		final ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, tail, channel.size() - tailSize);
+		int end = -1;
+		for (int i = tailSize - ZIP_END_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == ZIP_END_SIGNATURE) {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			throw new IOException("End of central directory not found");
+		}
+		long numEntries = tail.getShort(end + 10) & 0xFFFF;
+		long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+		long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+		// the ZIP64 end record is located by a locator just before the end
+		// record
+		final long locatorPosition = channel.size() - tailSize + end - ZIP64_LOCATOR_SIZE;
+		final ByteBuffer locator = ByteBuffer.allocate(ZIP64_LOCATOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		if (locatorPosition >= 0) {
+			readFully(channel, locator, locatorPosition);
+		}
+		if (locatorPosition >= 0 && locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+			final ByteBuffer zip64End = ByteBuffer.allocate(ZIP64_END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, zip64End, locator.getLong(8));
+			if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+				throw new IOException("ZIP64 end of central directory not found");
+			}
+			numEntries = zip64End.getLong(32);
+			directorySize = zip64End.getLong(40);
+			directoryOffset = zip64End.getLong(48);
+		} else if (directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC) {
+			throw new IOException("ZIP64 end of central directory locator not found");
+		}
+		if (directorySize > Integer.MAX_VALUE) {
+			throw new IOException("Central directory of " + directorySize + " bytes is too large");
+		}
+		final ByteBuffer directory = ByteBuffer.allocate((int) directorySize).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, directory, directoryOffset);
+		final ByteBuffer localHeader = ByteBuffer.allocate(ZIP_LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		int pos = 0;
+		for (long i = 0; i < numEntries; i++) {
+			if (directory.getInt(pos) != ZIP_CENTRAL_HEADER_SIGNATURE) {
+				throw new IOException("Invalid central directory entry " + i);
+			}
+			final int method = directory.getShort(pos + 10) & 0xFFFF;
+			long compressedSize = directory.getInt(pos + 20) & 0xFFFFFFFFL;
+			final long uncompressedSize = directory.getInt(pos + 24) & 0xFFFFFFFFL;
+			final int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+			final int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+			final int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+			long localHeaderOffset = directory.getInt(pos + 42) & 0xFFFFFFFFL;
+			final String name = getString(directory, pos + ZIP_CENTRAL_HEADER_SIZE, nameLength);
+			if (compressedSize == ZIP64_MAGIC || uncompressedSize == ZIP64_MAGIC
+					|| localHeaderOffset == ZIP64_MAGIC) {
+				// the ZIP64 extra field has the 8 bytes values of the fields
+				// that didn't fit, in this order
+				int field = findZip64ExtraField(directory, pos + ZIP_CENTRAL_HEADER_SIZE + nameLength, extraLength);
+				if (field == -1) {
+					throw new IOException("ZIP64 extra field of " + name + " not found");
+				}
+				if (uncompressedSize == ZIP64_MAGIC) {
+					field += 8;
+				}
+				if (compressedSize == ZIP64_MAGIC) {
+					compressedSize = directory.getLong(field);
+					field += 8;
+				}
+				if (localHeaderOffset == ZIP64_MAGIC) {
+					localHeaderOffset = directory.getLong(field);
+				}
+			}
+			pos += ZIP_CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+			if (name.endsWith("/")) {
+				// folder
+				continue;
+			}
+			// the lengths of the local header can be different from the ones
+			// of the central directory
+			localHeader.clear();
+			readFully(channel, localHeader, localHeaderOffset);
+			if (localHeader.getInt(0) != ZIP_LOCAL_HEADER_SIGNATURE) {
+				throw new IOException("Invalid local header of " + name);
+			}
+			final long dataOffset = localHeaderOffset + ZIP_LOCAL_HEADER_SIZE
+					+ (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF);
+			addMember(name, dataOffset, compressedSize, method == ZIP_DEFLATED);
+		}
+	}
+
+	/**
+	 * @param directory
+	 * @param offset    start of the extra fields of a central directory entry
+	 * @param length    length of the extra fields
+	 * @return the position of the data of the ZIP64 extra field or -1 if not
+	 *         found
+	 */
+	private static int findZip64ExtraField(ByteBuffer directory, int offset, int length) {
+		int pos = offset;
+		while (pos + 4 <= offset + length) {
+			final int fieldLength = directory.getShort(pos + 2) & 0xFFFF;
+			if (directory.getShort(pos) == ZIP64_EXTRA_FIELD_ID) {
+				return pos + 4;
+			}
+			pos += 4 + fieldLength;
+		}
+		return -1;
+	}
+
+	private void addMember(String name, long offset, long size, boolean deflated) {
+		if (members.put(name, new Member(offset, size, deflated)) == null) {
+			memberNames.add(name);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position + buffer.position());
+			if (read == -1) {
+				throw new IOException("Unexpected end of archive");
+			}
+		}
+	}
+
+	/**
+	 * @return the ASCII string in a field, until the first 0
+	 */
+	private static String getString(ByteBuffer buffer, int offset, int length) {
+		final StringBuilder sb = new StringBuilder(length);
+		for (int i = offset; i < offset + length; i++) {
+			final byte b = buffer.get(i);
+			if (b == 0) {
+				break;
+			}
+			sb.append((char) (b & 0xFF));
+		}
+		return sb.toString();
+	}
+
+	private static long parseOctal(ByteBuffer buffer, int offset, int length) throws IOException {
+		if ((buffer.get(offset) & 0x80) != 0) {
+			// base-256 encoding of large sizes
+			long value = buffer.get(offset) & 0x7F;
+			for (int i = offset + 1; i < offset + length; i++) {
+				value = value << 8 | buffer.get(i) & 0xFF;
+			}
+			return value;
+		}
+		long value = 0;
+		for (int i = offset; i < offset + length; i++) {
+			final byte b = buffer.get(i);
+			if (b == 0 || b == ' ') {
+				if (value > 0) {
+					break;
+				}
+				continue;
+			}
+			if (b < '0' || b > '7') {
+				throw new IOException("Invalid tar header");
+			}
+			value = value * 8 + b - '0';
+		}
+		return value;
+	}
+
+	/**
+	 * Stream over a region of a file, read with positional reads
+	 */
+	private static class MemberInputStream extends InputStream {
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+
+		private MemberInputStream(File file, long offset, long size) throws IOException {
+			raf = new RandomAccessFile(file, "r");
+			channel = raf.getChannel();
+			position = offset;
+			end = offset + size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			final int toRead = (int) Math.min(len, end - position);
+			final int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+			if (read == -1) {
+				return -1;
+			}
+			position += read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) {
+			final long skipped = Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.pdb.model.AtomTable;
+import edu.scripps.yates.pdb.model.ChainSequence;
+import edu.scripps.yates.pdb.model.DBRef;
+import edu.scripps.yates.pdb.util.BinaryUtil;
+
+/**
+ * Pre-parsed content of a structure file, stored in a binary sidecar file next
+ * to it (see {@link PDBFileManager#getBinaryCacheFile(File, AtomSelection)}),
+ * so that the text of the structure is parsed only once. It is only a format
+ * that is faster to read than the text: the structure takes the same heap
+ * memory whether it is read from the text or from the sidecar, and the
+ * processes that read the same structure don't share it.<br>
+ * It contains the experimental method, the mutation flag, the DBRefs, the
+ * sequences of the chains and the columns of the {@link AtomTable}. The
+ * sidecar is read through a memory map, loading each column with a bulk copy,
+ * and it is discarded if the size or the modification time of the structure
+ * file changed since it was written, or if its atoms were read with a
+ * different {@link ModelSelection}. Each {@link AtomSelection} has its own
+ * sidecar, that is also checked to contain the atoms of that selection.<br>
+ * The columns are copied to the heap instead of being backed by the map
+ * because the map is released only when it is garbage collected, and while it
+ * is alive the sidecar cannot be deleted nor replaced in some platforms (see
+ * {@link #write(File, File)}). The arrays also keep the accessors of the
+ * {@link AtomTable}, that are in the inner loops of the distance and surface
+ * calculations, as plain array reads.
+ *
+ * @author Salva
+ *
+ */
+public class PDBBinaryCache {
+	private final static Logger log = Logger.getLogger(PDBBinaryCache.class);
+	// "PDBC"
+	private final static int MAGIC = 0x50444243;
+	private final static int VERSION = 7;
+	private final static int BUFFER_SIZE = 64 * 1024;
+	private final AtomTable atomTable;
+	private final List<ChainSequence> chainSequences;
+	private final List<DBRef> dbRefs;
+	private final String experimentalMethod;
+	private final boolean mutation;
+	private final ModelSelection modelSelection;
+	private final AtomSelection atomSelection;
+
+	public PDBBinaryCache(AtomTable atomTable, List<ChainSequence> chainSequences, List<DBRef> dbRefs,
+			String experimentalMethod, boolean mutation, ModelSelection modelSelection, AtomSelection atomSelection) {
+		this.atomTable = atomTable;
+		this.chainSequences = chainSequences;
+		this.dbRefs = dbRefs;
+		this.experimentalMethod = experimentalMethod;
+		this.mutation = mutation;
+		this.modelSelection = modelSelection;
+		this.atomSelection = atomSelection;
+	}
+
+	/**
+	 * Reads the sidecar of a structure file
+	 *
+	 * @param cacheFile
+	 * @param sourceFile     the structure file
+	 * @param modelSelection the models that have to be in the sidecar
+	 * @param atomSelection  the atoms that have to be in the sidecar
+	 * @return the content of the sidecar or null if it doesn't exist, it is not
+	 *         valid, it is older than the structure file or it contains other
+	 *         models or atoms
+	 */
+	public static PDBBinaryCache read(File cacheFile, File sourceFile, ModelSelection modelSelection,
+			AtomSelection atomSelection) {
+		return readSidecar(cacheFile, sourceFile, modelSelection, atomSelection);
+	}
+
+	/**
+	 * Reads only the header information of the sidecar of a structure file, that
+	 * is, the experimental method, the mutation flag and the DBRefs
+	 *
+	 * @param cacheFile
+	 * @param sourceFile the structure file
+	 * @return the content of the sidecar, without chain sequences nor atoms, or
+	 *         null if it doesn't exist, it is not valid or it is older than the
+	 *         structure file
+	 */
+	public static PDBBinaryCache readHeader(File cacheFile, File sourceFile) {
+		return readSidecar(cacheFile, sourceFile, null, null);
+	}
+
+	/**
+	 * @return the file whose size and date tell whether the cache is up to date,
+	 *         that for the members of the archives is the archive
+	 */
+	static File getStampFile(File sourceFile) {
+		if (PDBArchive.isMember(sourceFile)) {
+			return PDBArchive.getArchiveFile(sourceFile);
+		}
+		return sourceFile;
+	}
+
+	/**
+	 * @param modelSelection if null, only the header information is read
+	 */
+	private static PDBBinaryCache readSidecar(File cacheFile, File sourceFile, ModelSelection modelSelection,
+			AtomSelection atomSelection) {
+		if (!cacheFile.exists()) {
+			return null;
+		}
+		final long t1 = System.currentTimeMillis();
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(cacheFile, "r");
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+				log.debug("Ignoring binary cache " + cacheFile + " with a different format");
+				return null;
+			}
+			final File stampFile = getStampFile(sourceFile);
+			if (in.getLong() != stampFile.length() || in.getLong() != stampFile.lastModified()) {
+				log.debug("Ignoring binary cache " + cacheFile + " older than " + sourceFile);
+				return null;
+			}
+			final String experimentalMethod = BinaryUtil.readString(in);
+			final boolean mutation = in.get() != 0;
+			final int numDBRefs = in.getInt();
+			final List<DBRef> dbRefs = new ArrayList<DBRef>(numDBRefs);
+			for (int i = 0; i < numDBRefs; i++) {
+				dbRefs.add(new DBRef(BinaryUtil.readString(in), BinaryUtil.readString(in), BinaryUtil.readString(in),
+						in.getInt(), in.getInt()));
+			}
+			final ModelSelection storedModelSelection = readModelSelection(in);
+			final AtomSelection storedAtomSelection = AtomSelection.read(in);
+			if (modelSelection == null) {
+				return new PDBBinaryCache(null, null, dbRefs, experimentalMethod, mutation, storedModelSelection,
+						storedAtomSelection);
+			}
+			if (!modelSelection.equals(storedModelSelection)) {
+				log.debug("Ignoring binary cache " + cacheFile + " with models " + storedModelSelection + " instead of "
+						+ modelSelection);
+				return null;
+			}
+			if (!atomSelection.equals(storedAtomSelection)) {
+				log.debug("Ignoring binary cache " + cacheFile + " with atoms " + storedAtomSelection + " instead of "
+						+ atomSelection);
+				return null;
+			}
+			final int numChains = in.getInt();
+			final List<ChainSequence> chainSequences = new ArrayList<ChainSequence>(numChains);
+			for (int i = 0; i < numChains; i++) {
+				chainSequences.add(ChainSequence.read(in));
+			}
+			final AtomTable atomTable = AtomTable.read(in);
+			log.debug(cacheFile.getName() + " read in " + (System.currentTimeMillis() - t1) + "ms");
+			return new PDBBinaryCache(atomTable, chainSequences, dbRefs, experimentalMethod, mutation, modelSelection,
+					atomSelection);
+		} catch (final IOException e) {
+			log.warn("Error reading binary cache " + cacheFile + ": " + e.getMessage());
+		} catch (final BufferUnderflowException e) {
+			log.warn("Binary cache " + cacheFile + " is truncated");
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return null;
+	}
+
+	private static ModelSelection readModelSelection(ByteBuffer in) {
+		final ModelSelection.Policy policy = ModelSelection.Policy.values()[in.getInt()];
+		final int modelNumber = in.getInt();
+		switch (policy) {
+		case FIRST:
+			return ModelSelection.FIRST;
+		case ALL:
+			return ModelSelection.ALL;
+		default:
+			return ModelSelection.model(modelNumber);
+		}
+	}
+
+	/**
+	 * Writes the sidecar of a structure file. It is written to a temporary file
+	 * that is renamed at the end, so that other processes never read a partial
+	 * sidecar
+	 *
+	 * @param cacheFile
+	 * @param sourceFile the structure file
+	 * @return true if it was written
+	 */
+	public boolean write(File cacheFile, File sourceFile) {
+		final long t1 = System.currentTimeMillis();
+		DataOutputStream out = null;
+		File tmpFile = null;
+		try {
+			tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			final File stampFile = getStampFile(sourceFile);
+			out.writeLong(stampFile.length());
+			out.writeLong(stampFile.lastModified());
+			BinaryUtil.writeString(out, experimentalMethod);
+			out.writeBoolean(mutation);
+			out.writeInt(dbRefs.size());
+			for (final DBRef dbRef : dbRefs) {
+				BinaryUtil.writeString(out, dbRef.getPdbID());
+				BinaryUtil.writeString(out, dbRef.getChainID());
+				BinaryUtil.writeString(out, dbRef.getUniprotID());
+				out.writeInt(dbRef.getDbSeqBegin());
+				out.writeInt(dbRef.getDbSeqEnd());
+			}
+			out.writeInt(modelSelection.getPolicy().ordinal());
+			out.writeInt(modelSelection.getModelNumber());
+			atomSelection.write(out);
+			out.writeInt(chainSequences.size());
+			for (final ChainSequence chainSequence : chainSequences) {
+				chainSequence.write(out);
+			}
+			atomTable.write(out);
+			out.close();
+			out = null;
+			if (cacheFile.exists()) {
+				cacheFile.delete();
+			}
+			if (!tmpFile.renameTo(cacheFile)) {
+				log.warn("Error saving binary cache " + cacheFile);
+				return false;
+			}
+			tmpFile = null;
+			log.debug(cacheFile.getName() + " written in " + (System.currentTimeMillis() - t1) + "ms");
+			return true;
+		} catch (final IOException e) {
+			log.warn("Error writing binary cache " + cacheFile + ": " + e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (tmpFile != null) {
+				tmpFile.delete();
+			}
+		}
+		return false;
+	}
+
+	public AtomTable getAtomTable() {
+		return atomTable;
+	}
+
+	public List<ChainSequence> getChainSequences() {
+		return chainSequences;
+	}
+
+	public List<DBRef> getDBRefs() {
+		return dbRefs;
+	}
+
+	public String getExperimentalMethod() {
+		return experimentalMethod;
+	}
+
+	public boolean getMutation() {
+		return mutation;
+	}
+
+	public ModelSelection getModelSelection() {
+		return modelSelection;
+	}
+
+	public AtomSelection getAtomSelection() {
+		return atomSelection;
+	}
+}
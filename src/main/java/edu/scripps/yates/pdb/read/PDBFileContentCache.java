@@ -0,0 +1,305 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Gives access to the content of the PDB files of the local repository,
+ * regardless of whether they are stored gzip compressed or not.<br>
+ * Plain files are mapped in memory. Compressed files are decompressed on
+ * demand, and the decompressed bytes of the most recently used ones are kept
+ * in a small LRU cache, limited by the total number of bytes in it. The
+ * members of the archives (see {@link PDBArchive}) are read as the compressed
+ * files, whether they are compressed or not.
+ *
+ * @author Salva
+ *
+ */
+public class PDBFileContentCache {
+	private final static Logger log = Logger.getLogger(PDBFileContentCache.class);
+	private final static int BUFFER_SIZE = 64 * 1024;
+	// expected ratio between the decompressed and the compressed size
+	private final static int EXPECTED_COMPRESSION_RATIO = 6;
+	private static long maxCacheSize = 64 * 1024 * 1024;
+	private static long cacheSize = 0;
+	private final static LinkedHashMap<String, ByteBuffer> cache = new LinkedHashMap<String, ByteBuffer>(16, 0.75f,
+			true);
+
+	/**
+	 * Gets the content of a file. If the file is gzip compressed, the returned
+	 * data is the decompressed content.
+	 *
+	 * @param file
+	 * @return a read only buffer with the content of the file
+	 * @throws IOException
+	 */
+	public static ByteBuffer getContent(File file) throws IOException {
+		if (!PDBArchive.isMember(file) && !isGZipped(file)) {
+			return map(file);
+		}
+		final String key = getKey(file);
+		synchronized (cache) {
+			final ByteBuffer cached = cache.get(key);
+			if (cached != null) {
+				return cached.duplicate();
+			}
+		}
+		final ByteBuffer data = decompress(file);
+		synchronized (cache) {
+			if (data.capacity() <= maxCacheSize && !cache.containsKey(key)) {
+				cache.put(key, data);
+				cacheSize += data.capacity();
+				evict();
+			}
+		}
+		return data.duplicate();
+	}
+
+	/**
+	 * Gets the beginning of the content of a file, until the first line that
+	 * starts with any of the provided prefixes (not included). The rest of the
+	 * file is not read, and if it is gzip compressed, only that part is
+	 * decompressed.
+	 *
+	 * @param file
+	 * @param stopLinePrefixes
+	 * @return a read only buffer with the beginning of the content of the file
+	 * @throws IOException
+	 */
+	public static ByteBuffer getContentUntil(File file, String... stopLinePrefixes) throws IOException {
+		if (!PDBArchive.isMember(file) && !isGZipped(file)) {
+			return getPrefix(map(file), stopLinePrefixes);
+		}
+		synchronized (cache) {
+			final ByteBuffer cached = cache.get(getKey(file));
+			if (cached != null) {
+				return getPrefix(cached.duplicate(), stopLinePrefixes);
+			}
+		}
+		final long t1 = System.currentTimeMillis();
+		InputStream is = null;
+		try {
+			is = new BufferedInputStream(getInputStream(file), BUFFER_SIZE);
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream(BUFFER_SIZE);
+			final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+			int b = 0;
+			while (b != -1) {
+				b = is.read();
+				if (b != -1) {
+					line.write(b);
+				}
+				if (b == '\n' || b == -1) {
+					final byte[] bytes = line.toByteArray();
+					if (startsWithAny(ByteBuffer.wrap(bytes), 0, stopLinePrefixes)) {
+						break;
+					}
+					baos.write(bytes);
+					line.reset();
+				}
+			}
+			log.debug(baos.size() + " bytes of " + file.getName() + " decompressed in "
+					+ (System.currentTimeMillis() - t1) + "ms");
+			return ByteBuffer.wrap(baos.toByteArray()).asReadOnlyBuffer();
+		} finally {
+			if (is != null) {
+				is.close();
+			}
+		}
+	}
+
+	private static String getKey(File file) {
+		if (PDBArchive.isMember(file)) {
+			// the members change with their archive
+			return file.getAbsolutePath() + "_" + PDBArchive.getArchiveFile(file).lastModified();
+		}
+		return file.getAbsolutePath() + "_" + file.lastModified();
+	}
+
+	private static ByteBuffer getPrefix(ByteBuffer data, String... stopLinePrefixes) {
+		int lineStart = 0;
+		final int limit = data.limit();
+		while (lineStart < limit && !startsWithAny(data, lineStart, stopLinePrefixes)) {
+			while (lineStart < limit && data.get(lineStart) != '\n') {
+				lineStart++;
+			}
+			lineStart++;
+		}
+		final ByteBuffer ret = data.duplicate();
+		ret.limit(Math.min(lineStart, limit));
+		return ret.slice();
+	}
+
+	private static boolean startsWithAny(ByteBuffer data, int offset, String... prefixes) {
+		for (final String prefix : prefixes) {
+			if (offset + prefix.length() <= data.limit()) {
+				boolean matches = true;
+				for (int i = 0; i < prefix.length(); i++) {
+					if (data.get(offset + i) != prefix.charAt(i)) {
+						matches = false;
+						break;
+					}
+				}
+				if (matches) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the least recently used entries until the size of the cache is
+	 * under the maximum. Must be called holding the lock of the cache
+	 */
+	private static void evict() {
+		final Iterator<Map.Entry<String, ByteBuffer>> iterator = cache.entrySet().iterator();
+		while (cacheSize > maxCacheSize && iterator.hasNext()) {
+			cacheSize -= iterator.next().getValue().capacity();
+			iterator.remove();
+		}
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			if (raf != null) {
+				// the mapping remains valid after closing the channel
+				raf.close();
+			}
+		}
+	}
+
+	private static ByteBuffer decompress(File file) throws IOException {
+		final long t1 = System.currentTimeMillis();
+		InputStream is = null;
+		try {
+			is = getInputStream(file);
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream(
+					(int) Math.min(Integer.MAX_VALUE - 8,
+							Math.max(BUFFER_SIZE, file.length() * EXPECTED_COMPRESSION_RATIO)));
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int read = 0;
+			while ((read = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, read);
+			}
+			log.debug(file.getName() + " decompressed in " + (System.currentTimeMillis() - t1) + "ms");
+			return ByteBuffer.wrap(baos.toByteArray()).asReadOnlyBuffer();
+		} finally {
+			if (is != null) {
+				is.close();
+			}
+		}
+	}
+
+	/**
+	 * Opens a stream over the content of a file, decompressing it if it is gzip
+	 * compressed. The caller has to close it.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream getInputStream(File file) throws IOException {
+		if (isGZipped(file)) {
+			return new GZIPInputStream(openFile(file), BUFFER_SIZE);
+		}
+		return new BufferedInputStream(openFile(file), BUFFER_SIZE);
+	}
+
+	/**
+	 * Gets a fingerprint of the content of a file, as the CRC32 of its
+	 * decompressed content, so that it doesn't change if the file is only
+	 * compressed or decompressed, but it does if the entry is revised
+	 *
+	 * @param file
+	 * @return the fingerprint as an hexadecimal string
+	 * @throws IOException
+	 */
+	public static String getFingerprint(File file) throws IOException {
+		final CRC32 crc = new CRC32();
+		final InputStream is = getInputStream(file);
+		try {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+		return String.format("%08x", crc.getValue());
+	}
+
+	/**
+	 * Opens a file or a member of an archive as it is stored
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static InputStream openFile(File file) throws IOException {
+		if (PDBArchive.isMember(file)) {
+			return PDBArchive.openMember(file);
+		}
+		return new FileInputStream(file);
+	}
+
+	/**
+	 * Checks whether a file is gzip compressed by looking at its first two bytes
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isGZipped(File file) throws IOException {
+		final InputStream is = openFile(file);
+		try {
+			return is.read() == (GZIPInputStream.GZIP_MAGIC & 0xFF)
+					&& is.read() == (GZIPInputStream.GZIP_MAGIC >> 8 & 0xFF);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Sets the maximum number of decompressed bytes kept in memory. 0 disables
+	 * the cache.
+	 *
+	 * @param maxCacheSize
+	 */
+	public static void setMaxCacheSize(long maxCacheSize) {
+		synchronized (cache) {
+			PDBFileContentCache.maxCacheSize = maxCacheSize;
+			evict();
+		}
+	}
+
+	public static long getMaxCacheSize() {
+		return maxCacheSize;
+	}
+
+	public static void clear() {
+		synchronized (cache) {
+			cache.clear();
+			cacheSize = 0;
+		}
+	}
+}
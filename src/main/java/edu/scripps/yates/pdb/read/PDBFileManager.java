@@ -1,17 +1,69 @@
 package edu.scripps.yates.pdb.read;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
 import gnu.trove.map.hash.THashMap;
+import gnu.trove.set.hash.THashSet;
 
+/**
+ * Local repository of structure files.<br>
+ * Entries are stored in subfolders named by the two middle characters of
+ * their IDs, as in the wwPDB archive (1abc is stored in the folder ab), so
+ * that no folder gets too large. A local mirror of the wwPDB archive
+ * (pdbXXXX.ent.gz and XXXX.cif.gz files) can be used as it is, and files of
+ * the previous flat layout are also found.<br>
+ * The files available in the repository are listed in a manifest file that
+ * is read once when the repository is opened, so that finding the file of an
+ * entry doesn't require listing any folder. If there is no manifest, it is
+ * created by listing the folders of the repository. The lookups only use the
+ * manifest in memory, without accessing the file system: a file of the
+ * manifest that was removed by other process fails when it is read, and it is
+ * then removed from the manifest (see {@link #removeMissingFile(String, File)}),
+ * and the files added by other processes are found after
+ * {@link #rebuildManifest()}.<br>
+ * Zip and uncompressed tar archives in the repository, as the bulk archives
+ * of the wwPDB, are read without extracting them (see {@link PDBArchive}): the
+ * manifest lists the archive, and its members are served as virtual files.
+ * Files outside the archives have preference over the members.
+ *
+ * @author Salva
+ *
+ */
 public class PDBFileManager {
 	private static final Logger log = Logger.getLogger(PDBFileManager.class);
 	private static Map<File, PDBFileManager> instances = new THashMap<File, PDBFileManager>();
+	private static final String PDB_EXTENSION = ".pdb";
+	private static final String PDB_GZIP_EXTENSION = ".pdb.gz";
+	private static final String MMCIF_GZIP_EXTENSION = ".cif.gz";
+	private static final String BINARY_CACHE_EXTENSION = ".bin";
+	// files of the wwPDB archive, as pdb1abc.ent.gz
+	private static final String WWPDB_PREFIX = "pdb";
+	private static final String WWPDB_EXTENSION = ".ent";
+	private static final String WWPDB_GZIP_EXTENSION = ".ent.gz";
+	private static final String MANIFEST_FILE_NAME = "pdb_manifest.txt";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static volatile boolean binaryCacheEnabled = true;
 	private final File parentPath;
+	// lower case pdbID -> path of the file relative to the parent path
+	private final Map<String, String> pdbFiles = new THashMap<String, String>();
+	private final Map<String, String> mmCIFFiles = new THashMap<String, String>();
+	// paths of the archives relative to the parent path
+	private final Set<String> archives = new THashSet<String>();
 
 	private PDBFileManager(File parentPath) {
 		if (!parentPath.isDirectory() && parentPath.isFile()) {
@@ -23,9 +75,10 @@ public class PDBFileManager {
 			}
 		}
 		this.parentPath = parentPath;
+		loadManifest();
 	}
 
-	public static PDBFileManager getInstance(File parentPath) {
+	public static synchronized PDBFileManager getInstance(File parentPath) {
 		if (!instances.containsKey(parentPath)) {
 			final PDBFileManager instance = new PDBFileManager(parentPath);
 			instances.put(parentPath, instance);
@@ -33,20 +86,187 @@ public class PDBFileManager {
 		return instances.get(parentPath);
 	}
 
+	/**
+	 * Gets the file of a PDB entry in the local repository. Entries are stored
+	 * gzip compressed, although uncompressed files saved by previous versions or
+	 * in a mirror are also found.
+	 *
+	 * @param pdbID
+	 * @return the file or null if the entry is not in the repository
+	 * @throws IOException
+	 */
 	public File getPDBFile(String pdbID) throws IOException {
-		final File finalFile = getFile(pdbID);
-		if (finalFile.exists()) {
-			return finalFile;
-		} else {
-			return null;
+		return getFromManifest(pdbFiles, pdbID);
+	}
+
+	/**
+	 * Gets the mmCIF file of an entry in the local repository, for the entries
+	 * that are not available as PDB files
+	 *
+	 * @param pdbID
+	 * @return the file or null if the entry is not in the repository
+	 */
+	public File getMmCIFFile(String pdbID) {
+		return getFromManifest(mmCIFFiles, pdbID);
+	}
+
+	/**
+	 * @return the lower case IDs of the entries in the repository, as PDB or
+	 *         mmCIF files
+	 */
+	public synchronized Set<String> getPDBIDs() {
+		final Set<String> ret = new THashSet<String>(pdbFiles.keySet());
+		ret.addAll(mmCIFFiles.keySet());
+		return ret;
+	}
+
+	private synchronized File getFromManifest(Map<String, String> files, String pdbID) {
+		final String relativePath = files.get(pdbID.toLowerCase());
+		if (relativePath != null) {
+			return new File(parentPath, relativePath);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes from the manifest a file of an entry that doesn't exist anymore,
+	 * as it was removed by other process, so that the entry is retrieved again
+	 *
+	 * @param pdbID
+	 * @param file  the file that could not be read
+	 */
+	public synchronized void removeMissingFile(String pdbID, File file) {
+		final String id = pdbID.toLowerCase();
+		final boolean removedPDB = removeFile(pdbFiles, id, file);
+		final boolean removedMmCIF = removeFile(mmCIFFiles, id, file);
+		if (removedPDB || removedMmCIF) {
+			log.info(file + " is in the manifest of " + parentPath + " but it doesn't exist anymore");
+			writeManifest();
 		}
 	}
 
+	private boolean removeFile(Map<String, String> files, String id, File file) {
+		final String relativePath = files.get(id);
+		if (relativePath != null
+				&& new File(parentPath, relativePath).getAbsoluteFile().equals(file.getAbsoluteFile())) {
+			files.remove(id);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Saves a PDB file into the local repository, compressing it with gzip if it
+	 * is not already compressed
+	 *
+	 * @param pdbFile
+	 * @param pdbID
+	 * @return the file in the repository
+	 * @throws IOException
+	 */
 	public File savePDBFile(File pdbFile, String pdbID) throws IOException {
+		return saveFile(pdbFile, getFile(pdbID), pdbID, pdbFiles);
+	}
+
+	/**
+	 * Saves a mmCIF file into the local repository, compressing it with gzip if
+	 * it is not already compressed
+	 *
+	 * @param mmCIFFile
+	 * @param pdbID
+	 * @return the file in the repository
+	 * @throws IOException
+	 */
+	public File saveMmCIFFile(File mmCIFFile, String pdbID) throws IOException {
+		return saveFile(mmCIFFile, getMmCIFFileLocation(pdbID), pdbID, mmCIFFiles);
+	}
+
+	/**
+	 * Gets the location of a new PDB file of an entry in the repository, so
+	 * that it can be downloaded next to it and moved there, creating its folder
+	 * if needed. Once it is complete, it has to be added with
+	 * {@link #addPDBFile(String, File)}
+	 *
+	 * @param pdbID
+	 * @return the location or null if its folder could not be created
+	 */
+	public File getPDBFileDestination(String pdbID) {
+		return createFolder(getFile(pdbID));
+	}
+
+	/**
+	 * Gets the location of a new mmCIF file of an entry in the repository, so
+	 * that it can be downloaded next to it and moved there, creating its folder
+	 * if needed. Once it is complete, it has to be added with
+	 * {@link #addMmCIFFile(String, File)}
+	 *
+	 * @param pdbID
+	 * @return the location or null if its folder could not be created
+	 */
+	public File getMmCIFFileDestination(String pdbID) {
+		return createFolder(getMmCIFFileLocation(pdbID));
+	}
+
+	/**
+	 * Adds to the repository a compressed PDB file already written in its
+	 * location, got from {@link #getPDBFileDestination(String)}
+	 *
+	 * @param pdbID
+	 * @param pdbFile
+	 * @return the file
+	 */
+	public File addPDBFile(String pdbID, File pdbFile) {
+		addToManifest(pdbFiles, pdbID, getRelativePath(pdbFile));
+		return pdbFile;
+	}
+
+	/**
+	 * Adds to the repository a compressed mmCIF file already written in its
+	 * location, got from {@link #getMmCIFFileDestination(String)}
+	 *
+	 * @param pdbID
+	 * @param mmCIFFile
+	 * @return the file
+	 */
+	public File addMmCIFFile(String pdbID, File mmCIFFile) {
+		addToManifest(mmCIFFiles, pdbID, getRelativePath(mmCIFFile));
+		return mmCIFFile;
+	}
+
+	private static File createFolder(File file) {
+		final File folder = file.getParentFile();
+		if (!folder.exists() && !folder.mkdirs() && !folder.exists()) {
+			log.warn("Error creating folder " + folder.getAbsolutePath());
+			return null;
+		}
+		return file;
+	}
+
+	private File saveFile(File pdbFile, File finalFile, String pdbID, Map<String, String> files)
+			throws IOException {
 		if (pdbFile != null && pdbFile.exists() && pdbFile.isFile()) {
-			final File finalFile = getFile(pdbID);
-			pdbFile.renameTo(finalFile);
+			if (createFolder(finalFile) == null) {
+				return null;
+			}
+			if (PDBFileContentCache.isGZipped(pdbFile)) {
+				if (!pdbFile.renameTo(finalFile)) {
+					copy(pdbFile, finalFile, false);
+					pdbFile.delete();
+				}
+			} else {
+				// compress it to a temporary file in the same folder, so that the
+				// entry appears complete or not at all
+				final File tmpFile = new File(finalFile.getAbsolutePath() + ".tmp");
+				copy(pdbFile, tmpFile, true);
+				if (!tmpFile.renameTo(finalFile)) {
+					tmpFile.delete();
+					log.warn("Error during saving PDB file " + pdbID);
+					return null;
+				}
+				pdbFile.delete();
+			}
 			log.info("PDB file saved at: " + finalFile);
+			addToManifest(files, pdbID, getRelativePath(finalFile));
 			return finalFile;
 		} else {
 			log.warn("Error during saving PDB file " + pdbID);
@@ -54,8 +274,331 @@ public class PDBFileManager {
 		return null;
 	}
 
+	/**
+	 * Copies a file, closing both files even if the copy fails, in which case
+	 * the incomplete destination file is deleted
+	 *
+	 * @param from
+	 * @param to
+	 * @param gzip whether to compress the content written to the destination
+	 * @throws IOException
+	 */
+	private static void copy(File from, File to, boolean gzip) throws IOException {
+		boolean copied = false;
+		final InputStream is = new FileInputStream(from);
+		try {
+			final OutputStream fos = new FileOutputStream(to);
+			try {
+				final OutputStream os = gzip ? new GZIPOutputStream(fos, BUFFER_SIZE) : fos;
+				try {
+					final byte[] buffer = new byte[BUFFER_SIZE];
+					int read = 0;
+					while ((read = is.read(buffer)) != -1) {
+						os.write(buffer, 0, read);
+					}
+				} finally {
+					os.close();
+				}
+				copied = true;
+			} finally {
+				fos.close();
+			}
+		} finally {
+			is.close();
+			if (!copied) {
+				to.delete();
+			}
+		}
+	}
+
 	private File getFile(String pdbID) {
-		return new File(parentPath.getAbsolutePath() + File.separator + pdbID + ".pdb");
+		return new File(getShardFolder(pdbID), pdbID.toLowerCase() + PDB_GZIP_EXTENSION);
+	}
+
+	private File getMmCIFFileLocation(String pdbID) {
+		return new File(getShardFolder(pdbID), pdbID.toLowerCase() + MMCIF_GZIP_EXTENSION);
+	}
+
+	/**
+	 * @param pdbID
+	 * @return the folder of an entry, named by the two middle characters of its
+	 *         ID as in the wwPDB archive
+	 */
+	private File getShardFolder(String pdbID) {
+		if (pdbID.length() < 4) {
+			return parentPath;
+		}
+		return new File(parentPath, pdbID.substring(1, 3).toLowerCase());
+	}
+
+	private String getRelativePath(File file) {
+		final File folder = file.getParentFile();
+		if (folder.equals(parentPath)) {
+			return file.getName();
+		}
+		return folder.getName() + "/" + file.getName();
+	}
+
+	private File getManifestFile() {
+		return new File(parentPath, MANIFEST_FILE_NAME);
+	}
+
+	/**
+	 * Reads the manifest of the repository or, if it doesn't exist, creates it
+	 * by listing the folders of the repository. If the manifest has repeated
+	 * lines, it is rewritten without them
+	 */
+	private synchronized void loadManifest() {
+		final File manifestFile = getManifestFile();
+		if (!manifestFile.exists()) {
+			rebuildManifest();
+			return;
+		}
+		final long t1 = System.currentTimeMillis();
+		BufferedReader reader = null;
+		final Set<String> lines = new THashSet<String>();
+		int duplicates = 0;
+		try {
+			reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8), BUFFER_SIZE);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String relativePath = line.trim();
+				if ("".equals(relativePath)) {
+					continue;
+				}
+				if (lines.add(relativePath)) {
+					register(relativePath);
+				} else {
+					duplicates++;
+				}
+			}
+			log.info(pdbFiles.size() + " PDB and " + mmCIFFiles.size() + " mmCIF entries in the manifest of "
+					+ parentPath + " read in " + (System.currentTimeMillis() - t1) + "ms");
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error reading manifest " + manifestFile + ": " + e.getMessage());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		if (duplicates > 0) {
+			log.info("Compacting manifest of " + parentPath + " with " + duplicates + " repeated lines");
+			writeManifest();
+		}
+	}
+
+	/**
+	 * Lists the files of the repository again and rewrites its manifest. To be
+	 * called when files are added to the repository by other means, as when a
+	 * mirror is synchronized
+	 */
+	public synchronized void rebuildManifest() {
+		final long t1 = System.currentTimeMillis();
+		pdbFiles.clear();
+		mmCIFFiles.clear();
+		archives.clear();
+		final String[] names = parentPath.list();
+		if (names != null) {
+			for (final String name : names) {
+				// only the names of the shard folders have 2 characters
+				if (name.length() == 2) {
+					final String[] shardNames = new File(parentPath, name).list();
+					if (shardNames != null) {
+						for (final String shardName : shardNames) {
+							register(name + "/" + shardName);
+						}
+					}
+				} else {
+					register(name);
+				}
+			}
+		}
+		log.info(pdbFiles.size() + " PDB and " + mmCIFFiles.size() + " mmCIF entries found in " + parentPath + " in "
+				+ (System.currentTimeMillis() - t1) + "ms");
+		writeManifest();
+	}
+
+	private void writeManifest() {
+		final File manifestFile = getManifestFile();
+		final File tmpFile = new File(manifestFile.getAbsolutePath() + ".tmp");
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8),
+					BUFFER_SIZE);
+			for (final String relativePath : archives) {
+				writer.write(relativePath);
+				writer.newLine();
+			}
+			// the members of the archives are registered with their archives
+			for (final String relativePath : pdbFiles.values()) {
+				if (!relativePath.contains(PDBArchive.MEMBER_SEPARATOR)) {
+					writer.write(relativePath);
+					writer.newLine();
+				}
+			}
+			for (final String relativePath : mmCIFFiles.values()) {
+				if (!relativePath.contains(PDBArchive.MEMBER_SEPARATOR)) {
+					writer.write(relativePath);
+					writer.newLine();
+				}
+			}
+			writer.close();
+			writer = null;
+			if (manifestFile.exists()) {
+				manifestFile.delete();
+			}
+			if (!tmpFile.renameTo(manifestFile)) {
+				log.warn("Error saving manifest " + manifestFile);
+			}
+		} catch (final IOException e) {
+			// the repository may be a read only mirror
+			log.warn("Error writing manifest " + manifestFile + ": " + e.getMessage());
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+			tmpFile.delete();
+		}
+	}
+
+	private synchronized void addToManifest(Map<String, String> files, String pdbID, String relativePath) {
+		if (relativePath.equals(files.put(pdbID.toLowerCase(), relativePath))) {
+			// already in the manifest, as when a file is downloaded again
+			return;
+		}
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(getManifestFile(), true), StandardCharsets.UTF_8));
+			writer.write(relativePath);
+			writer.newLine();
+		} catch (final IOException e) {
+			log.warn("Error adding " + relativePath + " to manifest: " + e.getMessage());
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a file to the manifest in memory if its name is the one of a
+	 * structure file, or the members of an archive. Compressed files have
+	 * preference over uncompressed ones
+	 *
+	 * @param relativePath path of the file relative to the parent path
+	 */
+	private void register(String relativePath) {
+		if (PDBArchive.isArchive(relativePath)) {
+			registerArchive(relativePath);
+		} else {
+			register(relativePath, true);
+		}
+	}
+
+	/**
+	 * Adds the members of an archive to the manifest in memory, indexing the
+	 * archive if it was not indexed yet
+	 *
+	 * @param relativePath path of the archive relative to the parent path
+	 */
+	private void registerArchive(String relativePath) {
+		final File archiveFile = new File(parentPath, relativePath);
+		if (!archiveFile.isFile()) {
+			return;
+		}
+		archives.add(relativePath);
+		final PDBArchive archive = PDBArchive.getInstance(archiveFile);
+		for (final String memberName : archive.getMemberNames()) {
+			register(relativePath + PDBArchive.MEMBER_SEPARATOR + memberName, false);
+		}
+	}
+
+	/**
+	 *
+	 * @param relativePath
+	 * @param override     whether to replace a file already registered for the
+	 *                     same entry, false for the members of the archives
+	 */
+	private void register(String relativePath, boolean override) {
+		final String name = relativePath.substring(relativePath.lastIndexOf('/') + 1).toLowerCase();
+		if (name.endsWith(PDB_GZIP_EXTENSION)) {
+			register(pdbFiles, name.substring(0, name.length() - PDB_GZIP_EXTENSION.length()), relativePath,
+					override);
+		} else if (name.startsWith(WWPDB_PREFIX) && name.endsWith(WWPDB_GZIP_EXTENSION)) {
+			register(pdbFiles, name.substring(WWPDB_PREFIX.length(), name.length() - WWPDB_GZIP_EXTENSION.length()),
+					relativePath, override);
+		} else if (name.endsWith(PDB_EXTENSION)) {
+			registerUncompressed(name.substring(0, name.length() - PDB_EXTENSION.length()), relativePath, override);
+		} else if (name.startsWith(WWPDB_PREFIX) && name.endsWith(WWPDB_EXTENSION)) {
+			registerUncompressed(name.substring(WWPDB_PREFIX.length(), name.length() - WWPDB_EXTENSION.length()),
+					relativePath, override);
+		} else if (name.endsWith(MMCIF_GZIP_EXTENSION)) {
+			register(mmCIFFiles, name.substring(0, name.length() - MMCIF_GZIP_EXTENSION.length()), relativePath,
+					override);
+		}
+	}
+
+	private void register(Map<String, String> files, String pdbID, String relativePath, boolean override) {
+		final String current = files.get(pdbID);
+		// a compressed member has preference over an uncompressed one
+		if (current == null || override
+				|| current.contains(PDBArchive.MEMBER_SEPARATOR) && !current.endsWith(".gz")) {
+			files.put(pdbID, relativePath);
+		}
+	}
+
+	private void registerUncompressed(String pdbID, String relativePath, boolean override) {
+		final String current = pdbFiles.get(pdbID);
+		if (current == null
+				|| override && (!current.endsWith(".gz") || current.contains(PDBArchive.MEMBER_SEPARATOR))) {
+			pdbFiles.put(pdbID, relativePath);
+		}
+	}
+
+	/**
+	 * Gets the file of the binary cache of a structure file, that is a sidecar
+	 * file in the same folder (see {@link PDBBinaryCache}), or in a folder next
+	 * to the archive for the members of an archive. Each {@link AtomSelection}
+	 * has its own sidecar, so that the calculations that read different atoms
+	 * of the same structures don't replace the sidecars of each other
+	 *
+	 * @param pdbFile
+	 * @param atomSelection the atoms stored in the sidecar
+	 * @return
+	 */
+	public static File getBinaryCacheFile(File pdbFile, AtomSelection atomSelection) {
+		final String suffix = "." + atomSelection.getFileID() + BINARY_CACHE_EXTENSION;
+		if (PDBArchive.isMember(pdbFile)) {
+			return PDBArchive.getBinaryCacheFile(pdbFile, suffix);
+		}
+		return new File(pdbFile.getAbsolutePath() + suffix);
+	}
+
+	public static boolean isBinaryCacheEnabled() {
+		return binaryCacheEnabled;
+	}
+
+	/**
+	 * @param binaryCacheEnabled whether the parsed structures are saved in and
+	 *                           read from binary sidecar files
+	 */
+	public static void setBinaryCacheEnabled(boolean binaryCacheEnabled) {
+		PDBFileManager.binaryCacheEnabled = binaryCacheEnabled;
 	}
 
 	/**
@@ -1,155 +1,406 @@
 package edu.scripps.yates.pdb.read;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
 /**
- * Retrieves PDB files by pdb ID from the repository
+ * Retrieves PDB files by pdb ID from the repository or from a list of mirrors
+ * of it.<br>
+ * The downloads are asynchronous for the callers, that get a future, but each
+ * request blocks one thread of a pool whose size is the maximum number of
+ * requests in flight, as the HTTP client of Java 8 is blocking. The
+ * connections are reused between requests to the same server (keep-alive),
+ * the files are transferred compressed and written to the given file, and the
+ * requests that fail with a temporary error are retried with an exponential
+ * backoff with jitter, without holding a thread while waiting.
  *
  * @author Salva
  *
  */
 public class PDBFileRetriever {
 	private final static Logger log = Logger.getLogger(PDBFileRetriever.class);
-	private final static String PDB_URL_GZIP = "http://www.rcsb.org/pdb/files/";
+	public final static String DEFAULT_BASE_URL = "https://files.rcsb.org/download/";
+	public final static int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 4;
+	public final static int DEFAULT_MAX_RETRIES = 5;
 	public final static String PDB_FILE_GIZP_EXTENSION = ".pdb.gz";
-	private final static String PDB_URL_NO_COMPRESSED = "http://www.rcsb.org/pdb/download/downloadFile.do?fileFormat=pdb&compression=NO&structureId=";
+	public final static String MMCIF_FILE_GIZP_EXTENSION = ".cif.gz";
+	private final static String PDB_FILE_EXTENSION = ".pdb";
+	private static final long INITIAL_BACKOFF_MILLIS = 1000;
+	private static final long MAX_BACKOFF_MILLIS = 60000;
+	private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+	private static final int READ_TIMEOUT_MILLIS = 120000;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	private static List<String> baseURLs = Collections.singletonList(DEFAULT_BASE_URL);
+	private static int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+	private static int maxRetries = DEFAULT_MAX_RETRIES;
+	private static ScheduledThreadPoolExecutor executor;
 
 	/**
-	 * Gets a file with the PDB file in a temp file
+	 * Result of a request to one server
+	 */
+	private enum Outcome {
+		OK, // the file was retrieved
+		NOT_FOUND, // the server doesn't have the file (404 or 410)
+		RETRY, // temporary error, the request can be retried later
+		FAILED // other error, as a 403 response, that is not retried
+	}
+
+	/**
+	 * Downloads the PDB file of an entry, compressed with GZIP
 	 *
 	 * @param pdbID
-	 * @return
+	 * @param destination file in which the compressed file is written
+	 * @return a future with the destination file, or with null if the entry is
+	 *         not in any of the servers. It fails with an {@link IOException}
+	 *         if some server kept failing with a temporary error or rejected
+	 *         the request
 	 */
-	public static File getPDBFile(String pdbID) {
-		return sendRequest(getPDBNoCompressedURL(pdbID));
+	public static CompletableFuture<File> downloadPDBGZipFile(String pdbID, File destination) {
+		return download(pdbID + PDB_FILE_GIZP_EXTENSION, destination, true);
 	}
 
 	/**
-	 * Gets a file with the PDB file as GZIP in a temp file
+	 * Downloads the uncompressed PDB file of an entry, for the servers without
+	 * the compressed one. It is requested with a compressed transfer, and it is
+	 * written compressed with GZIP in any case
 	 *
 	 * @param pdbID
-	 * @return
+	 * @param destination file in which the compressed file is written
+	 * @return a future with the destination file, or with null if the entry is
+	 *         not in any of the servers. It fails with an {@link IOException}
+	 *         if some server kept failing with a temporary error or rejected
+	 *         the request
 	 */
-	public static File getPDBGZipFile(String pdbID) {
-		return sendRequest(getPDBGZipURL(pdbID));
+	public static CompletableFuture<File> downloadPDBFile(String pdbID, File destination) {
+		return download(pdbID + PDB_FILE_EXTENSION, destination, false);
 	}
 
-	private static String getPDBGZipURL(String pdbID) {
-		return PDB_URL_GZIP + pdbID + PDB_FILE_GIZP_EXTENSION;
+	/**
+	 * Downloads the mmCIF file of an entry, compressed with GZIP. The largest
+	 * entries are only available in this format
+	 *
+	 * @param pdbID
+	 * @param destination file in which the compressed file is written
+	 * @return a future with the destination file, or with null if the entry is
+	 *         not in any of the servers. It fails with an {@link IOException}
+	 *         if some server kept failing with a temporary error or rejected
+	 *         the request
+	 */
+	public static CompletableFuture<File> downloadMmCIFGZipFile(String pdbID, File destination) {
+		return download(pdbID + MMCIF_FILE_GIZP_EXTENSION, destination, true);
 	}
 
-	private static String getPDBNoCompressedURL(String pdbID) {
-		return PDB_URL_NO_COMPRESSED + pdbID;
+	/**
+	 * Sets the URL from which the files are downloaded, as
+	 * &lt;baseURL&gt;&lt;pdbID&gt;.pdb.gz, so that a mirror or a local server
+	 * can be used instead of the RCSB
+	 *
+	 * @param baseURL
+	 */
+	public static void setBaseURL(String baseURL) {
+		setBaseURLs(Collections.singletonList(baseURL));
 	}
 
-	private static File sendRequest(String urlString) {
-
-		try {
-			// log.info("Submitting String= " + urlString + "...");
-			URL url = new URL(urlString).toURI().toURL();
-			log.info("Submitting URL= " + url + "...");
-			long t1 = System.currentTimeMillis();
-			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-			HttpURLConnection.setFollowRedirects(true);
-			conn.setDoInput(true);
-			conn.connect();
-
-			int status = conn.getResponseCode();
-			while (true) {
-				int wait = 0;
-				String header = conn.getHeaderField("Retry-After");
-				if (header != null)
-					wait = Integer.valueOf(header);
-				if (wait == 0)
-					break;
-				log.info("Waiting (" + wait + ")...");
-				conn.disconnect();
-				Thread.sleep(wait * 1000);
-				conn = (HttpURLConnection) new URL(urlString).openConnection();
-				conn.setDoInput(true);
-				conn.connect();
-				status = conn.getResponseCode();
-			}
-			if (status == HttpURLConnection.HTTP_OK) {
-				long t2 = System.currentTimeMillis();
-				log.info("Got a OK reply in " + (t2 - t1) / 1000 + "sg");
-				InputStream is = conn.getInputStream();
-				URLConnection.guessContentTypeFromStream(is);
-				final File response = parseResponse(is);
-				return response;
-			} else
-				log.error("Failed, got " + conn.getResponseMessage() + " for " + urlString);
-			conn.disconnect();
-
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
-			log.warn(e.getMessage());
-		} catch (IOException e) {
-			e.printStackTrace();
-			log.warn(e.getMessage());
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-			log.warn(e.getMessage());
-		} catch (URISyntaxException e) {
-			e.printStackTrace();
-			log.warn(e.getMessage());
+	/**
+	 * Sets the URLs of the servers from which the files are downloaded, in order
+	 * of preference. An entry that is not found in a server is requested to the
+	 * next one
+	 *
+	 * @param baseURLs
+	 */
+	public static synchronized void setBaseURLs(List<String> baseURLs) {
+		if (baseURLs.isEmpty()) {
+			throw new IllegalArgumentException("At least one base URL is required");
+		}
+		final List<String> urls = new ArrayList<String>();
+		for (final String baseURL : baseURLs) {
+			urls.add(baseURL.endsWith("/") ? baseURL : baseURL + "/");
+		}
+		PDBFileRetriever.baseURLs = Collections.unmodifiableList(urls);
+	}
+
+	/**
+	 * @return the URL of the preferred server
+	 */
+	public static String getBaseURL() {
+		return getBaseURLs().get(0);
+	}
+
+	public static synchronized List<String> getBaseURLs() {
+		return baseURLs;
+	}
+
+	/**
+	 * Sets the maximum number of requests in flight at the same time. The
+	 * requests already submitted keep the previous limit
+	 *
+	 * @param maxInFlightRequests
+	 */
+	public static synchronized void setMaxInFlightRequests(int maxInFlightRequests) {
+		PDBFileRetriever.maxInFlightRequests = Math.max(1, maxInFlightRequests);
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
 		}
-		return null;
 	}
 
-	private static File parseResponse(InputStream is) {
+	public static synchronized int getMaxInFlightRequests() {
+		return maxInFlightRequests;
+	}
+
+	/**
+	 * Sets how many times a request that failed with a temporary error (as a
+	 * 503 response or a broken connection) is retried
+	 *
+	 * @param maxRetries
+	 */
+	public static synchronized void setMaxRetries(int maxRetries) {
+		PDBFileRetriever.maxRetries = Math.max(0, maxRetries);
+	}
+
+	public static synchronized int getMaxRetries() {
+		return maxRetries;
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			final AtomicInteger threadNumber = new AtomicInteger();
+			executor = new ScheduledThreadPoolExecutor(maxInFlightRequests, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable,
+							"pdb-download-" + threadNumber.incrementAndGet());
+					// the pending downloads don't keep the application alive
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
 
-		log.debug("Processing response");
-		OutputStream outputStream = null;
-		try {
+	private static CompletableFuture<File> download(String fileName, File destination, boolean compressedFile) {
+		final Download download = new Download(fileName, destination, compressedFile, getBaseURLs(),
+				getMaxRetries());
+		download.submit(0);
+		return download.result;
+	}
 
-			final File createTempFile = File.createTempFile("pdbTMP", "pdb");
-			createTempFile.deleteOnExit();
-			// read this file into InputStream
+	/**
+	 * A download of a file, that tries the servers in order and, if some of them
+	 * failed with a temporary error, schedules a new attempt after a backoff
+	 *
+	 * @author Salva
+	 *
+	 */
+	private static class Download implements Runnable {
+		private final String fileName;
+		private final File destination;
+		private final boolean compressedFile;
+		private final List<String> baseURLs;
+		private final int maxRetries;
+		private final CompletableFuture<File> result = new CompletableFuture<File>();
+		private int attempt = 0;
+		// milliseconds requested by a server in a Retry-After header
+		private long retryAfter = 0;
 
-			// write the inputStream to a FileOutputStream
-			outputStream = new FileOutputStream(createTempFile);
+		private Download(String fileName, File destination, boolean compressedFile, List<String> baseURLs,
+				int maxRetries) {
+			this.fileName = fileName;
+			this.destination = destination;
+			this.compressedFile = compressedFile;
+			this.baseURLs = baseURLs;
+			this.maxRetries = maxRetries;
+		}
 
-			int read = 0;
-			byte[] bytes = new byte[1024];
+		private void submit(long delay) {
+			try {
+				getExecutor().schedule(this, delay, TimeUnit.MILLISECONDS);
+			} catch (final RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}
 
-			while ((read = is.read(bytes)) != -1) {
-				outputStream.write(bytes, 0, read);
+		@Override
+		public void run() {
+			try {
+				boolean retry = false;
+				boolean failed = false;
+				retryAfter = 0;
+				for (final String baseURL : baseURLs) {
+					final Outcome outcome = request(baseURL + fileName);
+					if (outcome == Outcome.OK) {
+						result.complete(destination);
+						return;
+					}
+					retry |= outcome == Outcome.RETRY;
+					failed |= outcome == Outcome.FAILED;
+				}
+				if (retry && attempt < maxRetries) {
+					final long delay = Math.max(retryAfter, getBackoff(attempt));
+					attempt++;
+					log.info("Retrying " + fileName + " in " + delay + "ms (attempt " + attempt + " of " + maxRetries
+							+ ")");
+					submit(delay);
+					return;
+				}
+				if (retry) {
+					// it may be available later, so it is not the same as not found
+					result.completeExceptionally(new IOException(
+							"Giving up retrieving " + fileName + " after " + (attempt + 1) + " attempts"));
+					return;
+				}
+				if (failed) {
+					// as an authorization error, it doesn't mean that the entry
+					// doesn't exist
+					result.completeExceptionally(new IOException("Request of " + fileName + " rejected"));
+					return;
+				}
+				result.complete(null);
+			} catch (final RuntimeException e) {
+				log.warn("Error retrieving " + fileName + ": " + e.getMessage());
+				result.completeExceptionally(e);
 			}
-			log.debug("Response parsed succesfully. File saved '" + createTempFile.getAbsolutePath() + "'");
-
-			return createTempFile;
-		} catch (IOException e2) {
-			e2.printStackTrace();
-		} finally {
-			if (is != null) {
-				try {
-					is.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+		}
+
+		/**
+		 * Exponential backoff with jitter: a random time between the half and
+		 * the whole of the backoff, so that the requests that failed together
+		 * are not retried together
+		 *
+		 * @param attempt
+		 * @return
+		 */
+		private static long getBackoff(int attempt) {
+			final long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16));
+			return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		}
+
+		private Outcome request(String urlString) {
+			HttpURLConnection conn = null;
+			try {
+				final URL url = new URL(urlString);
+				log.debug("Submitting URL= " + url + "...");
+				final long t1 = System.currentTimeMillis();
+				conn = (HttpURLConnection) url.openConnection();
+				conn.setInstanceFollowRedirects(true);
+				conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+				conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+				// a compressed file is not compressed again by the server
+				conn.setRequestProperty("Accept-Encoding", compressedFile ? "identity" : "gzip");
+				final int status = conn.getResponseCode();
+				if (status == HttpURLConnection.HTTP_OK) {
+					final boolean gzipTransfer = "gzip".equalsIgnoreCase(conn.getContentEncoding());
+					writeResponse(conn.getInputStream(), compressedFile || gzipTransfer, conn.getContentLengthLong());
+					log.info(urlString + " retrieved in " + (System.currentTimeMillis() - t1) + "ms");
+					return Outcome.OK;
+				}
+				// the error body has to be read so that the connection can be
+				// reused
+				discard(conn.getErrorStream());
+				if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+					log.debug("Not found: " + urlString);
+					return Outcome.NOT_FOUND;
+				}
+				if (status == HTTP_TOO_MANY_REQUESTS || status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+					readRetryAfter(conn.getHeaderField("Retry-After"));
+					log.info("Got " + status + " " + conn.getResponseMessage() + " for " + urlString);
+					return Outcome.RETRY;
+				}
+				log.error("Failed, got " + status + " " + conn.getResponseMessage() + " for " + urlString);
+				return Outcome.FAILED;
+			} catch (final IOException e) {
+				log.warn("Error retrieving " + urlString + ": " + e.getMessage());
+				destination.delete();
+				if (conn != null) {
+					// the connection may be broken, so it is not reused
+					conn.disconnect();
 				}
+				return Outcome.RETRY;
+			}
+		}
+
+		private void readRetryAfter(String header) {
+			if (header == null) {
+				return;
+			}
+			try {
+				retryAfter = Math.max(retryAfter,
+						Math.min(MAX_BACKOFF_MILLIS, Long.valueOf(header.trim()) * 1000));
+			} catch (final NumberFormatException e) {
+				// it is a date, the backoff is used
 			}
-			if (outputStream != null) {
-				try {
-					// outputStream.flush();
-					outputStream.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+		}
+
+		/**
+		 * Writes the response in the destination file, compressing it if it is
+		 * not compressed
+		 *
+		 * @param is
+		 * @param compressed
+		 * @param contentLength length of the body announced by the server, or -1
+		 *                      if unknown
+		 * @throws IOException if the body is shorter than announced, as when the
+		 *                     connection is closed in the middle
+		 */
+		private void writeResponse(InputStream is, boolean compressed, long contentLength) throws IOException {
+			OutputStream os = null;
+			try {
+				os = new BufferedOutputStream(new FileOutputStream(destination), BUFFER_SIZE);
+				if (!compressed) {
+					os = new GZIPOutputStream(os, BUFFER_SIZE);
+				}
+				final byte[] buffer = new byte[BUFFER_SIZE];
+				int read = 0;
+				long total = 0;
+				while ((read = is.read(buffer)) != -1) {
+					os.write(buffer, 0, read);
+					total += read;
+				}
+				if (contentLength != -1 && total != contentLength) {
+					throw new IOException("Truncated response: " + total + " of " + contentLength + " bytes");
+				}
+			} finally {
+				// closing the stream after reading it to the end returns the
+				// connection to the keep-alive cache
+				is.close();
+				if (os != null) {
+					os.close();
 				}
+			}
+		}
 
+		private static void discard(InputStream is) throws IOException {
+			if (is == null) {
+				return;
+			}
+			try {
+				final byte[] buffer = new byte[BUFFER_SIZE];
+				while (is.read(buffer) != -1) {
+					// nothing to do
+				}
+			} finally {
+				is.close();
 			}
 		}
-		return null;
 	}
 }
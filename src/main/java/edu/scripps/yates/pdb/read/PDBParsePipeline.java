@@ -0,0 +1,214 @@
+package edu.scripps.yates.pdb.read;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Gives the parsers of a list of structures in order, reading and parsing the
+ * next ones in background threads while the calculations are done on the
+ * current one, so that the calculations don't wait for the files.<br>
+ * Up to {@link #getLookAhead()} structures are loaded in advance, and no more
+ * are loaded while the ones loaded and not used yet take more than half of
+ * the {@link PDBParserCache}, as they would evict each other. The ones being
+ * loaded count as the mean size of the ones loaded before. The files of up to
+ * {@link #FILE_LOOK_AHEAD} more structures are downloaded in advance, as they
+ * don't take memory. JMol loads the structures by itself, so only the reading
+ * of the files is done in advance.
+ *
+ * @author Salva
+ *
+ */
+public class PDBParsePipeline {
+	private final static Logger log = Logger.getLogger(PDBParsePipeline.class);
+	public static final int DEFAULT_LOOK_AHEAD = 2;
+	public static final int FILE_LOOK_AHEAD = 8;
+	private static int lookAhead = DEFAULT_LOOK_AHEAD;
+	private static ExecutorService executor;
+	private final PDBParserManager pdbParserManager;
+	private final List<String> pdbIDs;
+	private final boolean parseCoordinates;
+	private final long memoryBudget;
+	private final List<Future<PDBParser>> futures = new ArrayList<Future<PDBParser>>();
+	// index of the next structure to return
+	private int next = 0;
+	// index of the next structure which file is going to be retrieved
+	private int nextFile = 0;
+	private long loadedSize = 0;
+	private int numLoaded = 0;
+
+	/**
+	 *
+	 * @param pdbParserManager
+	 * @param pdbIDs           the structures in the order they are going to be
+	 *                         used
+	 * @param parseCoordinates
+	 */
+	public PDBParsePipeline(PDBParserManager pdbParserManager, List<String> pdbIDs, boolean parseCoordinates) {
+		this.pdbParserManager = pdbParserManager;
+		this.pdbIDs = new ArrayList<String>(pdbIDs);
+		this.parseCoordinates = parseCoordinates;
+		memoryBudget = PDBParserManager.getParserCache().getMaxSize() / 2;
+	}
+
+	/**
+	 * Sets how many structures are loaded in advance. 0 disables it
+	 *
+	 * @param lookAhead
+	 */
+	public static synchronized void setLookAhead(int lookAhead) {
+		if (lookAhead != PDBParsePipeline.lookAhead && executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+		PDBParsePipeline.lookAhead = lookAhead;
+	}
+
+	public static synchronized int getLookAhead() {
+		return lookAhead;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final AtomicInteger threadNumber = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(Math.max(1, lookAhead), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "pdb-parse-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	public boolean hasNext() {
+		return next < pdbIDs.size();
+	}
+
+	/**
+	 * Gets the parser of the next structure, waiting for it if it is being
+	 * loaded, and starts loading the following ones
+	 *
+	 * @return the parser or null if the structure is not available or the
+	 *         thread was interrupted while waiting for it. In that case the
+	 *         interrupted status of the thread is kept, the structures loaded in
+	 *         advance are cancelled and {@link #hasNext()} returns false
+	 */
+	public PDBParser next() {
+		final int current = next++;
+		final Future<PDBParser> future = current < futures.size() ? futures.get(current) : null;
+		if (future == null) {
+			// load the following ones while this one is loaded here
+			schedule();
+			return pdbParserManager.getPDBParserByPDBID(pdbIDs.get(current), parseCoordinates);
+		}
+		futures.set(current, null);
+		try {
+			final PDBParser parser = future.get();
+			if (parser != null) {
+				loadedSize += parser.getEstimatedSize();
+				numLoaded++;
+			}
+			schedule();
+			return parser;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted while loading PDB entry " + pdbIDs.get(current)
+					+ ". The remaining structures are not loaded");
+			close();
+			next = pdbIDs.size();
+			return null;
+		} catch (final ExecutionException e) {
+			log.warn("Error loading PDB entry " + pdbIDs.get(current) + " in advance: " + e.getMessage());
+		}
+		schedule();
+		// as it would be done without the pipeline
+		return pdbParserManager.getPDBParserByPDBID(pdbIDs.get(current), parseCoordinates);
+	}
+
+	/**
+	 * Cancels the structures that were not started to be loaded
+	 */
+	public void close() {
+		for (int i = next; i < futures.size(); i++) {
+			if (futures.get(i) != null) {
+				futures.get(i).cancel(false);
+				futures.set(i, null);
+			}
+		}
+	}
+
+	/**
+	 * Starts loading the structures after the current one, up to the look
+	 * ahead, while the ones loaded and not used yet are under the memory
+	 * budget
+	 */
+	private void schedule() {
+		final int lookAhead = getLookAhead();
+		while (futures.size() < next) {
+			futures.add(null);
+		}
+		while (futures.size() < pdbIDs.size() && futures.size() < next + lookAhead
+				&& getPendingSize() < memoryBudget) {
+			final String pdbID = pdbIDs.get(futures.size());
+			futures.add(getExecutor().submit(new Callable<PDBParser>() {
+				@Override
+				public PDBParser call() throws Exception {
+					final PDBParser parser = pdbParserManager.getPDBParserByPDBID(pdbID, parseCoordinates);
+					if (parser != null) {
+						parser.load();
+					}
+					return parser;
+				}
+			}));
+		}
+		// the retriever limits the downloads in flight
+		nextFile = Math.max(nextFile, futures.size());
+		while (lookAhead > 0 && nextFile < pdbIDs.size() && nextFile < next + lookAhead + FILE_LOOK_AHEAD) {
+			pdbParserManager.retrievePDBFileAsync(pdbIDs.get(nextFile++));
+		}
+	}
+
+	/**
+	 * @return the estimated size of the parsers loaded and not used yet, and of
+	 *         the ones being loaded, as the mean size of the ones loaded before
+	 */
+	private long getPendingSize() {
+		long size = 0;
+		int numLoading = 0;
+		for (int i = next; i < futures.size(); i++) {
+			final Future<PDBParser> future = futures.get(i);
+			if (future == null || future.isCancelled()) {
+				continue;
+			}
+			if (!future.isDone()) {
+				numLoading++;
+				continue;
+			}
+			try {
+				final PDBParser parser = future.get();
+				if (parser != null) {
+					size += parser.getEstimatedSize();
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (final ExecutionException e) {
+				// reported when it is used
+			}
+		}
+		if (numLoaded > 0) {
+			size += numLoading * (loadedSize / numLoaded);
+		}
+		return size;
+	}
+}
@@ -1,20 +1,21 @@
 package edu.scripps.yates.pdb.read;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.zip.ZipException;
 
 import org.apache.log4j.Logger;
 import org.jmol.api.JmolViewer;
@@ -22,45 +23,122 @@ import org.jmol.api.JmolViewer;
 import edu.scripps.yates.pdb.JMolScript;
 import edu.scripps.yates.pdb.distance.model.Distance;
 import edu.scripps.yates.pdb.model.Atom3D;
+import edu.scripps.yates.pdb.model.AtomTable;
 import edu.scripps.yates.pdb.model.AtomType;
+import edu.scripps.yates.pdb.model.ChainSequence;
 import edu.scripps.yates.pdb.model.DBRef;
+import edu.scripps.yates.pdb.model.ResidueAtomIndex;
 import edu.scripps.yates.pdb.util.JMolCommandsUtil;
-import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.THashMap;
 
 public class PDBParser {
 	private final static Logger log = Logger.getLogger(PDBParser.class);
 	private final static String COMPND = "COMPND";
-	private final static String DBREF = "DBREF";
 	private final static String SEQRES = "SEQRES";
 	private final static String EXPDTA = "EXPDTA";
-	private final static String ATOM = "ATOM";
 	private final static String CA_ATOMS_ONLY = "CA ATOMS ONLY";
 	private final static String MDLTYP = "MDLTYP";
 	private static final int MIN_PEP_LENGTH = 6;
 	private static final String MUTATION = "MUTATION: YES";
+	// first lines of the coordinates section of PDB and mmCIF files
+	private static final String[] HEADER_END_PREFIXES = { "ATOM  ", "HETATM", "MODEL ", "_atom_site." };
+	// estimated bytes of a parser that has not read anything, and of the
+	// index of each atom (hash entries of the atom and its residue, and row)
+	private static final long BASE_SIZE = 2048;
+	private static final long INDEX_SIZE_PER_ATOM = 40;
 	private final String filePath;
 	private static JmolViewer viewer;
-	private ArrayList<Atom3D> atomList;
+	// the JMol viewer is shared by all the parsers and is not thread safe, so
+	// it is only used holding this lock
+	private static final Object JMOL_LOCK = new Object();
+	// file of the structure loaded in the viewer, that is reused while it is
+	// not modified by a script
+	private static String loadedFilePath;
+	private static boolean loadedModelModified = false;
+	// the lazy fields are read holding the lock of the parser, and are
+	// volatile so that its size can be estimated without waiting for it
+	private volatile AtomTable atomTable;
 	private static boolean initialized = false;
-	private TIntObjectHashMap<List<Atom3D>> atomsByPosition;
-	private boolean opened = false;
+	// index of the atoms of each model, built the first time it is needed
+	private volatile ResidueAtomIndex[] atomIndexes;
+	private final Map<String, ChainSequence> chainSequences = new THashMap<String, ChainSequence>();
+	// copy of a member of an archive for JMol
+	private File jmolFile;
+	private volatile boolean unreadable = false;
+	// whether it is unreadable because the file doesn't exist
+	private volatile boolean fileMissing = false;
 	private final String pdbID;
-	private String selectedChainID;
 	private String experimentalMethod;
 	private Boolean mutation;
-	private final Map<String, List<String>> linesMap = new HashMap<String, List<String>>();
+	private volatile PDBRecordIndex recordIndex;
+	private volatile MmCIFReader mmCIFReader;
+	private boolean fileRead = false;
+	private volatile PDBRecordIndex headerRecordIndex;
+	private volatile MmCIFReader headerMmCIFReader;
+	private boolean headerRead = false;
 	private ArrayList<DBRef> dbRefs;
+	private String fingerprint;
 	private final boolean parseCoordinates;
-	private final Map<String, Map<AtomType, List<Atom3D>>> atomsByAminoacidAndType = new HashMap<String, Map<AtomType, List<Atom3D>>>();
+	private final ModelSelection modelSelection;
+	private final AtomSelection atomSelection;
+	// where the entries that cannot be read are recorded, if any
+	private UnavailablePDBCache unavailablePDBCache;
+	// repository of the file, if any, that is told if the file is missing
+	private PDBFileManager pdbFileManager;
+	private final Map<String, Map<AtomType, TIntArrayList>> atomsByAminoacidAndType = new HashMap<String, Map<AtomType, TIntArrayList>>();
 	private static double minDistanceBetweenDifferentChains = Double.MAX_VALUE;
 
 	public PDBParser(String filePath, String pdbID, boolean parseCoordinates) throws IOException {
+		this(filePath, pdbID, parseCoordinates, ModelSelection.FIRST);
+	}
+
+	/**
+	 *
+	 * @param filePath
+	 * @param pdbID
+	 * @param parseCoordinates
+	 * @param modelSelection   which models are read from structures with
+	 *                         several models
+	 * @throws IOException
+	 */
+	public PDBParser(String filePath, String pdbID, boolean parseCoordinates, ModelSelection modelSelection)
+			throws IOException {
+		this(filePath, pdbID, parseCoordinates, modelSelection, AtomSelection.ALL);
+	}
+
+	/**
+	 *
+	 * @param filePath
+	 * @param pdbID
+	 * @param parseCoordinates
+	 * @param modelSelection   which models are read from structures with
+	 *                         several models
+	 * @param atomSelection    which atoms are kept while reading the file
+	 * @throws IOException
+	 */
+	public PDBParser(String filePath, String pdbID, boolean parseCoordinates, ModelSelection modelSelection,
+			AtomSelection atomSelection) throws IOException {
 		this.filePath = filePath;
 		this.pdbID = pdbID;
 		this.parseCoordinates = parseCoordinates;
+		this.modelSelection = modelSelection;
+		this.atomSelection = atomSelection;
 	}
 
 	private void init(boolean forceOpen) {
+		synchronized (JMOL_LOCK) {
+			initViewer(forceOpen);
+		}
+	}
+
+	/**
+	 * Loads the structure in the viewer, unless it is already loaded and it has
+	 * not been modified since then
+	 *
+	 * @param forceOpen
+	 */
+	private void initViewer(boolean forceOpen) {
 		if (!initialized) {
 			// set JMol log level to ERROR
 			org.jmol.util.Logger.setLogLevel(org.jmol.util.Logger.LEVEL_ERROR);
@@ -68,74 +146,241 @@ public class PDBParser {
 			viewer.setScreenDimension(600, 600);
 
 			initialized = true;
-			opened = false;
+			loadedFilePath = null;
 		}
-		if (!opened || forceOpen) {
-			opened = true;
-			executeCommands(new JMolScript("load " + filePath));
-			// final String openFileError = viewer.openFile(filePath);
+		final String jmolFilePath = getJMolFilePath();
+		if (forceOpen || loadedModelModified || !jmolFilePath.equals(loadedFilePath)) {
+			// JMol decompresses gzip compressed files by itself
+			runScript(new JMolScript("load \"" + jmolFilePath + "\""));
+			loadedFilePath = jmolFilePath;
+			loadedModelModified = false;
+		}
+	}
 
-			// if (openFileError != null) {
-			// log.error(openFileError);
-			// throw new IllegalArgumentException(openFileError);
-			// }
+	/**
+	 * @return the path of the file to load in JMol, that only reads files, so
+	 *         the members of the archives are extracted the first time
+	 */
+	private String getJMolFilePath() {
+		final File file = new File(filePath);
+		if (!PDBArchive.isMember(file)) {
+			return filePath;
+		}
+		if (jmolFile == null) {
+			try {
+				jmolFile = PDBArchive.extractToTempFile(file);
+			} catch (final IOException e) {
+				e.printStackTrace();
+				log.error("Error extracting " + filePath + ": " + e.getMessage());
+				return filePath;
+			}
 		}
+		return jmolFile.getAbsolutePath();
 	}
 
-	private JmolViewer getViewer() {
-		init(false);
-		return viewer;
+	/**
+	 * Deletes the temporary copy of the file loaded in JMol, if the file is a
+	 * member of an archive, as when the parser is evicted from the
+	 * {@link PDBParserCache}. The parser can still be used after that, and the
+	 * copy is extracted again if JMol needs it
+	 */
+	public void close() {
+		synchronized (JMOL_LOCK) {
+			if (jmolFile != null) {
+				if (jmolFile.getAbsolutePath().equals(loadedFilePath)) {
+					loadedFilePath = null;
+				}
+				if (!jmolFile.delete() && jmolFile.exists()) {
+					log.warn("Error deleting temporary file " + jmolFile);
+				}
+				jmolFile = null;
+			}
+		}
 	}
 
-	public Boolean getMutation() {
+	public synchronized Boolean getMutation() {
+		if (mutation == null && getHeaderMmCIFReader() != null) {
+			mutation = getHeaderMmCIFReader().getMutation();
+		}
 		if (mutation == null) {
-			final List<String> lines = getLinesContaining(MUTATION);
-			if (lines != null && !lines.isEmpty()) {
-				mutation = true;
-			} else {
-				mutation = false;
+			final List<String> lines = getRecordLines(PDBRecordType.COMPND);
+			mutation = false;
+			for (final String line : lines) {
+				if (line.contains(MUTATION)) {
+					mutation = true;
+					break;
+				}
 			}
 		}
 		return mutation;
 	}
 
+	/**
+	 * Gets an atom of a residue with no insertion code or, if there is not such
+	 * residue with that aminoacid at that position, of the first inserted residue
+	 * at that position with that aminoacid, trying only the insertion codes that
+	 * are in the structure for that position
+	 *
+	 * @param chainID
+	 * @param aa
+	 * @param atomType
+	 * @param positionInPDB
+	 * @return the atom or null if not found
+	 */
 	public Atom3D getAtom(String chainID, char aa, AtomType atomType, int positionInPDB) {
+		final Atom3D atom = getAtom(chainID, aa, atomType, positionInPDB, ' ');
+		if (atom != null) {
+			return atom;
+		}
+		final String iCodes = getAtomIndex(0).getInsertionCodes(chainID, positionInPDB);
+		for (int i = 0; i < iCodes.length(); i++) {
+			final Atom3D insertedAtom = getAtom(chainID, aa, atomType, positionInPDB, iCodes.charAt(i));
+			if (insertedAtom != null) {
+				return insertedAtom;
+			}
+		}
+		return null;
+	}
 
-		final List<Atom3D> atomsByAAPosition = getAtomsByAAPosition(positionInPDB);
-		if (atomsByAAPosition == null) {
+	/**
+	 * Gets an atom of a residue
+	 *
+	 * @param chainID
+	 * @param aa
+	 * @param atomType
+	 * @param positionInPDB
+	 * @param iCode         code for insertion of residues, ' ' if none
+	 * @return the atom or null if not found or if the residue is not of that
+	 *         aminoacid
+	 */
+	public Atom3D getAtom(String chainID, char aa, AtomType atomType, int positionInPDB, char iCode) {
+		return getAtom(chainID, aa, atomType, positionInPDB, iCode, 0);
+	}
+
+	/**
+	 * Gets an atom of a residue in one of the models read from the structure
+	 *
+	 * @param chainID
+	 * @param aa
+	 * @param atomType
+	 * @param positionInPDB
+	 * @param iCode         code for insertion of residues, ' ' if none
+	 * @param model         index of the model, from 0 to
+	 *                      {@link #getNumModels()} - 1
+	 * @return the atom or null if not found or if the residue is not of that
+	 *         aminoacid
+	 */
+	public Atom3D getAtom(String chainID, char aa, AtomType atomType, int positionInPDB, char iCode, int model) {
+		final int row = getAtomIndex(model).getRow(chainID, positionInPDB, iCode, atomType);
+		if (row == -1) {
 			return null;
 		}
-		for (final Atom3D atom : atomsByAAPosition) {
-			if (atom.getPositionInPDB() == positionInPDB && atom.getChainID().equals(chainID)
-					&& atom.getAa().equals(String.valueOf(aa)) && atom.getAtomType() == atomType) {
-				return atom;
-			}
+		final AtomTable atoms = getAtoms();
+		if (atoms.getAaChar(row) != aa) {
+			return null;
+		}
+		return atoms.getAtom(row);
+	}
 
+	/**
+	 * Gets all the atoms of a residue in the first model read from the structure
+	 *
+	 * @param chainID
+	 * @param positionInPDB
+	 * @param iCode         code for insertion of residues, ' ' if none
+	 * @return the atoms of the residue or an empty list if the residue is not in
+	 *         the structure
+	 */
+	public List<Atom3D> getAtomsOfResidue(String chainID, int positionInPDB, char iCode) {
+		return getAtomsOfResidue(chainID, positionInPDB, iCode, 0);
+	}
+
+	/**
+	 * Gets all the atoms of a residue in one of the models read from the
+	 * structure
+	 *
+	 * @param chainID
+	 * @param positionInPDB
+	 * @param iCode         code for insertion of residues, ' ' if none
+	 * @param model         index of the model, from 0 to
+	 *                      {@link #getNumModels()} - 1
+	 * @return the atoms of the residue or an empty list if the residue is not in
+	 *         that model
+	 */
+	public List<Atom3D> getAtomsOfResidue(String chainID, int positionInPDB, char iCode, int model) {
+		final ResidueAtomIndex index = getAtomIndex(model);
+		final int residue = index.getResidue(chainID, positionInPDB, iCode);
+		if (residue == -1) {
+			return Collections.emptyList();
 		}
-		return null;
+		final AtomTable atoms = getAtoms();
+		final int numAtoms = index.getNumAtoms(residue);
+		final List<Atom3D> ret = new ArrayList<Atom3D>(numAtoms);
+		for (int i = 0; i < numAtoms; i++) {
+			ret.add(atoms.getAtom(index.getAtomRow(residue, i)));
+		}
+		return ret;
 	}
 
 	public Double getSurfaceAccessibilityOfAtom(Atom3D atom, boolean removeOtherChains, boolean removeOtherMolecules) {
+		return getSurfaceAccessibilityOfAtoms(Collections.singletonList(atom), removeOtherChains, removeOtherMolecules)
+				.get(0);
+	}
 
-		// if (!atom.getChainID().equals(selectedChainID)) {
-		init(true);
-		executeCommands(JMolCommandsUtil.getSelectChainJMolScriptByAtom(atom, removeOtherChains, removeOtherMolecules));
-		selectedChainID = atom.getChainID();
-		// } else {
-		// init(false);
-		// }
-		// executeCommands(JMolCommandsUtil.getSelectAtomScript(atom));
-		final String strOutput = executeCommands(JMolCommandsUtil.getCalculateSurfaceScript(atom));
-
-		return parseAccessibilityOutput(strOutput);
+	/**
+	 * Calculates the surface accessibility of some atoms of the same chain.
+	 * The structure is loaded in the viewer only if it is not already there,
+	 * and the other chains or molecules are ignored by the surfaces instead
+	 * of being deleted, so that it is not modified and it is reused for the
+	 * next atoms, whatever their removals are
+	 *
+	 * @param atoms
+	 * @param removeOtherChains
+	 * @param removeOtherMolecules
+	 * @return the accessibilities, in the order of the atoms, with null for the
+	 *         ones that could not be calculated
+	 */
+	public List<Double> getSurfaceAccessibilityOfAtoms(List<Atom3D> atoms, boolean removeOtherChains,
+			boolean removeOtherMolecules) {
+		final List<String> strOutputs = new ArrayList<String>(atoms.size());
+		// the structure is loaded, selected and calculated without other parser
+		// using the viewer in between
+		synchronized (JMOL_LOCK) {
+			for (final Atom3D atom : atoms) {
+				strOutputs.add(executeCommands(
+						JMolCommandsUtil.getCalculateSurfaceScript(atom, removeOtherChains, removeOtherMolecules)));
+			}
+		}
+		final List<Double> ret = new ArrayList<Double>(atoms.size());
+		for (final String strOutput : strOutputs) {
+			ret.add(parseAccessibilityOutput(strOutput));
+		}
+		return ret;
 	}
 
+	/**
+	 * Executes a script over the structure, loading it in the viewer if it is
+	 * not loaded. If the script modifies the structure, it is loaded again
+	 * before the next script
+	 *
+	 * @param commandSet
+	 * @return the output of the script
+	 */
 	public String executeCommands(JMolScript commandSet) {
-		init(false);
+		synchronized (JMOL_LOCK) {
+			init(false);
+			final String strOutput = runScript(commandSet);
+			if (commandSet.isModifyingModel()) {
+				loadedModelModified = true;
+			}
+			return strOutput;
+		}
+	}
 
+	private String runScript(JMolScript commandSet) {
 		log.info("Executing JMol command set:" + commandSet.getCommandsToExecuteIndifferentLines());
 		// getViewer().evalString(commandSet.getCommandsToExecute());
-		final String strOutput = (String) getViewer().scriptWaitStatus(commandSet.getCommandsToExecute(), null);
+		final String strOutput = (String) viewer.scriptWaitStatus(commandSet.getCommandsToExecute(), null);
 		if (!"".equals(strOutput)) {
 			log.debug("Output of the command in JMol is " + strOutput);
 		}
@@ -179,72 +424,248 @@ public class PDBParser {
 		return null;
 	}
 
-	private List<Atom3D> getAtoms() {
-		if (atomList == null || atomList.isEmpty()) {
-			atomList = new ArrayList<Atom3D>();
+	private synchronized AtomTable getAtoms() {
+		readFile();
+		if (atomTable == null) {
 
 			// if (!getLinesContaining(CA_ATOMS_ONLY).isEmpty()) {
 			// return atomList;
 			// }
-			final Set<String> chainsReaded = new HashSet<String>();
 			log.info("Reading " + this.getPdbID() + " PDB file...");
-			final List<String> lines = getLinesStarting(ATOM);
-			log.info("Parsing " + lines.size() + " ATOM lines");
-			for (final String string : lines) {
-				try {
-
-					final Atom3D atom = new Atom3D(string, parseCoordinates);
-					if (!chainsReaded.contains(atom.getChainID())) {
-						log.debug(atom.getChainID() + " chain ");
-						chainsReaded.add(atom.getChainID());
+			// sequences of the chains, in the order they appear in the file
+			final Map<String, ChainSequence.Builder> sequenceBuilders = new LinkedHashMap<String, ChainSequence.Builder>();
+			final AtomTable atoms;
+			final MmCIFReader mmCIFReader = getMmCIFReader();
+			final PDBRecordIndex index = getRecordIndex();
+			if (mmCIFReader != null) {
+				atoms = new AtomTable(mmCIFReader.getEstimatedNumAtoms(), parseCoordinates);
+				int firstModelNumber = Integer.MIN_VALUE;
+				int currentModelNumber = Integer.MIN_VALUE;
+				int firstSelectedModelNumber = Integer.MIN_VALUE;
+				while (mmCIFReader.nextAtom(parseCoordinates)) {
+					final int modelNumber = mmCIFReader.getModelNumber();
+					if (firstModelNumber == Integer.MIN_VALUE) {
+						firstModelNumber = modelNumber;
+					}
+					if (!modelSelection.includes(modelNumber, firstModelNumber)) {
+						if (currentModelNumber != Integer.MIN_VALUE) {
+							// the selected model is already read
+							break;
+						}
+						continue;
+					}
+					if (firstSelectedModelNumber == Integer.MIN_VALUE) {
+						firstSelectedModelNumber = modelNumber;
 					}
-					if (!atomsByAminoacidAndType.containsKey(atom.getAa())) {
-						atomsByAminoacidAndType.put(atom.getAa(), new HashMap<AtomType, List<Atom3D>>());
+					if (modelNumber != currentModelNumber) {
+						atoms.addModel(modelNumber);
+						currentModelNumber = modelNumber;
+					}
+					final AtomType atomType = mmCIFReader.getAtomType();
+					// the sequences are built from the first model
+					addAtom(atoms, modelNumber == firstSelectedModelNumber ? sequenceBuilders : null,
+							mmCIFReader.getSerial(), atomType,
+							atomType == AtomType.UNKNOWN ? mmCIFReader.getAtomName() : null,
+							mmCIFReader.getPackedResidueName(), mmCIFReader.hasThreeLetterResidueName(),
+							mmCIFReader.getResSeq(), mmCIFReader.getICode(), mmCIFReader.getChainID(),
+							mmCIFReader.getX(), mmCIFReader.getY(), mmCIFReader.getZ());
+				}
+			} else if (index != null) {
+				final int numLines = index.getNumRecords(PDBRecordType.ATOM);
+				final int numModels = index.getNumRecords(PDBRecordType.MODEL);
+				if (numModels == 0) {
+					log.info("Parsing " + numLines + " ATOM lines");
+					atoms = new AtomTable(numLines, parseCoordinates);
+					addAtoms(index, 0, numLines, atoms, sequenceBuilders);
+				} else {
+					// only the ATOM records of the selected models are parsed
+					final int firstModelNumber = index.getModelNumber(0);
+					final TIntArrayList selectedModels = new TIntArrayList();
+					int numSelectedLines = 0;
+					for (int model = 0; model < numModels; model++) {
+						if (modelSelection.includes(index.getModelNumber(model), firstModelNumber)) {
+							selectedModels.add(model);
+							numSelectedLines += getLastAtomOfModel(index, model) - index.getFirstAtomOfModel(model);
+						}
 					}
-					if (!atomsByAminoacidAndType.get(atom.getAa()).containsKey(atom.getAtomType())) {
-						atomsByAminoacidAndType.get(atom.getAa()).put(atom.getAtomType(), new ArrayList<Atom3D>());
+					log.info("Parsing " + numSelectedLines + " ATOM lines of " + selectedModels.size() + " out of "
+							+ numModels + " models");
+					atoms = new AtomTable(numSelectedLines, parseCoordinates);
+					for (int i = 0; i < selectedModels.size(); i++) {
+						final int model = selectedModels.get(i);
+						atoms.addModel(index.getModelNumber(model));
+						// the sequences are built from the first model
+						addAtoms(index, index.getFirstAtomOfModel(model), getLastAtomOfModel(index, model), atoms,
+								i == 0 ? sequenceBuilders : null);
 					}
-					atomsByAminoacidAndType.get(atom.getAa()).get(atom.getAtomType()).add(atom);
-					// if (atom.getAtomType() == AtomType.N) {
-					// position++;
-					// }
-					// atom.setPositionInPDB(position);
-					atomList.add(atom);
-				} catch (final IllegalArgumentException e) {
-					log.debug(e);
-				} catch (final Exception e) {
-					log.debug(e);
 				}
+			} else {
+				return new AtomTable(0, parseCoordinates);
+			}
+			atoms.trimToSize();
+			final List<ChainSequence> sequences = new ArrayList<ChainSequence>(sequenceBuilders.size());
+			for (final ChainSequence.Builder sequenceBuilder : sequenceBuilders.values()) {
+				final ChainSequence chainSequence = sequenceBuilder.build();
+				chainSequences.put(chainSequence.getChainID(), chainSequence);
+				sequences.add(chainSequence);
 			}
-			log.info(atomList.size() + " atom list acquired");
+			atomTable = atoms;
+			log.info(atomTable.size() + " atom list acquired");
+			writeBinaryCache(sequences);
 		}
-		return atomList;
+		return atomTable;
 	}
 
-	private List<Atom3D> getAtomsByAAPosition(int aaPosition) {
-		if (atomsByPosition == null) {
-			atomsByPosition = new TIntObjectHashMap<List<Atom3D>>();
-			final List<Atom3D> atoms = getAtoms();
-			for (final Atom3D atom : atoms) {
-				final int position = atom.getPositionInPDB();
-				if (atomsByPosition.containsKey(position)) {
-					atomsByPosition.get(position).add(atom);
-				} else {
-					final List<Atom3D> list = new ArrayList<Atom3D>();
-					list.add(atom);
-					atomsByPosition.put(position, list);
-				}
+	/**
+	 * Loads the content of the file from its binary cache, if it is enabled and
+	 * the cache is up to date
+	 *
+	 * @param file
+	 * @return true if loaded
+	 */
+	private boolean loadBinaryCache(File file) {
+		final PDBBinaryCache cache = PDBBinaryCache.read(PDBFileManager.getBinaryCacheFile(file, atomSelection),
+				file, modelSelection, atomSelection);
+		if (cache == null || parseCoordinates && !cache.getAtomTable().hasCoordinates()) {
+			return false;
+		}
+		experimentalMethod = cache.getExperimentalMethod();
+		mutation = cache.getMutation();
+		dbRefs = new ArrayList<DBRef>(cache.getDBRefs());
+		for (final ChainSequence chainSequence : cache.getChainSequences()) {
+			chainSequences.put(chainSequence.getChainID(), chainSequence);
+		}
+		final AtomTable atoms = cache.getAtomTable();
+		for (int row = 0; row < atoms.size(); row++) {
+			addToAtomsByAminoacidAndType(atoms.getAa(row), atoms.getAtomType(row), row);
+		}
+		atomTable = atoms;
+		log.info(atomTable.size() + " atom list acquired from binary cache");
+		return true;
+	}
+
+	private void writeBinaryCache(List<ChainSequence> sequences) {
+		if (!PDBFileManager.isBinaryCacheEnabled()) {
+			return;
+		}
+		final File file = new File(filePath);
+		new PDBBinaryCache(atomTable, sequences, getDBRefs(), getExperimentalMethod(), getMutation(), modelSelection,
+				atomSelection).write(PDBFileManager.getBinaryCacheFile(file, atomSelection), file);
+	}
+
+	/**
+	 * @return the index of the ATOM record after the last one of a model
+	 */
+	private int getLastAtomOfModel(PDBRecordIndex index, int model) {
+		if (model + 1 < index.getNumRecords(PDBRecordType.MODEL)) {
+			return index.getFirstAtomOfModel(model + 1);
+		}
+		return index.getNumRecords(PDBRecordType.ATOM);
+	}
+
+	/**
+	 * Parses the ATOM records from one index (inclusive) to another (exclusive)
+	 * and adds them to the table
+	 */
+	private void addAtoms(PDBRecordIndex index, int from, int to, AtomTable atoms,
+			Map<String, ChainSequence.Builder> sequenceBuilders) {
+		final ByteBuffer data = index.getData();
+		final AtomRecordParser atomParser = new AtomRecordParser();
+		for (int i = from; i < to; i++) {
+			final int offset = index.getOffset(PDBRecordType.ATOM, i);
+			final int length = index.getLength(PDBRecordType.ATOM, i);
+			// the coordinates are parsed only for the selected atoms
+			if (!atomParser.parse(data, offset, length, false)) {
+				log.debug("Error reading atom line " + index.getLine(PDBRecordType.ATOM, i));
+				continue;
+			}
+			final AtomType atomType = atomParser.getAtomType();
+			final String unknownAtomName = atomType == AtomType.UNKNOWN ? atomParser.getAtomName() : null;
+			final String chainID = PDBUtil.getChainID(atomParser.getChainID());
+			if (parseCoordinates && atomSelection.accepts(chainID, atomParser.getResSeq(), atomType, unknownAtomName)
+					&& !atomParser.parseCoordinates(data, offset, length)) {
+				log.debug("Error reading atom line " + index.getLine(PDBRecordType.ATOM, i));
+				continue;
 			}
+			addAtom(atoms, sequenceBuilders, atomParser.getSerial(), atomType, unknownAtomName,
+					atomParser.getPackedResidueName(), atomParser.hasThreeLetterResidueName(), atomParser.getResSeq(),
+					atomParser.getICode(), chainID, atomParser.getX(), atomParser.getY(), atomParser.getZ());
+		}
+	}
+
+	/**
+	 * Adds a parsed atom to the table, if it is an atom of a protein and it is
+	 * selected by the {@link AtomSelection}, updating the atoms by aminoacid and
+	 * type. The sequence of its chain is updated even if the atom is not
+	 * selected, so that the sequences are complete.
+	 *
+	 * @param sequenceBuilders the builders of the sequences of the chains, or
+	 *                         null if the atom is not in the model from which
+	 *                         the sequences are taken
+	 * @param unknownAtomName  the name of the atom if its type is
+	 *                         {@link AtomType#UNKNOWN}
+	 */
+	private void addAtom(AtomTable atoms, Map<String, ChainSequence.Builder> sequenceBuilders, int serial,
+			AtomType atomType, String unknownAtomName, int packedResidueName, boolean threeLetterResidueName,
+			int resSeq, char iCode, String chainID, double x, double y, double z) {
+		if (!threeLetterResidueName) {
+			// not an atom of a protein
+			return;
+		}
+		final String aa = PDBUtil.parseAA(packedResidueName);
+		final char aaChar = aa.charAt(0);
+		if (sequenceBuilders != null) {
+			ChainSequence.Builder sequenceBuilder = sequenceBuilders.get(chainID);
+			if (sequenceBuilder == null) {
+				sequenceBuilder = new ChainSequence.Builder(chainID);
+				sequenceBuilders.put(chainID, sequenceBuilder);
+			}
+			sequenceBuilder.addAtom(aaChar, resSeq);
+		}
+		if (!atomSelection.accepts(chainID, resSeq, atomType, unknownAtomName)) {
+			return;
+		}
+		final int row = atoms.addAtom(serial, atomType, unknownAtomName, aaChar, resSeq, iCode, chainID, x, y, z);
+		addToAtomsByAminoacidAndType(aa, atomType, row);
+	}
+
+	private void addToAtomsByAminoacidAndType(String aa, AtomType atomType, int row) {
+		if (!atomsByAminoacidAndType.containsKey(aa)) {
+			atomsByAminoacidAndType.put(aa, new HashMap<AtomType, TIntArrayList>());
+		}
+		if (!atomsByAminoacidAndType.get(aa).containsKey(atomType)) {
+			atomsByAminoacidAndType.get(aa).put(atomType, new TIntArrayList());
+		}
+		atomsByAminoacidAndType.get(aa).get(atomType).add(row);
+	}
+
+	/**
+	 * @return the number of models read from the structure, that is more than
+	 *         one only with {@link ModelSelection#ALL}
+	 */
+	public int getNumModels() {
+		return Math.max(getAtoms().getNumModels(), 1);
+	}
+
+	private synchronized ResidueAtomIndex getAtomIndex(int model) {
+		final AtomTable atoms = getAtoms();
+		if (atomIndexes == null) {
+			atomIndexes = new ResidueAtomIndex[Math.max(atoms.getNumModels(), 1)];
+		}
+		if (atomIndexes[model] == null) {
+			atomIndexes[model] = new ResidueAtomIndex(atoms, model);
 		}
-		return atomsByPosition.get(aaPosition);
+		return atomIndexes[model];
 	}
 
 	public List<Atom3D> getAtoms(String chainID, String aa, AtomType atomType)
 			throws IOException, NotValidPDBException {
 		final List<Atom3D> ret = new ArrayList<Atom3D>();
-		for (final Atom3D atom : getAtoms()) {
-			if (atom.getChainID().equals(chainID) && atom.getAa().equals(aa) && atom.getAtomType() == atomType) {
-				ret.add(atom);
+		final AtomTable atoms = getAtoms();
+		for (int row = 0; row < atoms.size(); row++) {
+			if (atoms.getChainID(row).equals(chainID) && atoms.getAa(row).equals(aa)
+					&& atoms.getAtomType(row) == atomType) {
+				ret.add(atoms.getAtom(row));
 			}
 		}
 		return ret;
@@ -265,22 +686,42 @@ public class PDBParser {
 		return ret;
 	}
 
-	public List<DBRef> getDBRefs() {
+	public synchronized List<DBRef> getDBRefs() {
+		if (dbRefs == null && getHeaderMmCIFReader() != null) {
+			dbRefs = new ArrayList<DBRef>(getHeaderMmCIFReader().getDBRefs(pdbID));
+		}
 		if (dbRefs == null) {
-			final List<String> lines = getLinesContaining(DBREF);
+			final List<String> lines = getRecordLines(PDBRecordType.DBREF, PDBRecordType.DBREF1,
+					PDBRecordType.DBREF2);
 			dbRefs = new ArrayList<DBRef>();
-			for (final String dbLine : lines) {
-				dbRefs.add(new DBRef(dbLine));
+			for (int i = 0; i < lines.size(); i++) {
+				final String dbLine = lines.get(i);
+				if (dbLine.startsWith(PDBRecordType.DBREF1.name())) {
+					// the accession is in the DBREF2 line that follows
+					if (i + 1 < lines.size() && lines.get(i + 1).startsWith(PDBRecordType.DBREF2.name())) {
+						dbRefs.add(new DBRef(dbLine, lines.get(i + 1)));
+						i++;
+					} else {
+						log.warn("DBREF1 line without DBREF2 line in " + pdbID + ": " + dbLine);
+					}
+				} else if (dbLine.startsWith(PDBRecordType.DBREF2.name())) {
+					log.warn("DBREF2 line without DBREF1 line in " + pdbID + ": " + dbLine);
+				} else {
+					dbRefs.add(new DBRef(dbLine));
+				}
 			}
 		}
 		return dbRefs;
 
 	}
 
-	public String getExperimentalMethod() {
+	public synchronized String getExperimentalMethod() {
+		if (experimentalMethod == null && getHeaderMmCIFReader() != null) {
+			experimentalMethod = getHeaderMmCIFReader().getExperimentalMethod();
+		}
 		if (experimentalMethod == null) {
 
-			final List<String> lines = getLinesStarting(EXPDTA);
+			final List<String> lines = getRecordLines(PDBRecordType.EXPDTA);
 			if (!lines.isEmpty()) {
 				final String string = lines.get(0);
 				experimentalMethod = string.substring(string.indexOf(EXPDTA) + EXPDTA.length()).trim();
@@ -291,76 +732,285 @@ public class PDBParser {
 	}
 
 	public String getSequence(DBRef dbRef) {
-		final StringBuilder sb = new StringBuilder();
-		int position = -1;
-		final List<Atom3D> atoms = getAtoms();
-
-		for (final Atom3D atom : atoms) {
-			if (dbRef.getChainID().equals(atom.getChainID())) {
-				if ("".equals(sb.toString())) {
-					// if this is the first AA and the position is not 1, fill
-					// the sequence with "X"s until that position
-					if (atom.getPositionInPDB() > 1) {
-						for (int i = 1; i < atom.getPositionInPDB(); i++) {
-							sb.append("?");
-						}
-					}
-				}
-				if (position != atom.getPositionInPDB()) {
-					if (sb.toString().length() + 1 < atom.getPositionInPDB()) {
-						for (int i = sb.toString().length() + 1; i < atom.getPositionInPDB(); i++) {
-							sb.append("?");
-						}
-					}
-					sb.append(atom.getAa());
-					position = atom.getPositionInPDB();
-				}
+		final ChainSequence chainSequence = getChainSequence(dbRef.getChainID());
+		if (chainSequence == null) {
+			log.info(dbRef);
+			return "";
+		}
+		return chainSequence.getSequence();
+	}
+
+	/**
+	 * Reads the file and its atoms now instead of when they are first needed,
+	 * so that it can be done in advance in other thread (see
+	 * {@link PDBParsePipeline})
+	 */
+	public void load() {
+		getAtoms();
+	}
+
+	/**
+	 * Gets the fingerprint of the file of the structure, so that the results
+	 * calculated from it can be recalculated when the entry is revised
+	 *
+	 * @return the fingerprint or null if the file cannot be read
+	 */
+	public synchronized String getFingerprint() {
+		if (fingerprint == null) {
+			try {
+				fingerprint = PDBFileContentCache.getFingerprint(new File(filePath));
+			} catch (final IOException e) {
+				e.printStackTrace();
+				log.warn("Error reading the fingerprint of " + filePath + ": " + e.getMessage());
 			}
 		}
-		if ("".equals(sb.toString())) {
-			log.info(dbRef);
+		return fingerprint;
+	}
+
+	/**
+	 * Gets the sequence of a chain as it is observed in the ATOM records, with
+	 * gaps in the residues that are not present. The sequences of all the chains
+	 * are built once, when parsing the atoms.
+	 *
+	 * @param chainID
+	 * @return the sequence of the chain or null if the chain has no atoms
+	 */
+	public synchronized ChainSequence getChainSequence(String chainID) {
+		getAtoms();
+		return chainSequences.get(chainID);
+	}
+
+	/**
+	 * Reads the file the first time it is needed, from its binary cache if
+	 * available, or otherwise indexing its records if it is a PDB file or
+	 * scanning it with a {@link MmCIFReader} if it is a mmCIF file
+	 */
+	private synchronized void readFile() {
+		if (!fileRead) {
+			fileRead = true;
+			headerRecordIndex = null;
+			headerMmCIFReader = null;
+			final File file = new File(filePath);
+			if (PDBFileManager.isBinaryCacheEnabled() && loadBinaryCache(file)) {
+				return;
+			}
+			try {
+				final ByteBuffer data = PDBFileContentCache.getContent(file);
+				if (MmCIFReader.isMmCIF(data)) {
+					mmCIFReader = new MmCIFReader(data);
+				} else {
+					recordIndex = PDBRecordIndex.scan(data);
+				}
+			} catch (final IOException e) {
+				log.error("Error reading PDB file " + filePath + ": " + e.getMessage());
+				setUnreadable(e);
+			}
 		}
-		return sb.toString();
 	}
 
-	private List<String> getLinesContaining(String containing) {
+	/**
+	 * Reads the header of the file the first time header information is needed
+	 * and the whole file was not read yet. The header is read from the binary
+	 * cache if available, or otherwise only the beginning of the file is read,
+	 * until the first coordinates record, so that queries about DBREF, EXPDTA,
+	 * COMPND or SEQRES records don't need to read the coordinates.
+	 */
+	private synchronized void readHeader() {
+		if (!headerRead && !fileRead) {
+			headerRead = true;
+			final File file = new File(filePath);
+			if (PDBFileManager.isBinaryCacheEnabled()) {
+				final PDBBinaryCache cache = PDBBinaryCache
+						.readHeader(PDBFileManager.getBinaryCacheFile(file, atomSelection), file);
+				if (cache != null) {
+					experimentalMethod = cache.getExperimentalMethod();
+					mutation = cache.getMutation();
+					dbRefs = new ArrayList<DBRef>(cache.getDBRefs());
+					return;
+				}
+			}
+			try {
+				final ByteBuffer data = PDBFileContentCache.getContentUntil(file, HEADER_END_PREFIXES);
+				if (MmCIFReader.isMmCIF(data)) {
+					headerMmCIFReader = new MmCIFReader(data);
+				} else {
+					headerRecordIndex = PDBRecordIndex.scan(data);
+				}
+			} catch (final IOException e) {
+				log.error("Error reading header of PDB file " + filePath + ": " + e.getMessage());
+				setUnreadable(e);
+			}
+		}
+	}
 
-		// When filteredLines is closed, it closes underlying stream as well as
-		// underlying file.
-		if (linesMap.containsKey(containing)) {
-			log.info(containing + " already readed");
-			return linesMap.get(containing);
+	/**
+	 * Marks the file as unreadable. Only if the error is in the format of the
+	 * file, as a corrupted compressed file, the entry is recorded as a
+	 * {@link UnavailablePDBCache.Reason#PARSE_ERROR}, so that it is not parsed
+	 * again. Other errors, as an unreachable file system, may not happen the
+	 * next time. If the file doesn't exist, it is removed from the manifest of
+	 * its repository, so that the entry is retrieved again
+	 *
+	 * @param e the error reading the file
+	 */
+	private void setUnreadable(IOException e) {
+		unreadable = true;
+		if (unavailablePDBCache != null && isFormatError(e)) {
+			unavailablePDBCache.add(pdbID, UnavailablePDBCache.Reason.PARSE_ERROR);
 		}
-		Stream<String> stream = null;
-		try {
-			stream = Files.lines(Paths.get(filePath)).filter(s -> s.contains(containing));
-			final List<String> list = stream.collect(Collectors.toList());
-			linesMap.put(containing, list);
-			return list;
-		} catch (final IOException e) {
-			return Collections.emptyList();
-		} finally {
-			if (stream != null) {
-				stream.close();
+		if (e instanceof FileNotFoundException || e instanceof NoSuchFileException) {
+			fileMissing = true;
+			if (pdbFileManager != null) {
+				pdbFileManager.removeMissingFile(pdbID, new File(filePath));
 			}
 		}
 	}
 
-	private List<String> getLinesStarting(String starting) {
-		final Path path = Paths.get(filePath);
-		// When filteredLines is closed, it closes underlying stream as well as
-		// underlying file.
-		Stream<String> stream = null;
-		try {
-			stream = Files.lines(path).filter(s -> s.startsWith(starting));
-			return stream.collect(Collectors.toList());
-		} catch (final IOException e) {
+	/**
+	 * @param e
+	 * @return true if the error is caused by the content of the file, as a gzip
+	 *         stream that is corrupted or that ends unexpectedly
+	 */
+	private static boolean isFormatError(IOException e) {
+		return e instanceof ZipException || e instanceof EOFException;
+	}
+
+	/**
+	 * @return true if the file could not be read
+	 */
+	boolean isUnreadable() {
+		return unreadable;
+	}
+
+	/**
+	 * @return true if the file could not be read because it doesn't exist
+	 */
+	boolean isFileMissing() {
+		return fileMissing;
+	}
+
+	/**
+	 * Sets where the entry is recorded if its file cannot be read, so that it is
+	 * not parsed again
+	 *
+	 * @param unavailablePDBCache
+	 */
+	void setUnavailablePDBCache(UnavailablePDBCache unavailablePDBCache) {
+		this.unavailablePDBCache = unavailablePDBCache;
+	}
+
+	/**
+	 * @param pdbFileManager the repository of the file, that is told if the
+	 *                       file doesn't exist
+	 */
+	void setPDBFileManager(PDBFileManager pdbFileManager) {
+		this.pdbFileManager = pdbFileManager;
+	}
+
+	/**
+	 * @return the index of the records of the whole file if it was already read,
+	 *         or otherwise of its header
+	 */
+	private PDBRecordIndex getHeaderRecordIndex() {
+		readHeader();
+		return fileRead ? recordIndex : headerRecordIndex;
+	}
+
+	/**
+	 * @return the reader of the whole file if it was already read, or otherwise
+	 *         of its header
+	 */
+	private MmCIFReader getHeaderMmCIFReader() {
+		readHeader();
+		return fileRead ? mmCIFReader : headerMmCIFReader;
+	}
+
+	/**
+	 * Gets the {@link PDBRecordIndex} of the file, scanning the file only the
+	 * first time it is called
+	 *
+	 * @return the index or null if it is not a PDB file or it could not be read
+	 */
+	private PDBRecordIndex getRecordIndex() {
+		readFile();
+		return recordIndex;
+	}
+
+	/**
+	 * @return the reader of the file or null if it is not a mmCIF file or it
+	 *         could not be read
+	 */
+	private MmCIFReader getMmCIFReader() {
+		readFile();
+		return mmCIFReader;
+	}
+
+	/**
+	 * Gets the lines of some header records, from the whole file if it was
+	 * already read or otherwise from its header
+	 *
+	 * @param types
+	 * @return
+	 */
+	private List<String> getRecordLines(PDBRecordType... types) {
+		final PDBRecordIndex index = getHeaderRecordIndex();
+		if (index == null) {
 			return Collections.emptyList();
-		} finally {
-			if (stream != null) {
-				stream.close();
+		}
+		return index.getLines(types);
+	}
+
+	/**
+	 * @return which models are read from structures with several models
+	 */
+	public ModelSelection getModelSelection() {
+		return modelSelection;
+	}
+
+	/**
+	 * Estimates the memory used by the parser from what it has read so far: the
+	 * content of the file, if it is kept, the atoms and their indexes
+	 *
+	 * @return the estimated size in bytes
+	 */
+	public long getEstimatedSize() {
+		long size = BASE_SIZE;
+		if (recordIndex != null) {
+			size += recordIndex.getEstimatedSize();
+		}
+		if (headerRecordIndex != null) {
+			size += headerRecordIndex.getEstimatedSize();
+		}
+		if (mmCIFReader != null) {
+			size += mmCIFReader.getEstimatedSize();
+		}
+		if (headerMmCIFReader != null) {
+			size += headerMmCIFReader.getEstimatedSize();
+		}
+		if (atomTable != null) {
+			size += atomTable.getEstimatedSize();
+			if (atomIndexes != null) {
+				for (final ResidueAtomIndex atomIndex : atomIndexes) {
+					if (atomIndex != null) {
+						size += atomIndex.size() * INDEX_SIZE_PER_ATOM;
+					}
+				}
+			}
+			// rows of the atoms by aminoacid and type
+			for (final Map<AtomType, TIntArrayList> rowsByType : atomsByAminoacidAndType.values()) {
+				for (final TIntArrayList rows : rowsByType.values()) {
+					size += rows.size() * 4L;
+				}
 			}
 		}
+		return size;
+	}
+
+	/**
+	 * @return which atoms are kept while reading the file
+	 */
+	public AtomSelection getAtomSelection() {
+		return atomSelection;
 	}
 
 	/**
@@ -378,12 +1028,17 @@ public class PDBParser {
 	}
 
 	/**
-	 * Gets the folder in which the PDB file is located
+	 * Gets the folder in which the PDB file is located, or the folder of its
+	 * archive
 	 *
 	 * @return
 	 */
 	public File getFileFolder() {
-		final File folder = new File(filePath).getParentFile();
+		final File file = new File(filePath);
+		if (PDBArchive.isMember(file)) {
+			return PDBArchive.getArchiveFile(file).getParentFile();
+		}
+		final File folder = file.getParentFile();
 		return folder;
 	}
 
@@ -423,18 +1078,34 @@ public class PDBParser {
 			AtomType atomType2) {
 		final Set<Distance> ret = new HashSet<Distance>();
 
-		final List<Atom3D> atoms2 = getAtomsByAminacidAndType(aa2, atomType2);
+		final TIntArrayList atoms2 = getAtomsByAminacidAndType(aa2, atomType2);
+		final AtomTable atoms = getAtoms();
+		final boolean sameTable = atom1.getTable() == atoms;
 
+		// only atoms of the same model
+		int modelStart = 0;
+		int modelEnd = atoms.size();
+		if (sameTable) {
+			final int model = atoms.getModelIndex(atom1.getRow());
+			modelStart = atoms.getModelStart(model);
+			modelEnd = atoms.getModelEnd(model);
+		}
 		for (int j = 0; j < atoms2.size(); j++) {
-			final Atom3D atom2 = atoms2.get(j);
-			final double distance = atom1.distance(atom2);
+			final int row2 = atoms2.get(j);
+			if (row2 < modelStart || row2 >= modelEnd) {
+				continue;
+			}
+			final Atom3D atom2 = atoms.getAtom(row2);
+			final double distance = sameTable ? atoms.distance(atom1.getRow(), row2) : atom1.distance(atom2);
 			if (!atom2.getChainID().contentEquals(atom1.getChainID())) {
-				if (minDistanceBetweenDifferentChains > distance) {
-					minDistanceBetweenDifferentChains = distance;
-					log.info("distance of atoms of different chains = " + distance + "\t" + atom1.getPositionInPDB()
-							+ atom1.getChainID() + "\t" + atom2.getPositionInPDB() + "-" + atom2.getAa() + "-"
-							+ atom2.getChainID());
+				synchronized (PDBParser.class) {
+					if (minDistanceBetweenDifferentChains > distance) {
+						minDistanceBetweenDifferentChains = distance;
+						log.info("distance of atoms of different chains = " + distance + "\t"
+								+ atom1.getPositionInPDB() + atom1.getChainID() + "\t" + atom2.getPositionInPDB() + "-"
+								+ atom2.getAa() + "-" + atom2.getChainID());
 
+					}
 				}
 			}
 
@@ -446,15 +1117,15 @@ public class PDBParser {
 		return ret;
 	}
 
-	private List<Atom3D> getAtomsByAminacidAndType(String aa, AtomType atomType) {
+	private TIntArrayList getAtomsByAminacidAndType(String aa, AtomType atomType) {
 		getAtoms();
 		if (atomsByAminoacidAndType.containsKey(aa)) {
-			final Map<AtomType, List<Atom3D>> atomsByType = atomsByAminoacidAndType.get(aa);
+			final Map<AtomType, TIntArrayList> atomsByType = atomsByAminoacidAndType.get(aa);
 			if (atomsByType.containsKey(atomType)) {
 				return atomsByType.get(atomType);
 			}
 		}
-		return Collections.emptyList();
+		return new TIntArrayList(0);
 	}
 
 	// private Set<Distance> parseDistanceOutput(double distanceThreshold,
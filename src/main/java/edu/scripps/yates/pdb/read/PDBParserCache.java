@@ -0,0 +1,211 @@
+package edu.scripps.yates.pdb.read;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import gnu.trove.map.hash.TObjectLongHashMap;
+import gnu.trove.set.hash.THashSet;
+
+/**
+ * Cache of {@link PDBParser}s bounded by their estimated memory (see
+ * {@link PDBParser#getEstimatedSize()}), so that the structures shared by
+ * several proteins, as complexes, are parsed once, without keeping all the
+ * structures of a run in memory.<br>
+ * When the parsers exceed the maximum size, the least recently used ones are
+ * evicted. As a parser reads its file lazily while it is used, its size is
+ * estimated again when it is got from the cache and, as it may have read more
+ * after that, when the next parser is added. The rest of the parsers are not
+ * estimated again, so that adding a parser doesn't depend on the number of
+ * parsers in the cache.<br>
+ * The evicted parsers are closed (see {@link PDBParser#close()}).<br>
+ * The cache is shared by the managers of all the repositories, so the keys
+ * have to include the repository of the structure.
+ *
+ * @author Salva
+ *
+ */
+public class PDBParserCache {
+	private final static Logger log = Logger.getLogger(PDBParserCache.class);
+	// a quarter of the heap
+	public static final long DEFAULT_MAX_SIZE = Runtime.getRuntime().maxMemory() / 4;
+	// in access order, from the least to the most recently used
+	private final LinkedHashMap<String, PDBParser> parsers = new LinkedHashMap<String, PDBParser>(16, 0.75f, true);
+	private final TObjectLongHashMap<String> sizes = new TObjectLongHashMap<String>();
+	// parsers got or added since the last parser was added
+	private final Set<String> usedKeys = new THashSet<String>();
+	private long maxSize;
+	private long size = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public PDBParserCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 *
+	 * @param maxSize maximum estimated size of the parsers, in bytes
+	 */
+	public PDBParserCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param key
+	 * @return the parser or null if it is not in the cache
+	 */
+	public synchronized PDBParser get(String key) {
+		final PDBParser parser = parsers.get(key);
+		if (parser == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		// it may have read more since it was added
+		if (updateSize(key, parser)) {
+			evict(key);
+		}
+		usedKeys.add(key);
+		return parser;
+	}
+
+	/**
+	 * Gets a parser without counting it as a hit or a miss, to check again
+	 * whether it was added while waiting to create it
+	 *
+	 * @param key
+	 * @return the parser or null if it is not in the cache
+	 */
+	synchronized PDBParser peek(String key) {
+		return parsers.get(key);
+	}
+
+	/**
+	 * Adds a parser, evicting the least recently used ones if the cache gets
+	 * larger than its maximum size
+	 *
+	 * @param key
+	 * @param parser
+	 */
+	public synchronized void put(String key, PDBParser parser) {
+		final PDBParser previous = parsers.put(key, parser);
+		if (previous != null) {
+			size -= sizes.remove(key);
+			if (previous != parser) {
+				previous.close();
+			}
+		}
+		// the parsers used since the last one was added may have read more
+		for (final String usedKey : usedKeys) {
+			final PDBParser usedParser = parsers.get(usedKey);
+			if (usedParser != null && !usedKey.equals(key)) {
+				updateSize(usedKey, usedParser);
+			}
+		}
+		usedKeys.clear();
+		usedKeys.add(key);
+		updateSize(key, parser);
+		evict(key);
+	}
+
+	/**
+	 * Estimates again the size of a parser
+	 *
+	 * @param key
+	 * @param parser
+	 * @return true if the size of the cache increased
+	 */
+	private boolean updateSize(String key, PDBParser parser) {
+		final long parserSize = parser.getEstimatedSize();
+		// 0 if it was not there
+		final long previousSize = sizes.put(key, parserSize);
+		final long increase = parserSize - previousSize;
+		size += increase;
+		return increase > 0;
+	}
+
+	/**
+	 * Evicts the least recently used parsers until the cache is not larger than
+	 * its maximum size, except the one that is being used
+	 *
+	 * @param keyInUse
+	 */
+	private void evict(String keyInUse) {
+		final Iterator<Map.Entry<String, PDBParser>> iterator = parsers.entrySet().iterator();
+		while (size > maxSize && iterator.hasNext()) {
+			final Map.Entry<String, PDBParser> entry = iterator.next();
+			final String key = entry.getKey();
+			if (key.equals(keyInUse)) {
+				continue;
+			}
+			final PDBParser parser = entry.getValue();
+			iterator.remove();
+			parser.close();
+			size -= sizes.remove(key);
+			usedKeys.remove(key);
+			evictions++;
+			log.debug("Parser " + key + " evicted from cache");
+		}
+	}
+
+	public synchronized void clear() {
+		for (final PDBParser parser : parsers.values()) {
+			parser.close();
+		}
+		parsers.clear();
+		sizes.clear();
+		usedKeys.clear();
+		size = 0;
+	}
+
+	/**
+	 * @param maxSize maximum estimated size of the parsers, in bytes
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		evict(null);
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the estimated size of the parsers in the cache, in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of parsers in the cache
+	 */
+	public synchronized int getNumParsers() {
+		return parsers.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		final long requests = hits + misses;
+		return "Parser cache: " + parsers.size() + " parsers, " + size / 1024 / 1024 + "MB of " + maxSize / 1024 / 1024
+				+ "MB, " + hits + " hits, " + misses + " misses ("
+				+ (requests > 0 ? hits * 100 / requests : 0) + "% hit rate), " + evictions + " evictions";
+	}
+}
@@ -2,28 +2,71 @@ package edu.scripps.yates.pdb.read;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
 
-import gnu.trove.map.hash.THashMap;
 import gnu.trove.set.hash.THashSet;
 
 public class PDBParserManager {
 	// static variables
-	private final static Map<String, PDBParser> staticParsersMap = new THashMap<String, PDBParser>();
-	private static final Set<String> pdbsNotRetrieved = new THashSet<String>();;
+	// shared by all the managers, so that a structure used in several
+	// calculations is parsed once
+	private final static PDBParserCache parserCache = new PDBParserCache();
+	// entries that failed with a temporary error in this run. The ones that
+	// are not available are kept in the UnavailablePDBCache
+	private static final Set<String> pdbsNotRetrieved = Collections.synchronizedSet(new THashSet<String>());
+	// parsers being created and files being downloaded, so that concurrent
+	// requests of the same entry wait for the same one instead of repeating it
+	private static final ConcurrentMap<String, CompletableFuture<PDBParser>> parsersInFlight = new ConcurrentHashMap<String, CompletableFuture<PDBParser>>();
+	private static final ConcurrentMap<String, CompletableFuture<File>> filesInFlight = new ConcurrentHashMap<String, CompletableFuture<File>>();
+	private final static Logger log = Logger.getLogger(PDBParserManager.class);
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// number of bytes read to check the type of a file
+	private static final int MIN_FILE_START = 16;
+	// extension of the files being downloaded, that are moved to their
+	// location in the repository once they are complete and valid
+	private static final String PART_EXTENSION = ".part";
 
 	// non static variables
 	private final PDBFileManager pdbFileManager;
-	private boolean keepManagersInMemory = false;
-	private final Map<String, PDBParser> parsersMap = new THashMap<String, PDBParser>();
+	private final UnavailablePDBCache unavailablePDBCache;
+	private final DBRefIndex dbRefIndex;
+	private ModelSelection modelSelection = ModelSelection.FIRST;
+	private AtomSelection atomSelection = AtomSelection.ALL;
 
 	public PDBParserManager(File parentFolder) {
 		pdbFileManager = PDBFileManager.getInstance(parentFolder);
+		unavailablePDBCache = UnavailablePDBCache.getInstance(parentFolder);
+		dbRefIndex = DBRefIndex.getInstance(parentFolder);
 	}
 
+	/**
+	 * Removes all the parsers from the cache of parsers
+	 */
 	public void clearParsers() {
-		parsersMap.clear();
+		parserCache.clear();
+	}
+
+	/**
+	 * @return the cache of parsers shared by all the managers
+	 */
+	public static PDBParserCache getParserCache() {
+		return parserCache;
 	}
 
 	public PDBParser getPDBParserByPDBID(String pdbID, boolean parseCoordinates) {
@@ -31,39 +74,324 @@ public class PDBParserManager {
 		if (pdbsNotRetrieved.contains(pdbID)) {
 			return null;
 		}
-		if (!staticParsersMap.containsKey(pdbID) && !parsersMap.containsKey(pdbID)) {
+		// if it could not be read before, don't try again
+		if (unavailablePDBCache.isUnavailable(pdbID, UnavailablePDBCache.Reason.PARSE_ERROR)) {
+			return null;
+		}
+		// parsers of the same entry in other repositories, with other models or
+		// atoms, or without coordinates, are different parsers
+		final String key = pdbFileManager.getParentPath().getAbsolutePath() + File.separator + pdbID + "_"
+				+ modelSelection + "_" + atomSelection + "_" + parseCoordinates;
+		final PDBParser parser = parserCache.get(key);
+		// a parser whose file was missing is replaced, as the entry may be
+		// retrieved again
+		if (parser != null && !parser.isFileMissing()) {
+			return parser;
+		}
+		final CompletableFuture<PDBParser> future = new CompletableFuture<PDBParser>();
+		final CompletableFuture<PDBParser> inFlight = parsersInFlight.putIfAbsent(key, future);
+		if (inFlight != null) {
+			// other thread is creating it
 			try {
-				// get from local file system
-				File pdbFile = pdbFileManager.getPDBFile(pdbID);
-				if (pdbFile == null) {
-					// get from server
-					pdbFile = PDBFileRetriever.getPDBFile(pdbID);
-					if (pdbFile != null) {
-						// save to local file system
-						pdbFile = pdbFileManager.savePDBFile(pdbFile, pdbID);
+				return inFlight.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (final ExecutionException e) {
+				e.printStackTrace();
+			}
+			return null;
+		}
+		try {
+			final PDBParser newParser = createPDBParser(pdbID, parseCoordinates, key);
+			future.complete(newParser);
+			return newParser;
+		} catch (final RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			parsersInFlight.remove(key, future);
+		}
+	}
+
+	private PDBParser createPDBParser(String pdbID, boolean parseCoordinates, String key) {
+		// it may have been created while waiting
+		PDBParser parser = parserCache.peek(key);
+		if (parser != null && !parser.isFileMissing()) {
+			return parser;
+		}
+		try {
+			final File pdbFile = retrievePDBFile(pdbID);
+			if (pdbFile == null) {
+				return null;
+			}
+			parser = new PDBParser(pdbFile.getAbsolutePath(), pdbID, parseCoordinates, modelSelection, atomSelection);
+			parser.setUnavailablePDBCache(unavailablePDBCache);
+			parser.setPDBFileManager(pdbFileManager);
+			parserCache.put(key, parser);
+			return parser;
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the structure file of an entry from the local repository or, if it is
+	 * not there, downloads it, validates it and saves it in the repository.
+	 * Entries that cannot be retrieved are remembered, so that they are not
+	 * requested again: the ones that are not available are recorded in the
+	 * {@link UnavailablePDBCache} of the repository, so that they are not
+	 * requested again in later runs until they expire, and the ones that failed
+	 * with a temporary error are not requested again in this run.<br>
+	 * It can be called from several threads. If several threads request the
+	 * same entry, it is downloaded once.
+	 *
+	 * @param pdbID
+	 * @return the file in the local repository or null if it could not be
+	 *         retrieved
+	 * @throws IOException
+	 */
+	public File retrievePDBFile(String pdbID) throws IOException {
+		try {
+			return retrievePDBFileAsync(pdbID).get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while retrieving " + pdbID, e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Error retrieving " + pdbID, e.getCause());
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #retrievePDBFile(String)}: the entries that
+	 * are in the local repository are returned right away, and the rest are
+	 * downloaded by the {@link PDBFileRetriever} to a temporary file next to
+	 * their location in the repository, that is moved there once it is complete
+	 * and valid, so that a partial file is never taken as the entry. The PDB
+	 * format is tried first, then the mmCIF format. Concurrent requests of an
+	 * entry that is being downloaded get the future of that download.
+	 *
+	 * @param pdbID
+	 * @return a future with the file in the local repository or with null if it
+	 *         could not be retrieved
+	 */
+	public CompletableFuture<File> retrievePDBFileAsync(final String pdbID) {
+		if (pdbsNotRetrieved.contains(pdbID)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		// checked before the repository, so that it waits for the download
+		final String key = pdbFileManager.getParentPath().getAbsolutePath() + File.separator + pdbID.toUpperCase();
+		final CompletableFuture<File> downloading = filesInFlight.get(key);
+		if (downloading != null) {
+			return downloading;
+		}
+		final File pdbFile = getLocalFile(pdbID);
+		if (pdbFile != null) {
+			return CompletableFuture.completedFuture(pdbFile);
+		}
+		final CompletableFuture<File> future = new CompletableFuture<File>();
+		final CompletableFuture<File> inFlight = filesInFlight.putIfAbsent(key, future);
+		if (inFlight != null) {
+			return inFlight;
+		}
+		// it may have been downloaded since it was looked up
+		CompletableFuture<File> download;
+		try {
+			final File downloadedFile = getLocalFile(pdbID);
+			download = downloadedFile != null ? CompletableFuture.completedFuture(downloadedFile)
+					: downloadPDBFile(pdbID);
+		} catch (final RuntimeException e) {
+			download = new CompletableFuture<File>();
+			download.completeExceptionally(e);
+		}
+		download.whenComplete(new BiConsumer<File, Throwable>() {
+			@Override
+			public void accept(File file, Throwable error) {
+				filesInFlight.remove(key, future);
+				if (error != null) {
+					future.completeExceptionally(error);
+				} else {
+					future.complete(file);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * @param pdbID
+	 * @return the file of the entry in the local repository or null if it is not
+	 *         there
+	 */
+	public File getLocalFile(String pdbID) {
+		try {
+			final File pdbFile = pdbFileManager.getPDBFile(pdbID);
+			if (pdbFile != null) {
+				return pdbFile;
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error looking for PDB entry " + pdbID + ": " + e.getMessage());
+		}
+		return pdbFileManager.getMmCIFFile(pdbID);
+	}
+
+	/**
+	 * Downloads an entry to the local repository, unless it is not available
+	 *
+	 * @param pdbID
+	 * @return a future with the file in the local repository or with null if it
+	 *         could not be retrieved
+	 */
+	private CompletableFuture<File> downloadPDBFile(final String pdbID) {
+		// checked before getting the destinations, that create their folders
+		final UnavailablePDBCache.UnavailableEntry unavailableEntry = unavailablePDBCache.get(pdbID);
+		if (unavailableEntry != null && unavailableEntry.getReason() != UnavailablePDBCache.Reason.PARSE_ERROR) {
+			log.debug("PDB entry " + pdbID + " is not available: " + unavailableEntry.getReason());
+			return CompletableFuture.completedFuture(null);
+		}
+		final File pdbDestination = pdbFileManager.getPDBFileDestination(pdbID);
+		final File mmCIFDestination = pdbFileManager.getMmCIFFileDestination(pdbID);
+		if (pdbDestination == null || mmCIFDestination == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		final File pdbPart = new File(pdbDestination.getAbsolutePath() + PART_EXTENSION);
+		final File mmCIFPart = new File(mmCIFDestination.getAbsolutePath() + PART_EXTENSION);
+		// whether some of the downloaded files was not valid
+		final AtomicBoolean invalidFile = new AtomicBoolean(false);
+		// get from server, already compressed
+		return PDBFileRetriever.downloadPDBGZipFile(pdbID, pdbPart)
+				.thenApply(validator(false, invalidFile, pdbDestination))
+				.thenCompose(new Function<File, CompletionStage<File>>() {
+					@Override
+					public CompletionStage<File> apply(File pdbFile) {
+						if (pdbFile != null) {
+							return CompletableFuture.completedFuture(pdbFile);
+						}
+						return PDBFileRetriever.downloadPDBFile(pdbID, pdbPart)
+								.thenApply(validator(false, invalidFile, pdbDestination));
 					}
-					if (pdbFile == null) {
-						pdbsNotRetrieved.add(pdbID);
-						return null;
+				}).thenCompose(new Function<File, CompletionStage<File>>() {
+					@Override
+					public CompletionStage<File> apply(File pdbFile) {
+						if (pdbFile != null) {
+							return CompletableFuture.completedFuture(pdbFileManager.addPDBFile(pdbID, pdbFile));
+						}
+						// large entries are only available as mmCIF
+						return PDBFileRetriever.downloadMmCIFGZipFile(pdbID, mmCIFPart)
+								.thenApply(validator(true, invalidFile, mmCIFDestination)).thenApply(new Function<File, File>() {
+									@Override
+									public File apply(File mmCIFFile) {
+										if (mmCIFFile == null) {
+											unavailablePDBCache.add(pdbID,
+													invalidFile.get() ? UnavailablePDBCache.Reason.INVALID_FILE
+															: UnavailablePDBCache.Reason.NOT_FOUND);
+											return null;
+										}
+										return pdbFileManager.addMmCIFFile(pdbID, mmCIFFile);
+									}
+								});
 					}
-				}
+				}).whenComplete(new BiConsumer<File, Throwable>() {
+					@Override
+					public void accept(File pdbFile, Throwable error) {
+						if (error != null) {
+							pdbsNotRetrieved.add(pdbID);
+						}
+					}
+				});
+	}
 
-				PDBParser parser = new PDBParser(pdbFile.getAbsolutePath(), pdbID, parseCoordinates);
-				parsersMap.put(pdbID, parser);
-				if (keepManagersInMemory) {
-					staticParsersMap.put(pdbID, parser);
+	/**
+	 * @param mmCIF
+	 * @param invalidFile set to true if a downloaded file is not valid
+	 * @param destination location of the file in the repository
+	 * @return a function that moves the valid files to their destination,
+	 *         returning it, and returns null for the rest
+	 */
+	private static Function<File, File> validator(final boolean mmCIF, final AtomicBoolean invalidFile,
+			final File destination) {
+		return new Function<File, File>() {
+			@Override
+			public File apply(File file) {
+				final File validFile = getValidFile(file, mmCIF);
+				if (validFile == null) {
+					if (file != null) {
+						invalidFile.set(true);
+					}
+					return null;
 				}
-				return parser;
-
-			} catch (IOException e) {
-				e.printStackTrace();
+				try {
+					Files.move(validFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				} catch (final IOException e) {
+					validFile.delete();
+					throw new UncheckedIOException("Error moving " + validFile + " to " + destination, e);
+				}
+				return destination;
 			}
+		};
+	}
+
+	/**
+	 * Checks that a downloaded file is complete and is a structure file, and
+	 * not, for example, an error page. The whole file is read, so that a
+	 * truncated gzip file fails its checksum
+	 *
+	 * @param file
+	 * @param mmCIF whether it has to be a mmCIF file or a PDB file
+	 * @return the file or null if it is not valid, in which case it is deleted
+	 */
+	private static File getValidFile(File file, boolean mmCIF) {
+		if (file == null) {
+			return null;
 		}
-		if (parsersMap.containsKey(pdbID)) {
-			return parsersMap.get(pdbID);
+		InputStream is = null;
+		try {
+			is = PDBFileContentCache.getInputStream(file);
+			final byte[] start = new byte[MIN_FILE_START];
+			int length = 0;
+			int read = 0;
+			while (length < start.length && (read = is.read(start, length, start.length - length)) != -1) {
+				length += read;
+			}
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			while (is.read(buffer) != -1) {
+				// reading until the end checks the gzip checksum
+			}
+			if (length > 0 && isStructureFileStart(new String(start, 0, length, StandardCharsets.US_ASCII), mmCIF)) {
+				return file;
+			}
+			log.warn("Downloaded file " + file + " is not a " + (mmCIF ? "mmCIF" : "PDB") + " file");
+		} catch (final IOException e) {
+			log.warn("Downloaded file " + file + " is not valid: " + e.getMessage());
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
 		}
-		return staticParsersMap.get(pdbID);
+		file.delete();
+		return null;
+	}
 
+	private static boolean isStructureFileStart(String start, boolean mmCIF) {
+		if (mmCIF) {
+			return start.startsWith("data_");
+		}
+		// PDB files start with a record name in upper case, as HEADER
+		int i = 0;
+		while (i < start.length() && start.charAt(i) >= 'A' && start.charAt(i) <= 'Z') {
+			i++;
+		}
+		return i >= 3 && (i == start.length() || start.charAt(i) == ' ' || start.charAt(i) == '\n'
+				|| start.charAt(i) == '\r');
 	}
 
 	/**
@@ -74,17 +402,53 @@ public class PDBParserManager {
 	}
 
 	/**
-	 * @return the keepManagersInMemory
+	 * @return the entries of the repository that are not available
+	 */
+	public UnavailablePDBCache getUnavailablePDBCache() {
+		return unavailablePDBCache;
+	}
+
+	/**
+	 * @return the index of the references to UniProtKB of the structures of
+	 *         the repository
+	 */
+	public DBRefIndex getDBRefIndex() {
+		return dbRefIndex;
+	}
+
+	/**
+	 * @return which models are read from structures with several models, as NMR
+	 *         structures
+	 */
+	public ModelSelection getModelSelection() {
+		return modelSelection;
+	}
+
+	/**
+	 * @param modelSelection
+	 *            which models are read from structures with several models, as
+	 *            NMR structures. By default, only the first model. The
+	 *            calculators only use the first model read, so
+	 *            {@link ModelSelection#ALL} is only useful when reading the
+	 *            parsers directly
+	 */
+	public void setModelSelection(ModelSelection modelSelection) {
+		this.modelSelection = modelSelection;
+	}
+
+	/**
+	 * @return which atoms are kept while reading the structures
 	 */
-	public boolean isKeepManagersInMemory() {
-		return keepManagersInMemory;
+	public AtomSelection getAtomSelection() {
+		return atomSelection;
 	}
 
 	/**
-	 * @param keepManagersInMemory
-	 *            the keepManagersInMemory to set
+	 * @param atomSelection
+	 *            which atoms are kept while reading the structures. By
+	 *            default, all of them
 	 */
-	public void setKeepManagersInMemory(boolean keepManagersInMemory) {
-		this.keepManagersInMemory = keepManagersInMemory;
+	public void setAtomSelection(AtomSelection atomSelection) {
+		this.atomSelection = atomSelection;
 	}
 }
@@ -0,0 +1,123 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.annotations.uniprot.xml.DbReferenceType;
+import edu.scripps.yates.utilities.annotations.uniprot.xml.Entry;
+import edu.scripps.yates.utilities.progresscounter.ProgressCounter;
+import edu.scripps.yates.utilities.progresscounter.ProgressPrintingType;
+import gnu.trove.set.hash.THashSet;
+
+/**
+ * Downloads in parallel the structure files that are not in the local
+ * repository, before the calculations start, so that the calculations don't
+ * wait for sequential downloads.<br>
+ * The files are retrieved and validated with
+ * {@link PDBParserManager#retrievePDBFileAsync(String)}, all of them submitted
+ * at once, and the number of concurrent downloads is bounded by the
+ * {@link PDBFileRetriever}.
+ *
+ * @author Salva
+ *
+ */
+public class PDBPrefetcher {
+	private final static Logger log = Logger.getLogger(PDBPrefetcher.class);
+	private final PDBParserManager pdbParserManager;
+
+	public PDBPrefetcher(PDBParserManager pdbParserManager) {
+		this.pdbParserManager = pdbParserManager;
+	}
+
+	/**
+	 * Gets the IDs of all the PDB entries referenced by some UniprotKB entries
+	 *
+	 * @param entries
+	 * @return
+	 */
+	public static Set<String> getPDBIDs(Collection<Entry> entries) {
+		final Set<String> ret = new THashSet<String>();
+		for (final Entry entry : entries) {
+			if (entry == null || entry.getDbReference() == null) {
+				continue;
+			}
+			for (final DbReferenceType dbReference : entry.getDbReference()) {
+				if ("PDB".equals(dbReference.getType())) {
+					ret.add(dbReference.getId());
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Retrieves the PDB entries referenced by some UniprotKB entries that are not
+	 * in the local repository yet
+	 *
+	 * @param entries
+	 * @return the number of entries available after the prefetch
+	 */
+	public int prefetchFromEntries(Collection<Entry> entries) {
+		return prefetch(getPDBIDs(entries));
+	}
+
+	/**
+	 * Retrieves the entries that are not in the local repository yet, waiting
+	 * until all of them are retrieved or failed
+	 *
+	 * @param pdbIDs
+	 * @return the number of entries available after the prefetch
+	 */
+	public int prefetch(Collection<String> pdbIDs) {
+		if (pdbIDs.isEmpty()) {
+			return 0;
+		}
+		final long t1 = System.currentTimeMillis();
+		log.info("Retrieving " + pdbIDs.size() + " PDB entries with up to "
+				+ PDBFileRetriever.getMaxInFlightRequests() + " concurrent downloads...");
+		final ProgressCounter counter = new ProgressCounter(pdbIDs.size(), ProgressPrintingType.PERCENTAGE_STEPS, 0);
+		final AtomicInteger retrieved = new AtomicInteger();
+		final List<CompletableFuture<File>> futures = new ArrayList<CompletableFuture<File>>();
+		for (final String pdbID : pdbIDs) {
+			futures.add(pdbParserManager.retrievePDBFileAsync(pdbID).whenComplete(new BiConsumer<File, Throwable>() {
+				@Override
+				public void accept(File pdbFile, Throwable error) {
+					if (pdbFile != null) {
+						retrieved.incrementAndGet();
+					} else if (error != null) {
+						log.warn("Error retrieving PDB entry " + pdbID + ": " + error.getMessage());
+					} else {
+						log.info("PDB entry " + pdbID + " could not be retrieved");
+					}
+					synchronized (counter) {
+						counter.increment();
+						final String percentage = counter.printIfNecessary();
+						if (percentage != null && !"".equals(percentage)) {
+							log.info(percentage);
+						}
+					}
+				}
+			}));
+		}
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("PDB prefetch interrupted");
+		} catch (final ExecutionException e) {
+			// already logged for each entry
+		}
+		log.info(retrieved.get() + " out of " + pdbIDs.size() + " PDB entries available in "
+				+ (System.currentTimeMillis() - t1) / 1000 + "sg");
+		return retrieved.get();
+	}
+}
@@ -0,0 +1,244 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Index of the records of a PDB formatted file.<br>
+ * The file is read only once, and the byte offset and length of each line of
+ * the types in {@link PDBRecordType} is kept, so that any later query about
+ * these records is served from this index without reading the file again.
+ *
+ * @author Salva
+ *
+ */
+public class PDBRecordIndex {
+	private final static Logger log = Logger.getLogger(PDBRecordIndex.class);
+	private final ByteBuffer data;
+	private final Map<PDBRecordType, TIntArrayList> offsetsByType = new EnumMap<PDBRecordType, TIntArrayList>(
+			PDBRecordType.class);
+	private final Map<PDBRecordType, TIntArrayList> lengthsByType = new EnumMap<PDBRecordType, TIntArrayList>(
+			PDBRecordType.class);
+
+	private PDBRecordIndex(ByteBuffer data) {
+		this.data = data;
+		for (final PDBRecordType type : PDBRecordType.values()) {
+			offsetsByType.put(type, new TIntArrayList());
+			lengthsByType.put(type, new TIntArrayList());
+		}
+		scan();
+	}
+
+	/**
+	 * Reads the file and scans it once, indexing all its records. Gzip
+	 * compressed files are decompressed in memory.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static PDBRecordIndex scan(File file) throws IOException {
+		return scan(PDBFileContentCache.getContent(file));
+	}
+
+	/**
+	 * Scans the content of a PDB file once, indexing all its records
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static PDBRecordIndex scan(ByteBuffer data) {
+		final long t1 = System.currentTimeMillis();
+		final PDBRecordIndex ret = new PDBRecordIndex(data);
+		log.debug("PDB data indexed in " + (System.currentTimeMillis() - t1) + "ms");
+		return ret;
+	}
+
+	/**
+	 * Scans the data from the beginning to the end, keeping the offsets of the
+	 * lines by record type
+	 */
+	private void scan() {
+		final int limit = data.limit();
+		int lineStart = 0;
+		while (lineStart < limit) {
+			int lineEnd = lineStart;
+			while (lineEnd < limit && data.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			int lineLength = lineEnd - lineStart;
+			if (lineLength > 0 && data.get(lineEnd - 1) == '\r') {
+				lineLength--;
+			}
+			final PDBRecordType type = PDBRecordType.getRecordType(data, lineStart, lineLength);
+			if (type != null) {
+				offsetsByType.get(type).add(lineStart);
+				lengthsByType.get(type).add(lineLength);
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	/**
+	 * Gets the number of records of a certain type
+	 *
+	 * @param type
+	 * @return
+	 */
+	public int getNumRecords(PDBRecordType type) {
+		return offsetsByType.get(type).size();
+	}
+
+	/**
+	 * Gets the byte offset in the data of the i-th record of a type
+	 *
+	 * @param type
+	 * @param i
+	 * @return
+	 */
+	public int getOffset(PDBRecordType type, int i) {
+		return offsetsByType.get(type).get(i);
+	}
+
+	/**
+	 * Gets the length in bytes (without line terminator) of the i-th record of a
+	 * type
+	 *
+	 * @param type
+	 * @param i
+	 * @return
+	 */
+	public int getLength(PDBRecordType type, int i) {
+		return lengthsByType.get(type).get(i);
+	}
+
+	/**
+	 * Gets the number of the i-th model of the file, from its MODEL record
+	 *
+	 * @param i
+	 * @return the model number or {@link Integer#MIN_VALUE} if it is not valid
+	 */
+	public int getModelNumber(int i) {
+		final int offset = getOffset(PDBRecordType.MODEL, i);
+		final int length = getLength(PDBRecordType.MODEL, i);
+		// model serial number in columns 11-14, although some programs write it
+		// anywhere after the record name
+		int start = offset + PDBRecordType.MODEL.name().length();
+		while (start < offset + length && data.get(start) == ' ') {
+			start++;
+		}
+		int end = start;
+		while (end < offset + length && data.get(end) != ' ') {
+			end++;
+		}
+		return AtomRecordParser.parseInt(data, start, end);
+	}
+
+	/**
+	 * Gets the index of the first ATOM record after the i-th MODEL record, so
+	 * that the ATOM records of that model go from there to the first ATOM record
+	 * of the next model, without having to go through the ATOM records of other
+	 * models
+	 *
+	 * @param i
+	 * @return
+	 */
+	public int getFirstAtomOfModel(int i) {
+		final int index = offsetsByType.get(PDBRecordType.ATOM).binarySearch(getOffset(PDBRecordType.MODEL, i));
+		// there are no ATOM records at the offset of a MODEL record, so it is
+		// the insertion point
+		return -index - 1;
+	}
+
+	/**
+	 * @return an estimation of the heap memory used by the index, including the
+	 *         content of the file unless it is memory mapped, in bytes
+	 */
+	public long getEstimatedSize() {
+		// a mapped file is out of the heap, in the page cache
+		long size = data.isDirect() ? 0 : data.capacity();
+		for (final TIntArrayList offsets : offsetsByType.values()) {
+			// offset and length of each record
+			size += offsets.size() * 8L;
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the underlying data of the file. Lines are located in it by
+	 * {@link #getOffset(PDBRecordType, int)} and
+	 * {@link #getLength(PDBRecordType, int)}
+	 *
+	 * @return
+	 */
+	public ByteBuffer getData() {
+		return data;
+	}
+
+	/**
+	 * Gets the text of the i-th record of a type
+	 *
+	 * @param type
+	 * @param i
+	 * @return
+	 */
+	public String getLine(PDBRecordType type, int i) {
+		return getLine(getOffset(type, i), getLength(type, i));
+	}
+
+	private String getLine(int offset, int length) {
+		final byte[] bytes = new byte[length];
+		final ByteBuffer duplicate = data.duplicate();
+		duplicate.position(offset);
+		duplicate.get(bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Gets the text of all the records of the provided types, in the same order
+	 * as they appear in the file
+	 *
+	 * @param types
+	 * @return
+	 */
+	public List<String> getLines(PDBRecordType... types) {
+		if (types.length == 1) {
+			final int num = getNumRecords(types[0]);
+			if (num == 0) {
+				return Collections.emptyList();
+			}
+			final List<String> ret = new ArrayList<String>(num);
+			for (int i = 0; i < num; i++) {
+				ret.add(getLine(types[0], i));
+			}
+			return ret;
+		}
+		// merge the offsets of the different types keeping the file order
+		final TIntArrayList offsets = new TIntArrayList();
+		for (final PDBRecordType type : types) {
+			offsets.addAll(offsetsByType.get(type));
+		}
+		offsets.sort();
+		final List<String> ret = new ArrayList<String>(offsets.size());
+		for (int i = 0; i < offsets.size(); i++) {
+			final int offset = offsets.get(i);
+			int end = offset;
+			while (end < data.limit() && data.get(end) != '\n' && data.get(end) != '\r') {
+				end++;
+			}
+			ret.add(getLine(offset, end - offset));
+		}
+		return ret;
+	}
+}
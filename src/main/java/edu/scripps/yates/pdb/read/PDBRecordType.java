@@ -0,0 +1,83 @@
+package edu.scripps.yates.pdb.read;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Types of records of a PDB formatted file that are indexed by the
+ * {@link PDBRecordIndex}. The name of the record is the one in the first 6
+ * columns of the line.
+ *
+ * @author Salva
+ *
+ */
+public enum PDBRecordType {
+	HEADER("HEADER"), EXPDTA("EXPDTA"), COMPND("COMPND"), DBREF("DBREF "), DBREF1("DBREF1"), DBREF2("DBREF2"), //
+	SEQRES("SEQRES"), ATOM("ATOM  "), HETATM("HETATM"), MODEL("MODEL "), ENDMDL("ENDMDL");
+
+	private final byte[] recordName;
+
+	private PDBRecordType(String recordName) {
+		this.recordName = recordName.getBytes();
+	}
+
+	/**
+	 * Gets the {@link PDBRecordType} of the line starting at the given offset of
+	 * the buffer, looking at the first 6 columns
+	 *
+	 * @param data
+	 * @param lineStart
+	 * @param lineLength
+	 * @return the {@link PDBRecordType} or null if the record is not one of the
+	 *         indexed types
+	 */
+	public static PDBRecordType getRecordType(ByteBuffer data, int lineStart, int lineLength) {
+		if (lineLength < 4) {
+			return null;
+		}
+		// most of the lines of a file are ATOM lines, so check them first
+		switch (data.get(lineStart)) {
+		case 'A':
+			return matches(ATOM, data, lineStart, lineLength) ? ATOM : null;
+		case 'H':
+			if (matches(HETATM, data, lineStart, lineLength)) {
+				return HETATM;
+			}
+			return matches(HEADER, data, lineStart, lineLength) ? HEADER : null;
+		case 'E':
+			if (matches(ENDMDL, data, lineStart, lineLength)) {
+				return ENDMDL;
+			}
+			return matches(EXPDTA, data, lineStart, lineLength) ? EXPDTA : null;
+		case 'C':
+			return matches(COMPND, data, lineStart, lineLength) ? COMPND : null;
+		case 'D':
+			if (matches(DBREF, data, lineStart, lineLength)) {
+				return DBREF;
+			}
+			if (matches(DBREF1, data, lineStart, lineLength)) {
+				return DBREF1;
+			}
+			return matches(DBREF2, data, lineStart, lineLength) ? DBREF2 : null;
+		case 'S':
+			return matches(SEQRES, data, lineStart, lineLength) ? SEQRES : null;
+		case 'M':
+			return matches(MODEL, data, lineStart, lineLength) ? MODEL : null;
+		default:
+			return null;
+		}
+	}
+
+	private static boolean matches(PDBRecordType type, ByteBuffer data, int lineStart, int lineLength) {
+		final byte[] name = type.recordName;
+		for (int i = 0; i < name.length; i++) {
+			if (i >= lineLength) {
+				// short lines such as "ATOM" or "MODEL" padded with nothing
+				return name[i] == ' ';
+			}
+			if (data.get(lineStart + i) != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -12,6 +12,45 @@ import gnu.trove.set.hash.THashSet;
 
 public class PDBUtil {
 	private final static Logger log = Logger.getLogger(PDBUtil.class);
+	private final static String[] chainIDs = new String[256];
+	static {
+		for (int i = 0; i < chainIDs.length; i++) {
+			chainIDs[i] = String.valueOf((char) i);
+		}
+	}
+	// one letter codes of the aminoacids as Strings, by character
+	private final static String[] oneLetterAAs = new String[128];
+	private final static String[] threeLetterAAs = { "ALA", "HIS", "ARG", "PHE", "CYS", "GLY", "GLN", "GLU", "ASP",
+			"LYS", "LEU", "MET", "ASN", "SER", "TYR", "THR", "ILE", "TRP", "PRO", "VAL", "CGU", "UNK" };
+	// packed three letter code -> one letter code
+	private final static PackedNameTable aasByPackedName;
+	static {
+		final int[] packedNames = new int[threeLetterAAs.length];
+		final int[] aas = new int[threeLetterAAs.length];
+		for (int i = 0; i < threeLetterAAs.length; i++) {
+			packedNames[i] = PackedNameTable.pack(threeLetterAAs[i]);
+			aas[i] = parseAA(threeLetterAAs[i]).charAt(0);
+		}
+		aasByPackedName = new PackedNameTable(packedNames, aas, ' ');
+		oneLetterAAs[' '] = " ";
+		for (final int aa : aas) {
+			oneLetterAAs[aa] = String.valueOf((char) aa);
+		}
+	}
+
+	/**
+	 * Gets the chain identifier as a String from the one character chain
+	 * identifier of a PDB file, without creating a new String each time
+	 *
+	 * @param chainID
+	 * @return
+	 */
+	public static String getChainID(char chainID) {
+		if (chainID < chainIDs.length) {
+			return chainIDs[chainID];
+		}
+		return String.valueOf(chainID);
+	}
 
 	public static String parseAA(String threeLetterAA) {
 		if (threeLetterAA.length() != 3) {
@@ -68,6 +107,19 @@ public class PDBUtil {
 		}
 	}
 
+	/**
+	 * Same as {@link #parseAA(String)} but with the three letter code packed in an
+	 * int, one byte per character, as read by {@link AtomRecordParser}. It is
+	 * resolved with a single lookup in a precomputed table, and residues that
+	 * are not aminoacids, as ligands or nucleotides, are not reported
+	 *
+	 * @param packedThreeLetterAA
+	 * @return the one letter code or " " if it is not an aminoacid
+	 */
+	public static String parseAA(int packedThreeLetterAA) {
+		return oneLetterAAs[aasByPackedName.get(packedThreeLetterAA)];
+	}
+
 	public static String getPropertyValueFromDbReferenceType(DbReferenceType dbReferenceType, String propertyName) {
 		if (dbReferenceType != null) {
 			for (PropertyType prop : dbReferenceType.getProperty()) {
@@ -0,0 +1,117 @@
+package edu.scripps.yates.pdb.read;
+
+import java.util.Arrays;
+
+/**
+ * Lookup table from names packed in an int (one byte per character, as read
+ * by {@link AtomRecordParser#pack(java.nio.ByteBuffer, int, int, boolean)}) to
+ * int values.<br>
+ * It is a perfect hash: the multiplier of the hash function is chosen when the
+ * table is built so that no two names fall in the same slot, so a lookup is a
+ * multiplication, a shift and a single comparison, and a name that is not in
+ * the table just returns the default value.
+ *
+ * @author Salva
+ *
+ */
+public class PackedNameTable {
+	// the first multiplier tried, from the golden ratio
+	private static final int SEED = 0x9E3779B1;
+	private static final int MAX_TRIES = 1 << 20;
+	private final int shift;
+	private final int multiplier;
+	private final int[] keys;
+	private final int[] values;
+	private final boolean[] used;
+	private final int defaultValue;
+
+	/**
+	 *
+	 * @param packedNames
+	 * @param values       value of each name
+	 * @param defaultValue value returned for the names not in the table
+	 */
+	PackedNameTable(int[] packedNames, int[] values, int defaultValue) {
+		this.defaultValue = defaultValue;
+		// at least 16 slots per name, so that a perfect multiplier is found in
+		// a few tries
+		int bits = 4;
+		while (1 << bits < packedNames.length * 16) {
+			bits++;
+		}
+		final int size = 1 << bits;
+		shift = 32 - bits;
+		keys = new int[size];
+		this.values = new int[size];
+		used = new boolean[size];
+		int multiplier = SEED;
+		for (int tries = 0; !fill(packedNames, values, multiplier); tries++) {
+			if (tries == MAX_TRIES) {
+				throw new IllegalStateException("No perfect hash found for " + packedNames.length + " names");
+			}
+			multiplier += 2;
+		}
+		this.multiplier = multiplier;
+	}
+
+	private boolean fill(int[] packedNames, int[] values, int multiplier) {
+		Arrays.fill(used, false);
+		for (int i = 0; i < packedNames.length; i++) {
+			final int slot = packedNames[i] * multiplier >>> shift;
+			if (used[slot]) {
+				if (keys[slot] == packedNames[i]) {
+					// repeated name, the first value wins
+					continue;
+				}
+				return false;
+			}
+			used[slot] = true;
+			keys[slot] = packedNames[i];
+			this.values[slot] = values[i];
+		}
+		return true;
+	}
+
+	/**
+	 * @param packedName
+	 * @return the value of the name or the default value if it is not in the
+	 *         table
+	 */
+	int get(int packedName) {
+		final int slot = packedName * multiplier >>> shift;
+		if (used[slot] && keys[slot] == packedName) {
+			return values[slot];
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Packs a name in an int, one byte per character, in the same way as
+	 * {@link AtomRecordParser}
+	 *
+	 * @param name up to 4 characters
+	 * @return
+	 */
+	public static int pack(String name) {
+		int packed = 0;
+		for (int i = 0; i < name.length(); i++) {
+			packed = packed << 8 | name.charAt(i) & 0xFF;
+		}
+		return packed;
+	}
+
+	/**
+	 * @param packedName
+	 * @return the name packed in the int
+	 */
+	static String unpack(int packedName) {
+		final StringBuilder sb = new StringBuilder(4);
+		for (int i = 24; i >= 0; i -= 8) {
+			final int c = packedName >>> i & 0xFF;
+			if (c != 0) {
+				sb.append((char) c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,287 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Entries of a local repository that could not be retrieved or read, with the
+ * reason and the time, so that they are not downloaded or parsed again in
+ * every run, as the obsolete entries that are still referenced from UniprotKB.
+ * <br>
+ * It is stored in a file next to the repository, to which the new entries are
+ * appended. The entries expire after some time (see
+ * {@link #setTimeToLive(long)}), so that they are tried again eventually.
+ *
+ * @author Salva
+ *
+ */
+public class UnavailablePDBCache {
+	private static final Logger log = Logger.getLogger(UnavailablePDBCache.class);
+	private static Map<File, UnavailablePDBCache> instances = new THashMap<File, UnavailablePDBCache>();
+	private static final String FILE_NAME = "pdb_unavailable.txt";
+	private static final String SEPARATOR = "\t";
+	public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.DAYS.toMillis(30);
+	private static volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+	private final File file;
+	// upper case pdbID -> entry
+	private final Map<String, UnavailableEntry> entries = new THashMap<String, UnavailableEntry>();
+
+	/**
+	 * Why an entry is not available
+	 *
+	 * @author Salva
+	 *
+	 */
+	public enum Reason {
+		/**
+		 * None of the servers has the entry, as it happens with the obsolete
+		 * entries
+		 */
+		NOT_FOUND,
+		/**
+		 * The downloaded file is not a structure file or it is corrupted
+		 */
+		INVALID_FILE,
+		/**
+		 * The file could not be parsed
+		 */
+		PARSE_ERROR
+	}
+
+	/**
+	 * An entry of the cache
+	 *
+	 * @author Salva
+	 *
+	 */
+	public static class UnavailableEntry {
+		private final String pdbID;
+		private final Reason reason;
+		private final long time;
+
+		private UnavailableEntry(String pdbID, Reason reason, long time) {
+			this.pdbID = pdbID;
+			this.reason = reason;
+			this.time = time;
+		}
+
+		public String getPdbID() {
+			return pdbID;
+		}
+
+		public Reason getReason() {
+			return reason;
+		}
+
+		/**
+		 * @return when the entry was found to be unavailable, in milliseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		private boolean isExpired(long now) {
+			return now - time > timeToLive;
+		}
+
+		@Override
+		public String toString() {
+			return pdbID + SEPARATOR + reason + SEPARATOR + time;
+		}
+	}
+
+	private UnavailablePDBCache(File parentPath) {
+		file = new File(parentPath, FILE_NAME);
+		load();
+	}
+
+	public static synchronized UnavailablePDBCache getInstance(File parentPath) {
+		if (!instances.containsKey(parentPath)) {
+			instances.put(parentPath, new UnavailablePDBCache(parentPath));
+		}
+		return instances.get(parentPath);
+	}
+
+	/**
+	 * Sets how long an entry is considered unavailable before trying it again
+	 *
+	 * @param timeToLive in milliseconds
+	 */
+	public static void setTimeToLive(long timeToLive) {
+		UnavailablePDBCache.timeToLive = timeToLive;
+	}
+
+	public static long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * @param pdbID
+	 * @return the entry of the cache or null if the PDB entry is not in the
+	 *         cache or it expired
+	 */
+	public synchronized UnavailableEntry get(String pdbID) {
+		final String key = pdbID.toUpperCase();
+		final UnavailableEntry entry = entries.get(key);
+		if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+			entries.remove(key);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * @param pdbID
+	 * @param reason
+	 * @return true if the PDB entry is unavailable for that reason
+	 */
+	public boolean isUnavailable(String pdbID, Reason reason) {
+		final UnavailableEntry entry = get(pdbID);
+		return entry != null && entry.getReason() == reason;
+	}
+
+	/**
+	 * Adds an entry to the cache and to its file
+	 *
+	 * @param pdbID
+	 * @param reason
+	 */
+	public synchronized void add(String pdbID, Reason reason) {
+		final UnavailableEntry entry = new UnavailableEntry(pdbID.toUpperCase(), reason, System.currentTimeMillis());
+		entries.put(entry.getPdbID(), entry);
+		log.info("PDB entry " + pdbID + " marked as unavailable: " + reason);
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+			writer.write(entry.toString());
+			writer.newLine();
+		} catch (final IOException e) {
+			log.warn("Error adding " + pdbID + " to " + file + ": " + e.getMessage());
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes an entry, as when its file has been retrieved by other means
+	 *
+	 * @param pdbID
+	 */
+	public synchronized void remove(String pdbID) {
+		if (entries.remove(pdbID.toUpperCase()) != null) {
+			write();
+		}
+	}
+
+	/**
+	 * Removes all the entries, so that all of them are tried again
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		write();
+	}
+
+	/**
+	 * Reads the file, skipping the expired entries. If there were expired or
+	 * repeated entries, the file is written again without them
+	 */
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		int numLines = 0;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if ("".equals(line.trim())) {
+					continue;
+				}
+				numLines++;
+				final String[] split = line.trim().split(SEPARATOR);
+				if (split.length < 3) {
+					log.warn("Skipping invalid line '" + line + "' of " + file);
+					continue;
+				}
+				try {
+					final UnavailableEntry entry = new UnavailableEntry(split[0].toUpperCase(),
+							Reason.valueOf(split[1]), Long.valueOf(split[2]));
+					if (!entry.isExpired(now)) {
+						entries.put(entry.getPdbID(), entry);
+					}
+				} catch (final IllegalArgumentException e) {
+					log.warn("Skipping invalid line '" + line + "' of " + file);
+				}
+			}
+			log.info(entries.size() + " unavailable PDB entries read from " + file);
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error reading " + file + ": " + e.getMessage());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		if (numLines > entries.size()) {
+			write();
+		}
+	}
+
+	private void write() {
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8));
+			for (final UnavailableEntry entry : entries.values()) {
+				writer.write(entry.toString());
+				writer.newLine();
+			}
+			writer.close();
+			writer = null;
+			if (file.exists()) {
+				file.delete();
+			}
+			if (!tmpFile.renameTo(file)) {
+				log.warn("Error saving " + file);
+			}
+		} catch (final IOException e) {
+			// the repository may be a read only mirror
+			log.warn("Error writing " + file + ": " + e.getMessage());
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+			tmpFile.delete();
+		}
+	}
+}
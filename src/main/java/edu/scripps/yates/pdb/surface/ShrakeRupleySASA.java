@@ -0,0 +1,483 @@
+package edu.scripps.yates.pdb.surface;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.pdb.model.Atom3D;
+import edu.scripps.yates.pdb.model.AtomTable;
+import edu.scripps.yates.pdb.model.AtomType;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+/**
+ * Solvent accessible surface area of atoms calculated with the Shrake-Rupley
+ * algorithm over the coordinates of an {@link AtomTable}, as an alternative to
+ * the isosurfaces of JMol.<br>
+ * Each atom is a sphere of its van der Waals radius plus the radius of the
+ * probe, with a set of points evenly distributed over it, and its accessible
+ * area is the fraction of the points that are not inside the sphere of any
+ * other atom of its environment. The environment of an atom is the rest of
+ * the atoms of its model, or of its chain if the other chains are removed.
+ * The atoms of an {@link AtomTable} are the ones of the proteins, so the
+ * other molecules are never in the environment.<br>
+ * By default the radii and the probe are the ones used by JMol by default, so
+ * that the results are comparable with the ones of
+ * {@link SurfaceBackend#JMOL}.
+ *
+ * @author Salva
+ *
+ */
+public class ShrakeRupleySASA {
+	private final static Logger log = Logger.getLogger(ShrakeRupleySASA.class);
+	public static final double DEFAULT_PROBE_RADIUS = 1.2;
+	public static final int DEFAULT_NUM_POINTS = 960;
+	// radius of the elements that are not in the radii
+	public static final double DEFAULT_RADIUS = 1.8;
+	private static final Map<String, Double> DEFAULT_RADII = new THashMap<String, Double>();
+	static {
+		DEFAULT_RADII.put("H", 1.1);
+		DEFAULT_RADII.put("C", 1.7);
+		DEFAULT_RADII.put("N", 1.55);
+		DEFAULT_RADII.put("O", 1.52);
+		DEFAULT_RADII.put("S", 1.8);
+		DEFAULT_RADII.put("SE", 1.9);
+		DEFAULT_RADII.put("P", 1.8);
+	}
+	private final Map<String, Double> radii = new THashMap<String, Double>();
+	// radii of the known atom types, by ordinal
+	private final double[] radiiByAtomType = new double[AtomType.values().length];
+	private final double probeRadius;
+	// coordinates of the points of the unit sphere, as x,y,z triplets
+	private final double[] spherePoints;
+
+	public ShrakeRupleySASA() {
+		this(null, DEFAULT_PROBE_RADIUS, DEFAULT_NUM_POINTS);
+	}
+
+	/**
+	 *
+	 * @param radii       van der Waals radii by element, that replace the
+	 *                    default ones. Null for the default ones
+	 * @param probeRadius radius of the solvent molecule
+	 * @param numPoints   number of points per sphere, the more points the more
+	 *                    precise and the slower
+	 */
+	public ShrakeRupleySASA(Map<String, Double> radii, double probeRadius, int numPoints) {
+		if (probeRadius < 0) {
+			throw new IllegalArgumentException("The probe radius cannot be negative");
+		}
+		if (numPoints <= 0) {
+			throw new IllegalArgumentException("The number of points per sphere has to be positive");
+		}
+		this.radii.putAll(DEFAULT_RADII);
+		if (radii != null) {
+			for (final String element : radii.keySet()) {
+				this.radii.put(element.toUpperCase(), radii.get(element));
+			}
+		}
+		for (final AtomType atomType : AtomType.values()) {
+			if (atomType != AtomType.UNKNOWN) {
+				radiiByAtomType[atomType.ordinal()] = getRadius(atomType.name());
+			}
+		}
+		this.probeRadius = probeRadius;
+		spherePoints = getSpherePoints(numPoints);
+	}
+
+	/**
+	 * Distributes points evenly over a sphere of radius 1, along a golden angle
+	 * spiral
+	 *
+	 * @param numPoints
+	 * @return the coordinates of the points, as x,y,z triplets
+	 */
+	private static double[] getSpherePoints(int numPoints) {
+		final double[] ret = new double[numPoints * 3];
+		final double goldenAngle = Math.PI * (3 - Math.sqrt(5));
+		for (int i = 0; i < numPoints; i++) {
+			final double y = 1 - (2.0 * i + 1) / numPoints;
+			final double r = Math.sqrt(1 - y * y);
+			final double phi = goldenAngle * i;
+			ret[i * 3] = Math.cos(phi) * r;
+			ret[i * 3 + 1] = y;
+			ret[i * 3 + 2] = Math.sin(phi) * r;
+		}
+		return ret;
+	}
+
+	/**
+	 * Parses a list of radii by element, as "C:1.7,N:1.55"
+	 *
+	 * @param string
+	 * @return
+	 * @throws IllegalArgumentException if the list is not valid
+	 */
+	public static Map<String, Double> parseRadii(String string) {
+		final Map<String, Double> ret = new THashMap<String, Double>();
+		for (final String pair : string.split(",")) {
+			if ("".equals(pair.trim())) {
+				continue;
+			}
+			final String[] split = pair.split(":");
+			if (split.length != 2 || "".equals(split[0].trim())) {
+				throw new IllegalArgumentException(pair + " is not a pair of element and radius like 'C:1.7'");
+			}
+			try {
+				ret.put(split[0].trim().toUpperCase(), Double.valueOf(split[1].trim()));
+			} catch (final NumberFormatException e) {
+				throw new IllegalArgumentException(split[1].trim() + " is not a valid radius");
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the element of an atom of an aminoacid from its name
+	 *
+	 * @param atomName
+	 * @return
+	 */
+	public static String getElement(String atomName) {
+		int start = 0;
+		// hydrogens named as 1HB
+		while (start < atomName.length() && Character.isDigit(atomName.charAt(start))) {
+			start++;
+		}
+		if (start == atomName.length()) {
+			return atomName;
+		}
+		if (atomName.startsWith("SE", start)) {
+			// selenomethionine
+			return "SE";
+		}
+		final char element = atomName.charAt(start);
+		if (element == 'D') {
+			// deuterium
+			return "H";
+		}
+		return String.valueOf(element);
+	}
+
+	/**
+	 * @param atomName
+	 * @return the van der Waals radius of the atom
+	 */
+	public double getRadius(String atomName) {
+		final Double radius = radii.get(getElement(atomName));
+		if (radius != null) {
+			return radius;
+		}
+		return DEFAULT_RADIUS;
+	}
+
+	private double getRadius(AtomTable atoms, int row) {
+		final AtomType atomType = atoms.getAtomType(row);
+		if (atomType == AtomType.UNKNOWN) {
+			return getRadius(atoms.getAtomName(row));
+		}
+		return radiiByAtomType[atomType.ordinal()];
+	}
+
+	public double getProbeRadius() {
+		return probeRadius;
+	}
+
+	public int getNumPoints() {
+		return spherePoints.length / 3;
+	}
+
+	/**
+	 * Calculates the solvent accessible surface area of an atom of an
+	 * {@link AtomTable} with coordinates
+	 *
+	 * @param atom
+	 * @param removeOtherChains if true, only the atoms of its chain are taken
+	 *                          into account
+	 * @return the area in square angstroms or null if the atom doesn't have
+	 *         coordinates
+	 */
+	public Double getAccessibility(Atom3D atom, boolean removeOtherChains) {
+		final AtomTable atoms = atom.getTable();
+		if (atoms == null || !atoms.hasCoordinates()) {
+			log.warn("Surface accessibility cannot be calculated for an atom without coordinates");
+			return null;
+		}
+		return getAccessibilities(atoms, new int[] { atom.getRow() }, removeOtherChains)[0];
+	}
+
+	/**
+	 * Calculates the solvent accessible surface area of some atoms of an
+	 * {@link AtomTable} with coordinates, building the environment shared by
+	 * several of them only once
+	 *
+	 * @param atoms
+	 * @param rows              rows of the atoms
+	 * @param removeOtherChains if true, only the atoms of the same chain are
+	 *                          taken into account for each atom
+	 * @return the areas in square angstroms, in the order of the rows
+	 */
+	public double[] getAccessibilities(AtomTable atoms, int[] rows, boolean removeOtherChains) {
+		final double[] ret = new double[rows.length];
+		// group the atoms by environment
+		final int numChains = atoms.getChainIDs().size();
+		final TIntObjectHashMap<TIntArrayList> indexesByEnvironment = new TIntObjectHashMap<TIntArrayList>();
+		for (int i = 0; i < rows.length; i++) {
+			final int modelIndex = atoms.getModelIndex(rows[i]);
+			final int environment = removeOtherChains ? modelIndex * numChains + atoms.getChainIndex(rows[i])
+					: modelIndex;
+			TIntArrayList indexes = indexesByEnvironment.get(environment);
+			if (indexes == null) {
+				indexes = new TIntArrayList();
+				indexesByEnvironment.put(environment, indexes);
+			}
+			indexes.add(i);
+		}
+		for (final TIntArrayList indexes : indexesByEnvironment.valueCollection()) {
+			final int firstRow = rows[indexes.get(0)];
+			final NeighbourGrid grid = new NeighbourGrid(atoms, atoms.getModelIndex(firstRow),
+					removeOtherChains ? atoms.getChainIndex(firstRow) : -1);
+			final Neighbours neighbours = new Neighbours();
+			for (int i = 0; i < indexes.size(); i++) {
+				final int index = indexes.get(i);
+				ret[index] = getAccessibility(atoms, rows[index], grid, neighbours);
+			}
+		}
+		return ret;
+	}
+
+	private double getAccessibility(AtomTable atoms, int row, NeighbourGrid grid, Neighbours neighbours) {
+		final double x = atoms.getX(row);
+		final double y = atoms.getY(row);
+		final double z = atoms.getZ(row);
+		final double radius = getRadius(atoms, row) + probeRadius;
+		grid.getNeighbours(row, x, y, z, radius, neighbours);
+		final int numPoints = spherePoints.length / 3;
+		int accessiblePoints = 0;
+		// the neighbour that covered the last point probably covers the next
+		int lastCovering = 0;
+		for (int p = 0; p < numPoints; p++) {
+			final double px = x + spherePoints[p * 3] * radius;
+			final double py = y + spherePoints[p * 3 + 1] * radius;
+			final double pz = z + spherePoints[p * 3 + 2] * radius;
+			boolean accessible = true;
+			for (int n = 0; n < neighbours.size; n++) {
+				final int j = (lastCovering + n) % neighbours.size;
+				final double dx = px - neighbours.x[j];
+				final double dy = py - neighbours.y[j];
+				final double dz = pz - neighbours.z[j];
+				if (dx * dx + dy * dy + dz * dz < neighbours.radius2[j]) {
+					accessible = false;
+					lastCovering = j;
+					break;
+				}
+			}
+			if (accessible) {
+				accessiblePoints++;
+			}
+		}
+		return 4 * Math.PI * radius * radius * accessiblePoints / numPoints;
+	}
+
+	/**
+	 * Coordinates and squared expanded radii of the atoms that overlap with an
+	 * atom, reused between atoms
+	 */
+	private static class Neighbours {
+		private int size;
+		private double[] x = new double[64];
+		private double[] y = new double[64];
+		private double[] z = new double[64];
+		private double[] radius2 = new double[64];
+
+		private void add(double x, double y, double z, double radius) {
+			if (size == this.x.length) {
+				this.x = Arrays.copyOf(this.x, size * 2);
+				this.y = Arrays.copyOf(this.y, size * 2);
+				this.z = Arrays.copyOf(this.z, size * 2);
+				radius2 = Arrays.copyOf(radius2, size * 2);
+			}
+			this.x[size] = x;
+			this.y[size] = y;
+			this.z[size] = z;
+			radius2[size++] = radius * radius;
+		}
+	}
+
+	/**
+	 * The atoms of an environment in cells of a regular grid, so that the
+	 * atoms that can overlap with an atom are looked for only in the cells
+	 * around it
+	 */
+	private class NeighbourGrid {
+		// maximum number of cells per atom of the environment
+		private static final int MAX_CELLS_PER_ATOM = 8;
+		private final AtomTable atoms;
+		// rows of the atoms in the environment, sorted by cell
+		private final int[] cellRows;
+		// expanded radii of the atoms in cellRows
+		private final double[] cellRadii;
+		// first index in cellRows of each cell, plus the end of the last one
+		private final int[] cellStarts;
+		private final double minX, minY, minZ;
+		private final double cellSize;
+		private final int nx, ny, nz;
+		private final double maxRadius;
+
+		/**
+		 *
+		 * @param atoms
+		 * @param modelIndex
+		 * @param chainIndex the chain of the environment or -1 for all the
+		 *                   chains
+		 */
+		private NeighbourGrid(AtomTable atoms, int modelIndex, int chainIndex) {
+			this.atoms = atoms;
+			final int start = atoms.getModelStart(modelIndex);
+			final int end = atoms.getModelEnd(modelIndex);
+			final TIntArrayList environment = new TIntArrayList(end - start);
+			// first row of the current residue, to keep only the first of the
+			// alternate locations of its atoms
+			int residueStart = start;
+			double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+			double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+			double maxRadius = 0;
+			for (int row = start; row < end; row++) {
+				if (chainIndex != -1 && atoms.getChainIndex(row) != chainIndex) {
+					continue;
+				}
+				if (!isSameResidue(atoms, residueStart, row)) {
+					residueStart = row;
+				} else if (isAlternateLocation(atoms, residueStart, row)) {
+					continue;
+				}
+				environment.add(row);
+				minX = Math.min(minX, atoms.getX(row));
+				minY = Math.min(minY, atoms.getY(row));
+				minZ = Math.min(minZ, atoms.getZ(row));
+				maxX = Math.max(maxX, atoms.getX(row));
+				maxY = Math.max(maxY, atoms.getY(row));
+				maxZ = Math.max(maxZ, atoms.getZ(row));
+				maxRadius = Math.max(maxRadius, getRadius(atoms, row) + probeRadius);
+			}
+			this.maxRadius = maxRadius;
+			final int numAtoms = environment.size();
+			if (numAtoms == 0) {
+				minX = minY = minZ = maxX = maxY = maxZ = 0;
+			}
+			this.minX = minX;
+			this.minY = minY;
+			this.minZ = minZ;
+			// two atoms overlap if they are closer than two maximum radii
+			double cellSize = Math.max(2 * maxRadius, 1);
+			while (getNumCells(maxX - minX, cellSize) * getNumCells(maxY - minY, cellSize)
+					* getNumCells(maxZ - minZ, cellSize) > (long) MAX_CELLS_PER_ATOM * numAtoms + 1) {
+				// very sparse environments
+				cellSize *= 2;
+			}
+			this.cellSize = cellSize;
+			nx = (int) getNumCells(maxX - minX, cellSize);
+			ny = (int) getNumCells(maxY - minY, cellSize);
+			nz = (int) getNumCells(maxZ - minZ, cellSize);
+			// counting sort of the atoms by cell
+			final int[] cells = new int[numAtoms];
+			cellStarts = new int[nx * ny * nz + 1];
+			for (int i = 0; i < numAtoms; i++) {
+				final int row = environment.get(i);
+				cells[i] = getCell(getCellIndex(atoms.getX(row), this.minX, nx),
+						getCellIndex(atoms.getY(row), this.minY, ny), getCellIndex(atoms.getZ(row), this.minZ, nz));
+				cellStarts[cells[i] + 1]++;
+			}
+			for (int cell = 0; cell < cellStarts.length - 1; cell++) {
+				cellStarts[cell + 1] += cellStarts[cell];
+			}
+			cellRows = new int[numAtoms];
+			cellRadii = new double[numAtoms];
+			final int[] positions = Arrays.copyOf(cellStarts, cellStarts.length - 1);
+			for (int i = 0; i < numAtoms; i++) {
+				final int row = environment.get(i);
+				final int position = positions[cells[i]]++;
+				cellRows[position] = row;
+				cellRadii[position] = getRadius(atoms, row) + probeRadius;
+			}
+		}
+
+		private long getNumCells(double length, double cellSize) {
+			return (long) Math.floor(length / cellSize) + 1;
+		}
+
+		private int getCellIndex(double coordinate, double min, int numCells) {
+			final int index = (int) Math.floor((coordinate - min) / cellSize);
+			return Math.max(0, Math.min(numCells - 1, index));
+		}
+
+		private int getCell(int i, int j, int k) {
+			return (i * ny + j) * nz + k;
+		}
+
+		/**
+		 * Gets the atoms of the environment that overlap with a sphere, except
+		 * the atom itself and its alternate locations
+		 */
+		private void getNeighbours(int row, double x, double y, double z, double radius, Neighbours neighbours) {
+			neighbours.size = 0;
+			final double reach = radius + maxRadius;
+			final int i0 = getCellIndex(x - reach, minX, nx);
+			final int i1 = getCellIndex(x + reach, minX, nx);
+			final int j0 = getCellIndex(y - reach, minY, ny);
+			final int j1 = getCellIndex(y + reach, minY, ny);
+			final int k0 = getCellIndex(z - reach, minZ, nz);
+			final int k1 = getCellIndex(z + reach, minZ, nz);
+			for (int i = i0; i <= i1; i++) {
+				for (int j = j0; j <= j1; j++) {
+					for (int k = k0; k <= k1; k++) {
+						final int cell = getCell(i, j, k);
+						for (int position = cellStarts[cell]; position < cellStarts[cell + 1]; position++) {
+							final int neighbour = cellRows[position];
+							if (neighbour == row || isSameAtom(atoms, row, neighbour)) {
+								continue;
+							}
+							final double dx = atoms.getX(neighbour) - x;
+							final double dy = atoms.getY(neighbour) - y;
+							final double dz = atoms.getZ(neighbour) - z;
+							final double distance = radius + cellRadii[position];
+							if (dx * dx + dy * dy + dz * dz < distance * distance) {
+								neighbours.add(atoms.getX(neighbour), atoms.getY(neighbour), atoms.getZ(neighbour),
+										cellRadii[position]);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if an atom is an alternate location of one of the previous
+	 *         atoms of its residue, that starts at residueStart
+	 */
+	private static boolean isAlternateLocation(AtomTable atoms, int residueStart, int row) {
+		for (int previous = residueStart; previous < row; previous++) {
+			if (isSameAtom(atoms, previous, row)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isSameResidue(AtomTable atoms, int row1, int row2) {
+		return atoms.getPositionInPDB(row1) == atoms.getPositionInPDB(row2)
+				&& atoms.getChainIndex(row1) == atoms.getChainIndex(row2)
+				&& atoms.getInsertionCode(row1) == atoms.getInsertionCode(row2);
+	}
+
+	/**
+	 * @return true if the two rows are alternate locations of the same atom
+	 */
+	private static boolean isSameAtom(AtomTable atoms, int row1, int row2) {
+		return isSameResidue(atoms, row1, row2) && atoms.getAtomType(row1) == atoms.getAtomType(row2)
+				&& atoms.getAtomName(row1).equals(atoms.getAtomName(row2));
+	}
+}
@@ -0,0 +1,34 @@
+package edu.scripps.yates.pdb.surface;
+
+/**
+ * How the surface accessibilities of the atoms are calculated by the
+ * {@link SurfaceCalculator}
+ *
+ * @author Salva
+ *
+ */
+public enum SurfaceBackend {
+	JMOL, // area of the solvent accessible isosurface of the atom built by JMol
+	NATIVE; // Shrake-Rupley algorithm over the parsed coordinates (see ShrakeRupleySASA)
+
+	public static SurfaceBackend fromValue(String propertyValue) {
+		for (final SurfaceBackend surfaceBackend : values()) {
+			if (surfaceBackend.name().equalsIgnoreCase(propertyValue)) {
+				return surfaceBackend;
+			}
+		}
+		throw new IllegalArgumentException(
+				propertyValue + " is not recognized as a valid value. Valid values: " + getValues());
+	}
+
+	public static String getValues() {
+		final StringBuilder sb = new StringBuilder();
+		for (final SurfaceBackend surfaceBackend : values()) {
+			if (!"".equals(sb.toString())) {
+				sb.append(", ");
+			}
+			sb.append(surfaceBackend.name());
+		}
+		return sb.toString();
+	}
+}
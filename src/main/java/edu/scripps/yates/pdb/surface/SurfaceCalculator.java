@@ -1,8 +1,10 @@
 package edu.scripps.yates.pdb.surface;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -10,12 +12,23 @@ import edu.scripps.yates.annotations.uniprot.UniprotProteinLocalRetriever;
 import edu.scripps.yates.pdb.CalculationType;
 import edu.scripps.yates.pdb.Calculator;
 import edu.scripps.yates.pdb.model.Atom3D;
+import edu.scripps.yates.pdb.model.AtomTable;
 import edu.scripps.yates.pdb.model.AtomType;
+import edu.scripps.yates.pdb.read.AtomSelection;
 import edu.scripps.yates.pdb.read.PDBParser;
 import edu.scripps.yates.pdb.util.InputParameters;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 
 public class SurfaceCalculator extends Calculator<SurfaceProteinReport, SurfaceReport> {
 	protected final static Logger log = Logger.getLogger(SurfaceCalculator.class);
+	private SurfaceBackend surfaceBackend = SurfaceBackend.JMOL;
+	private ShrakeRupleySASA sasa = new ShrakeRupleySASA();
+	private boolean otherMoleculesWarned = false;
+	private boolean batchMode = true;
+	// accessibilities calculated in batch, by the row of the atom, per
+	// environment of each parser, that are released with the parser
+	private final Map<PDBParser, Map<String, TIntObjectHashMap<Double>>> batchAccessibilities = new WeakHashMap<PDBParser, Map<String, TIntObjectHashMap<Double>>>();
 
 	public SurfaceCalculator(Map<Character, List<AtomType>> atomTypeMap, boolean removeOtherChains,
 			boolean removeOtherMolecules, File parentPDBFolderContainer) {
@@ -42,19 +55,195 @@ public class SurfaceCalculator extends Calculator<SurfaceProteinReport, SurfaceR
 	public SurfaceReport calculateReport(PDBParser parser, InputParameters inputParameters, Atom3D atom,
 			int positionInPDB, Float resolution) {
 
-		final Double accesibility = parser.getSurfaceAccessibilityOfAtom(atom, inputParameters.isRemoveOtherChains(),
+		final Double accesibility = getSurfaceAccessibilityOfAtom(parser, atom, inputParameters.isRemoveOtherChains(),
 				inputParameters.isRemoveOtherMolecules());
 		if (accesibility != null) {
 			final SurfaceReport report = new SurfaceReport(accesibility, inputParameters.getPdbID(), atom,
 					inputParameters.getUniprotACC(), inputParameters.getPositionInUniprotProtein(), resolution,
 					inputParameters.isRemoveOtherChains(), inputParameters.isRemoveOtherMolecules(),
 					parser.getMutation(), parser.getExperimentalMethod());
+			report.setFingerprint(parser.getFingerprint());
 			this.reportManager.addReport(report);
 			return report;
 		}
 		return null;
 	}
 
+	private Double getSurfaceAccessibilityOfAtom(PDBParser parser, Atom3D atom, boolean removeOtherChains,
+			boolean removeOtherMolecules) {
+		if (surfaceBackend == SurfaceBackend.NATIVE && !removeOtherMolecules && !otherMoleculesWarned) {
+			otherMoleculesWarned = true;
+			log.warn("Only the atoms of the proteins are read from the structures, so the other molecules are not "
+					+ "taken into account by the " + SurfaceBackend.NATIVE + " surface backend");
+		}
+		// JMol calculates an isosurface per atom in any case, so a batch would
+		// only add the atoms of the chain that are not requested
+		if (batchMode && surfaceBackend == SurfaceBackend.NATIVE && atom.getTable() != null) {
+			return getBatchSurfaceAccessibilityOfAtom(parser, atom, removeOtherChains, removeOtherMolecules);
+		}
+		if (surfaceBackend == SurfaceBackend.NATIVE) {
+			return sasa.getAccessibility(atom, removeOtherChains);
+		}
+		return parser.getSurfaceAccessibilityOfAtom(atom, removeOtherChains, removeOtherMolecules);
+	}
+
+	/**
+	 * Gets the accessibility of an atom calculated together with the rest of
+	 * the atoms of the {@link #atomTypeMap} in the same chain and model with
+	 * the same removals with the {@link SurfaceBackend#NATIVE} backend, as all
+	 * of them share the same environment, that is set up only once. The
+	 * accessibilities are calculated the first time any of them is requested,
+	 * and kept while the parser is in use
+	 *
+	 * @param parser
+	 * @param atom
+	 * @param removeOtherChains
+	 * @param removeOtherMolecules
+	 * @return
+	 */
+	private Double getBatchSurfaceAccessibilityOfAtom(PDBParser parser, Atom3D atom, boolean removeOtherChains,
+			boolean removeOtherMolecules) {
+		final AtomTable atoms = atom.getTable();
+		final int modelIndex = atoms.getModelIndex(atom.getRow());
+		final String environment = atom.getChainID() + "_" + modelIndex + "_" + removeOtherChains + "_"
+				+ removeOtherMolecules;
+		synchronized (batchAccessibilities) {
+			Map<String, TIntObjectHashMap<Double>> accessibilitiesByEnvironment = batchAccessibilities.get(parser);
+			if (accessibilitiesByEnvironment == null) {
+				accessibilitiesByEnvironment = new THashMap<String, TIntObjectHashMap<Double>>();
+				batchAccessibilities.put(parser, accessibilitiesByEnvironment);
+			}
+			TIntObjectHashMap<Double> accessibilities = accessibilitiesByEnvironment.get(environment);
+			if (accessibilities == null || !accessibilities.containsKey(atom.getRow())) {
+				final List<Atom3D> batch = getAtomsOfEnvironment(atom);
+				log.info("Calculating surface accessibility of " + batch.size() + " atoms of chain "
+						+ atom.getChainID() + " of PDB " + parser.getPdbID() + " with removingOtherChains="
+						+ removeOtherChains + " and removingOtherMolcules=" + removeOtherMolecules);
+				final List<Double> batchAccessibilities = calculateSurfaceAccessibilities(batch, removeOtherChains);
+				if (accessibilities == null) {
+					accessibilities = new TIntObjectHashMap<Double>();
+					accessibilitiesByEnvironment.put(environment, accessibilities);
+				}
+				for (int i = 0; i < batch.size(); i++) {
+					// NaN if it could not be calculated
+					final Double accessibility = batchAccessibilities.get(i);
+					accessibilities.put(batch.get(i).getRow(), accessibility != null ? accessibility : Double.NaN);
+				}
+			}
+			final Double accessibility = accessibilities.get(atom.getRow());
+			if (accessibility == null || accessibility.isNaN()) {
+				return null;
+			}
+			return accessibility;
+		}
+	}
+
+	/**
+	 * Gets the atoms of the {@link #atomTypeMap} in the same chain and model as
+	 * an atom, that is always included
+	 *
+	 * @param atom
+	 * @return
+	 */
+	private List<Atom3D> getAtomsOfEnvironment(Atom3D atom) {
+		final AtomTable atoms = atom.getTable();
+		final int modelIndex = atoms.getModelIndex(atom.getRow());
+		final int chainIndex = atoms.getChainIndex(atom.getRow());
+		final List<Atom3D> ret = new ArrayList<Atom3D>();
+		ret.add(atom);
+		for (int row = atoms.getModelStart(modelIndex); row < atoms.getModelEnd(modelIndex); row++) {
+			if (row == atom.getRow() || atoms.getChainIndex(row) != chainIndex) {
+				continue;
+			}
+			final List<AtomType> atomTypes = atomTypeMap.get(atoms.getAaChar(row));
+			if (atomTypes != null && atomTypes.contains(atoms.getAtomType(row))) {
+				ret.add(atoms.getAtom(row));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Calculates the accessibilities of a batch with the
+	 * {@link SurfaceBackend#NATIVE} backend
+	 *
+	 * @param batch
+	 * @param removeOtherChains
+	 * @return the accessibilities, with null for the atoms without coordinates
+	 */
+	private List<Double> calculateSurfaceAccessibilities(List<Atom3D> batch, boolean removeOtherChains) {
+		final List<Double> ret = new ArrayList<Double>();
+		if (!batch.get(0).getTable().hasCoordinates()) {
+			log.warn("Surface accessibility cannot be calculated for atoms without coordinates");
+			for (int i = 0; i < batch.size(); i++) {
+				ret.add(null);
+			}
+			return ret;
+		}
+		final int[] rows = new int[batch.size()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = batch.get(i).getRow();
+		}
+		for (final double accessibility : sasa.getAccessibilities(batch.get(0).getTable(), rows,
+				removeOtherChains)) {
+			ret.add(accessibility);
+		}
+		return ret;
+	}
+
+	public boolean isBatchMode() {
+		return batchMode;
+	}
+
+	/**
+	 * Sets whether the accessibilities of all the atoms of a chain with the
+	 * same removals are calculated together the first time one of them is
+	 * requested (true by default), or one by one. Only used by the
+	 * {@link SurfaceBackend#NATIVE} backend, that builds the environment once
+	 * for the whole chain, as {@link SurfaceBackend#JMOL} calculates the
+	 * atoms one by one anyway
+	 *
+	 * @param batchMode
+	 */
+	public void setBatchMode(boolean batchMode) {
+		this.batchMode = batchMode;
+	}
+
+	public SurfaceBackend getSurfaceBackend() {
+		return surfaceBackend;
+	}
+
+	/**
+	 * Sets how the surface accessibilities are calculated. The
+	 * {@link SurfaceBackend#NATIVE} backend needs the coordinates of all the
+	 * atoms of the proteins, as any of them can occlude the atoms of the sites,
+	 * so the structures are parsed with them. JMol reads the files by itself,
+	 * so with {@link SurfaceBackend#JMOL} only the atoms of the sites are kept
+	 *
+	 * @param surfaceBackend
+	 */
+	public void setSurfaceBackend(SurfaceBackend surfaceBackend) {
+		this.surfaceBackend = surfaceBackend;
+		if (surfaceBackend == SurfaceBackend.NATIVE) {
+			getPdbParserManager().setAtomSelection(AtomSelection.ALL);
+		} else {
+			getPdbParserManager().setAtomSelection(getAtomSelection(atomTypeMap));
+		}
+	}
+
+	public ShrakeRupleySASA getSASA() {
+		return sasa;
+	}
+
+	/**
+	 * Sets the engine used by the {@link SurfaceBackend#NATIVE} backend
+	 *
+	 * @param sasa
+	 */
+	public void setSASA(ShrakeRupleySASA sasa) {
+		this.sasa = sasa;
+	}
+
 	@Override
 	public SurfaceProteinReport createProteinReportObject(String acc, String proteinSequence) {
 		return new SurfaceProteinReport(acc, proteinSequence);
@@ -67,6 +256,6 @@ public class SurfaceCalculator extends Calculator<SurfaceProteinReport, SurfaceR
 
 	@Override
 	public boolean isParseCoordinates() {
-		return false;
+		return surfaceBackend == SurfaceBackend.NATIVE;
 	}
 }
@@ -72,6 +72,7 @@ public class SurfaceReport extends JMolAtomReport {
 			}
 			final SurfaceReport report = new SurfaceReport(accessibility, pdbID, atom, uniprotACC, positionInUniprot,
 					resolution, removeOtherChains, removeOtherMolecules, containsMutation, method);
+			report.setFingerprint(parseFingerprint(split, index));
 			return report;
 		} catch (
 
@@ -93,14 +94,16 @@ public class SurfaceReport extends JMolAtomReport {
 		if (accessibility != null) {
 			accessibilityString = String.valueOf(accessibility);
 		}
-		sb.append(super.toString()).append(sep).append(accessibilityString);
+		sb.append(super.toString()).append(sep).append(accessibilityString).append(sep)
+				.append(getFingerprintString());
 		return sb.toString();
 	}
 
 	@Override
 	public String getToStringHeaders() {
 		final StringBuilder sb = new StringBuilder();
-		sb.append(JMolAtomReport.getStaticHeaders()).append(sep).append("Surface_accessibility");
+		sb.append(JMolAtomReport.getStaticHeaders()).append(sep).append("Surface_accessibility").append(sep)
+				.append(FINGERPRINT_HEADER);
 		return sb.toString();
 	}
 }
@@ -0,0 +1,118 @@
+package edu.scripps.yates.pdb.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers to write primitive arrays and strings to a {@link DataOutputStream}
+ * and to read them back from a {@link ByteBuffer}, typically a memory mapped
+ * file, with bulk operations. Both use big-endian byte order.
+ *
+ * @author Salva
+ *
+ */
+public class BinaryUtil {
+	private static final int CHUNK_SIZE = 8 * 1024;
+
+	/**
+	 * Writes a string as its length in bytes followed by its UTF-8 bytes. A null
+	 * string is written as a length of -1
+	 *
+	 * @param out
+	 * @param string
+	 * @throws IOException
+	 */
+	public static void writeString(DataOutputStream out, String string) throws IOException {
+		if (string == null) {
+			out.writeInt(-1);
+			return;
+		}
+		final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(ByteBuffer in) {
+		final int length = in.getInt();
+		if (length == -1) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the first n values of the array
+	 *
+	 * @param out
+	 * @param array
+	 * @param n
+	 * @throws IOException
+	 */
+	public static void writeInts(DataOutputStream out, int[] array, int n) throws IOException {
+		final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE * 4);
+		for (int from = 0; from < n; from += CHUNK_SIZE) {
+			final int length = Math.min(CHUNK_SIZE, n - from);
+			chunk.clear();
+			chunk.asIntBuffer().put(array, from, length);
+			out.write(chunk.array(), 0, length * 4);
+		}
+	}
+
+	public static void writeShorts(DataOutputStream out, short[] array, int n) throws IOException {
+		final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE * 2);
+		for (int from = 0; from < n; from += CHUNK_SIZE) {
+			final int length = Math.min(CHUNK_SIZE, n - from);
+			chunk.clear();
+			chunk.asShortBuffer().put(array, from, length);
+			out.write(chunk.array(), 0, length * 2);
+		}
+	}
+
+	public static void writeFloats(DataOutputStream out, float[] array, int n) throws IOException {
+		final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE * 4);
+		for (int from = 0; from < n; from += CHUNK_SIZE) {
+			final int length = Math.min(CHUNK_SIZE, n - from);
+			chunk.clear();
+			chunk.asFloatBuffer().put(array, from, length);
+			out.write(chunk.array(), 0, length * 4);
+		}
+	}
+
+	/**
+	 * Reads n ints, advancing the position of the buffer
+	 *
+	 * @param in
+	 * @param n
+	 * @return
+	 */
+	public static int[] readInts(ByteBuffer in, int n) {
+		final int[] ret = new int[n];
+		in.asIntBuffer().get(ret);
+		in.position(in.position() + n * 4);
+		return ret;
+	}
+
+	public static short[] readShorts(ByteBuffer in, int n) {
+		final short[] ret = new short[n];
+		in.asShortBuffer().get(ret);
+		in.position(in.position() + n * 2);
+		return ret;
+	}
+
+	public static float[] readFloats(ByteBuffer in, int n) {
+		final float[] ret = new float[n];
+		in.asFloatBuffer().get(ret);
+		in.position(in.position() + n * 4);
+		return ret;
+	}
+
+	public static byte[] readBytes(ByteBuffer in, int n) {
+		final byte[] ret = new byte[n];
+		in.get(ret);
+		return ret;
+	}
+}
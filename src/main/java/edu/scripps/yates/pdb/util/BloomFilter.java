@@ -0,0 +1,102 @@
+package edu.scripps.yates.pdb.util;
+
+/**
+ * Bloom filter of strings, that tells whether a string is certainly not in a
+ * set, using a few bits per string. A positive answer may be wrong with the
+ * false positive probability the filter was created for, as long as no more
+ * strings than expected are added.
+ *
+ * @author Salva
+ *
+ */
+public class BloomFilter {
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private final long[] bits;
+	private final long numBits;
+	private final int numHashes;
+	private final int expectedInsertions;
+	private int numInsertions = 0;
+
+	/**
+	 *
+	 * @param expectedInsertions       number of strings that will be added
+	 * @param falsePositiveProbability probability of a positive answer for a
+	 *                                 string that was not added
+	 */
+	public BloomFilter(int expectedInsertions, double falsePositiveProbability) {
+		this.expectedInsertions = Math.max(1, expectedInsertions);
+		final long optimalNumBits = (long) Math
+				.ceil(-this.expectedInsertions * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+		bits = new long[(int) Math.max(1, (optimalNumBits + 63) / 64)];
+		numBits = bits.length * 64L;
+		numHashes = (int) Math.max(1, Math.round((double) numBits / this.expectedInsertions * Math.log(2)));
+	}
+
+	public void add(String string) {
+		final long hash = hash(string);
+		final int hash1 = (int) hash;
+		final int hash2 = (int) (hash >>> 32);
+		for (int i = 1; i <= numHashes; i++) {
+			final long bit = getBit(hash1, hash2, i);
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		numInsertions++;
+	}
+
+	/**
+	 * @param string
+	 * @return false if the string was certainly not added, true if it was
+	 *         probably added
+	 */
+	public boolean mightContain(String string) {
+		final long hash = hash(string);
+		final int hash1 = (int) hash;
+		final int hash2 = (int) (hash >>> 32);
+		for (int i = 1; i <= numHashes; i++) {
+			final long bit = getBit(hash1, hash2, i);
+			if ((bits[(int) (bit >>> 6)] & 1L << bit) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if more strings than expected were added, so that the false
+	 *         positive probability is higher than the one it was created for
+	 */
+	public boolean isFull() {
+		return numInsertions > expectedInsertions;
+	}
+
+	public int getExpectedInsertions() {
+		return expectedInsertions;
+	}
+
+	/**
+	 * Position of the i-th bit of a string, combining two hashes
+	 */
+	private long getBit(int hash1, int hash2, int i) {
+		final int combined = hash1 + i * hash2;
+		return (combined & 0x7FFFFFFFL) % numBits;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the characters of a string, with the final mix of
+	 * MurmurHash3 so that both halves depend on all the characters
+	 */
+	private static long hash(String string) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < string.length(); i++) {
+			hash ^= string.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -121,9 +121,34 @@ public class JMolCommandsUtil {
 	}
 
 	public static JMolScript getCalculateSurfaceScript(Atom3D atom) {
+		return getCalculateSurfaceScript(atom, false, false);
+	}
+
+	/**
+	 * Calculates the surface of an atom as if the other chains or molecules
+	 * were deleted, but ignoring them instead, so that the loaded structure is
+	 * not modified and can be used for other atoms
+	 *
+	 * @param atom
+	 * @param removeOtherChains
+	 * @param removeOtherMolecules
+	 * @return
+	 */
+	public static JMolScript getCalculateSurfaceScript(Atom3D atom, boolean removeOtherChains,
+			boolean removeOtherMolecules) {
 		final JMolScript ret = new JMolScript();
-		// calculate isosurface of the selected atom
-		ret.addCommand("select atomno=" + atom.getAtomNumber() + ";isoSurface saSurface;isosurface area set 0");
+		String ignore = "";
+		if (removeOtherMolecules && removeOtherChains) {
+			ignore = " ignore {not protein or not chain = " + atom.getChainID() + "}";
+		} else if (removeOtherMolecules) {
+			ignore = " ignore {not protein}";
+		} else if (removeOtherChains) {
+			ignore = " ignore {not chain = " + atom.getChainID() + "}";
+		}
+		// calculate isosurface of the selected atom, removing the one of the
+		// previous atom
+		ret.addCommand("isosurface delete;select atomno=" + atom.getAtomNumber() + ";isoSurface" + ignore
+				+ " saSurface;isosurface area set 0");
 
 		return ret;
 	}
@@ -30,6 +30,19 @@ public class PropertiesReader {
 	public static final String ONE_MODEL_PER_PROTEIN = "one_model_per_protein";
 	public static final String PDB_IDS = "pdb_ids";
 	public static final String ENZYME_ARRAY = "enzymeArray";
+	public static final String MODEL_SELECTION = "model_selection";
+	public static final String PREFETCH_THREADS = "prefetch_threads";
+	public static final String PDB_BASE_URL = "pdb_base_url";
+	public static final String UNAVAILABLE_PDB_TTL_DAYS = "unavailable_pdb_ttl_days";
+	public static final String PARSER_CACHE_MB = "parser_cache_mb";
+	public static final String UPDATE_DBREF_INDEX = "update_dbref_index";
+	public static final String PARSE_LOOK_AHEAD = "parse_look_ahead";
+	public static final String REFRESH_REPORTS = "refresh_reports";
+	public static final String SURFACE_BACKEND = "surface_backend";
+	public static final String SASA_PROBE_RADIUS = "sasa_probe_radius";
+	public static final String SASA_POINTS = "sasa_points";
+	public static final String SASA_RADII = "sasa_radii";
+	public static final String SURFACE_BATCH_MODE = "surface_batch_mode";
 
 	private static File file;
 
@@ -0,0 +1,46 @@
+package edu.scripps.yates.pdb.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the lookups of atoms in a {@link ResidueAtomIndex}
+ *
+ * @author Salva
+ *
+ */
+public class ResidueAtomIndexTest {
+
+	@Test
+	public void testUnknownAtoms() {
+		final AtomTable table = new AtomTable(4, false);
+		final int ca = table.addAtom(1, AtomType.CA, 'X', 10, ' ', "A", 0, 0, 0);
+		final int c1 = table.addAtom(2, AtomType.UNKNOWN, "C1", 'X', 10, ' ', "A", 0, 0, 0);
+		final int c2 = table.addAtom(3, AtomType.UNKNOWN, "C2", 'X', 10, ' ', "A", 0, 0, 0);
+		final ResidueAtomIndex index = new ResidueAtomIndex(table);
+		Assert.assertEquals(ca, index.getRow("A", 10, ' ', AtomType.CA));
+		// each unknown atom is found by its name
+		Assert.assertEquals(c1, index.getRow("A", 10, ' ', "C1"));
+		Assert.assertEquals(c2, index.getRow("A", 10, ' ', "C2"));
+		Assert.assertEquals(-1, index.getRow("A", 10, ' ', "C3"));
+		Assert.assertEquals(-1, index.getRow("A", 11, ' ', "C1"));
+		Assert.assertEquals(3, index.getNumAtoms(index.getResidue("A", 10, ' ')));
+	}
+
+	@Test
+	public void testInsertionCodes() {
+		final AtomTable table = new AtomTable(4, false);
+		table.addAtom(1, AtomType.CA, 'K', 10, ' ', "A", 0, 0, 0);
+		table.addAtom(2, AtomType.CA, 'G', 11, 'C', "A", 0, 0, 0);
+		table.addAtom(3, AtomType.CB, 'G', 11, 'C', "A", 0, 0, 0);
+		final int row = table.addAtom(4, AtomType.CA, 'K', 11, 'A', "A", 0, 0, 0);
+		table.addAtom(5, AtomType.CA, 'K', 11, 'A', "B", 0, 0, 0);
+		final ResidueAtomIndex index = new ResidueAtomIndex(table);
+		// in the order they are in the structure
+		Assert.assertEquals("CA", index.getInsertionCodes("A", 11));
+		Assert.assertEquals("A", index.getInsertionCodes("B", 11));
+		Assert.assertEquals("", index.getInsertionCodes("A", 10));
+		Assert.assertEquals("", index.getInsertionCodes("C", 11));
+		Assert.assertEquals(row, index.getRow("A", 11, 'A', AtomType.CA));
+	}
+}
@@ -0,0 +1,81 @@
+package edu.scripps.yates.pdb.read;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.scripps.yates.pdb.model.AtomType;
+
+/**
+ * Tests of the parsing of ATOM records from the bytes of a file
+ *
+ * @author Salva
+ *
+ */
+public class AtomRecordParserTest {
+	private static final String HEADER = "HEADER    TEST\n";
+	private static final String ATOM = "ATOM    123  NZ ALYS B  42A     11.639  -6.071 105.147  1.00  0.00           N  ";
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void testParse() {
+		final ByteBuffer data = getBuffer(HEADER + ATOM + "\n");
+		final AtomRecordParser parser = new AtomRecordParser();
+		Assert.assertTrue(parser.parse(data, HEADER.length(), ATOM.length(), true));
+		Assert.assertEquals(123, parser.getSerial());
+		Assert.assertEquals(AtomType.NZ, parser.getAtomType());
+		Assert.assertEquals("NZ", parser.getAtomName());
+		Assert.assertEquals('A', parser.getAltLoc());
+		Assert.assertEquals("K", PDBUtil.parseAA(parser.getPackedResidueName()));
+		Assert.assertTrue(parser.hasThreeLetterResidueName());
+		Assert.assertEquals('B', parser.getChainID());
+		Assert.assertEquals(42, parser.getResSeq());
+		Assert.assertEquals('A', parser.getICode());
+		// the same values as the ones parsed by Double
+		Assert.assertEquals(11.639, parser.getX(), DELTA);
+		Assert.assertEquals(-6.071, parser.getY(), DELTA);
+		Assert.assertEquals(105.147, parser.getZ(), DELTA);
+	}
+
+	@Test
+	public void testCoordinatesParsedLater() {
+		final ByteBuffer data = getBuffer(ATOM);
+		final AtomRecordParser parser = new AtomRecordParser();
+		Assert.assertTrue(parser.parse(data, 0, ATOM.length(), false));
+		Assert.assertTrue(Double.isNaN(parser.getX()));
+		Assert.assertTrue(parser.parseCoordinates(data, 0, ATOM.length()));
+		Assert.assertEquals(105.147, parser.getZ(), DELTA);
+	}
+
+	@Test
+	public void testUnknownAtomName() {
+		final String line = "ATOM      1 CL1  ASN A   7      -1.000   2.500   0.000  1.00  0.00          CL  ";
+		final AtomRecordParser parser = new AtomRecordParser();
+		Assert.assertTrue(parser.parse(getBuffer(line), 0, line.length(), true));
+		Assert.assertEquals(AtomType.UNKNOWN, parser.getAtomType());
+		Assert.assertEquals("CL1", parser.getAtomName());
+		Assert.assertEquals("N", PDBUtil.parseAA(parser.getPackedResidueName()));
+		Assert.assertEquals(' ', parser.getICode());
+	}
+
+	@Test
+	public void testInvalidLines() {
+		final AtomRecordParser parser = new AtomRecordParser();
+		// too short
+		final String shortLine = "ATOM      1  CA  GLY A";
+		Assert.assertFalse(parser.parse(getBuffer(shortLine), 0, shortLine.length(), false));
+		// not a number in the residue number
+		final String badNumber = "ATOM      1  CA  GLY A   X      11.639   6.071  -5.147  1.00  0.00           C  ";
+		Assert.assertFalse(parser.parse(getBuffer(badNumber), 0, badNumber.length(), false));
+		// not a number in the coordinates
+		final String badCoordinates = "ATOM      1  CA  GLY A   1      11.6a9   6.071  -5.147  1.00  0.00           C  ";
+		Assert.assertTrue(parser.parse(getBuffer(badCoordinates), 0, badCoordinates.length(), false));
+		Assert.assertFalse(parser.parseCoordinates(getBuffer(badCoordinates), 0, badCoordinates.length()));
+	}
+
+	private static ByteBuffer getBuffer(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,113 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.scripps.yates.pdb.model.AtomType;
+
+/**
+ * Tests of the selection of the atoms kept while reading the structures
+ *
+ * @author Salva
+ *
+ */
+public class AtomSelectionTest {
+
+	@Test
+	public void testAccepts() {
+		final AtomSelection selection = new AtomSelection.Builder().chains(Collections.singleton("A"))
+				.residues(10, 20).heavyAtomsOnly().build();
+		Assert.assertTrue(selection.accepts("A", 10, AtomType.CA, null));
+		Assert.assertTrue(selection.accepts("A", 20, AtomType.UNKNOWN, "CL1"));
+		Assert.assertFalse(selection.accepts("B", 15, AtomType.CA, null));
+		Assert.assertFalse(selection.accepts("A", 9, AtomType.CA, null));
+		Assert.assertFalse(selection.accepts("A", 21, AtomType.CA, null));
+		// hydrogens and deuteriums, also with a leading digit
+		Assert.assertFalse(selection.accepts("A", 15, AtomType.UNKNOWN, "1HB"));
+		Assert.assertFalse(selection.accepts("A", 15, AtomType.UNKNOWN, "DG1"));
+
+		final AtomSelection types = new AtomSelection.Builder().atomTypes(Arrays.asList(AtomType.NZ, AtomType.CA))
+				.build();
+		Assert.assertTrue(types.accepts("Z", -5, AtomType.NZ, null));
+		Assert.assertFalse(types.accepts("Z", -5, AtomType.CB, null));
+		Assert.assertTrue(AtomSelection.ALL.accepts("Z", -5, AtomType.UNKNOWN, "H1"));
+	}
+
+	@Test
+	public void testEquality() {
+		final AtomSelection selection1 = new AtomSelection.Builder().chains(Arrays.asList("A", "B"))
+				.atomTypes(Arrays.asList(AtomType.NZ, AtomType.CA)).build();
+		final AtomSelection selection2 = new AtomSelection.Builder().chains(Arrays.asList("B", "A"))
+				.atomTypes(Arrays.asList(AtomType.CA, AtomType.NZ)).build();
+		Assert.assertEquals(selection1, selection2);
+		Assert.assertEquals(selection1.hashCode(), selection2.hashCode());
+		Assert.assertEquals(selection1.getFileID(), selection2.getFileID());
+		Assert.assertTrue(new AtomSelection.Builder().build().isAll());
+		Assert.assertEquals("all", AtomSelection.ALL.getFileID());
+		final AtomSelection other = new AtomSelection.Builder().chains(Arrays.asList("A")).build();
+		Assert.assertFalse(selection1.equals(other));
+		Assert.assertFalse(selection1.getFileID().equals(other.getFileID()));
+	}
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		final AtomSelection selection = new AtomSelection.Builder().chains(Arrays.asList("A", "B")).heavyAtomsOnly()
+				.residues(-3, 50).atomTypes(Arrays.asList(AtomType.NZ)).build();
+		for (final AtomSelection written : Arrays.asList(selection, AtomSelection.ALL)) {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(bytes);
+			written.write(out);
+			out.close();
+			Assert.assertEquals(written, AtomSelection.read(ByteBuffer.wrap(bytes.toByteArray())));
+		}
+	}
+
+	@Test
+	public void testParseWithSelection() throws IOException {
+		final File folder = Files.createTempDirectory("selection").toFile();
+		try {
+			final File file = new File(folder, "1sel.pdb");
+			final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII);
+			try {
+				writer.write("ATOM      1  CA  LYS A   1      11.639   6.071  -5.147  1.00  0.00           C  \n");
+				writer.write("ATOM      2  NZ  LYS A   1      12.639   6.071  -5.147  1.00  0.00           N  \n");
+				writer.write("ATOM      3  CA  GLY A   2      13.639   6.071  -5.147  1.00  0.00           C  \n");
+				writer.write("ATOM      4  NZ  LYS B   1      14.639   6.071  -5.147  1.00  0.00           N  \n");
+				writer.write("END\n");
+			} finally {
+				writer.close();
+			}
+			final AtomSelection selection = new AtomSelection.Builder().chains(Collections.singleton("A"))
+					.atomTypes(Collections.singleton(AtomType.NZ)).build();
+			final PDBParser parser = new PDBParser(file.getAbsolutePath(), "1SEL", false, ModelSelection.FIRST,
+					selection);
+			Assert.assertNotNull(parser.getAtom("A", 'K', AtomType.NZ, 1));
+			Assert.assertNull(parser.getAtom("A", 'K', AtomType.CA, 1));
+			Assert.assertNull(parser.getAtom("B", 'K', AtomType.NZ, 1));
+			// the sequences are complete
+			Assert.assertEquals("KG", parser.getChainSequence("A").getSequence());
+			parser.close();
+		} finally {
+			final File[] files = folder.listFiles();
+			if (files != null) {
+				for (final File file : files) {
+					file.delete();
+				}
+			}
+			folder.delete();
+		}
+	}
+}
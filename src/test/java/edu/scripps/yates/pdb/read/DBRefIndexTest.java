@@ -0,0 +1,130 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.scripps.yates.pdb.model.DBRef;
+
+/**
+ * Tests of the references read from the DBREF records and of their index
+ *
+ * @author Salva
+ *
+ */
+public class DBRefIndexTest {
+	private static final String ATOM = "ATOM      1  CA  MET A   1      11.639   6.071  -5.147  1.00  0.00           C  ";
+	private File folder;
+
+	@Before
+	public void createFolder() throws IOException {
+		folder = Files.createTempDirectory("dbrefindex").toFile();
+	}
+
+	@After
+	public void deleteFolder() {
+		final File[] files = folder.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	@Test
+	public void testDBRef1AndDBRef2() throws IOException {
+		final File file = write("4kzx.pdb",
+				"DBREF  4KZX A    1    10  UNP    P12345   ABC_HUMAN        1     10             ",
+				"DBREF1 4KZX B    1   174  UNP                  A0A0B4J2F0_HUMAN                  ",
+				"DBREF2 4KZX B     A0A0B4J2F0                          5         178             ", ATOM);
+		final PDBParser parser = new PDBParser(file.getAbsolutePath(), "4KZX", false);
+		final List<DBRef> dbRefs = parser.getDBRefs();
+		Assert.assertEquals(2, dbRefs.size());
+		Assert.assertEquals("P12345", dbRefs.get(0).getUniprotID());
+		final DBRef dbRef = dbRefs.get(1);
+		Assert.assertEquals("B", dbRef.getChainID());
+		Assert.assertEquals("A0A0B4J2F0", dbRef.getUniprotID());
+		Assert.assertEquals(5, dbRef.getDbSeqBegin());
+		Assert.assertEquals(178, dbRef.getDbSeqEnd());
+		Assert.assertTrue(parser.containsUniprotReference("A0A0B4J2F0"));
+		Assert.assertFalse(parser.containsUniprotReference("A0A0B4J2F0_HUMAN"));
+	}
+
+	@Test
+	public void testMmCIF() throws IOException {
+		final File file = write("5mmc.cif", "data_5MMC", "#", "loop_", "_struct_ref_seq.align_id",
+				"_struct_ref_seq.pdbx_pdb_id_code", "_struct_ref_seq.pdbx_strand_id",
+				"_struct_ref_seq.pdbx_db_accession", "_struct_ref_seq.db_align_beg", "_struct_ref_seq.db_align_end",
+				"1 5MMC A P12345 20 120", "2 5MMC B A0A0B4J2F0 ? ?", "#", "loop_", "_atom_site.group_PDB",
+				"_atom_site.id", "_atom_site.label_atom_id", "_atom_site.label_comp_id", "_atom_site.auth_asym_id",
+				"_atom_site.auth_seq_id", "_atom_site.Cartn_x", "_atom_site.Cartn_y", "_atom_site.Cartn_z",
+				"_atom_site.pdbx_PDB_model_num", "ATOM 1 CA MET A 20 11.639 6.071 -5.147 1", "#");
+		final PDBParser parser = new PDBParser(file.getAbsolutePath(), "5MMC", false);
+		final List<DBRef> dbRefs = parser.getDBRefs();
+		Assert.assertEquals(2, dbRefs.size());
+		Assert.assertEquals("A", dbRefs.get(0).getChainID());
+		Assert.assertEquals("P12345", dbRefs.get(0).getUniprotID());
+		Assert.assertEquals(20, dbRefs.get(0).getDbSeqBegin());
+		Assert.assertEquals(120, dbRefs.get(0).getDbSeqEnd());
+		// unknown range
+		Assert.assertEquals("A0A0B4J2F0", dbRefs.get(1).getUniprotID());
+		Assert.assertEquals(-1, dbRefs.get(1).getDbSeqBegin());
+
+		// the ranges are kept in the index
+		final DBRefIndex index = DBRefIndex.getInstance(folder);
+		Assert.assertTrue(index.containsUniprotReference(parser, "P12345"));
+		final List<DBRef> indexed = index.getDBRefs("P12345");
+		Assert.assertEquals(1, indexed.size());
+		Assert.assertEquals(20, indexed.get(0).getDbSeqBegin());
+		Assert.assertEquals(120, indexed.get(0).getDbSeqEnd());
+	}
+
+	@Test
+	public void testRevisedStructure() throws IOException {
+		final File file = write("1abc.pdb",
+				"DBREF  1ABC A    1    10  UNP    P12345   ABC_HUMAN        1     10             ", ATOM);
+		final DBRefIndex index = DBRefIndex.getInstance(folder);
+		Assert.assertTrue(index.containsUniprotReference(new PDBParser(file.getAbsolutePath(), "1ABC", false),
+				"P12345"));
+		Assert.assertTrue(index.isIndexed("1ABC", file));
+
+		// a new version of the structure, that references other accession
+		write("1abc.pdb", "DBREF  1ABC A    1    10  UNP    Q67890   DEF_HUMAN        1     10             ",
+				ATOM);
+		file.setLastModified(file.lastModified() + 2000);
+		Assert.assertTrue(index.isIndexed("1ABC"));
+		Assert.assertFalse(index.isIndexed("1ABC", file));
+		final PDBParser parser = new PDBParser(file.getAbsolutePath(), "1ABC", false);
+		Assert.assertTrue(index.containsUniprotReference(parser, "Q67890"));
+		Assert.assertFalse(index.containsUniprotReference(parser, "P12345"));
+		Assert.assertTrue(index.isIndexed("1ABC", file));
+	}
+
+	private File write(String fileName, String... lines) throws IOException {
+		final File file = new File(folder, fileName);
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII);
+		try {
+			for (final String line : lines) {
+				writer.write(line);
+				writer.write("\n");
+			}
+			if (!fileName.endsWith(".cif")) {
+				writer.write("END\n");
+			}
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,128 @@
+package edu.scripps.yates.pdb.read;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.scripps.yates.pdb.model.AtomType;
+import edu.scripps.yates.pdb.model.DBRef;
+
+/**
+ * Tests of the reading of structures in mmCIF format
+ *
+ * @author Salva
+ *
+ */
+public class MmCIFReaderTest {
+	private static final String CIF = "data_1CIF\n" //
+			+ "# a comment\n" //
+			+ "_exptl.method 'SOLUTION NMR'\n" //
+			+ "#\n" //
+			+ "loop_\n" //
+			+ "_entity.id\n" //
+			+ "_entity.pdbx_mutation\n" //
+			+ "1 ?\n" //
+			+ "2 Y45A\n" //
+			+ "#\n" //
+			+ "loop_\n" //
+			+ "_atom_site.group_PDB\n" //
+			+ "_atom_site.id\n" //
+			+ "_atom_site.label_atom_id\n" //
+			+ "_atom_site.label_comp_id\n" //
+			+ "_atom_site.label_asym_id\n" //
+			+ "_atom_site.label_seq_id\n" //
+			+ "_atom_site.pdbx_PDB_ins_code\n" //
+			+ "_atom_site.Cartn_x\n" //
+			+ "_atom_site.Cartn_y\n" //
+			+ "_atom_site.Cartn_z\n" //
+			+ "_atom_site.auth_seq_id\n" //
+			+ "_atom_site.auth_asym_id\n" //
+			+ "_atom_site.pdbx_PDB_model_num\n" //
+			+ "ATOM   1 CA  LYS A 1 ? 11.639 6.071 -5.147 101 AB 1\n" //
+			+ "ATOM   2 NZ  LYS A 1 ? 12.000 7.500 -4.000 101 AB 1\n" //
+			+ "HETATM 3 O   HOH C . ? 0.000 0.000 0.000 201 W 1\n" //
+			+ "ATOM   4 \"C1'\" LYS A 2 B 1.0 2.0 3.0 102 AB 1\n" //
+			+ "ATOM   5 CA  LYS A 1 ? 11.700 6.100 -5.200 101 AB 2\n" //
+			+ "#\n";
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void testAtoms() {
+		final MmCIFReader reader = new MmCIFReader(getBuffer(CIF));
+		Assert.assertTrue(reader.getEstimatedNumAtoms() > 0);
+
+		Assert.assertTrue(reader.nextAtom(true));
+		Assert.assertEquals(1, reader.getSerial());
+		Assert.assertEquals(AtomType.CA, reader.getAtomType());
+		Assert.assertEquals("K", PDBUtil.parseAA(reader.getPackedResidueName()));
+		// the author chain and residue numbers, as in PDB files
+		Assert.assertEquals("AB", reader.getChainID());
+		Assert.assertEquals(101, reader.getResSeq());
+		Assert.assertEquals(' ', reader.getICode());
+		Assert.assertEquals(1, reader.getModelNumber());
+		Assert.assertEquals(11.639, reader.getX(), DELTA);
+		Assert.assertEquals(6.071, reader.getY(), DELTA);
+		Assert.assertEquals(-5.147, reader.getZ(), DELTA);
+
+		Assert.assertTrue(reader.nextAtom(true));
+		Assert.assertEquals(AtomType.NZ, reader.getAtomType());
+
+		// the HETATM row is skipped, and the quoted name is read without quotes
+		Assert.assertTrue(reader.nextAtom(false));
+		Assert.assertEquals(4, reader.getSerial());
+		Assert.assertEquals("C1", reader.getAtomName());
+		Assert.assertEquals('B', reader.getICode());
+
+		Assert.assertTrue(reader.nextAtom(false));
+		Assert.assertEquals(2, reader.getModelNumber());
+		Assert.assertFalse(reader.nextAtom(false));
+	}
+
+	@Test
+	public void testHeaderItems() {
+		final MmCIFReader reader = new MmCIFReader(getBuffer(CIF));
+		Assert.assertEquals("SOLUTION NMR", reader.getExperimentalMethod());
+		Assert.assertTrue(reader.getMutation());
+		final List<DBRef> dbRefs = reader.getDBRefs("1CIF");
+		Assert.assertTrue(dbRefs.isEmpty());
+	}
+
+	@Test
+	public void testDBRefs() {
+		final String cif = "data_7REF\n" //
+				+ "loop_\n" //
+				+ "_struct_ref_seq.align_id\n" //
+				+ "_struct_ref_seq.pdbx_strand_id\n" //
+				+ "_struct_ref_seq.pdbx_db_accession\n" //
+				+ "_struct_ref_seq.db_align_beg\n" //
+				+ "_struct_ref_seq.db_align_end\n" //
+				+ "1 A P12345 20 120\n" //
+				+ "2 B ? . ?\n" //
+				+ "#\n";
+		final List<DBRef> dbRefs = new MmCIFReader(getBuffer(cif)).getDBRefs("7REF");
+		Assert.assertEquals(2, dbRefs.size());
+		// the given entry ID, as the file doesn't state it
+		Assert.assertEquals("7REF", dbRefs.get(0).getPdbID());
+		Assert.assertEquals("A", dbRefs.get(0).getChainID());
+		Assert.assertEquals("P12345", dbRefs.get(0).getUniprotID());
+		Assert.assertEquals(20, dbRefs.get(0).getDbSeqBegin());
+		Assert.assertEquals(120, dbRefs.get(0).getDbSeqEnd());
+		// null values
+		Assert.assertNull(dbRefs.get(1).getUniprotID());
+		Assert.assertEquals(-1, dbRefs.get(1).getDbSeqBegin());
+		Assert.assertEquals(-1, dbRefs.get(1).getDbSeqEnd());
+	}
+
+	@Test
+	public void testIsMmCIF() {
+		Assert.assertTrue(MmCIFReader.isMmCIF(getBuffer(CIF)));
+		Assert.assertFalse(MmCIFReader.isMmCIF(getBuffer("HEADER    TEST\nEND\n")));
+	}
+
+	private static ByteBuffer getBuffer(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,111 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.scripps.yates.pdb.model.Atom3D;
+import edu.scripps.yates.pdb.model.AtomType;
+
+/**
+ * Tests of the selection of the models read from structures with several
+ * models
+ *
+ * @author Salva
+ *
+ */
+public class ModelSelectionTest {
+	private File folder;
+	private File file;
+
+	@Before
+	public void createFile() throws IOException {
+		folder = Files.createTempDirectory("models").toFile();
+		file = new File(folder, "2nmr.pdb");
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII);
+		try {
+			for (int model = 1; model <= 3; model++) {
+				writer.write(String.format("MODEL     %4d\n", model));
+				writer.write(String.format("ATOM      1  NZ  LYS A   5    %8.3f   0.000   0.000  1.00  0.00           N  \n",
+						(double) model));
+				writer.write("ENDMDL\n");
+			}
+			writer.write("END\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	@After
+	public void deleteFolder() {
+		final File[] files = folder.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	@Test
+	public void testFromValue() {
+		Assert.assertEquals(ModelSelection.FIRST, ModelSelection.fromValue(" first "));
+		Assert.assertEquals(ModelSelection.ALL, ModelSelection.fromValue("ALL"));
+		final ModelSelection selection = ModelSelection.fromValue("2");
+		Assert.assertEquals(ModelSelection.Policy.SPECIFIC, selection.getPolicy());
+		Assert.assertEquals(2, selection.getModelNumber());
+		Assert.assertEquals(ModelSelection.model(2), selection);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidValue() {
+		ModelSelection.fromValue("second");
+	}
+
+	@Test
+	public void testIncludes() {
+		Assert.assertTrue(ModelSelection.FIRST.includes(3, 3));
+		Assert.assertFalse(ModelSelection.FIRST.includes(4, 3));
+		Assert.assertTrue(ModelSelection.model(4).includes(4, 3));
+		Assert.assertFalse(ModelSelection.model(4).includes(3, 3));
+		Assert.assertTrue(ModelSelection.ALL.includes(4, 3));
+	}
+
+	@Test
+	public void testFirstModel() throws IOException {
+		final PDBParser parser = new PDBParser(file.getAbsolutePath(), "2NMR", true, ModelSelection.FIRST);
+		Assert.assertEquals(1, parser.getNumModels());
+		Assert.assertEquals(1.0, getNZ(parser, 0).getCoordinates().x, 1e-6);
+	}
+
+	@Test
+	public void testSpecificModel() throws IOException {
+		final PDBParser parser = new PDBParser(file.getAbsolutePath(), "2NMR", true, ModelSelection.model(2));
+		Assert.assertEquals(1, parser.getNumModels());
+		Assert.assertEquals(2.0, getNZ(parser, 0).getCoordinates().x, 1e-6);
+	}
+
+	@Test
+	public void testAllModels() throws IOException {
+		final PDBParser parser = new PDBParser(file.getAbsolutePath(), "2NMR", true, ModelSelection.ALL);
+		Assert.assertEquals(3, parser.getNumModels());
+		for (int model = 0; model < 3; model++) {
+			Assert.assertEquals(model + 1.0, getNZ(parser, model).getCoordinates().x, 1e-6);
+		}
+	}
+
+	private static Atom3D getNZ(PDBParser parser, int model) {
+		final Atom3D atom = parser.getAtom("A", 'K', AtomType.NZ, 5, ' ', model);
+		Assert.assertNotNull(atom);
+		return atom;
+	}
+}
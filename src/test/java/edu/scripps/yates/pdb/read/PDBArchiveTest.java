@@ -0,0 +1,211 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the indexing of the members of tar and zip archives
+ *
+ * @author Salva
+ *
+ */
+public class PDBArchiveTest {
+	private static final int TAR_BLOCK_SIZE = 512;
+	private File folder;
+
+	@Before
+	public void createFolder() throws IOException {
+		folder = Files.createTempDirectory("pdbarchive").toFile();
+	}
+
+	@After
+	public void deleteFolder() {
+		delete(folder);
+	}
+
+	private static void delete(File file) {
+		final File[] files = file.listFiles();
+		if (files != null) {
+			for (final File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testTar() throws IOException {
+		final String longName = "pdb/" + repeat('x', 120) + "/pdb2bbb.ent.gz";
+		final String paxName = "pdb/" + repeat('y', 120) + "/pdb3ccc.ent.gz";
+		final File tarFile = new File(folder, "bulk.tar");
+		final OutputStream os = new FileOutputStream(tarFile);
+		try {
+			writeTarEntry(os, "pdb/aa/pdb1aaa.ent.gz", '0', bytes("first"));
+			// GNU long name
+			writeTarEntry(os, "././@LongLink", 'L', bytes(longName + "\0"));
+			writeTarEntry(os, longName.substring(0, 99), '0', bytes("second"));
+			// pax extended header with the name and the size of the next member
+			writeTarEntry(os, "PaxHeaders/pdb3ccc", 'x', bytes(paxRecord("path", paxName) + paxRecord("size", "5")));
+			writeTarEntry(os, "pdb3ccc.ent.gz", '0', bytes("third"));
+			// global pax header, that is not a member
+			writeTarEntry(os, "pax_global_header", 'g', bytes(paxRecord("comment", "bulk")));
+			writeTarEntry(os, "pdb/dd/pdb4ddd.ent.gz", '0', bytes("fourth"));
+			os.write(new byte[2 * TAR_BLOCK_SIZE]);
+		} finally {
+			os.close();
+		}
+		final PDBArchive archive = PDBArchive.getInstance(tarFile);
+		Assert.assertEquals(Arrays.asList("pdb/aa/pdb1aaa.ent.gz", longName, paxName, "pdb/dd/pdb4ddd.ent.gz"),
+				archive.getMemberNames());
+		Assert.assertEquals("first", read(archive, "pdb/aa/pdb1aaa.ent.gz"));
+		Assert.assertEquals("second", read(archive, longName));
+		Assert.assertEquals("third", read(archive, paxName));
+		Assert.assertEquals("fourth", read(archive, "pdb/dd/pdb4ddd.ent.gz"));
+		// the index is written next to the archive
+		Assert.assertTrue(new File(tarFile.getAbsolutePath() + ".idx").exists());
+	}
+
+	@Test
+	public void testZip() throws IOException {
+		final File zipFile = new File(folder, "bulk.zip");
+		final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile));
+		try {
+			zos.putNextEntry(new ZipEntry("pdb/"));
+			zos.closeEntry();
+			zos.putNextEntry(new ZipEntry("pdb/5eee.pdb"));
+			zos.write(bytes(repeat('A', 1000)));
+			zos.closeEntry();
+			final byte[] stored = bytes("stored");
+			final ZipEntry storedEntry = new ZipEntry("pdb/6fff.pdb");
+			storedEntry.setMethod(ZipEntry.STORED);
+			storedEntry.setSize(stored.length);
+			final CRC32 crc = new CRC32();
+			crc.update(stored);
+			storedEntry.setCrc(crc.getValue());
+			zos.putNextEntry(storedEntry);
+			zos.write(stored);
+			zos.closeEntry();
+		} finally {
+			zos.close();
+		}
+		final PDBArchive archive = PDBArchive.getInstance(zipFile);
+		Assert.assertEquals(Arrays.asList("pdb/5eee.pdb", "pdb/6fff.pdb"), archive.getMemberNames());
+		Assert.assertEquals(repeat('A', 1000), read(archive, "pdb/5eee.pdb"));
+		Assert.assertEquals("stored", read(archive, "pdb/6fff.pdb"));
+	}
+
+	@Test
+	public void testZip64() throws IOException {
+		// more than 65535 members are only possible with the ZIP64 records
+		final int numMembers = 0x10000 + 10;
+		final File zipFile = new File(folder, "large.zip");
+		final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile));
+		try {
+			for (int i = 0; i < numMembers; i++) {
+				zos.putNextEntry(new ZipEntry(i + ".pdb"));
+				zos.write(bytes(String.valueOf(i)));
+				zos.closeEntry();
+			}
+		} finally {
+			zos.close();
+		}
+		final PDBArchive archive = PDBArchive.getInstance(zipFile);
+		Assert.assertEquals(numMembers, archive.getMemberNames().size());
+		Assert.assertEquals(String.valueOf(numMembers - 1), read(archive, (numMembers - 1) + ".pdb"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testMemberNotFound() throws IOException {
+		final File zipFile = new File(folder, "empty.zip");
+		final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile));
+		zos.putNextEntry(new ZipEntry("1abc.pdb"));
+		zos.closeEntry();
+		zos.close();
+		PDBArchive.getInstance(zipFile).getInputStream("2abc.pdb");
+	}
+
+	private static String read(PDBArchive archive, String memberName) throws IOException {
+		final InputStream is = archive.getInputStream(memberName);
+		try {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[1024];
+			int read = 0;
+			while ((read = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, read);
+			}
+			return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Writes a ustar header followed by the content, padded to whole blocks
+	 */
+	private static void writeTarEntry(OutputStream os, String name, char type, byte[] content) throws IOException {
+		final byte[] header = new byte[TAR_BLOCK_SIZE];
+		put(header, 0, name);
+		put(header, 100, "0000644");
+		put(header, 108, "0000000");
+		put(header, 116, "0000000");
+		put(header, 124, String.format("%011o", content.length));
+		put(header, 136, "00000000000");
+		header[156] = (byte) type;
+		put(header, 257, "ustar");
+		put(header, 263, "00");
+		// the checksum is computed with its own field as spaces
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		int checksum = 0;
+		for (final byte b : header) {
+			checksum += b & 0xFF;
+		}
+		put(header, 148, String.format("%06o", checksum));
+		header[154] = 0;
+		os.write(header);
+		os.write(content);
+		final int padding = (TAR_BLOCK_SIZE - content.length % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+		os.write(new byte[padding]);
+	}
+
+	private static void put(byte[] header, int offset, String value) {
+		final byte[] bytes = bytes(value);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+
+	/**
+	 * @return a pax record, whose length includes the digits of the length
+	 */
+	private static String paxRecord(String key, String value) {
+		final int length = bytes(" " + key + "=" + value + "\n").length;
+		int total = length + String.valueOf(length).length();
+		if (String.valueOf(total).length() > String.valueOf(length).length()) {
+			total++;
+		}
+		return total + " " + key + "=" + value + "\n";
+	}
+
+	private static byte[] bytes(String string) {
+		return string.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String repeat(char c, int n) {
+		final char[] chars = new char[n];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
@@ -0,0 +1,138 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.scripps.yates.pdb.model.AtomTable;
+import edu.scripps.yates.pdb.model.AtomType;
+import edu.scripps.yates.pdb.model.ChainSequence;
+import edu.scripps.yates.pdb.model.DBRef;
+
+/**
+ * Tests of the writing and reading of the binary sidecars of the structures
+ *
+ * @author Salva
+ *
+ */
+public class PDBBinaryCacheTest {
+	private File folder;
+	private File sourceFile;
+	private File cacheFile;
+
+	@Before
+	public void createFiles() throws IOException {
+		folder = Files.createTempDirectory("binarycache").toFile();
+		sourceFile = new File(folder, "1bin.pdb");
+		final FileOutputStream out = new FileOutputStream(sourceFile);
+		try {
+			out.write("HEADER    TEST\nEND\n".getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		cacheFile = PDBFileManager.getBinaryCacheFile(sourceFile, AtomSelection.ALL);
+	}
+
+	@After
+	public void deleteFolder() {
+		final File[] files = folder.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Assert.assertTrue(createCache(AtomSelection.ALL).write(cacheFile, sourceFile));
+		final PDBBinaryCache cache = PDBBinaryCache.read(cacheFile, sourceFile, ModelSelection.ALL,
+				AtomSelection.ALL);
+		Assert.assertNotNull(cache);
+		Assert.assertEquals("X-RAY DIFFRACTION", cache.getExperimentalMethod());
+		Assert.assertTrue(cache.getMutation());
+		Assert.assertEquals(1, cache.getDBRefs().size());
+		final DBRef dbRef = cache.getDBRefs().get(0);
+		Assert.assertEquals("P12345", dbRef.getUniprotID());
+		Assert.assertEquals("B", dbRef.getChainID());
+		Assert.assertEquals(20, dbRef.getDbSeqBegin());
+		Assert.assertEquals(120, dbRef.getDbSeqEnd());
+		Assert.assertEquals(1, cache.getChainSequences().size());
+		Assert.assertEquals("KG", cache.getChainSequences().get(0).getSequence());
+
+		final AtomTable atoms = cache.getAtomTable();
+		Assert.assertEquals(3, atoms.size());
+		Assert.assertTrue(atoms.hasCoordinates());
+		Assert.assertEquals(2, atoms.getNumModels());
+		Assert.assertEquals(7, atoms.getModelNumber(1));
+		Assert.assertEquals(1, atoms.getModelIndex(2));
+		Assert.assertEquals(AtomType.NZ, atoms.getAtomType(0));
+		Assert.assertEquals("CL1", atoms.getAtomName(1));
+		Assert.assertEquals('G', atoms.getAaChar(1));
+		Assert.assertEquals(11, atoms.getPositionInPDB(1));
+		Assert.assertEquals('A', atoms.getInsertionCode(1));
+		Assert.assertEquals("B", atoms.getChainID(1));
+		Assert.assertEquals(-2.5f, atoms.getY(1), 0f);
+		Assert.assertEquals(3, atoms.getSerialNumber(2));
+
+		// only the header
+		final PDBBinaryCache header = PDBBinaryCache.readHeader(cacheFile, sourceFile);
+		Assert.assertNotNull(header);
+		Assert.assertNull(header.getAtomTable());
+		Assert.assertEquals(1, header.getDBRefs().size());
+	}
+
+	@Test
+	public void testOtherSelections() {
+		final AtomSelection selection = new AtomSelection.Builder().atomTypes(Collections.singleton(AtomType.NZ))
+				.build();
+		Assert.assertFalse(cacheFile.equals(PDBFileManager.getBinaryCacheFile(sourceFile, selection)));
+		Assert.assertTrue(createCache(AtomSelection.ALL).write(cacheFile, sourceFile));
+		Assert.assertNull(PDBBinaryCache.read(cacheFile, sourceFile, ModelSelection.FIRST, AtomSelection.ALL));
+		Assert.assertNull(PDBBinaryCache.read(cacheFile, sourceFile, ModelSelection.ALL, selection));
+	}
+
+	@Test
+	public void testModifiedSource() {
+		Assert.assertTrue(createCache(AtomSelection.ALL).write(cacheFile, sourceFile));
+		sourceFile.setLastModified(sourceFile.lastModified() + 2000);
+		Assert.assertNull(PDBBinaryCache.read(cacheFile, sourceFile, ModelSelection.ALL, AtomSelection.ALL));
+		Assert.assertNull(PDBBinaryCache.readHeader(cacheFile, sourceFile));
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		Assert.assertTrue(createCache(AtomSelection.ALL).write(cacheFile, sourceFile));
+		final byte[] bytes = Files.readAllBytes(cacheFile.toPath());
+		Files.write(cacheFile.toPath(), Arrays.copyOf(bytes, bytes.length - 10));
+		Assert.assertNull(PDBBinaryCache.read(cacheFile, sourceFile, ModelSelection.ALL, AtomSelection.ALL));
+	}
+
+	private static PDBBinaryCache createCache(AtomSelection atomSelection) {
+		final AtomTable atoms = new AtomTable(4, true);
+		atoms.addModel(1);
+		atoms.addAtom(1, AtomType.NZ, 'K', 10, ' ', "B", 1.0, 2.0, 3.0);
+		atoms.addAtom(2, AtomType.UNKNOWN, "CL1", 'G', 11, 'A', "B", 1.5, -2.5, 3.5);
+		atoms.addModel(7);
+		atoms.addAtom(3, AtomType.NZ, 'K', 10, ' ', "B", 1.1, 2.1, 3.1);
+		final ChainSequence.Builder sequence = new ChainSequence.Builder("B");
+		sequence.addAtom('K', 1);
+		sequence.addAtom('G', 2);
+		final List<ChainSequence> sequences = new ArrayList<ChainSequence>();
+		sequences.add(sequence.build());
+		final List<DBRef> dbRefs = Collections.singletonList(new DBRef("1BIN", "B", "P12345", 20, 120));
+		return new PDBBinaryCache(atoms, sequences, dbRefs, "X-RAY DIFFRACTION", true, ModelSelection.ALL,
+				atomSelection);
+	}
+}
@@ -0,0 +1,125 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the local repository of structure files and of its manifest
+ *
+ * @author Salva
+ *
+ */
+public class PDBFileManagerTest {
+	private static final String MANIFEST_FILE_NAME = "pdb_manifest.txt";
+	private File folder;
+
+	@Before
+	public void createFolder() throws IOException {
+		folder = Files.createTempDirectory("repository").toFile();
+	}
+
+	@After
+	public void deleteFolder() {
+		delete(folder);
+	}
+
+	@Test
+	public void testExistingManifest() throws IOException {
+		write("ab/1abc.pdb.gz");
+		write("ef/3efg.pdb.gz");
+		// repeated lines and a file that is not there
+		write(MANIFEST_FILE_NAME, "ab/1abc.pdb.gz\nab/1abc.pdb.gz\n\ncd/2cde.cif.gz\n");
+		final PDBFileManager manager = PDBFileManager.getInstance(folder);
+		Assert.assertEquals(new File(folder, "ab/1abc.pdb.gz"), manager.getPDBFile("1ABC"));
+		// the manifest is trusted without checking the files
+		Assert.assertEquals(new File(folder, "cd/2cde.cif.gz"), manager.getMmCIFFile("2cde"));
+		Assert.assertNull(manager.getPDBFile("3efg"));
+		Assert.assertEquals(2, manager.getPDBIDs().size());
+		// compacted
+		final List<String> lines = readManifest();
+		Assert.assertEquals(2, lines.size());
+		Assert.assertTrue(lines.containsAll(Arrays.asList("ab/1abc.pdb.gz", "cd/2cde.cif.gz")));
+
+		manager.rebuildManifest();
+		Assert.assertEquals(new File(folder, "ef/3efg.pdb.gz"), manager.getPDBFile("3efg"));
+		Assert.assertNull(manager.getMmCIFFile("2cde"));
+	}
+
+	@Test
+	public void testNoManifest() throws IOException {
+		// a wwPDB mirror and the previous flat layout
+		write("xy/pdb4xyz.ent.gz");
+		write("xy/4xyz.cif.gz");
+		write("5klm.pdb");
+		final PDBFileManager manager = PDBFileManager.getInstance(folder);
+		Assert.assertEquals(new File(folder, "xy/pdb4xyz.ent.gz"), manager.getPDBFile("4XYZ"));
+		Assert.assertEquals(new File(folder, "xy/4xyz.cif.gz"), manager.getMmCIFFile("4xyz"));
+		Assert.assertEquals(new File(folder, "5klm.pdb"), manager.getPDBFile("5klm"));
+		Assert.assertTrue(new File(folder, MANIFEST_FILE_NAME).exists());
+		Assert.assertEquals(3, readManifest().size());
+	}
+
+	@Test
+	public void testSaveFile() throws IOException {
+		final PDBFileManager manager = PDBFileManager.getInstance(folder);
+		final File downloaded = new File(folder, "downloaded.pdb");
+		Files.write(downloaded.toPath(), "HEADER    TEST\nEND\n".getBytes(StandardCharsets.US_ASCII));
+		final File saved = manager.savePDBFile(downloaded, "6OPQ");
+		Assert.assertEquals(saved, manager.getPDBFile("6opq"));
+		Assert.assertEquals("op", saved.getParentFile().getName());
+		// gzip compressed
+		final byte[] bytes = Files.readAllBytes(saved.toPath());
+		Assert.assertEquals((byte) 0x1f, bytes[0]);
+		Assert.assertEquals((byte) 0x8b, bytes[1]);
+		Assert.assertTrue(readManifest().contains(folder.toPath().relativize(saved.toPath()).toString()
+				.replace(File.separatorChar, '/')));
+	}
+
+	@Test
+	public void testMissingFile() throws IOException {
+		write("ab/1abc.pdb.gz");
+		final PDBFileManager manager = PDBFileManager.getInstance(folder);
+		final File file = manager.getPDBFile("1abc");
+		Assert.assertNotNull(file);
+		file.delete();
+		// other file of the entry is not removed
+		manager.removeMissingFile("1ABC", new File(folder, "1abc.pdb"));
+		Assert.assertEquals(file, manager.getPDBFile("1abc"));
+		manager.removeMissingFile("1ABC", file);
+		Assert.assertNull(manager.getPDBFile("1abc"));
+		Assert.assertTrue(readManifest().isEmpty());
+	}
+
+	private void write(String relativePath) throws IOException {
+		write(relativePath, "");
+	}
+
+	private void write(String relativePath, String content) throws IOException {
+		final File file = new File(folder, relativePath);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private List<String> readManifest() throws IOException {
+		return Files.readAllLines(new File(folder, MANIFEST_FILE_NAME).toPath(), StandardCharsets.UTF_8);
+	}
+
+	private static void delete(File file) {
+		final File[] files = file.listFiles();
+		if (files != null) {
+			for (final File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,228 @@
+package edu.scripps.yates.pdb.read;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of {@link PDBFileRetriever} against a local HTTP server that stands in
+ * for the RCSB
+ *
+ * @author Salva
+ *
+ */
+public class PDBFileRetrieverServerTest {
+	private static final long TIMEOUT_SECONDS = 30;
+	private HttpServer server;
+	private byte[] content;
+
+	@Before
+	public void startServer() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		for (int i = 0; i < 100; i++) {
+			gzip.write("ATOM      1  CA  LYS A   1      11.104   6.134  -6.504  1.00  0.00           C  \n"
+					.getBytes("US-ASCII"));
+		}
+		gzip.close();
+		content = bytes.toByteArray();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.start();
+		PDBFileRetriever.setBaseURL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+		PDBFileRetriever.setMaxRetries(1);
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+		PDBFileRetriever.setBaseURL(PDBFileRetriever.DEFAULT_BASE_URL);
+		PDBFileRetriever.setMaxRetries(PDBFileRetriever.DEFAULT_MAX_RETRIES);
+	}
+
+	@Test
+	public void testOK() throws Exception {
+		final AtomicInteger requests = serve("1aaa", new int[] { 200 }, null);
+		final File destination = createDestination();
+		final File file = PDBFileRetriever.downloadPDBGZipFile("1aaa", destination).get(TIMEOUT_SECONDS,
+				TimeUnit.SECONDS);
+		Assert.assertEquals(destination, file);
+		Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+		Assert.assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testUncompressedFile() throws Exception {
+		// the server has only the uncompressed file, that is transferred
+		// compressed and written compressed
+		final byte[] uncompressed = decompress(content);
+		final AtomicInteger requests = serve("7ggg.pdb", uncompressed, new int[] { 200 }, null);
+		final File destination = createDestination();
+		final File file = PDBFileRetriever.downloadPDBFile("7ggg", destination).get(TIMEOUT_SECONDS,
+				TimeUnit.SECONDS);
+		Assert.assertEquals(destination, file);
+		Assert.assertArrayEquals(uncompressed, decompress(Files.readAllBytes(file.toPath())));
+		Assert.assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testNotFound() throws Exception {
+		final AtomicInteger requests = serve("2bbb", new int[] { 404 }, null);
+		final File file = PDBFileRetriever.downloadPDBGZipFile("2bbb", createDestination()).get(TIMEOUT_SECONDS,
+				TimeUnit.SECONDS);
+		Assert.assertNull(file);
+		// not retried
+		Assert.assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testTooManyRequests() throws Exception {
+		final AtomicInteger requests = serve("3ccc", new int[] { 429, 200 }, "1");
+		final File destination = createDestination();
+		final long t1 = System.currentTimeMillis();
+		final File file = PDBFileRetriever.downloadPDBGZipFile("3ccc", destination).get(TIMEOUT_SECONDS,
+				TimeUnit.SECONDS);
+		Assert.assertEquals(destination, file);
+		Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+		Assert.assertEquals(2, requests.get());
+		// the retry waits what the Retry-After header says
+		Assert.assertTrue(System.currentTimeMillis() - t1 >= 1000);
+	}
+
+	@Test
+	public void testTruncatedBody() throws Exception {
+		// the first response is cut in the middle and the retry is complete
+		final AtomicInteger requests = serve("4ddd", new int[] { -200, 200 }, null);
+		final File destination = createDestination();
+		final File file = PDBFileRetriever.downloadPDBGZipFile("4ddd", destination).get(TIMEOUT_SECONDS,
+				TimeUnit.SECONDS);
+		Assert.assertEquals(destination, file);
+		Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+		Assert.assertEquals(2, requests.get());
+	}
+
+	@Test
+	public void testTruncatedBodyGivesUp() throws Exception {
+		final AtomicInteger requests = serve("5eee", new int[] { -200, -200 }, null);
+		final File destination = createDestination();
+		try {
+			PDBFileRetriever.downloadPDBGZipFile("5eee", destination).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			Assert.fail("A truncated file was accepted");
+		} catch (final ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+		Assert.assertEquals(2, requests.get());
+		// the partial file is not left behind
+		Assert.assertFalse(destination.exists());
+	}
+
+	@Test
+	public void testForbidden() throws Exception {
+		final AtomicInteger requests = serve("6fff", new int[] { 403 }, null);
+		try {
+			PDBFileRetriever.downloadPDBGZipFile("6fff", createDestination()).get(TIMEOUT_SECONDS,
+					TimeUnit.SECONDS);
+			Assert.fail("A rejected request was reported as not found");
+		} catch (final ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+		Assert.assertEquals(1, requests.get());
+	}
+
+	/**
+	 * Serves the file of an entry with a sequence of responses, one per request
+	 * (the last one is repeated)
+	 *
+	 * @param pdbID
+	 * @param statuses   status of each response, or -200 for a 200 response
+	 *                   whose body is cut in the middle
+	 * @param retryAfter value of the Retry-After header of the 429 responses
+	 * @return the counter of the requests received
+	 */
+	private AtomicInteger serve(String pdbID, final int[] statuses, final String retryAfter) {
+		return serve(pdbID + PDBFileRetriever.PDB_FILE_GIZP_EXTENSION, content, statuses, retryAfter);
+	}
+
+	/**
+	 * Serves a file with a sequence of responses, as
+	 * {@link #serve(String, int[], String)}
+	 *
+	 * @param fileName
+	 * @param content    the body of the 200 responses
+	 * @param statuses
+	 * @param retryAfter
+	 * @return the counter of the requests received
+	 */
+	private AtomicInteger serve(String fileName, final byte[] content, final int[] statuses,
+			final String retryAfter) {
+		final AtomicInteger requests = new AtomicInteger();
+		server.createContext("/" + fileName, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				final int request = requests.getAndIncrement();
+				final int status = statuses[Math.min(request, statuses.length - 1)];
+				try {
+					if (status == 200 || status == -200) {
+						exchange.sendResponseHeaders(200, content.length);
+						final OutputStream os = exchange.getResponseBody();
+						if (status == 200) {
+							os.write(content);
+						} else {
+							// the connection is closed before the whole body is
+							// sent
+							os.write(content, 0, content.length / 2);
+							os.flush();
+						}
+					} else {
+						if (retryAfter != null) {
+							exchange.getResponseHeaders().set("Retry-After", retryAfter);
+						}
+						exchange.sendResponseHeaders(status, -1);
+					}
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		return requests;
+	}
+
+	private static byte[] decompress(byte[] bytes) throws IOException {
+		final GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes));
+		try {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[1024];
+			int read = 0;
+			while ((read = gzip.read(buffer)) != -1) {
+				baos.write(buffer, 0, read);
+			}
+			return baos.toByteArray();
+		} finally {
+			gzip.close();
+		}
+	}
+
+	private static File createDestination() throws IOException {
+		final File destination = File.createTempFile("pdb", PDBFileRetriever.PDB_FILE_GIZP_EXTENSION);
+		destination.delete();
+		destination.deleteOnExit();
+		return destination;
+	}
+}
@@ -0,0 +1,55 @@
+package edu.scripps.yates.pdb.read;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.scripps.yates.pdb.model.AtomType;
+
+/**
+ * Tests of the perfect hash of {@link PackedNameTable}
+ *
+ * @author Salva
+ *
+ */
+public class PackedNameTableTest {
+
+	@Test
+	public void testAllNamesFound() {
+		final AtomType[] atomTypes = AtomType.values();
+		final int[] packedNames = new int[atomTypes.length];
+		final int[] values = new int[atomTypes.length];
+		for (int i = 0; i < atomTypes.length; i++) {
+			packedNames[i] = PackedNameTable.pack(atomTypes[i].name());
+			values[i] = i;
+		}
+		final PackedNameTable table = new PackedNameTable(packedNames, values, -1);
+		for (int i = 0; i < atomTypes.length; i++) {
+			Assert.assertEquals(i, table.get(PackedNameTable.pack(atomTypes[i].name())));
+		}
+		Assert.assertEquals(-1, table.get(PackedNameTable.pack("XYZ")));
+		Assert.assertEquals(-1, table.get(0));
+	}
+
+	@Test
+	public void testRepeatedNames() {
+		final PackedNameTable table = new PackedNameTable(
+				new int[] { PackedNameTable.pack("CA"), PackedNameTable.pack("CA"), PackedNameTable.pack("N") },
+				new int[] { 1, 2, 3 }, 0);
+		// the first value wins
+		Assert.assertEquals(1, table.get(PackedNameTable.pack("CA")));
+		Assert.assertEquals(3, table.get(PackedNameTable.pack("N")));
+	}
+
+	@Test
+	public void testPackAndUnpack() {
+		Assert.assertEquals(('C' << 8) + 'A', PackedNameTable.pack("CA"));
+		Assert.assertEquals("HD21", PackedNameTable.unpack(PackedNameTable.pack("HD21")));
+		Assert.assertEquals("", PackedNameTable.unpack(0));
+	}
+
+	@Test
+	public void testAminoacids() {
+		Assert.assertEquals("W", PDBUtil.parseAA(PackedNameTable.pack("TRP")));
+		Assert.assertEquals(" ", PDBUtil.parseAA(PackedNameTable.pack("HOH")));
+	}
+}
@@ -0,0 +1,102 @@
+package edu.scripps.yates.pdb.surface;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.scripps.yates.pdb.model.Atom3D;
+import edu.scripps.yates.pdb.model.AtomType;
+import edu.scripps.yates.pdb.read.NotValidPDBException;
+import edu.scripps.yates.pdb.read.PDBParser;
+
+/**
+ * Tests of {@link ShrakeRupleySASA} against the areas of isolated and
+ * overlapping spheres, that are known analytically
+ *
+ * @author Salva
+ *
+ */
+public class ShrakeRupleySASATest {
+	// carbon radius plus probe radius
+	private static final double RADIUS = 1.7 + ShrakeRupleySASA.DEFAULT_PROBE_RADIUS;
+	// the error of the sampling of the spheres with the default points
+	private static final double DELTA = 1.0;
+	private File file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("sasa", ".pdb");
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+
+	@Test
+	public void testIsolatedAtom() throws Exception {
+		final List<Atom3D> atoms = parse(0, 0, 0, 10, 0, 0, "B");
+		final ShrakeRupleySASA sasa = new ShrakeRupleySASA();
+		Assert.assertEquals(4 * Math.PI * RADIUS * RADIUS, sasa.getAccessibility(atoms.get(0), false), DELTA);
+	}
+
+	@Test
+	public void testOverlappingAtoms() throws Exception {
+		final double distance = 3.0;
+		final List<Atom3D> atoms = parse(0, 0, 0, distance, 0, 0, "A");
+		final ShrakeRupleySASA sasa = new ShrakeRupleySASA();
+		// the sphere minus the cap inside the other sphere
+		final double capHeight = RADIUS - distance / 2;
+		final double expected = 4 * Math.PI * RADIUS * RADIUS - 2 * Math.PI * RADIUS * capHeight;
+		Assert.assertEquals(expected, sasa.getAccessibility(atoms.get(0), false), DELTA);
+		final double[] accessibilities = sasa.getAccessibilities(atoms.get(0).getTable(),
+				new int[] { atoms.get(0).getRow(), atoms.get(1).getRow() }, false);
+		Assert.assertEquals(expected, accessibilities[0], DELTA);
+		Assert.assertEquals(expected, accessibilities[1], DELTA);
+	}
+
+	@Test
+	public void testRemoveOtherChains() throws Exception {
+		final List<Atom3D> atoms = parse(0, 0, 0, 3.0, 0, 0, "B");
+		final ShrakeRupleySASA sasa = new ShrakeRupleySASA();
+		// the atom of the other chain only occludes it if it is not removed
+		Assert.assertEquals(4 * Math.PI * RADIUS * RADIUS, sasa.getAccessibility(atoms.get(0), true), DELTA);
+		Assert.assertTrue(sasa.getAccessibility(atoms.get(0), false) < 4 * Math.PI * RADIUS * RADIUS - DELTA);
+	}
+
+	/**
+	 * Writes and parses a structure with two alpha carbons, the first one in
+	 * chain A and the second one in the given chain
+	 *
+	 * @return the two atoms
+	 */
+	private List<Atom3D> parse(double x1, double y1, double z1, double x2, double y2, double z2, String chainID2)
+			throws IOException, NotValidPDBException {
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII);
+		try {
+			writer.write(String.format("ATOM      1  CA  GLY A   1    %8.3f%8.3f%8.3f  1.00  0.00           C  \n", x1,
+					y1, z1));
+			writer.write(String.format("ATOM      2  CA  GLY %s   2    %8.3f%8.3f%8.3f  1.00  0.00           C  \n",
+					chainID2, x2, y2, z2));
+			writer.write("END\n");
+		} finally {
+			writer.close();
+		}
+		final PDBParser parser = new PDBParser(file.getAbsolutePath(), "1SAS", true);
+		final List<Atom3D> atoms = parser.getAtoms("A", "G", AtomType.CA);
+		if (!"A".equals(chainID2)) {
+			atoms.addAll(parser.getAtoms(chainID2, "G", AtomType.CA));
+		}
+		Assert.assertEquals(2, atoms.size());
+		return atoms;
+	}
+}
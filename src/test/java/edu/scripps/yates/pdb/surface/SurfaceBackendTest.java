@@ -0,0 +1,158 @@
+package edu.scripps.yates.pdb.surface;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.scripps.yates.pdb.model.Atom3D;
+import edu.scripps.yates.pdb.model.AtomType;
+import edu.scripps.yates.pdb.read.AtomSelection;
+import edu.scripps.yates.pdb.read.PDBParser;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Tests of the {@link SurfaceBackend#NATIVE} backend against the
+ * {@link SurfaceBackend#JMOL} one
+ *
+ * @author Salva
+ *
+ */
+public class SurfaceBackendTest {
+	private static final String PDB_ID = "1SRF";
+	// heights of the NZ atoms over the layer of carbons, in angstroms
+	private static final double[] NZ_HEIGHTS = { 0.0, 1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 8.0, 12.0 };
+	// maximum mean difference between the accessibilities of both backends, in
+	// square angstroms
+	private static final double MAX_MEAN_DIFFERENCE = 10.0;
+	private static final double MIN_CORRELATION = 0.9;
+	private File folder;
+
+	@Before
+	public void createFolder() throws IOException {
+		folder = Files.createTempDirectory("surface").toFile();
+	}
+
+	@After
+	public void deleteFolder() {
+		final File[] files = folder.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	@Test
+	public void testNativeReadsAllTheAtoms() {
+		final Map<Character, List<AtomType>> atomTypeMap = new THashMap<Character, List<AtomType>>();
+		atomTypeMap.put('K', Collections.singletonList(AtomType.NZ));
+		final SurfaceCalculator calculator = new SurfaceCalculator(atomTypeMap, true, true, folder);
+		// only the atoms of the sites, as JMol reads the files by itself
+		Assert.assertFalse(AtomSelection.ALL.equals(calculator.getPdbParserManager().getAtomSelection()));
+		calculator.setSurfaceBackend(SurfaceBackend.NATIVE);
+		// all the atoms, as any of them can occlude the ones of the sites
+		Assert.assertEquals(AtomSelection.ALL, calculator.getPdbParserManager().getAtomSelection());
+		calculator.setSurfaceBackend(SurfaceBackend.JMOL);
+		Assert.assertFalse(AtomSelection.ALL.equals(calculator.getPdbParserManager().getAtomSelection()));
+	}
+
+	@Test
+	public void testNativeVsJMol() throws Exception {
+		final File file = writeStructure();
+		final PDBParser parser = new PDBParser(file.getAbsolutePath(), PDB_ID, true);
+		final List<Atom3D> atoms = parser.getAtoms("A", "K", AtomType.NZ);
+		Assert.assertEquals(NZ_HEIGHTS.length, atoms.size());
+		final int[] rows = new int[atoms.size()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = atoms.get(i).getRow();
+		}
+		final double[] nativeAccessibilities = new ShrakeRupleySASA().getAccessibilities(atoms.get(0).getTable(),
+				rows, true);
+		final List<Double> jmolAccessibilities = parser.getSurfaceAccessibilityOfAtoms(atoms, true, true);
+		parser.close();
+
+		final double[] x = new double[atoms.size()];
+		final double[] y = new double[atoms.size()];
+		double sumOfDifferences = 0;
+		for (int i = 0; i < atoms.size(); i++) {
+			Assert.assertNotNull(jmolAccessibilities.get(i));
+			x[i] = nativeAccessibilities[i];
+			y[i] = jmolAccessibilities.get(i);
+			sumOfDifferences += Math.abs(x[i] - y[i]);
+		}
+		final double meanDifference = sumOfDifferences / atoms.size();
+		final double correlation = getCorrelation(x, y);
+		Assert.assertTrue("Mean difference: " + meanDifference, meanDifference < MAX_MEAN_DIFFERENCE);
+		Assert.assertTrue("Correlation: " + correlation, correlation > MIN_CORRELATION);
+	}
+
+	/**
+	 * Writes a structure with a layer of alpha carbons and the NZ atoms of some
+	 * lysines at different heights over it, from buried in the layer to
+	 * isolated, so that their accessibilities cover the whole range
+	 *
+	 * @return the file
+	 */
+	private File writeStructure() throws IOException {
+		final File file = new File(folder, PDB_ID.toLowerCase() + ".pdb");
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII);
+		try {
+			int serial = 1;
+			int residue = 1;
+			for (int i = -3; i <= 3; i++) {
+				for (int j = -3; j <= 3; j++) {
+					writer.write(getAtomLine(serial++, "CA", "GLY", residue++, 3.0 * i, 3.0 * j, 0.0, "C"));
+				}
+			}
+			for (int i = 0; i < NZ_HEIGHTS.length; i++) {
+				// between the carbons of the layer
+				final double position = 1.5 + 3.0 * (i % 3 - 1);
+				writer.write(getAtomLine(serial++, "NZ", "LYS", residue++, position, position, NZ_HEIGHTS[i], "N"));
+			}
+			writer.write("END\n");
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	private static String getAtomLine(int serial, String atomName, String residueName, int residueNumber, double x,
+			double y, double z, String element) {
+		return String.format("ATOM  %5d  %-3s %3s A%4d    %8.3f%8.3f%8.3f  1.00  0.00          %2s  \n", serial,
+				atomName, residueName, residueNumber, x, y, z, element);
+	}
+
+	/**
+	 * @return the Pearson correlation coefficient
+	 */
+	private static double getCorrelation(double[] x, double[] y) {
+		double meanX = 0;
+		double meanY = 0;
+		for (int i = 0; i < x.length; i++) {
+			meanX += x[i] / x.length;
+			meanY += y[i] / y.length;
+		}
+		double covariance = 0;
+		double varianceX = 0;
+		double varianceY = 0;
+		for (int i = 0; i < x.length; i++) {
+			covariance += (x[i] - meanX) * (y[i] - meanY);
+			varianceX += (x[i] - meanX) * (x[i] - meanX);
+			varianceY += (y[i] - meanY) * (y[i] - meanY);
+		}
+		return covariance / Math.sqrt(varianceX * varianceY);
+	}
+}
@@ -0,0 +1,74 @@
+package edu.scripps.yates.pdb.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the answers of {@link BloomFilter}
+ *
+ * @author Salva
+ *
+ */
+public class BloomFilterTest {
+	private static final int NUM_STRINGS = 10000;
+	private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+	@Test
+	public void testNoFalseNegatives() {
+		final BloomFilter filter = new BloomFilter(NUM_STRINGS, FALSE_POSITIVE_PROBABILITY);
+		for (int i = 0; i < NUM_STRINGS; i++) {
+			filter.add(getAccession(i));
+		}
+		for (int i = 0; i < NUM_STRINGS; i++) {
+			Assert.assertTrue(filter.mightContain(getAccession(i)));
+		}
+	}
+
+	@Test
+	public void testFalsePositiveProbability() {
+		final BloomFilter filter = new BloomFilter(NUM_STRINGS, FALSE_POSITIVE_PROBABILITY);
+		for (int i = 0; i < NUM_STRINGS; i++) {
+			filter.add(getAccession(i));
+		}
+		int falsePositives = 0;
+		final int numTested = 10 * NUM_STRINGS;
+		for (int i = NUM_STRINGS; i < NUM_STRINGS + numTested; i++) {
+			if (filter.mightContain(getAccession(i))) {
+				falsePositives++;
+			}
+		}
+		// some margin over the probability the filter was created for
+		Assert.assertTrue("False positive rate: " + (double) falsePositives / numTested,
+				falsePositives < 2 * FALSE_POSITIVE_PROBABILITY * numTested);
+	}
+
+	@Test
+	public void testEmpty() {
+		final BloomFilter filter = new BloomFilter(0, FALSE_POSITIVE_PROBABILITY);
+		Assert.assertFalse(filter.mightContain("P12345"));
+		Assert.assertFalse(filter.isFull());
+	}
+
+	@Test
+	public void testFull() {
+		final BloomFilter filter = new BloomFilter(10, FALSE_POSITIVE_PROBABILITY);
+		Assert.assertEquals(10, filter.getExpectedInsertions());
+		for (int i = 0; i < 10; i++) {
+			filter.add(getAccession(i));
+		}
+		Assert.assertFalse(filter.isFull());
+		filter.add(getAccession(10));
+		Assert.assertTrue(filter.isFull());
+		// it keeps answering for the strings added before
+		for (int i = 0; i <= 10; i++) {
+			Assert.assertTrue(filter.mightContain(getAccession(i)));
+		}
+	}
+
+	/**
+	 * @return a string that looks like a UniProtKB accession
+	 */
+	private static String getAccession(int i) {
+		return String.format("P%05d", i);
+	}
+}